@@ -0,0 +1,30 @@
+package edu.harvard.dbmi.avillach.data.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A compression format for blobs stored in the database.
+ *
+ * Each row stores the id of the codec that wrote it, so a codec's id and format
+ * must never change once rows have been written with it. Use a new id instead.
+ */
+public interface BlobCodec {
+
+	/**
+	 * @return the id stored alongside the blobs written by this codec
+	 */
+	int getId();
+
+	/**
+	 * @return a stream that compresses everything written to it into the given output.
+	 * Closing it finishes the compressed data and closes the output.
+	 */
+	OutputStream compressing(OutputStream output) throws IOException;
+
+	/**
+	 * @return a stream of the decompressed content of the given input
+	 */
+	InputStream decompressing(InputStream input) throws IOException;
+}
@@ -0,0 +1,127 @@
+package edu.harvard.dbmi.avillach.data.codec;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import edu.harvard.dbmi.avillach.util.exception.ApplicationException;
+
+/**
+ * Registry of the {@link BlobCodec}s that stored blobs may have been written with, and helpers
+ * to move strings in and out of them in linear time.
+ *
+ * Another format, zstd for instance, can be added by registering a codec under a new id.
+ */
+public final class BlobCodecs {
+
+	static final int BUFFER_SIZE = 8192;
+
+	public static final BlobCodec GZIP = new GzipCodec();
+
+	/**
+	 * Deflate primed with the field names and values that make up most query requests
+	 */
+	public static final BlobCodec QUERY_DICTIONARY = new DeflateDictionaryCodec(1, loadDictionary("/codec/query.dict"));
+
+	private static final Map<Integer, BlobCodec> codecs = new ConcurrentHashMap<>();
+
+	//Copy buffers are reused by each thread rather than allocated per blob
+	private static final ThreadLocal<byte[]> buffers = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+
+	static {
+		register(GZIP);
+		register(QUERY_DICTIONARY);
+	}
+
+	private BlobCodecs() {
+	}
+
+	public static void register(BlobCodec codec) {
+		BlobCodec existing = codecs.putIfAbsent(codec.getId(), codec);
+		if (existing != null && existing != codec) {
+			throw new IllegalArgumentException("Codec id " + codec.getId() + " is already used by " + existing.getClass().getSimpleName());
+		}
+	}
+
+	/**
+	 * @param id the codec id stored with a blob; null for blobs written before ids were stored, which are gzip
+	 */
+	public static BlobCodec forId(Integer id) {
+		if (id == null) {
+			return GZIP;
+		}
+		BlobCodec codec = codecs.get(id);
+		if (codec == null) {
+			throw new ApplicationException("Unknown blob codec id: " + id);
+		}
+		return codec;
+	}
+
+	/**
+	 * @param id the codec id stored with the blob
+	 * @param blob the stored blob, may be null or empty
+	 * @return a stream of the decompressed content
+	 */
+	public static InputStream decompressing(Integer id, byte[] blob) throws IOException {
+		if (blob == null || blob.length == 0) {
+			return new ByteArrayInputStream(new byte[0]);
+		}
+		return forId(id).decompressing(new ByteArrayInputStream(blob));
+	}
+
+	public static byte[] compress(BlobCodec codec, String content) {
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(32, content.length() / 4));
+		try (Writer writer = new OutputStreamWriter(codec.compressing(compressed), StandardCharsets.UTF_8)) {
+			writer.write(content);
+		} catch (IOException e) {
+			throw new ApplicationException("Unable to compress with codec " + codec.getId(), e);
+		}
+		return compressed.toByteArray();
+	}
+
+	public static byte[] compress(BlobCodec codec, byte[] content) {
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(32, content.length / 4));
+		try (OutputStream output = codec.compressing(compressed)) {
+			output.write(content);
+		} catch (IOException e) {
+			throw new ApplicationException("Unable to compress with codec " + codec.getId(), e);
+		}
+		return compressed.toByteArray();
+	}
+
+	public static String decompress(BlobCodec codec, byte[] blob) {
+		return new String(decompressBytes(codec, blob), StandardCharsets.UTF_8);
+	}
+
+	public static byte[] decompressBytes(BlobCodec codec, byte[] blob) {
+		ByteArrayOutputStream content = new ByteArrayOutputStream(blob.length * 4);
+		byte[] buffer = buffers.get();
+		try (InputStream input = codec.decompressing(new ByteArrayInputStream(blob))) {
+			int count;
+			while ((count = input.read(buffer)) >= 0) {
+				content.write(buffer, 0, count);
+			}
+		} catch (IOException e) {
+			throw new ApplicationException("Unable to decompress with codec " + codec.getId(), e);
+		}
+		return content.toByteArray();
+	}
+
+	private static byte[] loadDictionary(String path) {
+		try (InputStream input = BlobCodecs.class.getResourceAsStream(path)) {
+			if (input == null) {
+				throw new IllegalStateException("Missing codec dictionary " + path);
+			}
+			ByteArrayOutputStream dictionary = new ByteArrayOutputStream();
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int count;
+			while ((count = input.read(buffer)) >= 0) {
+				dictionary.write(buffer, 0, count);
+			}
+			return dictionary.toByteArray();
+		} catch (IOException e) {
+			throw new IllegalStateException("Unable to read codec dictionary " + path, e);
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package edu.harvard.dbmi.avillach.data.codec;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Raw deflate primed with a preset dictionary of strings that are common in the blobs.
+ *
+ * Small JSON documents such as query requests repeat the same field names over and over, but
+ * are too short for plain gzip to learn them; with a dictionary those names compress from the
+ * first occurrence. The dictionary is part of the format, so a different dictionary needs a new id.
+ */
+public class DeflateDictionaryCodec implements BlobCodec {
+
+	private final int id;
+	private final byte[] dictionary;
+
+	public DeflateDictionaryCodec(int id, byte[] dictionary) {
+		this.id = id;
+		this.dictionary = dictionary.clone();
+	}
+
+	@Override
+	public int getId() {
+		return id;
+	}
+
+	@Override
+	public OutputStream compressing(OutputStream output) {
+		Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+		deflater.setDictionary(dictionary);
+		DeflaterOutputStream deflating = new DeflaterOutputStream(output, deflater, BlobCodecs.BUFFER_SIZE);
+		//The deflater is ours, so DeflaterOutputStream will not release its native memory
+		return new FilterOutputStream(deflating) {
+			@Override
+			public void write(byte[] buffer, int offset, int length) throws IOException {
+				out.write(buffer, offset, length);
+			}
+
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					deflater.end();
+				}
+			}
+		};
+	}
+
+	@Override
+	public InputStream decompressing(InputStream input) {
+		Inflater inflater = new Inflater(true);
+		inflater.setDictionary(dictionary);
+		return new InflaterInputStream(input, inflater, BlobCodecs.BUFFER_SIZE) {
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					inflater.end();
+				}
+			}
+		};
+	}
+}
@@ -0,0 +1,30 @@
+package edu.harvard.dbmi.avillach.data.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Plain gzip, the format of every blob written before codec ids were stored
+ */
+public class GzipCodec implements BlobCodec {
+
+	public static final int ID = 0;
+
+	@Override
+	public int getId() {
+		return ID;
+	}
+
+	@Override
+	public OutputStream compressing(OutputStream output) throws IOException {
+		return new GZIPOutputStream(output, BlobCodecs.BUFFER_SIZE);
+	}
+
+	@Override
+	public InputStream decompressing(InputStream input) throws IOException {
+		return new GZIPInputStream(input, BlobCodecs.BUFFER_SIZE);
+	}
+}
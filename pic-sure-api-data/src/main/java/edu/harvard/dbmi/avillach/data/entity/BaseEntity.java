@@ -1,22 +1,47 @@
 package edu.harvard.dbmi.avillach.data.entity;
 
+import java.util.Comparator;
 import java.util.Objects;
 import java.util.UUID;
 
 import javax.persistence.*;
 
-import org.hibernate.annotations.GenericGenerator;
-
 @MappedSuperclass
 public abstract class BaseEntity {
+
+	/**
+	 * Orders ids as the database orders their BINARY(16) column, byte by byte and unsigned,
+	 * which is not the signed order of {@link UUID#compareTo(UUID)}
+	 */
+	public static final Comparator<UUID> ID_ORDER = Comparator
+			.comparing((UUID uuid) -> uuid.getMostSignificantBits(), Long::compareUnsigned)
+			.thenComparing(UUID::getLeastSignificantBits, Long::compareUnsigned);
+
+	private static volatile IdStrategy idStrategy = IdStrategy.RANDOM;
+
+	//Assigned in assignId() rather than by a Hibernate generator, whose interface differs between versions
 	@Id
-	@GeneratedValue(generator = "UUID")
-	@GenericGenerator(
-		name = "UUID",
-		strategy = "org.hibernate.id.UUIDGenerator")
 	@Column(columnDefinition = "BINARY(16)")
 	protected UUID uuid;
 
+	/**
+	 * Selects how keys are made for entities persisted from now on
+	 */
+	public static void setIdStrategy(IdStrategy strategy) {
+		idStrategy = strategy;
+	}
+
+	public static IdStrategy getIdStrategy() {
+		return idStrategy;
+	}
+
+	@PrePersist
+	protected void assignId() {
+		if (uuid == null) {
+			uuid = idStrategy.next();
+		}
+	}
+
 	public UUID getUuid() {
 		return uuid;
 	}
@@ -0,0 +1,80 @@
+package edu.harvard.dbmi.avillach.data.entity;
+
+import java.security.SecureRandom;
+import java.util.Locale;
+import java.util.UUID;
+
+/**
+ * How new entities get their UUID primary key.
+ *
+ * Keys are stored as BINARY(16), most significant bits first, and InnoDB clusters rows by primary key.
+ * Random keys land all over the B-tree, so every insert into a large table touches a different page.
+ * Time-ordered keys always land at its right edge, like an auto increment column would.
+ * Both kinds are ordinary UUIDs, so rows keyed either way live side by side.
+ */
+public enum IdStrategy {
+
+	/**
+	 * Version 4, random
+	 */
+	RANDOM {
+		@Override
+		public UUID next() {
+			return UUID.randomUUID();
+		}
+	},
+
+	/**
+	 * Version 7: 48 bits of Unix time in milliseconds, then a 12 bit counter that keeps keys made in
+	 * the same millisecond in order, then 62 random bits.
+	 */
+	TIME_ORDERED {
+		@Override
+		public UUID next() {
+			long millis;
+			long sequence;
+			synchronized (IdStrategy.class) {
+				long now = System.currentTimeMillis();
+				if (now > lastMillis) {
+					lastMillis = now;
+					counter = 0;
+				} else if (++counter > MAX_COUNTER) {
+					//Out of sequence numbers, borrow from the next millisecond
+					lastMillis++;
+					counter = 0;
+				}
+				millis = lastMillis;
+				sequence = counter;
+			}
+			long mostSignificantBits = (millis << 16) | VERSION_7 | sequence;
+			long leastSignificantBits = (random.nextLong() & 0x3FFFFFFFFFFFFFFFL) | VARIANT_RFC_4122;
+			return new UUID(mostSignificantBits, leastSignificantBits);
+		}
+	};
+
+	private static final long VERSION_7 = 0x7000L;
+	private static final long VARIANT_RFC_4122 = 0x8000000000000000L;
+	private static final long MAX_COUNTER = 0xFFFL;
+
+	private static final SecureRandom random = new SecureRandom();
+
+	private static long lastMillis;
+	private static long counter;
+
+	/**
+	 * @return a new key
+	 */
+	public abstract UUID next();
+
+	/**
+	 * @param name the strategy name, in any case
+	 * @return the strategy
+	 * @throws IllegalArgumentException if the name is not known
+	 */
+	public static IdStrategy forName(String name) {
+		if (name == null) {
+			throw new IllegalArgumentException("No id strategy named");
+		}
+		return valueOf(name.trim().toUpperCase(Locale.ROOT));
+	}
+}
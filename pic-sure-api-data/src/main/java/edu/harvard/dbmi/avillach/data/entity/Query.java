@@ -1,20 +1,25 @@
 package edu.harvard.dbmi.avillach.data.entity;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.Date;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.sql.Timestamp;
 
+import javax.persistence.Basic;
 import javax.persistence.Column;
 import javax.persistence.Entity;
+import javax.persistence.FetchType;
 import javax.persistence.JoinColumn;
 import javax.persistence.Lob;
 import javax.persistence.ManyToOne;
 
+import edu.harvard.dbmi.avillach.data.codec.BlobCodec;
+import edu.harvard.dbmi.avillach.data.codec.BlobCodecs;
 import edu.harvard.dbmi.avillach.util.PicSureStatus;
 
 @Entity(name = "query")
@@ -30,17 +35,44 @@ public class Query extends BaseEntity {
 
 	private String resourceResultId;
 
-	//Original query request
+	//Shared body of the original query request, see QueryBody
+	@ManyToOne(fetch = FetchType.LAZY)
+	@JoinColumn(name = "bodyId")
+	private QueryBody body;
+
+	//Original query request of queries stored before bodies were shared, only loaded when read
 	@Lob
+	@Basic(fetch = FetchType.LAZY)
     @Column(columnDefinition="BLOB")
 	private byte[] query;
 
-	@ManyToOne
+	//Which BlobCodec compressed the query, null for gzip
+	private Integer queryCodec;
+
+	@ManyToOne(fetch = FetchType.LAZY)
 	@JoinColumn(name = "resourceId")
 	private Resource resource;
 
-	@Column(length = 8192)
-	private byte[] metadata;
+	//The user who submitted the query
+	private String username;
+
+	//Millisecond timestamps, startTime and readyTime only hold the day
+	private Timestamp submittedAt;
+
+	private Timestamp completedAt;
+
+	//SHA-256 of the canonical query request; of the original text for queries stored before bodies were shared
+	@Column(length = 32)
+	private byte[] queryHash;
+
+	//What the resource reported about the result when the query reached its final status
+	private String resourceStatus;
+
+	private Long sizeInBytes;
+
+	private Long duration;
+
+	private Long expiration;
 
 	public Resource getResource() {
 		return resource;
@@ -82,47 +114,146 @@ public class Query extends BaseEntity {
 		this.status = status;
 	}
 
+	/**
+	 * @return the original query request, decompressed
+	 */
 	public String getQuery() {
-		
+		if (this.body != null) {
+			return this.body.getBody();
+		}
 		if (this.query == null || this.query.length == 0) {
-            return "";
-        }
-		
-		String outStr = "";
-		try (GZIPInputStream gis = new GZIPInputStream(new ByteArrayInputStream(this.query));
-	        BufferedReader bf = new BufferedReader(new InputStreamReader(gis, "UTF-8"));){
-	        
-	        String line;
-	        while ((line=bf.readLine())!=null) {
-	          outStr += line;
-	        }
-		} catch (IOException e) {
-			e.printStackTrace();
+			return "";
+		}
+		return BlobCodecs.decompress(BlobCodecs.forId(queryCodec), this.query);
+	}
+
+	/**
+	 * @return a stream of the original query request, decompressed as it is read
+	 */
+	public InputStream getQueryStream() throws IOException {
+		if (this.body != null) {
+			return this.body.getBodyStream();
 		}
-        return outStr;
+		return BlobCodecs.decompressing(queryCodec, this.query);
+	}
+
+	public Reader getQueryReader() throws IOException {
+		return new InputStreamReader(getQueryStream(), StandardCharsets.UTF_8);
 	}
 
 	public void setQuery(String queryStr) {
+		setQuery(queryStr, BlobCodecs.QUERY_DICTIONARY);
+	}
+
+	/**
+	 * @param queryStr the original query request, stored in this row
+	 * @param codec the compression to store it with
+	 */
+	public void setQuery(String queryStr, BlobCodec codec) {
+		this.body = null;
 		if (queryStr == null || queryStr.length() == 0) {
 			this.query = new byte[0];
-            return;
-        }
-       
-		try (ByteArrayOutputStream obj=new ByteArrayOutputStream();
-			GZIPOutputStream gzip = new GZIPOutputStream(obj);){
-			gzip.write(queryStr.getBytes("UTF-8"));
-	        gzip.close();
-	        this.query = obj.toByteArray();
-		} catch (IOException e) {
-			e.printStackTrace();
+			this.queryCodec = null;
+			this.queryHash = null;
+			return;
 		}
+		this.query = BlobCodecs.compress(codec, queryStr);
+		this.queryCodec = codec.getId();
+		this.queryHash = sha256(queryStr);
+	}
+
+	/**
+	 * Points the query at a shared body instead of storing the request in this row
+	 *
+	 * @param hash the hash of the body, given separately so that a lazy reference is not loaded for it
+	 */
+	public void setBody(QueryBody body, byte[] hash) {
+		this.body = body;
+		this.query = null;
+		this.queryCodec = null;
+		this.queryHash = hash;
+	}
+
+	public QueryBody getBody() {
+		return body;
+	}
+
+	/**
+	 * @return the SHA-256 digest of the query request, null if there is none
+	 */
+	public byte[] getQueryHash() {
+		return queryHash;
+	}
+
+	public String getUsername() {
+		return username;
+	}
+
+	public void setUsername(String username) {
+		this.username = username;
+	}
+
+	public Timestamp getSubmittedAt() {
+		return submittedAt;
+	}
+
+	public void setSubmittedAt(Timestamp submittedAt) {
+		this.submittedAt = submittedAt;
+	}
+
+	public Timestamp getCompletedAt() {
+		return completedAt;
+	}
+
+	public void setCompletedAt(Timestamp completedAt) {
+		this.completedAt = completedAt;
+	}
+
+	public String getResourceStatus() {
+		return resourceStatus;
+	}
+
+	public void setResourceStatus(String resourceStatus) {
+		this.resourceStatus = resourceStatus;
 	}
 
-	public byte[] getMetadata() {
-		return metadata;
+	public Long getSizeInBytes() {
+		return sizeInBytes;
+	}
+
+	public void setSizeInBytes(Long sizeInBytes) {
+		this.sizeInBytes = sizeInBytes;
+	}
+
+	public Long getDuration() {
+		return duration;
+	}
+
+	public void setDuration(Long duration) {
+		this.duration = duration;
+	}
+
+	public Long getExpiration() {
+		return expiration;
+	}
+
+	public void setExpiration(Long expiration) {
+		this.expiration = expiration;
+	}
+
+	private static byte[] sha256(String content) {
+		try {
+			return MessageDigest.getInstance("SHA-256").digest(content.getBytes(StandardCharsets.UTF_8));
+		} catch (NoSuchAlgorithmException e) {
+			//Every Java platform is required to support SHA-256
+			throw new IllegalStateException(e);
+		}
 	}
 
-	public void setMetadata(byte[] metadata) {
-		this.metadata = metadata;
+	/**
+	 * @return the id of the {@link BlobCodec} the query was stored with, null for gzip
+	 */
+	public Integer getQueryCodec() {
+		return queryCodec;
 	}
 }
@@ -0,0 +1,132 @@
+package edu.harvard.dbmi.avillach.data.entity;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Lob;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import edu.harvard.dbmi.avillach.data.codec.BlobCodec;
+import edu.harvard.dbmi.avillach.data.codec.BlobCodecs;
+
+/**
+ * A query request body, stored once however many queries were submitted with it.
+ *
+ * Bodies are addressed by the SHA-256 of their canonical JSON: keys sorted, no whitespace and no
+ * resourceCredentials, which hold tokens rather than anything about the query. The id is the first
+ * 128 bits of that hash, so the same request always maps to the same row.
+ */
+@Entity(name = "query_body")
+public class QueryBody extends BaseEntity {
+
+	//Numbers are read exactly, a double would change decimals and long ids and so the body and its hash
+	private static final ObjectMapper canonicalMapper = new ObjectMapper()
+			.configure(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS, true)
+			.configure(DeserializationFeature.USE_BIG_DECIMAL_FOR_FLOATS, true)
+			.configure(DeserializationFeature.USE_BIG_INTEGER_FOR_INTS, true);
+
+	@Column(length = 32, nullable = false, unique = true)
+	private byte[] hash;
+
+	@Lob
+	@Column(columnDefinition = "LONGBLOB")
+	private byte[] body;
+
+	//Which BlobCodec compressed the body
+	private Integer bodyCodec;
+
+	//Size of the canonical body before compression
+	private int bodySize;
+
+	public QueryBody() {
+	}
+
+	/**
+	 * @param canonical a body already in canonical form, see {@link #canonical(String)}
+	 */
+	public QueryBody(String canonical, BlobCodec codec) {
+		this.hash = hash(canonical);
+		this.uuid = idOf(hash);
+		this.body = BlobCodecs.compress(codec, canonical);
+		this.bodyCodec = codec.getId();
+		this.bodySize = canonical.getBytes(StandardCharsets.UTF_8).length;
+	}
+
+	/**
+	 * @return the request with its keys sorted, its whitespace and its resourceCredentials removed;
+	 * text that is not a JSON object is returned as it is
+	 */
+	public static String canonical(String request) {
+		try {
+			Object parsed = canonicalMapper.readValue(request, Object.class);
+			if (!(parsed instanceof Map)) {
+				return request;
+			}
+			((Map<?, ?>) parsed).remove("resourceCredentials");
+			return canonicalMapper.writeValueAsString(parsed);
+		} catch (JsonProcessingException e) {
+			return request;
+		}
+	}
+
+	/**
+	 * @return the SHA-256 digest of a canonical body
+	 */
+	public static byte[] hash(String canonical) {
+		try {
+			return MessageDigest.getInstance("SHA-256").digest(canonical.getBytes(StandardCharsets.UTF_8));
+		} catch (NoSuchAlgorithmException e) {
+			//Every Java platform is required to support SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return the id of the body with this hash
+	 */
+	public static UUID idOf(byte[] hash) {
+		ByteBuffer buffer = ByteBuffer.wrap(hash);
+		return new UUID(buffer.getLong(), buffer.getLong());
+	}
+
+	public byte[] getHash() {
+		return hash;
+	}
+
+	/**
+	 * @return the canonical body, decompressed
+	 */
+	public String getBody() {
+		return BlobCodecs.decompress(BlobCodecs.forId(bodyCodec), body);
+	}
+
+	public InputStream getBodyStream() throws IOException {
+		return BlobCodecs.decompressing(bodyCodec, body);
+	}
+
+	/**
+	 * @return the compressed body as stored
+	 */
+	public byte[] getStoredBody() {
+		return body;
+	}
+
+	public Integer getBodyCodec() {
+		return bodyCodec;
+	}
+
+	public int getBodySize() {
+		return bodySize;
+	}
+}
@@ -0,0 +1,77 @@
+package edu.harvard.dbmi.avillach.data.entity;
+
+import java.util.UUID;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Lob;
+
+import edu.harvard.dbmi.avillach.data.codec.BlobCodec;
+import edu.harvard.dbmi.avillach.data.codec.BlobCodecs;
+
+/**
+ * Result metadata a resource returned for a query, kept out of the query table so that query rows
+ * stay small. Shares the id of its query, and is only read when the metadata is asked for.
+ */
+@Entity(name = "query_metadata")
+public class QueryMetadata extends BaseEntity {
+
+	@Lob
+	@Column(columnDefinition = "LONGBLOB")
+	private byte[] metadata;
+
+	//Which BlobCodec compressed the metadata, null if it is stored as is, as moved from the query table
+	private Integer metadataCodec;
+
+	//Size of the metadata before compression
+	private int metadataSize;
+
+	public QueryMetadata() {
+	}
+
+	public QueryMetadata(UUID queryId, byte[] metadata) {
+		this.uuid = queryId;
+		setMetadata(metadata);
+	}
+
+	/**
+	 * @return the metadata, decompressed
+	 */
+	public byte[] getMetadata() {
+		if (metadata == null || metadataCodec == null) {
+			return metadata;
+		}
+		return BlobCodecs.decompressBytes(BlobCodecs.forId(metadataCodec), metadata);
+	}
+
+	public void setMetadata(byte[] metadata) {
+		setMetadata(metadata, BlobCodecs.GZIP);
+	}
+
+	/**
+	 * @param metadata the metadata as returned by the resource
+	 * @param codec the compression to store it with
+	 */
+	public void setMetadata(byte[] metadata, BlobCodec codec) {
+		if (metadata == null) {
+			this.metadata = null;
+			this.metadataCodec = null;
+			this.metadataSize = 0;
+			return;
+		}
+		this.metadata = BlobCodecs.compress(codec, metadata);
+		this.metadataCodec = codec.getId();
+		this.metadataSize = metadata.length;
+	}
+
+	/**
+	 * @return the id of the {@link BlobCodec} the metadata was stored with, null if uncompressed
+	 */
+	public Integer getMetadataCodec() {
+		return metadataCodec;
+	}
+
+	public int getMetadataSize() {
+		return metadataSize;
+	}
+}
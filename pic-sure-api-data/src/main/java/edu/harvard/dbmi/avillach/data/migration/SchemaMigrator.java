@@ -0,0 +1,301 @@
+package edu.harvard.dbmi.avillach.data.migration;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Applies the versioned SQL scripts under <code>db/sql</code> that the database has not seen yet.
+ *
+ * Scripts are named <code>V&lt;version&gt;__&lt;DESCRIPTION&gt;.sql</code>, as Flyway names them, and are listed in
+ * <code>db/sql/migrations.txt</code> since a packaged archive cannot be listed reliably. Applied versions are
+ * recorded in {@link #HISTORY_TABLE}. A database that was set up before this table existed is baselined:
+ * versions recorded by Flyway are taken over if there are any, otherwise an existing schema is assumed to
+ * be at the given baseline version. <code>db/create_db_picsure.sql</code> creates the latest schema, so it
+ * records every version in the history itself.
+ *
+ * Nodes starting at the same time take turns: migrations run under the MySQL named lock {@link #LOCK_NAME},
+ * and a node that gets the lock after another one finds the scripts already recorded.
+ *
+ * A script that has already been applied must never be edited; add a new version instead.
+ */
+public class SchemaMigrator {
+
+	public static final String HISTORY_TABLE = "picsure_schema_history";
+
+	static final String SCRIPT_DIRECTORY = "db/sql/";
+	static final String SCRIPT_INDEX = SCRIPT_DIRECTORY + "migrations.txt";
+
+	private static final Pattern SCRIPT_NAME = Pattern.compile("V(\\d+)__\\w+\\.sql");
+	static final String BASELINE = "<< baseline >>";
+
+	public static final String LOCK_NAME = "picsure_schema_migration";
+
+	/**
+	 * How long a node waits for another one to finish migrating
+	 */
+	private static final int LOCK_TIMEOUT_SECONDS = 600;
+
+	private Logger logger = LoggerFactory.getLogger(SchemaMigrator.class);
+
+	private final DataSource dataSource;
+	private final int baselineVersion;
+
+	/**
+	 * @param dataSource a data source that is not enlisted in a container transaction
+	 * @param baselineVersion the version an existing schema without any history is assumed to be at
+	 */
+	public SchemaMigrator(DataSource dataSource, int baselineVersion) {
+		this.dataSource = dataSource;
+		this.baselineVersion = baselineVersion;
+	}
+
+	/**
+	 * @return the scripts that were applied, in order
+	 */
+	public List<String> migrate() throws SQLException {
+		List<String> applied = new ArrayList<>();
+		try (Connection connection = dataSource.getConnection()) {
+			connection.setAutoCommit(true);
+			lock(connection);
+			try {
+				Map<Integer, Long> history = history(connection);
+				for (String script : scripts()) {
+					int version = version(script);
+					String content = read(SCRIPT_DIRECTORY + script);
+					long checksum = checksum(content);
+					if (history.containsKey(version)) {
+						Long recorded = history.get(version);
+						if (recorded != null && recorded != checksum) {
+							logger.warn("migrate() " + script + " changed since it was applied");
+						}
+						continue;
+					}
+					logger.info("migrate() applying " + script);
+					try (Statement statement = connection.createStatement()) {
+						for (String sql : statements(content)) {
+							statement.execute(sql);
+						}
+					}
+					record(connection, version, script, checksum);
+					applied.add(script);
+				}
+			} finally {
+				unlock(connection);
+			}
+		}
+		return applied;
+	}
+
+	/**
+	 * Waits for the migration lock, which is held by the connection until it is released or closed
+	 */
+	private void lock(Connection connection) throws SQLException {
+		try (PreparedStatement statement = connection.prepareStatement("SELECT GET_LOCK(?, ?)")) {
+			statement.setString(1, LOCK_NAME);
+			statement.setInt(2, LOCK_TIMEOUT_SECONDS);
+			try (ResultSet result = statement.executeQuery()) {
+				if (!result.next() || result.getInt(1) != 1) {
+					throw new SQLException("Unable to get the " + LOCK_NAME + " lock within " + LOCK_TIMEOUT_SECONDS
+							+ " seconds, another node may still be migrating the schema");
+				}
+			}
+		}
+	}
+
+	private void unlock(Connection connection) {
+		try (PreparedStatement statement = connection.prepareStatement("SELECT RELEASE_LOCK(?)")) {
+			statement.setString(1, LOCK_NAME);
+			statement.executeQuery().close();
+		} catch (SQLException e) {
+			//Otherwise it is held until the database session ends
+			logger.warn("unlock() unable to release " + LOCK_NAME + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return the script names from the index, ordered by version
+	 */
+	static List<String> scripts() {
+		List<String> scripts = new ArrayList<>();
+		for (String line : read(SCRIPT_INDEX).split("\\R")) {
+			String script = line.trim();
+			if (script.isEmpty() || script.startsWith("#")) {
+				continue;
+			}
+			version(script);
+			scripts.add(script);
+		}
+		scripts.sort(Comparator.comparingInt(SchemaMigrator::version));
+		return scripts;
+	}
+
+	static int version(String script) {
+		Matcher matcher = SCRIPT_NAME.matcher(script);
+		if (!matcher.matches()) {
+			throw new IllegalStateException("Migration script " + script + " is not named V<version>__<DESCRIPTION>.sql");
+		}
+		return Integer.parseInt(matcher.group(1));
+	}
+
+	/**
+	 * Splits a script into statements on the semicolons that are outside quotes and comments.
+	 * MySQL conditional comments (<code>/*! ... *&#47;</code>) are kept, since the server executes them.
+	 */
+	static List<String> statements(String script) {
+		List<String> statements = new ArrayList<>();
+		StringBuilder current = new StringBuilder();
+		char quote = 0;
+		int length = script.length();
+		for (int i = 0; i < length; i++) {
+			char c = script.charAt(i);
+			char next = i + 1 < length ? script.charAt(i + 1) : 0;
+			if (quote != 0) {
+				current.append(c);
+				if (c == '\\' && quote != '`' && next != 0) {
+					current.append(next);
+					i++;
+				} else if (c == quote) {
+					quote = 0;
+				}
+			} else if (c == '\'' || c == '"' || c == '`') {
+				quote = c;
+				current.append(c);
+			} else if ((c == '-' && next == '-') || c == '#') {
+				int end = script.indexOf('\n', i);
+				i = end < 0 ? length : end;
+				current.append('\n');
+			} else if (c == '/' && next == '*' && (i + 2 >= length || script.charAt(i + 2) != '!')) {
+				int end = script.indexOf("*/", i + 2);
+				i = end < 0 ? length : end + 1;
+			} else if (c == ';') {
+				add(statements, current);
+			} else {
+				current.append(c);
+			}
+		}
+		add(statements, current);
+		return statements;
+	}
+
+	private static void add(List<String> statements, StringBuilder current) {
+		String statement = current.toString().trim();
+		if (!statement.isEmpty()) {
+			statements.add(statement);
+		}
+		current.setLength(0);
+	}
+
+	/**
+	 * @return applied versions and their checksums, baselining the history first if there is none
+	 */
+	private Map<Integer, Long> history(Connection connection) throws SQLException {
+		boolean created = false;
+		if (!tableExists(connection, HISTORY_TABLE)) {
+			try (Statement statement = connection.createStatement()) {
+				statement.execute("CREATE TABLE " + HISTORY_TABLE + " (version int NOT NULL, script varchar(255) NOT NULL, "
+						+ "checksum bigint, installedOn timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP, PRIMARY KEY (version))");
+			}
+			created = true;
+		}
+		Map<Integer, Long> history = new HashMap<>();
+		try (Statement statement = connection.createStatement();
+			 ResultSet rows = statement.executeQuery("SELECT version, checksum FROM " + HISTORY_TABLE)) {
+			while (rows.next()) {
+				long checksum = rows.getLong(2);
+				history.put(rows.getInt(1), rows.wasNull() ? null : checksum);
+			}
+		}
+		if (created && history.isEmpty()) {
+			baseline(connection, history);
+		}
+		return history;
+	}
+
+	private void baseline(Connection connection, Map<Integer, Long> history) throws SQLException {
+		Set<Integer> versions = new TreeSet<>();
+		if (tableExists(connection, "flyway_schema_history")) {
+			try (Statement statement = connection.createStatement();
+				 ResultSet rows = statement.executeQuery("SELECT version FROM flyway_schema_history WHERE success = 1 AND version IS NOT NULL")) {
+				while (rows.next()) {
+					try {
+						versions.add(Integer.parseInt(rows.getString(1)));
+					} catch (NumberFormatException e) {
+						logger.warn("baseline() skipping Flyway version " + rows.getString(1));
+					}
+				}
+			}
+		} else if (tableExists(connection, "query")) {
+			for (int version = 1; version <= baselineVersion; version++) {
+				versions.add(version);
+			}
+		}
+		for (Integer version : versions) {
+			record(connection, version, BASELINE, null);
+			history.put(version, null);
+		}
+		if (!versions.isEmpty()) {
+			logger.info("baseline() existing schema taken to be at versions " + versions);
+		}
+	}
+
+	private void record(Connection connection, int version, String script, Long checksum) throws SQLException {
+		try (PreparedStatement statement = connection.prepareStatement(
+				"INSERT INTO " + HISTORY_TABLE + " (version, script, checksum) VALUES (?, ?, ?)")) {
+			statement.setInt(1, version);
+			statement.setString(2, script);
+			if (checksum == null) {
+				statement.setNull(3, Types.BIGINT);
+			} else {
+				statement.setLong(3, checksum);
+			}
+			statement.executeUpdate();
+		}
+	}
+
+	private static boolean tableExists(Connection connection, String table) throws SQLException {
+		DatabaseMetaData metaData = connection.getMetaData();
+		for (String name : new String[]{table, table.toUpperCase(Locale.ROOT)}) {
+			try (ResultSet tables = metaData.getTables(connection.getCatalog(), null, name, null)) {
+				if (tables.next()) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private static long checksum(String content) {
+		CRC32 crc = new CRC32();
+		crc.update(content.getBytes(StandardCharsets.UTF_8));
+		return crc.getValue();
+	}
+
+	private static String read(String path) {
+		try (InputStream input = SchemaMigrator.class.getClassLoader().getResourceAsStream(path)) {
+			if (input == null) {
+				throw new IllegalStateException("Missing migration resource " + path);
+			}
+			ByteArrayOutputStream content = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int count;
+			while ((count = input.read(buffer)) >= 0) {
+				content.write(buffer, 0, count);
+			}
+			return new String(content.toByteArray(), StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			throw new IllegalStateException("Unable to read migration resource " + path, e);
+		}
+	}
+}
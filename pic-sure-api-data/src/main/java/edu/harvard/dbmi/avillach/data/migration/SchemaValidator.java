@@ -0,0 +1,79 @@
+package edu.harvard.dbmi.avillach.data.migration;
+
+import java.lang.reflect.AnnotatedElement;
+import java.lang.reflect.Member;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.JoinColumn;
+import javax.persistence.metamodel.Attribute;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.Metamodel;
+import javax.persistence.metamodel.SingularAttribute;
+
+/**
+ * Checks that every column the JPA mapping uses exists in the database, once migrations have run.
+ *
+ * Hibernate's own validation runs when the persistence unit starts, which is before migrations can add
+ * the columns a new version maps, so it cannot be used here. Column names follow the default naming
+ * this project relies on: the attribute name, or the name given by <code>@Column</code> or <code>@JoinColumn</code>.
+ */
+public class SchemaValidator {
+
+	/**
+	 * @return the missing columns as <code>table.column</code>, empty if the schema matches the mapping
+	 */
+	public List<String> validate(Connection connection, Metamodel metamodel) throws SQLException {
+		List<String> missing = new ArrayList<>();
+		for (EntityType<?> entity : metamodel.getEntities()) {
+			String table = tableName(entity);
+			Set<String> columns = columns(connection, table);
+			for (Attribute<?, ?> attribute : entity.getAttributes()) {
+				if (!(attribute instanceof SingularAttribute)) {
+					continue;
+				}
+				String column = columnName(attribute);
+				if (!columns.contains(column.toLowerCase(Locale.ROOT))) {
+					missing.add(table + "." + column);
+				}
+			}
+		}
+		return missing;
+	}
+
+	private String tableName(EntityType<?> entity) {
+		Entity annotation = entity.getJavaType().getAnnotation(Entity.class);
+		return annotation != null && !annotation.name().isEmpty() ? annotation.name() : entity.getName();
+	}
+
+	private String columnName(Attribute<?, ?> attribute) {
+		Member member = attribute.getJavaMember();
+		if (member instanceof AnnotatedElement) {
+			JoinColumn joinColumn = ((AnnotatedElement) member).getAnnotation(JoinColumn.class);
+			if (joinColumn != null && !joinColumn.name().isEmpty()) {
+				return joinColumn.name();
+			}
+			Column column = ((AnnotatedElement) member).getAnnotation(Column.class);
+			if (column != null && !column.name().isEmpty()) {
+				return column.name();
+			}
+		}
+		return attribute.getName();
+	}
+
+	private Set<String> columns(Connection connection, String table) throws SQLException {
+		Set<String> columns = new HashSet<>();
+		DatabaseMetaData metaData = connection.getMetaData();
+		try (ResultSet rows = metaData.getColumns(connection.getCatalog(), null, table, null)) {
+			while (rows.next()) {
+				columns.add(rows.getString("COLUMN_NAME").toLowerCase(Locale.ROOT));
+			}
+		}
+		return columns;
+	}
+}
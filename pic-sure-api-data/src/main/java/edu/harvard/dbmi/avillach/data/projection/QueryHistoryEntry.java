@@ -0,0 +1,83 @@
+package edu.harvard.dbmi.avillach.data.projection;
+
+import java.util.Date;
+import java.util.UUID;
+
+import edu.harvard.dbmi.avillach.util.PicSureStatus;
+
+/**
+ * One query as exported for usage reporting, with its query request decompressed
+ */
+public class QueryHistoryEntry {
+
+	private final UUID uuid;
+	private final UUID resourceId;
+	private final String username;
+	private final PicSureStatus status;
+	private final Date startTime;
+	private final Date submittedAt;
+	private final Date completedAt;
+	private final String resourceResultId;
+	private final String query;
+	private final boolean archived;
+
+	public QueryHistoryEntry(UUID uuid, UUID resourceId, String username, PicSureStatus status, Date startTime,
+							 Date submittedAt, Date completedAt, String resourceResultId, String query, boolean archived) {
+		this.uuid = uuid;
+		this.resourceId = resourceId;
+		this.username = username;
+		this.status = status;
+		this.startTime = startTime;
+		this.submittedAt = submittedAt;
+		this.completedAt = completedAt;
+		this.resourceResultId = resourceResultId;
+		this.query = query;
+		this.archived = archived;
+	}
+
+	public UUID getUuid() {
+		return uuid;
+	}
+
+	public UUID getResourceId() {
+		return resourceId;
+	}
+
+	public String getUsername() {
+		return username;
+	}
+
+	public PicSureStatus getStatus() {
+		return status;
+	}
+
+	public Date getStartTime() {
+		return startTime;
+	}
+
+	public Date getSubmittedAt() {
+		return submittedAt;
+	}
+
+	public Date getCompletedAt() {
+		return completedAt;
+	}
+
+	public String getResourceResultId() {
+		return resourceResultId;
+	}
+
+	/**
+	 * @return the original query request, decompressed; null if there was none
+	 */
+	public String getQuery() {
+		return query;
+	}
+
+	/**
+	 * @return whether the query was read from the query_archive table
+	 */
+	public boolean isArchived() {
+		return archived;
+	}
+}
@@ -0,0 +1,46 @@
+package edu.harvard.dbmi.avillach.data.projection;
+
+import java.util.Date;
+import java.util.UUID;
+
+import edu.harvard.dbmi.avillach.util.PicSureStatus;
+
+/**
+ * One submission of a query request: who sent it, when, to which resource and how it ended.
+ */
+public class QueryRun {
+
+	private final UUID uuid;
+	private final String username;
+	private final Date submittedAt;
+	private final PicSureStatus status;
+	private final UUID resourceId;
+
+	public QueryRun(UUID uuid, String username, Date submittedAt, PicSureStatus status, UUID resourceId) {
+		this.uuid = uuid;
+		this.username = username;
+		this.submittedAt = submittedAt;
+		this.status = status;
+		this.resourceId = resourceId;
+	}
+
+	public UUID getUuid() {
+		return uuid;
+	}
+
+	public String getUsername() {
+		return username;
+	}
+
+	public Date getSubmittedAt() {
+		return submittedAt;
+	}
+
+	public PicSureStatus getStatus() {
+		return status;
+	}
+
+	public UUID getResourceId() {
+		return resourceId;
+	}
+}
@@ -0,0 +1,79 @@
+package edu.harvard.dbmi.avillach.data.projection;
+
+import java.util.Date;
+import java.util.UUID;
+
+import edu.harvard.dbmi.avillach.util.PicSureStatus;
+
+/**
+ * The small columns of a query, for lookups that do not need the stored
+ * query request, its metadata or the resource entity.
+ *
+ * Once a query is done it also holds what the resource last reported about the result, which is
+ * null before then.
+ */
+public class QuerySummary {
+
+	private final UUID uuid;
+	private final PicSureStatus status;
+	private final String resourceResultId;
+	private final Date startTime;
+	private final UUID resourceId;
+	private final String resourceStatus;
+	private final Long sizeInBytes;
+	private final Long duration;
+	private final Long expiration;
+
+	public QuerySummary(UUID uuid, PicSureStatus status, String resourceResultId, Date startTime, UUID resourceId) {
+		this(uuid, status, resourceResultId, startTime, resourceId, null, null, null, null);
+	}
+
+	public QuerySummary(UUID uuid, PicSureStatus status, String resourceResultId, Date startTime, UUID resourceId,
+			String resourceStatus, Long sizeInBytes, Long duration, Long expiration) {
+		this.uuid = uuid;
+		this.status = status;
+		this.resourceResultId = resourceResultId;
+		this.startTime = startTime;
+		this.resourceId = resourceId;
+		this.resourceStatus = resourceStatus;
+		this.sizeInBytes = sizeInBytes;
+		this.duration = duration;
+		this.expiration = expiration;
+	}
+
+	public UUID getUuid() {
+		return uuid;
+	}
+
+	public PicSureStatus getStatus() {
+		return status;
+	}
+
+	public String getResourceResultId() {
+		return resourceResultId;
+	}
+
+	public Date getStartTime() {
+		return startTime;
+	}
+
+	public UUID getResourceId() {
+		return resourceId;
+	}
+
+	public String getResourceStatus() {
+		return resourceStatus;
+	}
+
+	public Long getSizeInBytes() {
+		return sizeInBytes;
+	}
+
+	public Long getDuration() {
+		return duration;
+	}
+
+	public Long getExpiration() {
+		return expiration;
+	}
+}
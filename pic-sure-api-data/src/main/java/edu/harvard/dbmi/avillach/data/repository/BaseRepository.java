@@ -8,27 +8,43 @@ import org.slf4j.LoggerFactory;
 import javax.persistence.*;
 import javax.persistence.criteria.*;
 import java.util.*;
+import java.util.function.Consumer;
 
 /**
  *
  * @param <T> the type of the entity class
  * @param <K> the type of the primary key
  */
+@RepositoryTimed
 public abstract class BaseRepository<T extends BaseEntity, K> {
 
 	Logger logger = LoggerFactory.getLogger(BaseRepository.class);
 
+	/**
+	 * Entities written between flushes in bulk operations, matches hibernate.jdbc.batch_size
+	 */
+	protected static final int BATCH_SIZE = 50;
+
+	/**
+	 * Most ids put in a single IN clause
+	 */
+	protected static final int IN_CLAUSE_SIZE = 1000;
+
 	protected final Class<T> type;
 	
 	protected BaseRepository(Class<T> type){
 		this.type = type;
 	}
 
-	@PersistenceContext
+	@PersistenceContext(unitName = "picsure")
 	protected EntityManager em;
 	
+	/**
+	 * @return the replica entity manager inside {@link ReplicaRouting#read}, otherwise the primary one
+	 */
 	protected EntityManager em(){
-		return em;
+		EntityManager replica = ReplicaRouting.current();
+		return replica != null ? replica : em;
 	}
 	
 	protected CriteriaBuilder cb() {
@@ -179,6 +195,76 @@ public abstract class BaseRepository<T extends BaseEntity, K> {
 		return getByColumns(query, root(query));
 	}
 
+	/**
+	 * One page of entities ordered by id. Paging by the last id seen rather than by offset keeps
+	 * every page as cheap as the first.
+	 *
+	 * @param after the id of the last entity of the previous page, null for the first page
+	 * @param limit the most entities to return, zero or less for no limit
+	 */
+	public List<T> list(UUID after, int limit){
+		CriteriaQuery<T> query = query();
+		return page(query, query.from(type), after, limit, null);
+	}
+
+	/**
+	 * Same as {@link #list(UUID, int)}, reading only the ids
+	 */
+	public List<UUID> listIds(UUID after, int limit){
+		CriteriaQuery<UUID> query = cb().createQuery(UUID.class);
+		Root<T> root = query.from(type);
+		return page(query, root, after, limit, root.get("uuid"));
+	}
+
+	/**
+	 * Same as {@link #list(UUID, int)}, reading only the given columns into a projection class
+	 * that has a constructor taking them in that order
+	 */
+	public <P> List<P> listAs(Class<P> projection, UUID after, int limit, String... columns){
+		CriteriaQuery<P> query = cb().createQuery(projection);
+		Root<T> root = query.from(type);
+		Selection<?>[] selections = new Selection<?>[columns.length];
+		for (int i = 0; i < columns.length; i++){
+			selections[i] = root.get(columns[i]);
+		}
+		return page(query, root, after, limit, cb().construct(projection, selections));
+	}
+
+	/**
+	 * Runs the action on every entity, reading {@link #BATCH_SIZE} at a time. Entities are detached
+	 * once processed, so the whole table is never held in memory.
+	 */
+	public void forEach(Consumer<? super T> action){
+		UUID after = null;
+		List<T> page;
+		do {
+			page = list(after, BATCH_SIZE);
+			for (T t : page){
+				action.accept(t);
+				em().detach(t);
+				after = t.getUuid();
+			}
+		} while (page.size() == BATCH_SIZE);
+	}
+
+	private <R> List<R> page(CriteriaQuery<R> query, Root<T> root, UUID after, int limit, Selection<? extends R> selection){
+		Path<UUID> uuid = root.get("uuid");
+		if (selection == null){
+			query.select((Selection<? extends R>) root);
+		} else {
+			query.select(selection);
+		}
+		if (after != null){
+			query.where(cb().greaterThan(uuid, after));
+		}
+		query.orderBy(cb().asc(uuid));
+		TypedQuery<R> typedQuery = em().createQuery(query);
+		if (limit > 0){
+			typedQuery.setMaxResults(limit);
+		}
+		return typedQuery.getResultList();
+	}
+
 	protected Root<T> root(CriteriaQuery query){
 		return query.from(type);
 	}
@@ -240,6 +326,96 @@ public abstract class BaseRepository<T extends BaseEntity, K> {
 	    return em().merge(t);
     }
 
+	/**
+	 * Persists all entities in the current transaction. The persistence context is flushed and cleared
+	 * every {@link #BATCH_SIZE} entities so that the inserts go out as JDBC batches and memory stays flat.
+	 *
+	 * @return the persisted entities
+	 */
+	public List<T> persistAll(List<T> entities){
+		int count = 0;
+		for (T t : entities){
+			em().persist(t);
+			if (++count % BATCH_SIZE == 0){
+				em().flush();
+				em().clear();
+			}
+		}
+		em().flush();
+		return entities;
+	}
+
+	/**
+	 * Merges the entities that already exist in the current transaction, in JDBC batches.
+	 * The existing entities of each batch are loaded with a single IN query first, so that merging
+	 * them finds them in the persistence context instead of selecting each one; the others are skipped.
+	 *
+	 * @return the merged entities, in the order given
+	 */
+	public List<T> mergeAll(List<T> entities){
+		List<T> withIds = new ArrayList<>();
+		for (T t : entities){
+			if (t.getUuid() != null){
+				withIds.add(t);
+			}
+		}
+		List<T> merged = new ArrayList<>();
+		for (int start = 0; start < withIds.size(); start += BATCH_SIZE){
+			if (start > 0){
+				em().clear();
+			}
+			List<T> batch = withIds.subList(start, Math.min(start + BATCH_SIZE, withIds.size()));
+			List<UUID> ids = new ArrayList<>();
+			for (T t : batch){
+				ids.add(t.getUuid());
+			}
+			Map<UUID, T> existing = getByIds(ids);
+			for (T t : batch){
+				if (existing.containsKey(t.getUuid())){
+					merged.add(em().merge(t));
+				}
+			}
+			em().flush();
+		}
+		return merged;
+	}
+
+	/**
+	 * Loads the entities with the given ids into the persistence context, with one IN query per
+	 * {@link #IN_CLAUSE_SIZE} ids
+	 *
+	 * @return the entities found, by id
+	 */
+	public Map<UUID, T> getByIds(Collection<UUID> ids){
+		List<UUID> distinct = new ArrayList<>(new LinkedHashSet<>(ids));
+		Map<UUID, T> found = new HashMap<>();
+		for (int start = 0; start < distinct.size(); start += IN_CLAUSE_SIZE){
+			CriteriaQuery<T> query = cb().createQuery(type);
+			Root<T> root = query.from(type);
+			query.select(root).where(root.get("uuid").in(distinct.subList(start, Math.min(start + IN_CLAUSE_SIZE, distinct.size()))));
+			for (T t : em().createQuery(query).getResultList()){
+				found.put(t.getUuid(), t);
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * @return which of the given ids have a row, looked up with one IN query per {@link #IN_CLAUSE_SIZE} ids
+	 */
+	public Set<UUID> getExistingIds(Collection<UUID> ids){
+		List<UUID> distinct = new ArrayList<>(new LinkedHashSet<>(ids));
+		Set<UUID> existing = new HashSet<>();
+		for (int start = 0; start < distinct.size(); start += IN_CLAUSE_SIZE){
+			CriteriaQuery<UUID> query = cb().createQuery(UUID.class);
+			Root<T> root = query.from(type);
+			Path<UUID> uuid = root.get("uuid");
+			query.select(uuid).where(uuid.in(distinct.subList(start, Math.min(start + IN_CLAUSE_SIZE, distinct.size()))));
+			existing.addAll(em().createQuery(query).getResultList());
+		}
+		return existing;
+	}
+
 	public void addObjectToSet(Set<T> set, BaseRepository<T, UUID> baseRepository, T t)
 			throws ProtocolException {
 
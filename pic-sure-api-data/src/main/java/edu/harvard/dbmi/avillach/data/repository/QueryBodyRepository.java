@@ -0,0 +1,57 @@
+package edu.harvard.dbmi.avillach.data.repository;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.transaction.Transactional;
+
+import edu.harvard.dbmi.avillach.data.codec.BlobCodecs;
+import edu.harvard.dbmi.avillach.data.entity.Query;
+import edu.harvard.dbmi.avillach.data.entity.QueryBody;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.UUID;
+
+@Transactional
+@ApplicationScoped
+public class QueryBodyRepository extends BaseRepository<QueryBody, UUID> {
+
+	/**
+	 * Another node may store the same body at the same moment; the second insert is then a no-op
+	 */
+	private static final String INSERT_BODY = "INSERT IGNORE INTO query_body (uuid, hash, body, bodyCodec, bodySize) VALUES (?, ?, ?, ?, ?)";
+
+	protected QueryBodyRepository() {
+		super(QueryBody.class);
+	}
+
+	/**
+	 * Points the query at the shared body of its request, storing the body first if no query used
+	 * it before. A body that is already stored is neither compressed nor written again.
+	 *
+	 * @param query the query to set the body of
+	 * @param request the original query request
+	 */
+	public void setBody(Query query, String request) {
+		String canonical = QueryBody.canonical(request);
+		byte[] hash = QueryBody.hash(canonical);
+		UUID id = QueryBody.idOf(hash);
+		if (getExistingIds(Collections.singleton(id)).isEmpty()) {
+			QueryBody body = new QueryBody(canonical, BlobCodecs.QUERY_DICTIONARY);
+			em().createNativeQuery(INSERT_BODY)
+					.setParameter(1, toBytes(id))
+					.setParameter(2, body.getHash())
+					.setParameter(3, body.getStoredBody())
+					.setParameter(4, body.getBodyCodec())
+					.setParameter(5, body.getBodySize())
+					.executeUpdate();
+		}
+		query.setBody(em().getReference(QueryBody.class, id), hash);
+	}
+
+	private static byte[] toBytes(UUID uuid) {
+		return ByteBuffer.allocate(16)
+				.putLong(uuid.getMostSignificantBits())
+				.putLong(uuid.getLeastSignificantBits())
+				.array();
+	}
+}
@@ -0,0 +1,118 @@
+package edu.harvard.dbmi.avillach.data.repository;
+
+import java.nio.ByteBuffer;
+import java.sql.*;
+import java.util.Date;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+import edu.harvard.dbmi.avillach.data.codec.BlobCodecs;
+import edu.harvard.dbmi.avillach.data.projection.QueryHistoryEntry;
+import edu.harvard.dbmi.avillach.util.PicSureStatus;
+
+/**
+ * Reads the query history one row at a time through a forward-only, read-only JDBC cursor, so
+ * that exporting any number of queries takes the same memory as exporting one.
+ *
+ * Rows never enter a persistence context; each is turned into a {@link QueryHistoryEntry}, handed on
+ * and dropped. The driver fetches fetchSize rows per round trip, which for MySQL Connector/J needs
+ * useCursorFetch=true on the connection url, otherwise it reads the whole result up front.
+ */
+public class QueryHistoryCursor {
+
+	/**
+	 * Queries stored since bodies are shared take their request from query_body, older ones from their own row
+	 */
+	private static final String COLUMNS = "q.uuid, q.resourceId, q.username, q.status, q.startTime, q.submittedAt, q.completedAt, "
+			+ "q.resourceResultId, CASE WHEN b.uuid IS NULL THEN q.query ELSE b.body END AS query, "
+			+ "CASE WHEN b.uuid IS NULL THEN q.queryCodec ELSE b.bodyCodec END AS queryCodec";
+
+	private static final PicSureStatus[] STATUSES = PicSureStatus.values();
+
+	private final Connection connection;
+
+	private final int fetchSize;
+
+	/**
+	 * @param connection a connection the caller opens and closes
+	 * @param fetchSize rows fetched per round trip to the database
+	 */
+	public QueryHistoryCursor(Connection connection, int fetchSize) {
+		this.connection = connection;
+		this.fetchSize = fetchSize;
+	}
+
+	/**
+	 * Hands every query started on or after from and before to to the action, oldest first
+	 *
+	 * @param from first day to include, null for no lower bound
+	 * @param to first day to leave out, null for no upper bound
+	 * @param includeArchived whether to read the query_archive table too, after the query table
+	 * @return how many queries were read
+	 */
+	public long forEach(Date from, Date to, boolean includeArchived, Consumer<QueryHistoryEntry> action) throws SQLException {
+		long count = read("query", from, to, false, action);
+		if (includeArchived) {
+			count += read("query_archive", from, to, true, action);
+		}
+		return count;
+	}
+
+	private long read(String table, Date from, Date to, boolean archived, Consumer<QueryHistoryEntry> action) throws SQLException {
+		StringBuilder sql = new StringBuilder("SELECT ").append(COLUMNS).append(" FROM ").append(table)
+				.append(" q LEFT JOIN query_body b ON b.uuid = q.bodyId WHERE 1 = 1");
+		if (from != null) {
+			sql.append(" AND q.startTime >= ?");
+		}
+		if (to != null) {
+			sql.append(" AND q.startTime < ?");
+		}
+		sql.append(" ORDER BY q.startTime");
+
+		long count = 0;
+		try (PreparedStatement statement = connection.prepareStatement(sql.toString(), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+			statement.setFetchSize(fetchSize);
+			int parameter = 1;
+			if (from != null) {
+				statement.setDate(parameter++, new java.sql.Date(from.getTime()));
+			}
+			if (to != null) {
+				statement.setDate(parameter, new java.sql.Date(to.getTime()));
+			}
+			try (ResultSet rows = statement.executeQuery()) {
+				while (rows.next()) {
+					action.accept(entry(rows, archived));
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	private QueryHistoryEntry entry(ResultSet rows, boolean archived) throws SQLException {
+		int status = rows.getInt("status");
+		PicSureStatus picSureStatus = rows.wasNull() || status < 0 || status >= STATUSES.length ? null : STATUSES[status];
+		byte[] query = rows.getBytes("query");
+		int codec = rows.getInt("queryCodec");
+		Integer codecId = rows.wasNull() ? null : codec;
+		return new QueryHistoryEntry(
+				uuid(rows.getBytes("uuid")),
+				uuid(rows.getBytes("resourceId")),
+				rows.getString("username"),
+				picSureStatus,
+				rows.getDate("startTime"),
+				rows.getTimestamp("submittedAt"),
+				rows.getTimestamp("completedAt"),
+				rows.getString("resourceResultId"),
+				query == null || query.length == 0 ? null : BlobCodecs.decompress(BlobCodecs.forId(codecId), query),
+				archived);
+	}
+
+	private static UUID uuid(byte[] bytes) {
+		if (bytes == null) {
+			return null;
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		return new UUID(buffer.getLong(), buffer.getLong());
+	}
+}
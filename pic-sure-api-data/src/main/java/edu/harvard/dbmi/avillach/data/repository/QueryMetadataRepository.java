@@ -0,0 +1,17 @@
+package edu.harvard.dbmi.avillach.data.repository;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.transaction.Transactional;
+
+import edu.harvard.dbmi.avillach.data.entity.QueryMetadata;
+
+import java.util.UUID;
+
+@Transactional
+@ApplicationScoped
+public class QueryMetadataRepository extends BaseRepository<QueryMetadata, UUID> {
+
+	protected QueryMetadataRepository() {
+		super(QueryMetadata.class);
+	}
+}
@@ -1,14 +1,256 @@
 package edu.harvard.dbmi.avillach.data.repository;
 
+import edu.harvard.dbmi.avillach.data.codec.BlobCodecs;
 import edu.harvard.dbmi.avillach.data.entity.Query;
+import edu.harvard.dbmi.avillach.data.projection.QueryRun;
+import edu.harvard.dbmi.avillach.data.projection.QuerySummary;
+import edu.harvard.dbmi.avillach.util.PicSureStatus;
+import org.hibernate.Session;
 
 import javax.enterprise.context.ApplicationScoped;
+import javax.persistence.NoResultException;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Join;
+import javax.persistence.criteria.JoinType;
+import javax.persistence.criteria.Root;
 import javax.transaction.Transactional;
-import java.util.UUID;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.util.*;
 
 @Transactional
 @ApplicationScoped
 public class QueryRepository extends BaseRepository<Query, UUID>{
 
+    /**
+     * Rows that already reached a final status are left alone, so a late write cannot undo a cancellation
+     */
+    private static final String NOT_TERMINAL = " AND (status IS NULL OR status NOT IN ("
+            + PicSureStatus.ERROR.ordinal() + ", " + PicSureStatus.AVAILABLE.ordinal() + ", " + PicSureStatus.CANCELLED.ordinal() + "))";
+
+    private static final String UPDATE_STATUS = "UPDATE query SET status = ?, completedAt = ? WHERE uuid = ?" + NOT_TERMINAL;
+
+    private static final String UPDATE_FINAL_STATUS = "UPDATE query SET status = ?, completedAt = ?, resourceStatus = ?, "
+            + "sizeInBytes = ?, duration = ?, expiration = ? WHERE uuid = ?" + NOT_TERMINAL;
+
+    private static final String QUERY_COLUMNS = "uuid, query, queryCodec, readyTime, resourceResultId, startTime, status, "
+            + "resourceId, metadata, username, submittedAt, completedAt, queryHash, bodyId, resourceStatus, sizeInBytes, "
+            + "duration, expiration";
+
+    private static final String SELECT_EXPIRED = "SELECT uuid FROM query WHERE startTime < ? ORDER BY startTime LIMIT ?";
+
+    private static final String SELECT_ARCHIVED = "SELECT " + QUERY_COLUMNS + " FROM query_archive WHERE uuid = ?";
+
     protected QueryRepository() {super(Query.class);}
+
+    /**
+     * Reads only the small columns of a query, without its blobs or its resource
+     *
+     * @return null if there is no such query
+     */
+    public QuerySummary getSummary(UUID queryId){
+        CriteriaQuery<QuerySummary> query = cb().createQuery(QuerySummary.class);
+        Root<Query> root = query.from(Query.class);
+        query.select(cb().construct(QuerySummary.class,
+                root.get("uuid"),
+                root.get("status"),
+                root.get("resourceResultId"),
+                root.get("startTime"),
+                root.join("resource", JoinType.LEFT).get("uuid"),
+                root.get("resourceStatus"),
+                root.get("sizeInBytes"),
+                root.get("duration"),
+                root.get("expiration")))
+                .where(eq(root, "uuid", queryId));
+        try {
+            return em().createQuery(query).getSingleResult();
+        } catch (NoResultException e){
+            return null;
+        }
+    }
+
+    /**
+     * Reads only the stored query request of a query
+     *
+     * @return a stream of the decompressed query request, or null if there is no such query
+     */
+    public InputStream getQueryStream(UUID queryId) throws IOException {
+        CriteriaQuery<Object[]> query = cb().createQuery(Object[].class);
+        Root<Query> root = query.from(Query.class);
+        Join<Query, ?> body = root.join("body", JoinType.LEFT);
+        query.multiselect(root.get("query"), root.get("queryCodec"), body.get("body"), body.get("bodyCodec"))
+                .where(eq(root, "uuid", queryId));
+        List<Object[]> rows = em().createQuery(query).getResultList();
+        if (rows.isEmpty()){
+            return null;
+        }
+        Object[] row = rows.get(0);
+        if (row[2] != null){
+            return BlobCodecs.decompressing((Integer) row[3], (byte[]) row[2]);
+        }
+        return BlobCodecs.decompressing((Integer) row[1], (byte[]) row[0]);
+    }
+
+    /**
+     * Finds every query submitted with exactly the same request as this one, through the index on
+     * the request hash, without reading any request bodies
+     *
+     * @return the runs, oldest first, including this query; null if there is no such query
+     */
+    public List<QueryRun> getRunsOfSameQuery(UUID queryId){
+        CriteriaQuery<byte[]> hashQuery = cb().createQuery(byte[].class);
+        Root<Query> hashRoot = hashQuery.from(Query.class);
+        hashQuery.select(hashRoot.get("queryHash")).where(eq(hashRoot, "uuid", queryId));
+        List<byte[]> hashes = em().createQuery(hashQuery).getResultList();
+        if (hashes.isEmpty()){
+            return null;
+        }
+        //A query without a request only matches itself
+        byte[] hash = hashes.get(0);
+
+        CriteriaQuery<QueryRun> query = cb().createQuery(QueryRun.class);
+        Root<Query> root = query.from(Query.class);
+        query.select(cb().construct(QueryRun.class,
+                root.get("uuid"),
+                root.get("username"),
+                root.get("submittedAt"),
+                root.get("status"),
+                root.join("resource", JoinType.LEFT).get("uuid")))
+                .where(hash == null ? eq(root, "uuid", queryId) : eq(root, "queryHash", hash))
+                .orderBy(cb().asc(root.get("submittedAt")));
+        return em().createQuery(query).getResultList();
+    }
+
+    /**
+     * Writes the status of many queries in a single JDBC batch, bypassing the persistence context.
+     * Queries moving to a terminal status get their completion time. Queries already in a terminal
+     * status are not changed.
+     *
+     * @param statuses the new status for each query id
+     */
+    public void updateStatuses(Map<UUID, PicSureStatus> statuses){
+        if (statuses.isEmpty()){
+            return;
+        }
+        em().unwrap(Session.class).doWork(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(UPDATE_STATUS)){
+                Timestamp now = new Timestamp(System.currentTimeMillis());
+                for (Map.Entry<UUID, PicSureStatus> entry : statuses.entrySet()){
+                    statement.setInt(1, entry.getValue().ordinal());
+                    statement.setTimestamp(2, entry.getValue().isTerminal() ? now : null);
+                    statement.setBytes(3, toBytes(entry.getKey()));
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            }
+        });
+    }
+
+    /**
+     * Writes the status of one query, bypassing the persistence context. Like {@link #updateStatuses(Map)},
+     * a query already in a terminal status is not changed.
+     *
+     * @return whether the status was written
+     */
+    public boolean updateStatus(UUID queryId, PicSureStatus status){
+        boolean[] updated = {false};
+        em().unwrap(Session.class).doWork(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(UPDATE_STATUS)){
+                statement.setInt(1, status.ordinal());
+                statement.setTimestamp(2, status.isTerminal() ? new Timestamp(System.currentTimeMillis()) : null);
+                statement.setBytes(3, toBytes(queryId));
+                updated[0] = statement.executeUpdate() > 0;
+            }
+        });
+        return updated[0];
+    }
+
+    /**
+     * Writes the final status of a query along with what the resource reported about its result, so that
+     * later status calls can be answered from the row. Like {@link #updateStatuses(Map)}, a query already
+     * in a terminal status is not changed.
+     */
+    public void updateFinalStatus(UUID queryId, PicSureStatus status, String resourceStatus, long sizeInBytes,
+                                  long duration, long expiration){
+        em().unwrap(Session.class).doWork(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(UPDATE_FINAL_STATUS)){
+                statement.setInt(1, status.ordinal());
+                statement.setTimestamp(2, new Timestamp(System.currentTimeMillis()));
+                statement.setString(3, resourceStatus);
+                statement.setLong(4, sizeInBytes);
+                statement.setLong(5, duration);
+                statement.setLong(6, expiration);
+                statement.setBytes(7, toBytes(queryId));
+                statement.executeUpdate();
+            }
+        });
+    }
+
+    /**
+     * Moves up to batchSize of the oldest queries started before the cutoff into the query_archive
+     * table, in a transaction of their own so that row locks are held for one batch only. Copies that
+     * are already archived, for example by another node, are left as they are.
+     *
+     * @return how many queries were moved, fewer than batchSize once none are left
+     */
+    @Transactional(Transactional.TxType.REQUIRES_NEW)
+    public int archive(Date cutoff, int batchSize){
+        int[] moved = {0};
+        em().unwrap(Session.class).doWork(connection -> {
+            List<byte[]> ids = new ArrayList<>();
+            try (PreparedStatement select = connection.prepareStatement(SELECT_EXPIRED)){
+                select.setDate(1, new java.sql.Date(cutoff.getTime()));
+                select.setInt(2, batchSize);
+                try (ResultSet rows = select.executeQuery()){
+                    while (rows.next()){
+                        ids.add(rows.getBytes(1));
+                    }
+                }
+            }
+            if (ids.isEmpty()){
+                return;
+            }
+            String in = String.join(", ", Collections.nCopies(ids.size(), "?"));
+            try (PreparedStatement copy = connection.prepareStatement("INSERT IGNORE INTO query_archive (" + QUERY_COLUMNS
+                    + ", archivedAt) SELECT " + QUERY_COLUMNS + ", NOW(3) FROM query WHERE uuid IN (" + in + ")");
+                 PreparedStatement delete = connection.prepareStatement("DELETE FROM query WHERE uuid IN (" + in + ")")){
+                for (int i = 0; i < ids.size(); i++){
+                    copy.setBytes(i + 1, ids.get(i));
+                    delete.setBytes(i + 1, ids.get(i));
+                }
+                copy.executeUpdate();
+                moved[0] = delete.executeUpdate();
+            }
+        });
+        return moved[0];
+    }
+
+    /**
+     * Reads a query that has been moved to the archive. The entity is read only and not part of
+     * the query table, so it must not be merged or removed.
+     *
+     * @return the archived query, or null if there is none
+     */
+    public Query getArchived(UUID queryId){
+        List<Query> rows = em().createNativeQuery(SELECT_ARCHIVED, Query.class)
+                .setParameter(1, toBytes(queryId))
+                .getResultList();
+        if (rows.isEmpty()){
+            return null;
+        }
+        Query archived = rows.get(0);
+        em().unwrap(Session.class).setReadOnly(archived, true);
+        return archived;
+    }
+
+    private static byte[] toBytes(UUID uuid){
+        return ByteBuffer.allocate(16)
+                .putLong(uuid.getMostSignificantBits())
+                .putLong(uuid.getLeastSignificantBits())
+                .array();
+    }
 }
@@ -0,0 +1,170 @@
+package edu.harvard.dbmi.avillach.data.repository;
+
+import org.hibernate.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceException;
+import javax.persistence.PersistenceUnit;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Sends reads that can tolerate slightly stale data to the read replica.
+ *
+ * Reads are routed one call at a time with {@link #read(Object, Supplier)}; repositories used inside
+ * it read through the replica, everything else still goes to the primary. The replica is only used
+ * while its last measured lag is within the configured tolerance. Anything written on this node is
+ * recorded with {@link #wrote(Object)}, and reads of it stay on the primary until the replica has had
+ * that long to catch up, so a caller always sees its own writes.
+ *
+ * Replica entities come from a separate persistence context that is closed when the read returns, so
+ * the read must take everything it needs from them before returning.
+ */
+@ApplicationScoped
+public class ReplicaRouting {
+
+	public static final String REPLICA_UNIT = "picsure-replica";
+
+	private static final ThreadLocal<EntityManager> current = new ThreadLocal<>();
+
+	private Logger logger = LoggerFactory.getLogger(ReplicaRouting.class);
+
+	@PersistenceUnit(unitName = REPLICA_UNIT)
+	EntityManagerFactory replicaEntityManagerFactory;
+
+	private volatile boolean enabled;
+
+	private volatile long maxLagMillis;
+
+	private volatile long lagMillis = Long.MAX_VALUE;
+
+	/**
+	 * When each recently written key may be read from the replica again
+	 */
+	private final Map<Object, Long> primaryUntil = new ConcurrentHashMap<>();
+
+	/**
+	 * @param enabled whether reads may go to the replica at all
+	 * @param maxLagMillis how far behind the primary the replica may be and still be read
+	 */
+	public void configure(boolean enabled, long maxLagMillis) {
+		this.enabled = enabled;
+		this.maxLagMillis = maxLagMillis;
+	}
+
+	/**
+	 * Runs a read on the replica if it may be used for this key, otherwise on the primary. A read
+	 * that fails on the replica, or finds nothing there, is tried again on the primary: what it looks
+	 * for may have been written on another node and not have reached the replica yet.
+	 *
+	 * @param key what is being read, as passed to {@link #wrote(Object)}; null if nothing in particular
+	 */
+	public <R> R read(Object key, Supplier<R> read) {
+		if (!useReplica(key) || current.get() != null) {
+			return read.get();
+		}
+		R result = null;
+		EntityManager replica = replicaEntityManagerFactory.createEntityManager();
+		try {
+			replica.unwrap(Session.class).setDefaultReadOnly(true);
+			current.set(replica);
+			result = read.get();
+		} catch (PersistenceException e) {
+			logger.warn("read() replica read failed, reading from the primary: " + e.getMessage());
+		} finally {
+			current.remove();
+			replica.close();
+		}
+		return result != null ? result : read.get();
+	}
+
+	/**
+	 * Keeps reads of this key on the primary until the replica has had time to receive the write
+	 */
+	public void wrote(Object key) {
+		if (enabled && key != null) {
+			primaryUntil.put(key, System.currentTimeMillis() + maxLagMillis);
+		}
+	}
+
+	/**
+	 * @return whether a read of this key may go to the replica right now
+	 */
+	public boolean useReplica(Object key) {
+		if (!enabled || lagMillis > maxLagMillis) {
+			return false;
+		}
+		if (key == null) {
+			return true;
+		}
+		Long until = primaryUntil.get(key);
+		return until == null || until < System.currentTimeMillis();
+	}
+
+	/**
+	 * Asks the replica how far behind the primary it is. A database that is not replicating is
+	 * taken to be the primary itself, with no lag. A replica that cannot be asked, or whose
+	 * replication has stopped, is not read until it answers again.
+	 *
+	 * @return the lag in milliseconds, {@link Long#MAX_VALUE} if unknown
+	 */
+	public long measureLag() {
+		if (!enabled) {
+			return lagMillis;
+		}
+		EntityManager replica = replicaEntityManagerFactory.createEntityManager();
+		try {
+			long[] measured = {Long.MAX_VALUE};
+			replica.unwrap(Session.class).doWork(connection -> {
+				try (Statement statement = connection.createStatement();
+					 ResultSet status = statement.executeQuery("SHOW SLAVE STATUS")) {
+					if (!status.next()) {
+						measured[0] = 0;
+						return;
+					}
+					long seconds = status.getLong("Seconds_Behind_Master");
+					if (!status.wasNull()) {
+						measured[0] = seconds * 1000;
+					}
+				}
+			});
+			setLagMillis(measured[0]);
+		} catch (RuntimeException e) {
+			logger.warn("measureLag() unable to read replica status: " + e.getMessage());
+			setLagMillis(Long.MAX_VALUE);
+		} finally {
+			replica.close();
+		}
+		return lagMillis;
+	}
+
+	/**
+	 * Drops recorded writes the replica has had time to receive
+	 */
+	public void prune() {
+		long now = System.currentTimeMillis();
+		primaryUntil.values().removeIf(until -> until < now);
+	}
+
+	void setLagMillis(long lagMillis) {
+		if ((lagMillis > maxLagMillis) != (this.lagMillis > maxLagMillis)) {
+			logger.info("setLagMillis() replica lag is " + (lagMillis == Long.MAX_VALUE ? "unknown" : lagMillis + " ms")
+					+ ", reads now go to the " + (lagMillis > maxLagMillis ? "primary" : "replica"));
+		}
+		this.lagMillis = lagMillis;
+	}
+
+	/**
+	 * @return the replica entity manager of the read running on this thread, or null if there is none
+	 */
+	static EntityManager current() {
+		return current.get();
+	}
+}
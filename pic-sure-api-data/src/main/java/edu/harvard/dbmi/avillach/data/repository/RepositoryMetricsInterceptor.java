@@ -0,0 +1,60 @@
+package edu.harvard.dbmi.avillach.data.repository;
+
+import edu.harvard.dbmi.avillach.util.metrics.Histogram;
+import edu.harvard.dbmi.avillach.util.metrics.Labeled;
+import edu.harvard.dbmi.avillach.util.metrics.MetricsRegistry;
+
+import javax.annotation.Priority;
+import javax.interceptor.AroundInvoke;
+import javax.interceptor.Interceptor;
+import javax.interceptor.InvocationContext;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records the time spent in each repository method, labelled as Repository.method.
+ *
+ * Only calls from outside the repository are seen, so the time of a method includes the other
+ * methods of the same repository it calls.
+ */
+@RepositoryTimed
+@Interceptor
+@Priority(Interceptor.Priority.APPLICATION)
+public class RepositoryMetricsInterceptor {
+
+	static final Labeled<Histogram> dbTime = MetricsRegistry.getDefault().histogram("picsure_db_duration_seconds",
+			"Time spent in each repository method", "method",
+			0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10);
+
+	//Resolved once per repository and method, so that timing a call allocates nothing
+	private static final Map<Class<?>, Map<Method, Histogram>> histograms = new ConcurrentHashMap<>();
+
+	@AroundInvoke
+	public Object time(InvocationContext context) throws Exception {
+		long started = System.nanoTime();
+		try {
+			return context.proceed();
+		} finally {
+			histogram(context.getTarget().getClass(), context.getMethod()).observeSince(started);
+		}
+	}
+
+	private static Histogram histogram(Class<?> target, Method method) {
+		Map<Method, Histogram> methods = histograms.computeIfAbsent(target, t -> new ConcurrentHashMap<>());
+		Histogram histogram = methods.get(method);
+		if (histogram == null) {
+			histogram = methods.computeIfAbsent(method, m -> dbTime.labels(repositoryName(target) + "." + m.getName()));
+		}
+		return histogram;
+	}
+
+	/**
+	 * @return the simple name of the repository, without the suffix of any proxy class around it
+	 */
+	static String repositoryName(Class<?> target) {
+		String name = target.getSimpleName();
+		int proxy = name.indexOf('$');
+		return proxy > 0 ? name.substring(0, proxy) : name;
+	}
+}
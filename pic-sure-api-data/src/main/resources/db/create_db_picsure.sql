@@ -27,18 +27,96 @@ USE `picsure`;
 CREATE TABLE `query` (
   `uuid` binary(16) NOT NULL,
   `query` longblob,
+  `queryCodec` int(11) DEFAULT NULL,
   `readyTime` date DEFAULT NULL,
   `resourceResultId` varchar(255) COLLATE utf8_bin DEFAULT NULL,
   `startTime` date DEFAULT NULL,
   `status` int(11) DEFAULT NULL,
   `resourceId` binary(16),
   `metadata` blob,
+  `username` varchar(255) COLLATE utf8_bin DEFAULT NULL,
+  `submittedAt` datetime(3) DEFAULT NULL,
+  `completedAt` datetime(3) DEFAULT NULL,
+  `queryHash` binary(32) DEFAULT NULL,
+  `bodyId` binary(16) DEFAULT NULL,
+  `resourceStatus` varchar(255) COLLATE utf8_bin DEFAULT NULL,
+  `sizeInBytes` bigint(20) DEFAULT NULL,
+  `duration` bigint(20) DEFAULT NULL,
+  `expiration` bigint(20) DEFAULT NULL,
   PRIMARY KEY (`uuid`),
   KEY `FKhgiwd8kmi6pjw16txfhyqk2w0` (`resourceId`),
+  KEY `IDX_QUERY_RESOURCE_STATUS` (`resourceId`, `status`),
+  KEY `IDX_QUERY_STATUS_SUBMITTED` (`status`, `submittedAt`),
+  KEY `IDX_QUERY_USER_SUBMITTED` (`username`, `submittedAt`),
+  KEY `IDX_QUERY_START_TIME` (`startTime`),
+  KEY `IDX_QUERY_RESOURCE_RESULT` (`resourceResultId`),
+  KEY `IDX_QUERY_HASH` (`queryHash`),
   CONSTRAINT `FKhgiwd8kmi6pjw16txfhyqk2w0` FOREIGN KEY (`resourceId`) REFERENCES `resource` (`uuid`)
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8 COLLATE=utf8_bin;
 /*!40101 SET character_set_client = @saved_cs_client */;
 
+--
+-- Table structure for table `query_body`
+--
+
+/*!40101 SET @saved_cs_client     = @@character_set_client */;
+/*!40101 SET character_set_client = utf8 */;
+CREATE TABLE `query_body` (
+  `uuid` binary(16) NOT NULL,
+  `hash` binary(32) NOT NULL,
+  `body` longblob,
+  `bodyCodec` int(11) DEFAULT NULL,
+  `bodySize` int(11) NOT NULL DEFAULT 0,
+  PRIMARY KEY (`uuid`),
+  UNIQUE KEY `UK_QUERY_BODY_HASH` (`hash`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8 COLLATE=utf8_bin;
+/*!40101 SET character_set_client = @saved_cs_client */;
+
+--
+-- Table structure for table `query_metadata`
+--
+
+/*!40101 SET @saved_cs_client     = @@character_set_client */;
+/*!40101 SET character_set_client = utf8 */;
+CREATE TABLE `query_metadata` (
+  `uuid` binary(16) NOT NULL,
+  `metadata` longblob,
+  `metadataCodec` int(11) DEFAULT NULL,
+  `metadataSize` int(11) NOT NULL DEFAULT 0,
+  PRIMARY KEY (`uuid`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8 COLLATE=utf8_bin;
+/*!40101 SET character_set_client = @saved_cs_client */;
+
+--
+-- Table structure for table `query_archive`
+--
+
+/*!40101 SET @saved_cs_client     = @@character_set_client */;
+/*!40101 SET character_set_client = utf8 */;
+CREATE TABLE `query_archive` (
+  `uuid` binary(16) NOT NULL,
+  `query` longblob,
+  `queryCodec` int(11) DEFAULT NULL,
+  `readyTime` date DEFAULT NULL,
+  `resourceResultId` varchar(255) COLLATE utf8_bin DEFAULT NULL,
+  `startTime` date DEFAULT NULL,
+  `status` int(11) DEFAULT NULL,
+  `resourceId` binary(16),
+  `metadata` blob,
+  `username` varchar(255) COLLATE utf8_bin DEFAULT NULL,
+  `submittedAt` datetime(3) DEFAULT NULL,
+  `completedAt` datetime(3) DEFAULT NULL,
+  `queryHash` binary(32) DEFAULT NULL,
+  `bodyId` binary(16) DEFAULT NULL,
+  `resourceStatus` varchar(255) COLLATE utf8_bin DEFAULT NULL,
+  `sizeInBytes` bigint(20) DEFAULT NULL,
+  `duration` bigint(20) DEFAULT NULL,
+  `expiration` bigint(20) DEFAULT NULL,
+  `archivedAt` datetime(3) NOT NULL,
+  PRIMARY KEY (`uuid`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8 COLLATE=utf8_bin;
+/*!40101 SET character_set_client = @saved_cs_client */;
+
 --
 -- Table structure for table `resource`
 --
@@ -72,6 +150,31 @@ CREATE TABLE `user` (
   UNIQUE KEY `userId_UNIQUE` (`userId`)
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8 COLLATE=utf8_bin;
 /*!40101 SET character_set_client = @saved_cs_client */;
+
+--
+-- Table structure for table `picsure_schema_history`
+--
+-- The tables above are the schema of the last migration in db/sql/migrations.txt. Every version is
+-- recorded as applied, so that SchemaMigrator does not run them again on the first start.
+--
+
+CREATE TABLE `picsure_schema_history` (
+  `version` int NOT NULL,
+  `script` varchar(255) NOT NULL,
+  `checksum` bigint,
+  `installedOn` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  PRIMARY KEY (`version`)
+);
+
+INSERT INTO `picsure_schema_history` (`version`, `script`, `checksum`) VALUES
+  (1, '<< baseline >>', NULL),
+  (2, '<< baseline >>', NULL),
+  (3, '<< baseline >>', NULL),
+  (4, '<< baseline >>', NULL),
+  (5, '<< baseline >>', NULL),
+  (6, '<< baseline >>', NULL),
+  (7, '<< baseline >>', NULL),
+  (8, '<< baseline >>', NULL);
 /*!40103 SET TIME_ZONE=@OLD_TIME_ZONE */;
 
 /*!40101 SET SQL_MODE=@OLD_SQL_MODE */;
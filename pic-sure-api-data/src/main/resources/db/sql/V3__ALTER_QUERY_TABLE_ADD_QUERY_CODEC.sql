@@ -0,0 +1,3 @@
+USE `picsure`;
+
+alter table `query` add column `queryCodec` int(11) DEFAULT NULL;
\ No newline at end of file
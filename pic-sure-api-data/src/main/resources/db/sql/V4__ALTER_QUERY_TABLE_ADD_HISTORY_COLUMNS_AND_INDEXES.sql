@@ -0,0 +1,14 @@
+USE `picsure`;
+
+alter table `query`
+  add column `username` varchar(255) COLLATE utf8_bin DEFAULT NULL,
+  add column `submittedAt` datetime(3) DEFAULT NULL,
+  add column `completedAt` datetime(3) DEFAULT NULL,
+  add column `queryHash` binary(32) DEFAULT NULL;
+
+create index `IDX_QUERY_RESOURCE_STATUS` on `query` (`resourceId`, `status`);
+create index `IDX_QUERY_STATUS_SUBMITTED` on `query` (`status`, `submittedAt`);
+create index `IDX_QUERY_USER_SUBMITTED` on `query` (`username`, `submittedAt`);
+create index `IDX_QUERY_START_TIME` on `query` (`startTime`);
+create index `IDX_QUERY_RESOURCE_RESULT` on `query` (`resourceResultId`);
+create index `IDX_QUERY_HASH` on `query` (`queryHash`);
@@ -0,0 +1,21 @@
+USE `picsure`;
+
+-- Append-only home of query rows past the retention age, written by the retention sweeper.
+-- Same columns as `query` plus the time each row was archived, keyed by uuid only.
+CREATE TABLE `query_archive` (
+  `uuid` binary(16) NOT NULL,
+  `query` longblob,
+  `queryCodec` int(11) DEFAULT NULL,
+  `readyTime` date DEFAULT NULL,
+  `resourceResultId` varchar(255) COLLATE utf8_bin DEFAULT NULL,
+  `startTime` date DEFAULT NULL,
+  `status` int(11) DEFAULT NULL,
+  `resourceId` binary(16),
+  `metadata` blob,
+  `username` varchar(255) COLLATE utf8_bin DEFAULT NULL,
+  `submittedAt` datetime(3) DEFAULT NULL,
+  `completedAt` datetime(3) DEFAULT NULL,
+  `queryHash` binary(32) DEFAULT NULL,
+  `archivedAt` datetime(3) NOT NULL,
+  PRIMARY KEY (`uuid`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8 COLLATE=utf8_bin;
@@ -0,0 +1,19 @@
+USE `picsure`;
+
+-- Result metadata moves out of the query row. Existing values are copied as they are, with no codec,
+-- and the old column is emptied; it is kept only so that older archive copies still line up.
+CREATE TABLE `query_metadata` (
+  `uuid` binary(16) NOT NULL,
+  `metadata` longblob,
+  `metadataCodec` int(11) DEFAULT NULL,
+  `metadataSize` int(11) NOT NULL DEFAULT 0,
+  PRIMARY KEY (`uuid`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8 COLLATE=utf8_bin;
+
+INSERT INTO `query_metadata` (`uuid`, `metadata`, `metadataCodec`, `metadataSize`)
+  SELECT `uuid`, `metadata`, NULL, LENGTH(`metadata`) FROM `query` WHERE `metadata` IS NOT NULL;
+
+INSERT IGNORE INTO `query_metadata` (`uuid`, `metadata`, `metadataCodec`, `metadataSize`)
+  SELECT `uuid`, `metadata`, NULL, LENGTH(`metadata`) FROM `query_archive` WHERE `metadata` IS NOT NULL;
+
+UPDATE `query` SET `metadata` = NULL WHERE `metadata` IS NOT NULL;
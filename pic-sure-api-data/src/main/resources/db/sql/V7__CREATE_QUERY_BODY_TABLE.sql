@@ -0,0 +1,19 @@
+USE `picsure`;
+
+-- Query requests are stored once per distinct body, addressed by the SHA-256 of their canonical JSON.
+-- Existing queries keep their request in their own row, and bodyId stays empty for them.
+CREATE TABLE `query_body` (
+  `uuid` binary(16) NOT NULL,
+  `hash` binary(32) NOT NULL,
+  `body` longblob,
+  `bodyCodec` int(11) DEFAULT NULL,
+  `bodySize` int(11) NOT NULL DEFAULT 0,
+  PRIMARY KEY (`uuid`),
+  UNIQUE KEY `UK_QUERY_BODY_HASH` (`hash`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8 COLLATE=utf8_bin;
+
+alter table `query`
+  add column `bodyId` binary(16) DEFAULT NULL after `queryHash`;
+
+alter table `query_archive`
+  add column `bodyId` binary(16) DEFAULT NULL after `queryHash`;
@@ -0,0 +1,15 @@
+USE `picsure`;
+
+-- What the resource reported about the result when a query reached its final status, so that status
+-- calls for finished queries can be answered without asking the resource. Empty for older queries.
+alter table `query`
+  add column `resourceStatus` varchar(255) COLLATE utf8_bin DEFAULT NULL,
+  add column `sizeInBytes` bigint(20) DEFAULT NULL,
+  add column `duration` bigint(20) DEFAULT NULL,
+  add column `expiration` bigint(20) DEFAULT NULL;
+
+alter table `query_archive`
+  add column `resourceStatus` varchar(255) COLLATE utf8_bin DEFAULT NULL after `bodyId`,
+  add column `sizeInBytes` bigint(20) DEFAULT NULL after `resourceStatus`,
+  add column `duration` bigint(20) DEFAULT NULL after `sizeInBytes`,
+  add column `expiration` bigint(20) DEFAULT NULL after `duration`;
@@ -1,10 +1,20 @@
 package edu.harvard.dbmi.avillach;
 
+import edu.harvard.dbmi.avillach.data.codec.BlobCodecs;
 import edu.harvard.dbmi.avillach.data.entity.BaseEntity;
+import edu.harvard.dbmi.avillach.data.entity.Query;
+import edu.harvard.dbmi.avillach.data.entity.QueryBody;
+import edu.harvard.dbmi.avillach.data.entity.QueryMetadata;
 import edu.harvard.dbmi.avillach.data.entity.User;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
 import java.util.UUID;
+import java.util.zip.GZIPOutputStream;
 
 import static org.junit.Assert.*;
 
@@ -23,4 +33,112 @@ public class DataTest {
 
 		assertEquals(user, user2);
 	}
+
+	@Test
+	public void QueryCodecTest() throws Exception {
+		String queryJson = "{\"resourceCredentials\":{},\"query\":{\"categoryFilters\":{\"\\\\demographics\\\\SEX\\\\\":[\"male\"]},"
+				+ "\"expectedResultType\":\"COUNT\"},\"resourceUUID\":\"" + UUID.randomUUID() + "\"}\nsecond line\n";
+
+		Query query = new Query();
+		query.setQuery(queryJson);
+		assertEquals(BlobCodecs.QUERY_DICTIONARY.getId(), query.getQueryCodec().intValue());
+		assertEquals("Newlines must survive the round trip", queryJson, query.getQuery());
+		try (Reader reader = query.getQueryReader()) {
+			StringBuilder read = new StringBuilder();
+			char[] buffer = new char[7];
+			int count;
+			while ((count = reader.read(buffer)) >= 0) {
+				read.append(buffer, 0, count);
+			}
+			assertEquals(queryJson, read.toString());
+		}
+
+		query.setQuery(queryJson, BlobCodecs.GZIP);
+		assertEquals(queryJson, query.getQuery());
+
+		//Rows written before codec ids were stored are plain gzip with no id
+		Query legacy = new Query();
+		Field blob = Query.class.getDeclaredField("query");
+		blob.setAccessible(true);
+		blob.set(legacy, gzip(queryJson));
+		assertNull(legacy.getQueryCodec());
+		assertEquals(queryJson, legacy.getQuery());
+
+		query.setQuery(null);
+		assertEquals("", query.getQuery());
+	}
+
+	@Test
+	public void QueryMetadataCodecTest() throws Exception {
+		//Well past the 8192 bytes the query table used to hold
+		StringBuilder body = new StringBuilder();
+		while (body.length() < 100000) {
+			body.append("{\"id\":\"").append(body.length()).append("\",\"access_methods\":[{\"type\":\"s3\"}]},");
+		}
+		byte[] content = body.toString().getBytes(StandardCharsets.UTF_8);
+
+		UUID queryId = UUID.randomUUID();
+		QueryMetadata metadata = new QueryMetadata(queryId, content);
+		assertEquals(queryId, metadata.getUuid());
+		assertEquals(BlobCodecs.GZIP.getId(), metadata.getMetadataCodec().intValue());
+		assertEquals(content.length, metadata.getMetadataSize());
+		assertArrayEquals(content, metadata.getMetadata());
+
+		//Rows moved from the query table are stored as they were, with no codec
+		QueryMetadata moved = new QueryMetadata();
+		Field blob = QueryMetadata.class.getDeclaredField("metadata");
+		blob.setAccessible(true);
+		blob.set(moved, content);
+		assertArrayEquals(content, moved.getMetadata());
+
+		metadata.setMetadata(null);
+		assertNull(metadata.getMetadata());
+		assertNull(metadata.getMetadataCodec());
+	}
+
+	@Test
+	public void QueryBodyTest() throws Exception {
+		UUID resourceId = UUID.randomUUID();
+		String request = "{\"resourceCredentials\":{\"token\":\"a\"},\"query\":{\"expectedResultType\":\"COUNT\","
+				+ "\"categoryFilters\":{\"\\\\demographics\\\\SEX\\\\\":[\"male\"]}},\"resourceUUID\":\"" + resourceId + "\"}";
+		//Same query with other credentials, keys in another order and other whitespace
+		String reordered = "{ \"resourceUUID\" : \"" + resourceId + "\",\n \"query\" : {\"categoryFilters\":{\"\\\\demographics\\\\SEX\\\\\":[\"male\"]},"
+				+ "\"expectedResultType\":\"COUNT\"}, \"resourceCredentials\":{\"token\":\"b\"}}";
+
+		String canonical = QueryBody.canonical(request);
+		assertEquals(canonical, QueryBody.canonical(reordered));
+		assertFalse("Credentials must not be stored with the body", canonical.contains("resourceCredentials"));
+		assertArrayEquals(QueryBody.hash(canonical), QueryBody.hash(QueryBody.canonical(reordered)));
+		assertNotEquals(canonical, QueryBody.canonical(request.replace("COUNT", "DATAFRAME")));
+
+		QueryBody body = new QueryBody(canonical, BlobCodecs.QUERY_DICTIONARY);
+		assertEquals(QueryBody.idOf(QueryBody.hash(canonical)), body.getUuid());
+		assertEquals(32, body.getHash().length);
+		assertEquals(canonical, body.getBody());
+		assertEquals(canonical.length(), body.getBodySize());
+
+		//Text that is not a JSON object is kept as it is
+		assertEquals("not json", QueryBody.canonical("not json"));
+
+		//Numbers are kept exactly as sent
+		String numbers = "{\"min\":0.1000000000000000055511151231257827,\"max\":1.10,\"id\":123456789012345678901234567890}";
+		assertEquals("{\"id\":123456789012345678901234567890,\"max\":1.10,\"min\":0.1000000000000000055511151231257827}",
+				QueryBody.canonical(numbers));
+		assertNotEquals(QueryBody.canonical(numbers), QueryBody.canonical(numbers.replace("0.1000000000000000055511151231257827", "0.1")));
+
+		Query query = new Query();
+		query.setQuery(request);
+		query.setBody(body, body.getHash());
+		assertNull(query.getQueryCodec());
+		assertEquals(canonical, query.getQuery());
+		assertArrayEquals(body.getHash(), query.getQueryHash());
+	}
+
+	private byte[] gzip(String content) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		try (GZIPOutputStream gzip = new GZIPOutputStream(output)) {
+			gzip.write(content.getBytes(StandardCharsets.UTF_8));
+		}
+		return output.toByteArray();
+	}
 }
@@ -0,0 +1,144 @@
+package edu.harvard.dbmi.avillach.data.entity;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class IdStrategyTest {
+
+	/**
+	 * JDBC url of a scratch MySQL compatible database, for {@link #benchmarkInserts()}
+	 */
+	private static final String BENCHMARK_URL = System.getProperty("benchmark.jdbcUrl");
+
+	private static final int BENCHMARK_ROWS = Integer.getInteger("benchmark.rows", 200000);
+
+	@After
+	public void resetStrategy() {
+		BaseEntity.setIdStrategy(IdStrategy.RANDOM);
+	}
+
+	@Test
+	public void testTimeOrdered() {
+		long before = System.currentTimeMillis();
+		UUID previous = IdStrategy.TIME_ORDERED.next();
+		assertEquals(7, previous.version());
+		assertEquals(2, previous.variant());
+		long millis = previous.getMostSignificantBits() >>> 16;
+		assertTrue(millis >= before && millis <= System.currentTimeMillis() + 1);
+
+		//Many keys in the same millisecond must still sort in the order they were made, as the database compares them
+		for (int i = 0; i < 100000; i++) {
+			UUID next = IdStrategy.TIME_ORDERED.next();
+			assertTrue(previous + " >= " + next, compareBytes(previous, next) < 0);
+			previous = next;
+		}
+	}
+
+	@Test
+	public void testRandom() {
+		UUID uuid = IdStrategy.RANDOM.next();
+		assertEquals(4, uuid.version());
+		assertNotEquals(uuid, IdStrategy.RANDOM.next());
+
+		assertEquals(IdStrategy.TIME_ORDERED, IdStrategy.forName(" time_ordered "));
+		assertEquals(IdStrategy.RANDOM, IdStrategy.forName("random"));
+		for (String unknown : new String[] {"unknown", "", null}) {
+			try {
+				IdStrategy.forName(unknown);
+				fail("No strategy is named " + unknown);
+			} catch (IllegalArgumentException e) {
+				//expected
+			}
+		}
+	}
+
+	@Test
+	public void testAssignId() {
+		BaseEntity.setIdStrategy(IdStrategy.RANDOM);
+		User user = new User();
+		user.assignId();
+		assertEquals(4, user.getUuid().version());
+
+		//Keys made before time ordered ids, or set by the caller, are kept
+		BaseEntity.setIdStrategy(IdStrategy.TIME_ORDERED);
+		UUID existing = UUID.fromString("6ef9387a-4cde-4253-bd47-0bdc74ff76ab");
+		user.setUuid(existing);
+		user.assignId();
+		assertEquals(existing, user.getUuid());
+
+		user.setUuid(null);
+		user.assignId();
+		assertEquals(7, user.getUuid().version());
+	}
+
+	/**
+	 * Inserts the same number of rows keyed by each strategy into a table shaped like ours and reports
+	 * the rate. Runs only when given a database, for example
+	 * mvn test -pl pic-sure-api-data -Dtest=IdStrategyTest -Dbenchmark.jdbcUrl="jdbc:mysql://localhost:3306/scratch?user=root&rewriteBatchedStatements=true"
+	 */
+	@Test
+	public void benchmarkInserts() throws Exception {
+		Assume.assumeNotNull(BENCHMARK_URL);
+		try (Connection connection = DriverManager.getConnection(BENCHMARK_URL)) {
+			for (IdStrategy strategy : IdStrategy.values()) {
+				try (Statement statement = connection.createStatement()) {
+					statement.execute("DROP TABLE IF EXISTS id_strategy_benchmark");
+					statement.execute("CREATE TABLE id_strategy_benchmark (uuid BINARY(16) NOT NULL, payload VARCHAR(255), "
+							+ "PRIMARY KEY (uuid)) ENGINE=InnoDB");
+				}
+				connection.setAutoCommit(false);
+				long start = System.nanoTime();
+				try (PreparedStatement insert = connection.prepareStatement("INSERT INTO id_strategy_benchmark VALUES (?, ?)")) {
+					for (int i = 1; i <= BENCHMARK_ROWS; i++) {
+						UUID uuid = strategy.next();
+						insert.setBytes(1, bytes(uuid));
+						insert.setString(2, uuid.toString());
+						insert.addBatch();
+						if (i % 1000 == 0) {
+							insert.executeBatch();
+							connection.commit();
+						}
+					}
+					insert.executeBatch();
+					connection.commit();
+				}
+				long millis = (System.nanoTime() - start) / 1000000;
+				connection.setAutoCommit(true);
+				System.out.println(strategy + ": " + BENCHMARK_ROWS + " rows in " + millis + " ms, "
+						+ (BENCHMARK_ROWS * 1000L / Math.max(1, millis)) + " rows/s");
+			}
+			try (Statement statement = connection.createStatement()) {
+				statement.execute("DROP TABLE id_strategy_benchmark");
+			}
+		}
+	}
+
+	private static int compareBytes(UUID a, UUID b) {
+		byte[] left = bytes(a);
+		byte[] right = bytes(b);
+		for (int i = 0; i < left.length; i++) {
+			int difference = (left[i] & 0xFF) - (right[i] & 0xFF);
+			if (difference != 0) {
+				return difference;
+			}
+		}
+		return 0;
+	}
+
+	private static byte[] bytes(UUID uuid) {
+		return ByteBuffer.allocate(16)
+				.putLong(uuid.getMostSignificantBits())
+				.putLong(uuid.getLeastSignificantBits())
+				.array();
+	}
+}
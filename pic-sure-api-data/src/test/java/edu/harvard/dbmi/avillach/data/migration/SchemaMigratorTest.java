@@ -0,0 +1,74 @@
+package edu.harvard.dbmi.avillach.data.migration;
+
+import org.junit.Test;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+public class SchemaMigratorTest {
+
+	@Test
+	public void testStatements() {
+		String script = "USE `picsure`;\n"
+				+ "-- a comment; with a semicolon\n"
+				+ "/*!40101 SET NAMES utf8 */;\n"
+				+ "/* a block comment; */\n"
+				+ "INSERT INTO `resource` VALUES ('a;b', \"it\\\"s;\");\n"
+				+ "alter table `query` add column `x` int";
+
+		assertEquals(Arrays.asList(
+				"USE `picsure`",
+				"/*!40101 SET NAMES utf8 */",
+				"INSERT INTO `resource` VALUES ('a;b', \"it\\\"s;\")",
+				"alter table `query` add column `x` int"), SchemaMigrator.statements(script));
+	}
+
+	@Test
+	public void testScriptIndex() {
+		List<String> scripts = SchemaMigrator.scripts();
+		assertEquals(1, SchemaMigrator.version(scripts.get(0)));
+
+		//Versions are unique and every script on disk is listed
+		Set<Integer> versions = new HashSet<>();
+		for (String script : scripts) {
+			assertTrue("Duplicate version " + script, versions.add(SchemaMigrator.version(script)));
+		}
+		File directory = new File(getClass().getClassLoader().getResource(SchemaMigrator.SCRIPT_DIRECTORY).getFile());
+		for (String file : directory.list((dir, name) -> name.endsWith(".sql"))) {
+			assertTrue(file + " is missing from " + SchemaMigrator.SCRIPT_INDEX, scripts.contains(file));
+		}
+	}
+
+	@Test
+	public void testCreateScriptIsAtLatestVersion() throws IOException {
+		String create;
+		try (InputStream input = getClass().getClassLoader().getResourceAsStream("db/create_db_picsure.sql")) {
+			create = new String(IOUtils.toByteArray(input), StandardCharsets.UTF_8);
+		}
+		//A fresh database records every version, so none of them is applied on top of it
+		Set<Integer> seeded = new HashSet<>();
+		Matcher matcher = Pattern.compile("\\((\\d+), '" + Pattern.quote(SchemaMigrator.BASELINE) + "'").matcher(create);
+		while (matcher.find()) {
+			seeded.add(Integer.parseInt(matcher.group(1)));
+		}
+		Set<Integer> versions = new HashSet<>();
+		for (String script : SchemaMigrator.scripts()) {
+			versions.add(SchemaMigrator.version(script));
+		}
+		assertEquals(versions, seeded);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testBadScriptName() {
+		SchemaMigrator.version("create_tables.sql");
+	}
+}
@@ -0,0 +1,82 @@
+package edu.harvard.dbmi.avillach.data.repository;
+
+import org.hibernate.Session;
+import org.junit.Test;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceException;
+import java.lang.reflect.Proxy;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class ReplicaRoutingTest {
+
+	@Test
+	public void testRouting() throws Exception {
+		ReplicaRouting routing = new ReplicaRouting();
+		UUID queryId = UUID.randomUUID();
+
+		//Disabled, nothing is routed and reads run as they are
+		assertFalse(routing.useReplica(null));
+		assertEquals("read", routing.read(queryId, () -> "read"));
+		assertNull(ReplicaRouting.current());
+
+		//Enabled, but the lag has not been measured yet
+		routing.configure(true, 200);
+		assertFalse(routing.useReplica(null));
+
+		routing.setLagMillis(100);
+		assertTrue(routing.useReplica(null));
+		assertTrue(routing.useReplica(queryId));
+
+		//A query written on this node is read from the primary until the replica may have caught up
+		routing.wrote(queryId);
+		assertFalse(routing.useReplica(queryId));
+		assertTrue(routing.useReplica(UUID.randomUUID()));
+		Thread.sleep(250);
+		routing.prune();
+		assertTrue(routing.useReplica(queryId));
+
+		//Too far behind, or stopped
+		routing.setLagMillis(300);
+		assertFalse(routing.useReplica(null));
+		routing.setLagMillis(Long.MAX_VALUE);
+		assertFalse(routing.useReplica(null));
+	}
+
+	@Test
+	public void testFallbackToPrimary() {
+		ReplicaRouting routing = new ReplicaRouting();
+		Session session = stub(Session.class, null);
+		EntityManager replica = stub(EntityManager.class, session);
+		routing.replicaEntityManagerFactory = stub(EntityManagerFactory.class, replica);
+		routing.configure(true, 200);
+		routing.setLagMillis(100);
+		UUID queryId = UUID.randomUUID();
+
+		assertEquals("replica", routing.read(queryId, () -> ReplicaRouting.current() == replica ? "replica" : "primary"));
+
+		//Not on the replica yet, for example when written on another node
+		assertEquals("primary", routing.read(queryId, () -> ReplicaRouting.current() == replica ? null : "primary"));
+
+		//The replica failed
+		assertEquals("primary", routing.read(queryId, () -> {
+			if (ReplicaRouting.current() == replica) {
+				throw new PersistenceException("replica is gone");
+			}
+			return "primary";
+		}));
+		assertNull(ReplicaRouting.current());
+	}
+
+	/**
+	 * @return an implementation of the interface whose methods all return the given value, or nothing
+	 */
+	@SuppressWarnings("unchecked")
+	private static <T> T stub(Class<T> type, Object value) {
+		return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type},
+				(proxy, method, args) -> method.getReturnType() == void.class ? null : value);
+	}
+}
@@ -0,0 +1,30 @@
+package edu.harvard.dbmi.avillach;
+
+import edu.harvard.dbmi.avillach.service.AdmissionController;
+
+import javax.servlet.ServletRequestEvent;
+import javax.servlet.ServletRequestListener;
+import javax.servlet.annotation.WebListener;
+
+/**
+ * Releases the admission permit still held by a request once the request is over.
+ *
+ * A permit held until its result has been sent is normally released when the result stream is closed,
+ * see {@link AdmissionController#releaseWhenSent}. When the response is never written, because the
+ * client went away or writing failed before the stream was opened, this is what gives the slot back.
+ */
+@WebListener
+public class AdmissionReleaseListener implements ServletRequestListener {
+
+    @Override
+    public void requestInitialized(ServletRequestEvent event) {
+    }
+
+    @Override
+    public void requestDestroyed(ServletRequestEvent event) {
+        Object permit = event.getServletRequest().getAttribute(AdmissionController.PERMIT_ATTRIBUTE);
+        if (permit instanceof AdmissionController.Permit) {
+            ((AdmissionController.Permit) permit).close();
+        }
+    }
+}
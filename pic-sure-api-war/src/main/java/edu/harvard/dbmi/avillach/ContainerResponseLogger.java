@@ -1,44 +1,137 @@
 package edu.harvard.dbmi.avillach;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import edu.harvard.dbmi.avillach.service.AccessLog;
+import edu.harvard.dbmi.avillach.service.AccessLogEntry;
+import edu.harvard.dbmi.avillach.service.PicsureMetrics;
+import edu.harvard.dbmi.avillach.util.UpstreamTiming;
+import org.apache.commons.io.output.CountingOutputStream;
 
+import javax.inject.Inject;
 import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
 import javax.ws.rs.container.ContainerResponseContext;
 import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.container.PreMatching;
+import javax.ws.rs.container.ResourceInfo;
+import javax.ws.rs.core.Context;
 import javax.ws.rs.ext.Provider;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.time.Instant;
 
+/**
+ * Builds the {@link AccessLog} entry of every request that comes through.
+ *
+ * The request filter notes when the request arrived, before anything else runs. The response filter
+ * fills in the entry; when there is a response body, the entry is only finished once the body has
+ * been written, so that its size and the time spent writing it are included. The same timing feeds
+ * the per operation request metrics of {@link PicsureMetrics}.
+ */
 @Provider
-public class ContainerResponseLogger implements ContainerResponseFilter {
+@PreMatching
+public class ContainerResponseLogger implements ContainerRequestFilter, ContainerResponseFilter, WriterInterceptor {
 
-    Logger logger = LoggerFactory.getLogger(ContainerResponseLogger.class);
+    private static final String STARTED_PROPERTY = "accessLog.started";
+
+    private static final String ENTRY_PROPERTY = "accessLog.entry";
 
     /**
-     *  Build up a log message to log every request that comes through
+     * Operation of requests that matched no resource method
      */
+    static final String UNMATCHED = "unmatched";
+
+    @Inject
+    AccessLog accessLog;
+
+    @Context
+    ResourceInfo resourceInfo;
+
+    @Override
+    public void filter(ContainerRequestContext requestContext) {
+        requestContext.setProperty(STARTED_PROPERTY, System.nanoTime());
+        UpstreamTiming.reset();
+    }
+
     @Override
     public void filter(ContainerRequestContext requestContext, ContainerResponseContext responseContext) {
+        AccessLogEntry entry = new AccessLogEntry();
+        entry.setMethod(requestContext.getMethod());
+        Method resourceMethod = resourceInfo.getResourceMethod();
+        entry.setOperation(resourceMethod == null ? UNMATCHED
+                : resourceMethod.getDeclaringClass().getSimpleName() + "." + resourceMethod.getName());
+        entry.setPath(requestContext.getUriInfo().getRequestUri().getPath());
+        entry.setStatus(responseContext.getStatus());
+        entry.setUpstreamMillis(millis(UpstreamTiming.getElapsedNanos()));
 
-        //Capture request method and uri
-        StringBuilder stringBuilder = new StringBuilder(requestContext.getMethod() + " at " + requestContext.getUriInfo().getRequestUri());
+        Object username = requestContext.getProperty("username");
+        entry.setUser(username == null ? null : username.toString());
 
-        //Get the username if it exists
-        if (requestContext.getProperty("username") != null){
-            stringBuilder.insert(0, requestContext.getProperty("username") + " requested ");
-        } else {
-            stringBuilder.append(" requested ");
+        String resourceId = requestContext.getUriInfo().getPathParameters().getFirst("resourceId");
+        Object requestContent = requestContext.getProperty("requestContent");
+        if (requestContent instanceof RedactedBodyCopy) {
+            RedactedBodyCopy body = (RedactedBodyCopy) requestContent;
+            entry.setBytesIn(body.getBytesRead());
+            if (resourceId == null) {
+                resourceId = body.getResourceUUID();
+            }
+            //Don't log token introspection content though
+            if (!entry.getPath().contains("token/inspect")) {
+                entry.setRequest(body.toString());
+            }
+        } else if (requestContext.getLength() >= 0) {
+            entry.setBytesIn((long) requestContext.getLength());
         }
+        entry.setResourceId(resourceId);
 
-        //Get the request body if it exists; don't log token introspection content though
-        if (requestContext.getProperty("requestContent") != null
-                && !requestContext.getUriInfo().getRequestUri().getPath().contains("token/inspect")){
-            stringBuilder.append("\n" + requestContext.getProperty("requestContent"));
+        Object started = requestContext.getProperty(STARTED_PROPERTY);
+        if (started != null) {
+            entry.setTime(Instant.now().minusNanos(System.nanoTime() - (Long) started).toString());
+        }
 
+        if (responseContext.hasEntity()) {
+            //Finished by aroundWriteTo
+            requestContext.setProperty(ENTRY_PROPERTY, entry);
+            return;
         }
+        entry.setBytesOut(0L);
+        finish(entry, started);
+    }
 
-        //What status code was returned
-        stringBuilder.append("\n returned: " + responseContext.getStatus());
+    @Override
+    public void aroundWriteTo(WriterInterceptorContext context) throws IOException {
+        AccessLogEntry entry = (AccessLogEntry) context.getProperty(ENTRY_PROPERTY);
+        if (entry == null) {
+            context.proceed();
+            return;
+        }
+        CountingOutputStream output = new CountingOutputStream(context.getOutputStream());
+        context.setOutputStream(output);
+        try {
+            context.proceed();
+        } finally {
+            entry.setBytesOut(output.getByteCount());
+            finish(entry, context.getProperty(STARTED_PROPERTY));
+        }
+    }
 
-        logger.info(stringBuilder.toString());
+    private void finish(AccessLogEntry entry, Object started) {
+        if (started != null) {
+            long nanos = System.nanoTime() - (Long) started;
+            entry.setTotalMillis(millis(nanos));
+            PicsureMetrics.requests.labels(entry.getOperation()).observeNanos(nanos);
+        }
+        if (entry.getStatus() >= 500) {
+            PicsureMetrics.requestErrors.labels(entry.getOperation()).inc();
+        }
+        accessLog.record(entry);
+    }
+
+    /**
+     * @return the nanoseconds as milliseconds, to the microsecond
+     */
+    private static double millis(long nanos) {
+        return Math.round(nanos / 1000.0) / 1000.0;
     }
 }
@@ -1,55 +1,111 @@
 package edu.harvard.dbmi.avillach;
 
-import org.apache.commons.io.IOUtils;
-
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.ext.Provider;
 import javax.ws.rs.ext.ReaderInterceptor;
 import javax.ws.rs.ext.ReaderInterceptorContext;
-import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.Reader;
 
-//@Provider
+/**
+ * Keeps a redacted copy of each request body for {@link ContainerResponseLogger}.
+ *
+ * The body is not buffered: the original stream is passed on untouched, and the bytes are copied into
+ * a {@link RedactedBodyCopy} as the entity reader consumes them. Whatever the reader leaves unread is
+ * scanned once it is done, unless the entity is the stream itself, which the resource method still has
+ * to read.
+ */
+@Provider
 public class LoggerReaderInterceptor implements ReaderInterceptor {
 
-    private final String sentinel = "RESOURCE_CREDENTIALS_REDACTED";
+    /**
+     * Most characters of a body written to the log
+     */
+    static final int MAX_LOGGED_CHARS = 64 * 1024;
+
+    /**
+     * Most bytes of a body scanned for the log, however little of it is logged
+     */
+    static final long MAX_SCANNED_BYTES = 1024 * 1024;
 
     @Override
     public Object aroundReadFrom(ReaderInterceptorContext interceptorContext)
             throws IOException, WebApplicationException {
-        //Capture the request body to be logged when request completes
-        InputStream inputStream = interceptorContext.getInputStream();
-        String requestContent = IOUtils.toString(inputStream, "UTF-8");
-
-        //Totally manually redact resourceCredentials from this string
-        String requestString = requestContent;
-        while (requestString.contains("resourceCredentials")){
-            int rcBegin = requestString.indexOf("resourceCredentials");
-            int startBracket = requestString.indexOf("{", rcBegin);
-            int bracketCount = 0;
-            int endBracket = -1;
-            for (int i = startBracket; i < requestString.length(); i++){
-                if (requestString.charAt(i) == '{'){
-                    bracketCount++;
-                } if (requestString.charAt(i) == '}'){
-                    bracketCount--;
-                }
-                if (bracketCount < 1){
-                    endBracket = i;
-                    break;
-                }
+        RedactedBodyCopy copy = new RedactedBodyCopy(MAX_LOGGED_CHARS, MAX_SCANNED_BYTES);
+        CopyingInputStream body = new CopyingInputStream(interceptorContext.getInputStream(), copy);
+        interceptorContext.setInputStream(body);
+
+        //Logged when the request completes, as the copy stands then
+        interceptorContext.setProperty("requestContent", copy);
+
+        Object entity = interceptorContext.proceed();
+        if (entity instanceof InputStream || entity instanceof Reader) {
+            copy.abandon("body streamed to the resource");
+        } else {
+            body.scanRest();
+        }
+        return entity;
+    }
+
+    /**
+     * Passes the body through unchanged, copying each chunk read into the redacted copy
+     */
+    private static class CopyingInputStream extends FilterInputStream {
+
+        private final RedactedBodyCopy copy;
+
+        private final byte[] single = new byte[1];
+
+        CopyingInputStream(InputStream in, RedactedBodyCopy copy) {
+            super(in);
+            this.copy = copy;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b < 0) {
+                copy.end();
+            } else {
+                single[0] = (byte) b;
+                copy.feed(single, 0, 1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int count = in.read(buffer, offset, length);
+            if (count < 0) {
+                copy.end();
+            } else {
+                copy.feed(buffer, offset, count);
             }
-            requestString = requestString.substring(0, rcBegin-1) +sentinel+ requestString.substring(endBracket+1);
+            return count;
         }
 
-        //Put string to context for logging
-        interceptorContext.setProperty("requestContent", requestString);
+        @Override
+        public long skip(long n) throws IOException {
+            copy.abandon("body skipped");
+            return in.skip(n);
+        }
 
-        //Return original body to the request
-        interceptorContext.setInputStream(new ByteArrayInputStream(requestContent.getBytes()));
+        @Override
+        public boolean markSupported() {
+            //Bytes read again after a reset would be copied twice
+            return false;
+        }
 
-        return interceptorContext.proceed();
+        /**
+         * Reads what the entity reader left, for as long as it still changes the copy
+         */
+        void scanRest() throws IOException {
+            byte[] buffer = new byte[8192];
+            while (!copy.isDone() && read(buffer, 0, buffer.length) >= 0) {
+                //Each chunk is copied by read
+            }
+        }
     }
-
 }
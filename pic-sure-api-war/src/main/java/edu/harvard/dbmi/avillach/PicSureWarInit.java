@@ -1,6 +1,11 @@
 package edu.harvard.dbmi.avillach;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.harvard.dbmi.avillach.data.entity.BaseEntity;
+import edu.harvard.dbmi.avillach.data.entity.IdStrategy;
+import edu.harvard.dbmi.avillach.util.trace.FileSpanExporter;
+import edu.harvard.dbmi.avillach.util.trace.SpanExporter;
+import edu.harvard.dbmi.avillach.util.trace.Tracing;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
@@ -8,10 +13,18 @@ import org.apache.http.impl.conn.SystemDefaultRoutePlanner;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
 import javax.ejb.Singleton;
 import javax.enterprise.context.ApplicationScoped;
+import javax.naming.Context;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import java.io.Closeable;
+import java.io.IOException;
 import java.net.ProxySelector;
+import java.nio.file.Paths;
 
 @Singleton
 @ApplicationScoped
@@ -25,6 +38,52 @@ public class PicSureWarInit {
     @Resource(mappedName = "java:global/token_introspection_token")
     private String token_introspection_token;
 
+    private long federatedQueryTimeoutMillis;
+
+    private long federatedResultMaxBytes;
+
+    private long searchTimeoutMillis;
+
+    private String resultSpoolDir;
+
+    private long resultSpoolTtlMinutes;
+
+    private long resultSpoolMaxBytes;
+
+    private long resultSpoolMaxTotalBytes;
+
+    private int admissionMaxPerUser;
+
+    private int admissionMaxPerResource;
+
+    private int admissionMaxQueuedPerUser;
+
+    private long admissionMaxWaitMillis;
+
+    private int statusFlushBatchSize;
+
+    private boolean schemaMigrationEnabled;
+
+    private int schemaBaselineVersion;
+
+    private boolean readReplicaEnabled;
+
+    private long readReplicaMaxLagMillis;
+
+    private int queryRetentionDays;
+
+    private int queryRetentionBatchSize;
+
+    private int queryMetadataMaxBytes;
+
+    private String traceExporter;
+
+    private long healthCacheMillis;
+
+    private long healthProbeTimeoutMillis;
+
+    private SpanExporter spanExporter = SpanExporter.NONE;
+
     //to be able to pre modified
     public static final ObjectMapper objectMapper = new ObjectMapper();
 
@@ -47,6 +106,92 @@ public class PicSureWarInit {
     }
 
 
+    @PostConstruct
+    public void init() {
+        federatedQueryTimeoutMillis = Long.parseLong(lookupSetting("global/federated_query_timeout_ms", "60000"));
+        federatedResultMaxBytes = Long.parseLong(lookupSetting("global/federated_result_max_bytes", "10485760"));
+        searchTimeoutMillis = Long.parseLong(lookupSetting("global/search_timeout_ms", "30000"));
+        resultSpoolDir = lookupSetting("global/result_spool_dir", "");
+        resultSpoolTtlMinutes = Long.parseLong(lookupSetting("global/result_spool_ttl_minutes", "1440"));
+        resultSpoolMaxBytes = Long.parseLong(lookupSetting("global/result_spool_max_bytes", "1073741824"));
+        resultSpoolMaxTotalBytes = Long.parseLong(lookupSetting("global/result_spool_max_total_bytes", "10737418240"));
+        admissionMaxPerUser = Integer.parseInt(lookupSetting("global/admission_max_per_user", "0"));
+        admissionMaxPerResource = Integer.parseInt(lookupSetting("global/admission_max_per_resource", "0"));
+        admissionMaxQueuedPerUser = Integer.parseInt(lookupSetting("global/admission_max_queued_per_user", "50"));
+        admissionMaxWaitMillis = Long.parseLong(lookupSetting("global/admission_max_wait_ms", "10000"));
+        statusFlushBatchSize = Integer.parseInt(lookupSetting("global/status_flush_batch_size", "500"));
+        schemaMigrationEnabled = Boolean.parseBoolean(lookupSetting("global/schema_migration_enabled", "true"));
+        schemaBaselineVersion = Integer.parseInt(lookupSetting("global/schema_baseline_version", "1"));
+        BaseEntity.setIdStrategy(createIdStrategy(lookupSetting("global/id_strategy", IdStrategy.RANDOM.name())));
+        logger.info("New entities get " + BaseEntity.getIdStrategy() + " ids");
+        readReplicaEnabled = Boolean.parseBoolean(lookupSetting("global/read_replica_enabled", "false"));
+        readReplicaMaxLagMillis = Long.parseLong(lookupSetting("global/read_replica_max_lag_millis", "5000"));
+        queryRetentionDays = Integer.parseInt(lookupSetting("global/query_retention_days", "0"));
+        queryRetentionBatchSize = Integer.parseInt(lookupSetting("global/query_retention_batch_size", "500"));
+        queryMetadataMaxBytes = Integer.parseInt(lookupSetting("global/query_metadata_max_bytes", "16777216"));
+        healthCacheMillis = Long.parseLong(lookupSetting("global/health_cache_ms", "5000"));
+        healthProbeTimeoutMillis = Long.parseLong(lookupSetting("global/health_probe_timeout_ms", "2000"));
+        traceExporter = lookupSetting("global/trace_exporter", "none");
+        Tracing.setServiceName("picsure");
+        Tracing.setExporter(spanExporter = createSpanExporter(traceExporter,
+                lookupSetting("global/trace_file", System.getProperty("java.io.tmpdir") + "/picsure-spans.jsonl")));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        Tracing.setExporter(SpanExporter.NONE);
+        if (spanExporter instanceof Closeable) {
+            try {
+                ((Closeable) spanExporter).close();
+            } catch (IOException e) {
+                logger.warn("shutdown() unable to close span exporter: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Trace context is passed on to resources whatever the exporter, so a tracing resource can still
+     * join its spans to the caller's
+     */
+    private SpanExporter createSpanExporter(String name, String file) {
+        if ("file".equalsIgnoreCase(name)) {
+            try {
+                logger.info("Exporting spans to " + file);
+                return new FileSpanExporter(Paths.get(file));
+            } catch (IOException e) {
+                logger.error("Unable to open span file " + file + ", spans are not exported", e);
+            }
+        } else if (!"none".equalsIgnoreCase(name)) {
+            logger.warn("Unknown trace exporter " + name + ", spans are not exported");
+        }
+        return SpanExporter.NONE;
+    }
+
+    private IdStrategy createIdStrategy(String name) {
+        try {
+            return IdStrategy.forName(name);
+        } catch (IllegalArgumentException e) {
+            logger.warn("Unknown id strategy " + name + ", new entities get " + IdStrategy.RANDOM + " ids");
+            return IdStrategy.RANDOM;
+        }
+    }
+
+    /**
+     * Optional settings are looked up by hand so that a missing binding
+     * falls back to a default instead of failing the deployment.
+     */
+    private String lookupSetting(String name, String defaultValue) {
+        try {
+            Context ctx = new InitialContext();
+            Object value = ctx.lookup(name);
+            ctx.close();
+            return value == null ? defaultValue : value.toString();
+        } catch (NamingException e) {
+            logger.debug("No binding for " + name + ", using default value " + defaultValue);
+            return defaultValue;
+        }
+    }
+
     public String getToken_introspection_url() {
         return token_introspection_url;
     }
@@ -54,4 +199,92 @@ public class PicSureWarInit {
     public String getToken_introspection_token() {
         return token_introspection_token;
     }
+
+    public long getFederatedQueryTimeoutMillis() {
+        return federatedQueryTimeoutMillis;
+    }
+
+    public long getFederatedResultMaxBytes() {
+        return federatedResultMaxBytes;
+    }
+
+    public long getSearchTimeoutMillis() {
+        return searchTimeoutMillis;
+    }
+
+    public String getResultSpoolDir() {
+        return resultSpoolDir;
+    }
+
+    public long getResultSpoolTtlMinutes() {
+        return resultSpoolTtlMinutes;
+    }
+
+    public long getResultSpoolMaxBytes() {
+        return resultSpoolMaxBytes;
+    }
+
+    public long getResultSpoolMaxTotalBytes() {
+        return resultSpoolMaxTotalBytes;
+    }
+
+    public int getAdmissionMaxPerUser() {
+        return admissionMaxPerUser;
+    }
+
+    public int getAdmissionMaxPerResource() {
+        return admissionMaxPerResource;
+    }
+
+    public int getAdmissionMaxQueuedPerUser() {
+        return admissionMaxQueuedPerUser;
+    }
+
+    public long getAdmissionMaxWaitMillis() {
+        return admissionMaxWaitMillis;
+    }
+
+    public int getStatusFlushBatchSize() {
+        return statusFlushBatchSize;
+    }
+
+    public boolean isSchemaMigrationEnabled() {
+        return schemaMigrationEnabled;
+    }
+
+    public int getSchemaBaselineVersion() {
+        return schemaBaselineVersion;
+    }
+
+    public boolean isReadReplicaEnabled() {
+        return readReplicaEnabled;
+    }
+
+    public long getReadReplicaMaxLagMillis() {
+        return readReplicaMaxLagMillis;
+    }
+
+    public int getQueryRetentionDays() {
+        return queryRetentionDays;
+    }
+
+    public int getQueryRetentionBatchSize() {
+        return queryRetentionBatchSize;
+    }
+
+    public int getQueryMetadataMaxBytes() {
+        return queryMetadataMaxBytes;
+    }
+
+    public String getTraceExporter() {
+        return traceExporter;
+    }
+
+    public long getHealthCacheMillis() {
+        return healthCacheMillis;
+    }
+
+    public long getHealthProbeTimeoutMillis() {
+        return healthProbeTimeoutMillis;
+    }
 }
@@ -4,13 +4,22 @@ import java.util.List;
 import java.util.UUID;
 
 import javax.inject.Inject;
+import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.*;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
 import edu.harvard.dbmi.avillach.domain.*;
+import edu.harvard.dbmi.avillach.service.AdmissionController;
+import edu.harvard.dbmi.avillach.service.PicsureFederatedQueryService;
 import edu.harvard.dbmi.avillach.service.PicsureInfoService;
 import edu.harvard.dbmi.avillach.service.PicsureQueryService;
 import edu.harvard.dbmi.avillach.service.PicsureSearchService;
+import edu.harvard.dbmi.avillach.service.ResultTranscoder;
+import edu.harvard.dbmi.avillach.service.ResultTranscoders;
+import edu.harvard.dbmi.avillach.util.ByteRange;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
 import io.swagger.annotations.ApiParam;
@@ -20,6 +29,9 @@ import io.swagger.annotations.ApiParam;
 @Consumes("application/json")
 @Api
 public class PicsureRS {
+
+	private static final String RESULT_CSV = "text/csv";
+	private static final String RESULT_TSV = "text/tab-separated-values";
 	
 	@Inject
 	PicsureInfoService infoService;
@@ -30,6 +42,21 @@ public class PicsureRS {
 	@Inject
 	PicsureQueryService queryService;
 
+	@Inject
+	AdmissionController admissionController;
+
+	@Inject
+	ResultTranscoders resultTranscoders;
+
+	@Context
+	HttpServletRequest request;
+
+	@Context
+	HttpHeaders httpHeaders;
+
+	@Inject
+	PicsureFederatedQueryService federatedQueryService;
+
 	@POST
 	@Path("/info/{resourceId}")
 	@ApiOperation(value = "Returns information about the provided resource")
@@ -42,9 +69,10 @@ public class PicsureRS {
 	
 	@GET
 	@Path("/info/resources")
-	@ApiOperation(value = "Returns list of resources available")
-	public List<UUID> resources(){
-		return infoService.resources();
+	@ApiOperation(value = "Returns list of resources available, ordered by id")
+	public List<UUID> resources(@ApiParam(value="The most resource ids to return, all of them if not given") @QueryParam("limit") Integer limit,
+								@ApiParam(value="The last resource id of the previous page") @QueryParam("after") UUID after){
+		return infoService.resources(after, limit);
 	}
 	
 	@POST
@@ -56,12 +84,24 @@ public class PicsureRS {
 		return searchService.search(resourceId, searchQueryRequest);
 	}
 	
+	@POST
+	@Path("/search")
+	@ApiOperation(value = "Searches for paths on all resources, or on the given subset of resources, in parallel. " +
+			"Results from resources that answer within the search timeout are returned keyed by resource id")
+	public SearchResults searchAll(@ApiParam(value="The UUIDs of the resources to search, all resources if none are given") @QueryParam("resourceId") List<UUID> resourceIds,
+								   @ApiParam(value="Object containing credentials map under 'resourceCredentials' " +
+										   "and search term under 'query'") QueryRequest searchQueryRequest) {
+		return searchService.searchAll(resourceIds, searchQueryRequest);
+	}
+
 	@POST
 	@Path("/query")
 	@ApiOperation(value = "Submits a query to the given resource")
 	public QueryStatus query(@ApiParam(value="Object containing credentials map under 'resourceCredentials' " +
 									 "and query object under 'query'")QueryRequest dataQueryRequest) {
-		return queryService.query(dataQueryRequest);
+		try (AdmissionController.Permit permit = admissionController.admit(username(), resourceId(dataQueryRequest))) {
+			return queryService.query(dataQueryRequest, username());
+		}
 	}
 	
 	@POST
@@ -75,25 +115,90 @@ public class PicsureRS {
 	
 	@POST
 	@Path("/query/{queryId}/result")
-	@ApiOperation(value = "Returns result for given query")
+	@Produces({MediaType.APPLICATION_JSON, RESULT_CSV, RESULT_TSV, PicsureFederatedQueryService.NDJSON_MEDIA_TYPE})
+	@ApiOperation(value = "Returns result for given query. A single byte range may be requested to resume a download. " +
+			"JSON results can be converted to CSV, TSV or newline delimited JSON through the Accept header")
 	public Response queryResult(@ApiParam(value="The UUID of the query to fetch the results of") @PathParam("queryId") UUID queryId,
+								@ApiParam(value="A single byte range, e.g. bytes=1024-") @HeaderParam(ByteRange.RANGE) String range,
+								@ApiParam(value="The ETag of a previous response; the whole result is sent if it no longer matches") @HeaderParam(ByteRange.IF_RANGE) String ifRange,
 								@ApiParam(value="Object with field named 'resourceCredentials' which is a key-value map, " +
 										"key is identifier for resource, value is token for resource") QueryRequest credentialsQueryRequest) {
-		return queryService.queryResult(queryId, credentialsQueryRequest);
+		ResultTranscoder transcoder = resultTranscoders.negotiate(acceptableMediaTypes());
+		if (transcoder != null){
+			//Ranges refer to the bytes of the original result, not of its conversion
+			return resultTranscoders.transcode(transcoder, queryService.queryResult(queryId, credentialsQueryRequest, null, null));
+		}
+		return asJson(queryService.queryResult(queryId, credentialsQueryRequest, range, ifRange));
+	}
+
+	@POST
+	@Path("/query/{queryId}/cancel")
+	@ApiOperation(value = "Cancels the given query, aborting it if it is still running")
+	public QueryStatus queryCancel(@ApiParam(value="The UUID of the query to cancel") @PathParam("queryId") UUID queryId,
+								   @ApiParam(value="Object with field named 'resourceCredentials' which is a key-value map, " +
+										   "key is identifier for resource, value is token for resource") QueryRequest credentialsQueryRequest) {
+		return queryService.queryCancel(queryId, credentialsQueryRequest);
 	}
 
 	@POST
 	@Path("/query/sync")
-	@ApiOperation(value = "Returns result for given query")
+	@Produces({MediaType.APPLICATION_JSON, RESULT_CSV, RESULT_TSV, PicsureFederatedQueryService.NDJSON_MEDIA_TYPE})
+	@ApiOperation(value = "Returns result for given query. " +
+			"JSON results can be converted to CSV, TSV or newline delimited JSON through the Accept header")
 	public Response querySync(@ApiParam(value="Object with field named 'resourceCredentials' which is a key-value map, " +
 										"key is identifier for resource, value is token for resource") QueryRequest credentialsQueryRequest) {
-		return queryService.querySync(credentialsQueryRequest);
+		AdmissionController.Permit permit = admissionController.admit(username(), resourceId(credentialsQueryRequest));
+		try {
+			Response response = admissionController.releaseWhenSent(permit, queryService.querySync(credentialsQueryRequest, username()), request);
+			ResultTranscoder transcoder = resultTranscoders.negotiate(acceptableMediaTypes());
+			response = transcoder == null ? asJson(response) : resultTranscoders.transcode(transcoder, response);
+			return queryService.completeWhenSent(response);
+		} catch (RuntimeException e) {
+			permit.close();
+			throw e;
+		}
 	}
 	
+	@POST
+	@Path("/query/federated")
+	@Produces(PicsureFederatedQueryService.NDJSON_MEDIA_TYPE)
+	@ApiOperation(value = "Runs the given query against each of the given resources in parallel, " +
+			"streaming back one result per line as each resource completes")
+	public Response queryFederated(@ApiParam(value="Object containing credentials map under 'resourceCredentials', " +
+										"query object under 'query', the target resource ids under 'resourceUUIDs' " +
+										"and an optional per-resource timeout in milliseconds under 'timeout'") FederatedQueryRequest federatedQueryRequest) {
+		return federatedQueryService.queryFederated(federatedQueryRequest, username());
+	}
+
 	@GET
 	@Path("/query/{queryId}/metadata")
 	public QueryStatus queryMetadata(@PathParam("queryId") UUID queryId){
 		return queryService.queryMetadata(queryId);
 	}
-	
+
+	/**
+	 * The user JWTFilter authenticated for this request
+	 */
+	private String username() {
+		return request == null ? null : (String) request.getAttribute("username");
+	}
+
+	private List<MediaType> acceptableMediaTypes() {
+		return httpHeaders == null ? null : httpHeaders.getAcceptableMediaTypes();
+	}
+
+	/**
+	 * Results used to be labeled JSON by default, now that the result endpoints produce several
+	 * types that label is set explicitly
+	 */
+	private Response asJson(Response response) {
+		if (response.getMediaType() != null || response.getEntity() == null) {
+			return response;
+		}
+		return Response.fromResponse(response).type(MediaType.APPLICATION_JSON_TYPE).build();
+	}
+
+	private UUID resourceId(QueryRequest queryRequest) {
+		return queryRequest == null ? null : queryRequest.getResourceUUID();
+	}
 }
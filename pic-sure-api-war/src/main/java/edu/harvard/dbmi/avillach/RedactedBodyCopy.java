@@ -0,0 +1,223 @@
+package edu.harvard.dbmi.avillach;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.async.ByteArrayFeeder;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Size-capped copy of a JSON request body for the request log, with every resourceCredentials value
+ * replaced by a sentinel.
+ *
+ * The body is fed in as it is read, in whatever chunks the reader uses, and parsed token by token, so
+ * only the current token and the capped copy are ever held in memory. The copy stops early, with a
+ * note saying why, once it is full, once maxBytes of the body have been scanned or at the first thing
+ * that is not valid JSON; nothing after that point is logged, so no credentials can slip through.
+ */
+public class RedactedBodyCopy {
+
+	public static final String SENTINEL = "RESOURCE_CREDENTIALS_REDACTED";
+
+	private static final String CREDENTIALS_FIELD = "resourceCredentials";
+
+	private static final String RESOURCE_FIELD = "resourceUUID";
+
+	private static final JsonFactory jsonFactory = new JsonFactory()
+			.enable(JsonParser.Feature.ALLOW_UNQUOTED_FIELD_NAMES);
+
+	private final int maxChars;
+
+	private final long maxBytes;
+
+	private final StringBuilder copy = new StringBuilder();
+
+	private final JsonParser parser;
+
+	private final ByteArrayFeeder feeder;
+
+	private final JsonGenerator generator;
+
+	private long scanned;
+
+	private long bytesRead;
+
+	private String resourceUUID;
+
+	//Set once the copy stops growing, to the note appended to it; null while the body is still being copied
+	private String stopped;
+
+	//Whether the next value belongs to a resourceCredentials field
+	private boolean redactNext;
+
+	//How many objects or arrays deep inside a redacted value the parser is
+	private int redactDepth;
+
+	/**
+	 * @param maxChars most characters of the body to keep
+	 * @param maxBytes most bytes of the body to scan
+	 */
+	public RedactedBodyCopy(int maxChars, long maxBytes) {
+		this.maxChars = maxChars;
+		this.maxBytes = maxBytes;
+		try {
+			parser = jsonFactory.createNonBlockingByteArrayParser();
+			feeder = (ByteArrayFeeder) parser.getNonBlockingInputFeeder();
+			generator = jsonFactory.createGenerator(new CappedWriter());
+		} catch (IOException e) {
+			//Neither reads nor writes anything yet
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Copies the next chunk of the body. The chunk is not kept, so the caller may reuse the buffer.
+	 */
+	public void feed(byte[] buffer, int offset, int length) {
+		bytesRead += Math.max(length, 0);
+		if (stopped != null || length <= 0) {
+			return;
+		}
+		try {
+			feeder.feedInput(buffer, offset, offset + length);
+			copyTokens();
+		} catch (IOException e) {
+			stop(" ...[not valid JSON, rest of the body not logged]");
+			return;
+		}
+		scanned += length;
+		if (stopped == null && scanned >= maxBytes) {
+			stop(" ...[body longer than " + maxBytes + " bytes, rest not logged]");
+		}
+	}
+
+	/**
+	 * Marks the end of the body
+	 */
+	public void end() {
+		if (stopped != null) {
+			return;
+		}
+		try {
+			feeder.endOfInput();
+			copyTokens();
+			stop("");
+		} catch (IOException e) {
+			stop(" ...[not valid JSON, rest of the body not logged]");
+		}
+	}
+
+	/**
+	 * @return whether more of the body would change the copy
+	 */
+	public boolean isDone() {
+		return stopped != null;
+	}
+
+	/**
+	 * @return how many bytes of the body have been read, whether or not they were copied
+	 */
+	public long getBytesRead() {
+		return bytesRead;
+	}
+
+	/**
+	 * @return the top level resourceUUID of the body, if it was seen before the copy stopped
+	 */
+	public String getResourceUUID() {
+		return resourceUUID;
+	}
+
+	/**
+	 * Stops copying without the rest of the body, for when it will not be read
+	 */
+	public void abandon(String reason) {
+		if (stopped == null) {
+			stop(" ...[" + reason + ", rest of the body not logged]");
+		}
+	}
+
+	/**
+	 * @return the redacted copy made so far
+	 */
+	@Override
+	public String toString() {
+		try {
+			generator.flush();
+		} catch (IOException e) {
+			//The writer only appends to memory
+		}
+		return stopped == null ? copy.toString() : copy + stopped;
+	}
+
+	private void copyTokens() throws IOException {
+		JsonToken token;
+		while (stopped == null && (token = parser.nextToken()) != null && token != JsonToken.NOT_AVAILABLE) {
+			if (redactDepth > 0) {
+				if (token.isStructStart()) {
+					redactDepth++;
+				} else if (token.isStructEnd()) {
+					redactDepth--;
+				}
+			} else if (redactNext) {
+				redactNext = false;
+				generator.writeNull();
+				if (token.isStructStart()) {
+					redactDepth = 1;
+				}
+			} else if (token == JsonToken.FIELD_NAME && CREDENTIALS_FIELD.equals(parser.getCurrentName())) {
+				generator.writeFieldName(SENTINEL);
+				redactNext = true;
+			} else {
+				if (token == JsonToken.VALUE_STRING && resourceUUID == null && RESOURCE_FIELD.equals(parser.getCurrentName())
+						&& parser.getParsingContext().getParent().inRoot()) {
+					resourceUUID = parser.getText();
+				}
+				generator.copyCurrentEvent(parser);
+			}
+		}
+	}
+
+	private void stop(String note) {
+		try {
+			generator.flush();
+			parser.close();
+		} catch (IOException e) {
+			//Nothing more is read or written either way
+		}
+		//Flushing may have filled the copy, which says so itself
+		if (stopped == null) {
+			stopped = note;
+		}
+	}
+
+	/**
+	 * Keeps the first maxChars characters written and stops the copy once more arrive
+	 */
+	private class CappedWriter extends Writer {
+
+		@Override
+		public void write(char[] chars, int offset, int length) {
+			int room = maxChars - copy.length();
+			if (length > room) {
+				copy.append(chars, offset, Math.max(room, 0));
+				if (stopped == null) {
+					stopped = " ...[body longer than " + maxChars + " characters, rest not logged]";
+				}
+				return;
+			}
+			copy.append(chars, offset, length);
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
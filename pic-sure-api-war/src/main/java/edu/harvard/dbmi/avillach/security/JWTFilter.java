@@ -3,12 +3,13 @@ package edu.harvard.dbmi.avillach.security;
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.harvard.dbmi.avillach.JAXRSConfiguration;
 import edu.harvard.dbmi.avillach.PicSureWarInit;
-import edu.harvard.dbmi.avillach.data.entity.Query;
 import edu.harvard.dbmi.avillach.data.entity.User;
 import edu.harvard.dbmi.avillach.data.repository.QueryRepository;
-import edu.harvard.dbmi.avillach.data.repository.ResourceRepository;
 import edu.harvard.dbmi.avillach.domain.QueryRequest;
+import edu.harvard.dbmi.avillach.service.PicsureMetrics;
+import edu.harvard.dbmi.avillach.service.ResourceRegistry;
 import edu.harvard.dbmi.avillach.service.ResourceWebClient;
 import edu.harvard.dbmi.avillach.util.exception.ApplicationException;
 import edu.harvard.dbmi.avillach.util.response.PICSUREResponse;
@@ -23,6 +24,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Resource;
+import javax.annotation.security.RolesAllowed;
 import javax.inject.Inject;
 import javax.ws.rs.NotAuthorizedException;
 import javax.ws.rs.container.ContainerRequestContext;
@@ -43,11 +45,17 @@ public class JWTFilter implements ContainerRequestFilter {
 
 	Logger logger = LoggerFactory.getLogger(JWTFilter.class);
 
+	/**
+	 * Polled by load balancers, which hold no token. The report is cached by HealthCheck, and authenticating
+	 * each poll would cost a token introspection call. A request without a token only gets the overall status.
+	 */
+	static final String HEALTH_PATH = "/system/health";
+
 	@Context
 	ResourceInfo resourceInfo;
 	
 	@Inject
-	ResourceRepository resourceRepo;
+	ResourceRegistry resourceRegistry;
 	
 	@Inject
 	ResourceWebClient resourceWebClient;
@@ -71,6 +79,9 @@ public class JWTFilter implements ContainerRequestFilter {
 
 		String authorizationHeader = requestContext.getHeaderString(HttpHeaders.AUTHORIZATION);
 		if (authorizationHeader == null || authorizationHeader.isEmpty()) {
+			if (HEALTH_PATH.equals(requestContext.getUriInfo().getPath())) {
+				return;
+			}
 			throw new NotAuthorizedException("No authorization header found.");
 		}
 		String token = authorizationHeader.substring(6).trim();
@@ -92,6 +103,14 @@ public class JWTFilter implements ContainerRequestFilter {
 			//The request context wants to remember who the user is
 			requestContext.setProperty("username", userForLogging);
 
+			//Methods restricted to some roles are only served to users holding one of them
+			RolesAllowed rolesAllowed = rolesAllowed();
+			if (rolesAllowed != null && !hasAnyRole(authenticatedUser, rolesAllowed.value())) {
+				logger.error("User - " + userForLogging + " - does not hold any of the roles " + Arrays.toString(rolesAllowed.value()));
+				requestContext.abortWith(PICSUREResponse.protocolError(Response.Status.FORBIDDEN, "User has insufficient privileges."));
+				return;
+			}
+
 			logger.info("User - " + userForLogging + " - has just passed all the authentication and authorization layers.");
 
 		} catch (JwtException e) {
@@ -109,6 +128,33 @@ public class JWTFilter implements ContainerRequestFilter {
 		}
 	}
 
+	/**
+	 * @return the roles the matched method, or else its class, is restricted to, null if it is not restricted
+	 */
+	private RolesAllowed rolesAllowed() {
+		if (resourceInfo == null || resourceInfo.getResourceMethod() == null) {
+			return null;
+		}
+		RolesAllowed rolesAllowed = resourceInfo.getResourceMethod().getAnnotation(RolesAllowed.class);
+		if (rolesAllowed == null && resourceInfo.getResourceClass() != null) {
+			rolesAllowed = resourceInfo.getResourceClass().getAnnotation(RolesAllowed.class);
+		}
+		return rolesAllowed;
+	}
+
+	private boolean hasAnyRole(User user, String[] roles) {
+		if (user.getRoles() == null) {
+			return false;
+		}
+		List<String> held = Arrays.asList(user.getRoles().split(","));
+		for (String role : roles) {
+			if (held.contains(role)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	/**
 	 *
 	 * @param token
@@ -145,17 +191,20 @@ public class JWTFilter implements ContainerRequestFilter {
 			String requestPath = requestContext.getUriInfo().getPath();
 			requestMap.put("Target Service", requestPath);
 			
-			Query initialQuery = null;
+			InputStream initialQuery = null;
 			//Read the query from the backing store if we are getting the results (full query may not be specified in request)
 			if(requestPath.startsWith("/query/") && requestPath.endsWith("result")) {
 				 //Path:   /query/{queryId}/result
 				String[] pathParts = requestPath.split("/");
 				UUID uuid = UUID.fromString(pathParts[2]);
-				initialQuery = queryRepo.getById(uuid);
+				//Only the stored query is needed, not the rest of the row
+				initialQuery = queryRepo.getQueryStream(uuid);
 			}
 			
 			if(initialQuery != null) {
-				IOUtils.copy(new ByteArrayInputStream(initialQuery.getQuery().getBytes()), buffer);
+				try (InputStream storedQuery = initialQuery) {
+					IOUtils.copy(storedQuery, buffer);
+				}
 			} else {
 				//This stream is only consumable once, so we need to save & reset it.
 				InputStream entityStream = requestContext.getEntityStream();
@@ -186,7 +235,7 @@ public class JWTFilter implements ContainerRequestFilter {
 					}
 					
 					if(resourceUUID != null) {
-						edu.harvard.dbmi.avillach.data.entity.Resource resource = resourceRepo.getById(resourceUUID);
+						edu.harvard.dbmi.avillach.data.entity.Resource resource = resourceRegistry.get(resourceUUID);
 						//logger.info("resource obj: " + resource + "    path: " + resource.getResourceRSPath());
 						if (resource != null && resource.getResourceRSPath() != null){
 							QueryRequest queryRequest = new QueryRequest();
@@ -225,9 +274,12 @@ public class JWTFilter implements ContainerRequestFilter {
 		//Authorize into the token introspection endpoint
 		post.setHeader("Authorization", "Bearer " + token_introspection_token);
 		CloseableHttpResponse response = null;
+		long started = System.nanoTime();
 		try {
 			response = client.execute(post, buildHttpClientContext());
+			PicsureMetrics.introspection.observeSince(started);
 			if (response.getStatusLine().getStatusCode() != 200){
+				PicsureMetrics.introspectionErrors.inc();
 				logger.error("callTokenIntroEndpoint() error back from token intro host server ["
 						+ token_introspection_url + "]: " + EntityUtils.toString(response.getEntity()));
 				throw new ApplicationException("Token Introspection host server return " + response.getStatusLine().getStatusCode() +
@@ -240,9 +292,13 @@ public class JWTFilter implements ContainerRequestFilter {
 			}
 
 			String sub = responseContent.get(userIdClaim) != null ? responseContent.get(userIdClaim).asText() : null;
-			User user = new User().setSubject(sub).setUserId(sub);
+			User user = new User().setSubject(sub).setUserId(sub).setRoles(roles(responseContent.get(JAXRSConfiguration.rolesClaim)));
 			return user;
 		} catch (IOException ex){
+			if (response == null) {
+				PicsureMetrics.introspection.observeSince(started);
+				PicsureMetrics.introspectionErrors.inc();
+			}
 			logger.error("callTokenIntroEndpoint() IOException when hitting url: " + post
 					+ " with exception msg: " + ex.getMessage());
 		} finally {
@@ -256,4 +312,22 @@ public class JWTFilter implements ContainerRequestFilter {
 
 		return null;
 	}
+
+	/**
+	 * @param claim the roles claim of the introspection response, either a list or a comma separated string
+	 * @return the roles, comma separated, or null if there are none
+	 */
+	private String roles(JsonNode claim) {
+		if (claim == null || claim.isNull()) {
+			return null;
+		}
+		if (!claim.isArray()) {
+			return claim.asText().replace(" ", "");
+		}
+		StringJoiner roles = new StringJoiner(",");
+		for (JsonNode role : claim) {
+			roles.add(role.asText().trim());
+		}
+		return roles.toString();
+	}
 }
@@ -0,0 +1,78 @@
+package edu.harvard.dbmi.avillach.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PreDestroy;
+import javax.ejb.Lock;
+import javax.ejb.LockType;
+import javax.ejb.Schedule;
+import javax.ejb.Singleton;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Writes one JSON line per request to the edu.harvard.dbmi.avillach.access logger.
+ *
+ * Request threads only put their entry in a {@link RingBuffer}, which never blocks; the entries are
+ * formatted and written by the timer every second. If requests arrive faster than that for long
+ * enough to fill the buffer, the extra entries are dropped and the number dropped is logged.
+ */
+@Singleton
+@Lock(LockType.READ)
+public class AccessLog {
+
+	public static final String LOGGER_NAME = "edu.harvard.dbmi.avillach.access";
+
+	/**
+	 * Entries held between writes, enough for several thousand requests a second
+	 */
+	static final int CAPACITY = 16384;
+
+	private Logger logger = LoggerFactory.getLogger(AccessLog.class);
+
+	private Logger accessLogger = LoggerFactory.getLogger(LOGGER_NAME);
+
+	private final ObjectMapper mapper = new ObjectMapper();
+
+	private final RingBuffer<AccessLogEntry> buffer = new RingBuffer<>(CAPACITY);
+
+	//The buffer allows one reader at a time
+	private final AtomicBoolean draining = new AtomicBoolean();
+
+	/**
+	 * Queues an entry to be written, without waiting
+	 */
+	public void record(AccessLogEntry entry) {
+		buffer.offer(entry);
+	}
+
+	@Schedule(hour = "*", minute = "*", second = "*", persistent = false)
+	public void drain() {
+		if (!draining.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			AccessLogEntry entry;
+			while ((entry = buffer.poll()) != null) {
+				try {
+					accessLogger.info(mapper.writeValueAsString(entry));
+				} catch (JsonProcessingException e) {
+					logger.warn("drain() unable to write access log entry for " + entry.getPath(), e);
+				}
+			}
+			long dropped = buffer.takeDropped();
+			if (dropped > 0) {
+				logger.warn("drain() access log buffer was full, " + dropped + " entries were dropped");
+			}
+		} finally {
+			draining.set(false);
+		}
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		drain();
+	}
+}
@@ -0,0 +1,137 @@
+package edu.harvard.dbmi.avillach.service;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+
+/**
+ * One line of the access log: a request, who made it, what it was about and how long it took
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+@JsonPropertyOrder({"time", "method", "path", "operation", "user", "resourceId", "status", "bytesIn", "bytesOut",
+		"totalMillis", "upstreamMillis", "request"})
+public class AccessLogEntry {
+
+	private String time;
+	private String method;
+	private String path;
+	private String operation;
+	private String user;
+	private String resourceId;
+	private int status;
+	private Long bytesIn;
+	private Long bytesOut;
+	private Double totalMillis;
+	private Double upstreamMillis;
+	private String request;
+
+	/**
+	 * @return when the request arrived, as an ISO-8601 instant
+	 */
+	public String getTime() {
+		return time;
+	}
+
+	public void setTime(String time) {
+		this.time = time;
+	}
+
+	public String getMethod() {
+		return method;
+	}
+
+	public void setMethod(String method) {
+		this.method = method;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public void setPath(String path) {
+		this.path = path;
+	}
+
+	/**
+	 * @return the resource method that handled the request, as Class.method
+	 */
+	public String getOperation() {
+		return operation;
+	}
+
+	public void setOperation(String operation) {
+		this.operation = operation;
+	}
+
+	public String getUser() {
+		return user;
+	}
+
+	public void setUser(String user) {
+		this.user = user;
+	}
+
+	public String getResourceId() {
+		return resourceId;
+	}
+
+	public void setResourceId(String resourceId) {
+		this.resourceId = resourceId;
+	}
+
+	public int getStatus() {
+		return status;
+	}
+
+	public void setStatus(int status) {
+		this.status = status;
+	}
+
+	public Long getBytesIn() {
+		return bytesIn;
+	}
+
+	public void setBytesIn(Long bytesIn) {
+		this.bytesIn = bytesIn;
+	}
+
+	public Long getBytesOut() {
+		return bytesOut;
+	}
+
+	public void setBytesOut(Long bytesOut) {
+		this.bytesOut = bytesOut;
+	}
+
+	/**
+	 * @return from the request arriving to the last byte of the response being written
+	 */
+	public Double getTotalMillis() {
+		return totalMillis;
+	}
+
+	public void setTotalMillis(Double totalMillis) {
+		this.totalMillis = totalMillis;
+	}
+
+	/**
+	 * @return time spent waiting on resources, see {@link edu.harvard.dbmi.avillach.util.UpstreamTiming}
+	 */
+	public Double getUpstreamMillis() {
+		return upstreamMillis;
+	}
+
+	public void setUpstreamMillis(Double upstreamMillis) {
+		this.upstreamMillis = upstreamMillis;
+	}
+
+	/**
+	 * @return the redacted request body, if it is logged
+	 */
+	public String getRequest() {
+		return request;
+	}
+
+	public void setRequest(String request) {
+		this.request = request;
+	}
+}
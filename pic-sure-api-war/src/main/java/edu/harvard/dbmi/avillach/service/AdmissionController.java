@@ -0,0 +1,276 @@
+package edu.harvard.dbmi.avillach.service;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import edu.harvard.dbmi.avillach.PicSureWarInit;
+import edu.harvard.dbmi.avillach.util.exception.TooManyRequestsException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.servlet.ServletRequest;
+import javax.ws.rs.core.Response;
+
+/**
+ * Limits how many queries each user, and each resource, may have in progress at once.
+ *
+ * A query over either limit waits in its user's queue. Whenever a query finishes, waiting users
+ * are served round robin, so a user with hundreds of queued queries cannot starve a user with one.
+ * A query that cannot even be queued, or that waits longer than the configured time, is turned away
+ * with a {@link TooManyRequestsException}.
+ *
+ * A limit of zero or less means no limit, and both limits are zero unless configured. A synchronous
+ * query holds its slot until its result has been sent, so the per user limit also bounds concurrent
+ * downloads and should leave room for them.
+ */
+@ApplicationScoped
+public class AdmissionController {
+
+	public static final String ANONYMOUS = "anonymous";
+
+	/**
+	 * Request attribute holding the permit of a response that is still being sent
+	 */
+	public static final String PERMIT_ATTRIBUTE = AdmissionController.class.getName() + ".permit";
+
+	private Logger logger = LoggerFactory.getLogger(AdmissionController.class);
+
+	@Inject
+	PicSureWarInit picSureWarInit;
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private final Map<String, Integer> runningByUser = new HashMap<>();
+
+	private final Map<UUID, Integer> runningByResource = new HashMap<>();
+
+	/**
+	 * Users with waiting queries, in the order they will next be served
+	 */
+	private final LinkedHashMap<String, Deque<Ticket>> waitingByUser = new LinkedHashMap<>();
+
+	private long admittedCount;
+	private long rejectedCount;
+	private long timedOutCount;
+	private long queuedCount;
+	private long totalQueuedWaitMillis;
+
+	/**
+	 * Waits until the user may run a query against the resource.
+	 *
+	 * @param user - the user submitting the query, null is counted as {@link #ANONYMOUS}
+	 * @param resourceId - the target resource
+	 * @return a {@link Permit} that must be closed once the query is done
+	 * @throws TooManyRequestsException if the user's queue is full or the wait timed out
+	 */
+	public Permit admit(String user, UUID resourceId) {
+		String key = user == null ? ANONYMOUS : user;
+		lock.lock();
+		try {
+			Deque<Ticket> queue = waitingByUser.get(key);
+			if ((queue == null || queue.isEmpty()) && canRun(key, resourceId)) {
+				start(key, resourceId);
+				admittedCount++;
+				return new Permit(key, resourceId);
+			}
+
+			int maxQueued = picSureWarInit.getAdmissionMaxQueuedPerUser();
+			if (queue != null && maxQueued > 0 && queue.size() >= maxQueued) {
+				rejectedCount++;
+				logger.info("admit() rejected query from " + key + ", " + queue.size() + " already waiting");
+				throw new TooManyRequestsException(TooManyRequestsException.QUEUE_FULL, retryAfterSeconds());
+			}
+			if (queue == null) {
+				queue = new ArrayDeque<>();
+				waitingByUser.put(key, queue);
+			}
+			Ticket ticket = new Ticket(resourceId, lock.newCondition());
+			queue.addLast(ticket);
+
+			long startTime = System.currentTimeMillis();
+			long remaining = TimeUnit.MILLISECONDS.toNanos(picSureWarInit.getAdmissionMaxWaitMillis());
+			try {
+				while (!ticket.admitted) {
+					if (remaining <= 0) {
+						abandon(key, ticket);
+						timedOutCount++;
+						logger.info("admit() query from " + key + " timed out waiting for a slot");
+						throw new TooManyRequestsException(TooManyRequestsException.WAIT_TIMED_OUT, retryAfterSeconds());
+					}
+					remaining = ticket.ready.awaitNanos(remaining);
+				}
+			} catch (InterruptedException e) {
+				abandon(key, ticket);
+				Thread.currentThread().interrupt();
+				throw new TooManyRequestsException(TooManyRequestsException.WAIT_TIMED_OUT, retryAfterSeconds());
+			}
+			admittedCount++;
+			queuedCount++;
+			totalQueuedWaitMillis += System.currentTimeMillis() - startTime;
+			return new Permit(key, resourceId);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Holds the permit until the entity of the response has been sent, when it is a stream.
+	 * Otherwise the permit is released right away.
+	 *
+	 * The permit is also attached to the request, so that it is released when the request is over
+	 * even if the stream is never written or closed, see {@link edu.harvard.dbmi.avillach.AdmissionReleaseListener}.
+	 */
+	public Response releaseWhenSent(Permit permit, Response response, ServletRequest request) {
+		Object entity = response.getEntity();
+		if (!(entity instanceof InputStream)) {
+			permit.close();
+			return response;
+		}
+		request.setAttribute(PERMIT_ATTRIBUTE, permit);
+		InputStream releasing = new FilterInputStream((InputStream) entity) {
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					permit.close();
+				}
+			}
+		};
+		return Response.fromResponse(response).entity(releasing).build();
+	}
+
+	/**
+	 * @return a snapshot of running and waiting queries and of admission counters
+	 */
+	public Map<String, Object> getMetrics() {
+		lock.lock();
+		try {
+			Map<String, Object> metrics = new LinkedHashMap<>();
+			metrics.put("running", runningByUser.values().stream().mapToInt(Integer::intValue).sum());
+			metrics.put("runningByResource", new HashMap<>(runningByResource));
+			metrics.put("waiting", waitingByUser.values().stream().mapToInt(Deque::size).sum());
+			metrics.put("usersRunning", runningByUser.size());
+			metrics.put("usersWaiting", waitingByUser.size());
+			metrics.put("admitted", admittedCount);
+			metrics.put("rejected", rejectedCount);
+			metrics.put("timedOut", timedOutCount);
+			metrics.put("averageQueuedWaitMillis", queuedCount == 0 ? 0 : totalQueuedWaitMillis / queuedCount);
+			return metrics;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void release(String user, UUID resourceId) {
+		lock.lock();
+		try {
+			decrement(runningByUser, user);
+			decrement(runningByResource, resourceId);
+			dispatch();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Admits as many waiting queries as the limits allow, one per user per round
+	 */
+	private void dispatch() {
+		boolean admittedAny = true;
+		while (admittedAny) {
+			admittedAny = false;
+			for (String user : new ArrayList<>(waitingByUser.keySet())) {
+				Deque<Ticket> queue = waitingByUser.get(user);
+				Optional<Ticket> next = queue.stream().filter(ticket -> canRun(user, ticket.resourceId)).findFirst();
+				if (!next.isPresent()) {
+					continue;
+				}
+				Ticket ticket = next.get();
+				queue.remove(ticket);
+				start(user, ticket.resourceId);
+				ticket.admitted = true;
+				ticket.ready.signal();
+				admittedAny = true;
+
+				//Served users go to the back of the line
+				waitingByUser.remove(user);
+				if (!queue.isEmpty()) {
+					waitingByUser.put(user, queue);
+				}
+			}
+		}
+	}
+
+	private void abandon(String user, Ticket ticket) {
+		Deque<Ticket> queue = waitingByUser.get(user);
+		if (queue != null) {
+			queue.remove(ticket);
+			if (queue.isEmpty()) {
+				waitingByUser.remove(user);
+			}
+		}
+	}
+
+	private boolean canRun(String user, UUID resourceId) {
+		return underLimit(runningByUser.get(user), picSureWarInit.getAdmissionMaxPerUser())
+				&& underLimit(runningByResource.get(resourceId), picSureWarInit.getAdmissionMaxPerResource());
+	}
+
+	private boolean underLimit(Integer running, int limit) {
+		return limit <= 0 || running == null || running < limit;
+	}
+
+	private void start(String user, UUID resourceId) {
+		runningByUser.merge(user, 1, Integer::sum);
+		runningByResource.merge(resourceId, 1, Integer::sum);
+	}
+
+	private <K> void decrement(Map<K, Integer> running, K key) {
+		running.computeIfPresent(key, (k, count) -> count <= 1 ? null : count - 1);
+	}
+
+	private long retryAfterSeconds() {
+		return Math.max(1, TimeUnit.MILLISECONDS.toSeconds(picSureWarInit.getAdmissionMaxWaitMillis()));
+	}
+
+	private static class Ticket {
+		private final UUID resourceId;
+		private final Condition ready;
+		private boolean admitted;
+
+		Ticket(UUID resourceId, Condition ready) {
+			this.resourceId = resourceId;
+			this.ready = ready;
+		}
+	}
+
+	/**
+	 * A slot held by a running query. Closing it more than once has no further effect.
+	 */
+	public class Permit implements AutoCloseable {
+		private final String user;
+		private final UUID resourceId;
+		private final AtomicBoolean released = new AtomicBoolean();
+
+		Permit(String user, UUID resourceId) {
+			this.user = user;
+			this.resourceId = resourceId;
+		}
+
+		@Override
+		public void close() {
+			if (released.compareAndSet(false, true)) {
+				release(user, resourceId);
+			}
+		}
+	}
+}
@@ -0,0 +1,132 @@
+package edu.harvard.dbmi.avillach.service;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import javax.ws.rs.core.MediaType;
+
+/**
+ * Writes each row of a JSON result as one line of delimited text, with a header line taken
+ * from the column names of the first row when rows are objects. Nested values are written
+ * as JSON text.
+ *
+ * Rows are written as they are read, so the header cannot wait for the rest of the result: the
+ * first row decides the columns. A later row missing one of them leaves its cell empty, and fields
+ * the first row does not have are left out. Results whose rows do not all share the first row's
+ * fields are better fetched as JSON or newline delimited JSON.
+ */
+public class DelimitedResultTranscoder implements ResultTranscoder {
+
+	public static final DelimitedResultTranscoder CSV = new DelimitedResultTranscoder(new MediaType("text", "csv"), ',');
+	public static final DelimitedResultTranscoder TSV = new DelimitedResultTranscoder(new MediaType("text", "tab-separated-values"), '\t');
+
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	private final MediaType mediaType;
+	private final char delimiter;
+
+	public DelimitedResultTranscoder(MediaType mediaType, char delimiter) {
+		this.mediaType = mediaType;
+		this.delimiter = delimiter;
+	}
+
+	@Override
+	public MediaType getMediaType() {
+		return mediaType;
+	}
+
+	@Override
+	public void transcode(InputStream json, OutputStream output) throws IOException {
+		Writer writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+		JsonParser parser = mapper.getFactory().createParser(json);
+		JsonToken token = parser.nextToken();
+		if (token == null) {
+			writer.flush();
+			return;
+		}
+		List<String> columns = null;
+		if (token != JsonToken.START_ARRAY) {
+			writeRow(writer, parser, null);
+		} else {
+			while ((token = parser.nextToken()) != JsonToken.END_ARRAY && token != null) {
+				columns = writeRow(writer, parser, columns);
+			}
+		}
+		writer.flush();
+	}
+
+	/**
+	 * Writes the row the parser is positioned on, and the header line first if this is the first object row
+	 *
+	 * @return the columns of the header line, once there is one
+	 */
+	private List<String> writeRow(Writer writer, JsonParser parser, List<String> columns) throws IOException {
+		if (parser.currentToken() == JsonToken.START_OBJECT) {
+			Map<String, String> row = new LinkedHashMap<>();
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String name = parser.getCurrentName();
+				parser.nextToken();
+				row.put(name, valueAsText(parser));
+			}
+			if (columns == null) {
+				columns = new ArrayList<>(row.keySet());
+				writeLine(writer, columns);
+			}
+			List<String> values = new ArrayList<>(columns.size());
+			for (String column : columns) {
+				values.add(row.get(column));
+			}
+			writeLine(writer, values);
+		} else if (parser.currentToken() == JsonToken.START_ARRAY) {
+			List<String> values = new ArrayList<>();
+			while (parser.nextToken() != JsonToken.END_ARRAY) {
+				values.add(valueAsText(parser));
+			}
+			writeLine(writer, values);
+		} else {
+			writeLine(writer, Collections.singletonList(valueAsText(parser)));
+		}
+		return columns;
+	}
+
+	private String valueAsText(JsonParser parser) throws IOException {
+		JsonToken token = parser.currentToken();
+		if (token == JsonToken.VALUE_NULL) {
+			return null;
+		}
+		if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+			return mapper.writeValueAsString(parser.readValueAsTree());
+		}
+		return parser.getText();
+	}
+
+	void writeLine(Writer writer, List<String> values) throws IOException {
+		for (int i = 0; i < values.size(); i++) {
+			if (i > 0) {
+				writer.write(delimiter);
+			}
+			writer.write(escape(values.get(i)));
+		}
+		writer.write("\r\n");
+	}
+
+	private String escape(String value) {
+		if (value == null) {
+			return "";
+		}
+		if (delimiter == '\t') {
+			//TSV has no quoting, so characters that would break the line are replaced
+			return value.replace('\t', ' ').replace('\r', ' ').replace('\n', ' ');
+		}
+		if (value.indexOf(delimiter) < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+			return value;
+		}
+		return "\"" + value.replace("\"", "\"\"") + "\"";
+	}
+}
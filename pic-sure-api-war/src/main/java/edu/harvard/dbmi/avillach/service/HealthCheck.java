@@ -0,0 +1,235 @@
+package edu.harvard.dbmi.avillach.service;
+
+import edu.harvard.dbmi.avillach.PicSureWarInit;
+import edu.harvard.dbmi.avillach.data.entity.Resource;
+import edu.harvard.dbmi.avillach.domain.QueryRequest;
+import edu.harvard.dbmi.avillach.util.HttpClientUtil;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ejb.Lock;
+import javax.ejb.LockType;
+import javax.ejb.Singleton;
+import javax.inject.Inject;
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Probes everything a request depends on: the database, the token introspection endpoint and each
+ * registered resource.
+ *
+ * All probes run at once, each with its own timeout, so one slow dependency neither delays the
+ * others nor the answer by more than the timeout. The report is kept for a few seconds and callers
+ * in that time get the same one, so load balancers polling every node every second do not multiply
+ * the load on the database, the introspection endpoint or the resources. When the report is out of
+ * date, one caller probes again and the others wait for its report.
+ *
+ * Every call to the introspection endpoint and the resources is bounded by the probe timeout, so a probe
+ * given up on does not keep holding a pooled connection and an executor thread. Only the overall
+ * status is served without a token, see SystemService.
+ */
+@Singleton
+@Lock(LockType.READ)
+public class HealthCheck {
+
+	public static final String UP = "UP";
+
+	public static final String DEGRADED = "DEGRADED";
+
+	public static final String DOWN = "DOWN";
+
+	public static final String TIMEOUT = "TIMEOUT";
+
+	private Logger logger = LoggerFactory.getLogger(HealthCheck.class);
+
+	@Inject
+	PicSureWarInit picSureWarInit;
+
+	@Inject
+	ResourceRegistry resourceRegistry;
+
+	//Fully qualified, the Resource entity is already imported
+	@javax.annotation.Resource(lookup = "java:jboss/datasources/PicsureDS")
+	DataSource dataSource;
+
+	@javax.annotation.Resource(lookup = "java:comp/DefaultManagedExecutorService")
+	ExecutorService executor;
+
+	HttpClient httpClient = PicSureWarInit.CLOSEABLE_HTTP_CLIENT;
+
+	private final Object probing = new Object();
+
+	private volatile Map<String, Object> report;
+
+	private volatile long reportedAt;
+
+	/**
+	 * @return the latest report, probing again first if it is older than the configured interval
+	 */
+	public Map<String, Object> check() {
+		long maxAge = picSureWarInit.getHealthCacheMillis();
+		Map<String, Object> latest = report;
+		if (latest != null && System.currentTimeMillis() - reportedAt < maxAge) {
+			return latest;
+		}
+		synchronized (probing) {
+			//Another caller may have probed while this one waited
+			if (report != null && System.currentTimeMillis() - reportedAt < maxAge) {
+				return report;
+			}
+			report = probe();
+			reportedAt = System.currentTimeMillis();
+			return report;
+		}
+	}
+
+	/**
+	 * @return whether the report says requests cannot be served
+	 */
+	public static boolean isDown(Map<String, Object> report) {
+		return DOWN.equals(report.get("status"));
+	}
+
+	private Map<String, Object> probe() {
+		long timeout = picSureWarInit.getHealthProbeTimeoutMillis();
+		Future<Map<String, Object>> database = executor.submit(() -> timed(this::probeDatabase));
+		Future<Map<String, Object>> introspection = executor.submit(() -> timed(this::probeIntrospection));
+		Map<Resource, Future<Map<String, Object>>> resources = new LinkedHashMap<>();
+		for (Resource resource : resourceRegistry.list()) {
+			resources.put(resource, executor.submit(() -> timed(() -> probeResource(resource))));
+		}
+
+		//The probes share one deadline, so the report is never more than the timeout late
+		long deadline = System.currentTimeMillis() + timeout;
+		Map<String, Object> checks = new LinkedHashMap<>();
+		checks.put("database", await(database, deadline));
+		checks.put("introspection", await(introspection, deadline));
+		Map<String, Object> resourceChecks = new LinkedHashMap<>();
+		int resourcesUp = 0;
+		for (Map.Entry<Resource, Future<Map<String, Object>>> entry : resources.entrySet()) {
+			Map<String, Object> result = await(entry.getValue(), deadline);
+			result.put("name", entry.getKey().getName());
+			resourceChecks.put(entry.getKey().getUuid().toString(), result);
+			if (UP.equals(result.get("status"))) {
+				resourcesUp++;
+			}
+		}
+		checks.put("resources", resourceChecks);
+
+		String status = UP;
+		if (!UP.equals(((Map<?, ?>) checks.get("database")).get("status"))
+				|| !UP.equals(((Map<?, ?>) checks.get("introspection")).get("status"))
+				|| (!resources.isEmpty() && resourcesUp == 0)) {
+			status = DOWN;
+		} else if (resourcesUp < resources.size()) {
+			status = DEGRADED;
+		}
+		if (!UP.equals(status)) {
+			logger.warn("probe() " + status + ": " + checks);
+		}
+
+		Map<String, Object> probed = new LinkedHashMap<>();
+		probed.put("status", status);
+		probed.put("checkedAt", new Date());
+		probed.put("checks", checks);
+		return Collections.unmodifiableMap(probed);
+	}
+
+	private void probeDatabase() throws Exception {
+		int seconds = (int) Math.max(1, TimeUnit.MILLISECONDS.toSeconds(picSureWarInit.getHealthProbeTimeoutMillis()));
+		try (Connection connection = dataSource.getConnection()) {
+			if (!connection.isValid(seconds)) {
+				throw new IllegalStateException("connection is not valid");
+			}
+		}
+	}
+
+	/**
+	 * Asks about an empty token, which a working endpoint answers as inactive
+	 */
+	private void probeIntrospection() throws Exception {
+		String url = picSureWarInit.getToken_introspection_url();
+		if (url == null || url.isEmpty()) {
+			throw new IllegalStateException("token_introspection_url is empty");
+		}
+		post(url, picSureWarInit.getToken_introspection_token(), "{\"token\":\"\"}");
+	}
+
+	/**
+	 * Asks the resource for its info, as {@link ResourceWebClient#info} does
+	 */
+	private void probeResource(Resource resource) throws Exception {
+		if (resource.getResourceRSPath() == null) {
+			throw new IllegalStateException("resource has no path");
+		}
+		QueryRequest request = new QueryRequest();
+		Map<String, String> credentials = new HashMap<>();
+		credentials.put(ResourceWebClient.BEARER_TOKEN_KEY, resource.getToken());
+		request.setResourceCredentials(credentials);
+		post(HttpClientUtil.composeURL(resource.getResourceRSPath(), "/info"), resource.getToken(),
+				PicSureWarInit.objectMapper.writeValueAsString(request));
+	}
+
+	private void post(String url, String token, String body) throws Exception {
+		int timeout = (int) picSureWarInit.getHealthProbeTimeoutMillis();
+		HttpPost post = new HttpPost(url);
+		post.setConfig(RequestConfig.custom().setConnectionRequestTimeout(timeout)
+				.setConnectTimeout(timeout).setSocketTimeout(timeout).build());
+		post.setHeader("Authorization", "Bearer " + token);
+		post.setEntity(new StringEntity(body, ContentType.APPLICATION_JSON));
+		HttpResponse response = httpClient.execute(post);
+		try {
+			if (response.getStatusLine().getStatusCode() != 200) {
+				throw new IllegalStateException("returned " + response.getStatusLine().getStatusCode());
+			}
+		} finally {
+			EntityUtils.consumeQuietly(response.getEntity());
+		}
+	}
+
+	private interface Probe {
+		void run() throws Exception;
+	}
+
+	private Map<String, Object> timed(Probe probe) {
+		Map<String, Object> result = new LinkedHashMap<>();
+		long started = System.nanoTime();
+		try {
+			probe.run();
+			result.put("status", UP);
+		} catch (Exception e) {
+			result.put("status", DOWN);
+			result.put("error", e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage());
+		}
+		result.put("millis", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+		return result;
+	}
+
+	private Map<String, Object> await(Future<Map<String, Object>> probe, long deadline) {
+		Map<String, Object> result = new LinkedHashMap<>();
+		try {
+			//A copy, since the name of a resource is added to it
+			return new LinkedHashMap<>(probe.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS));
+		} catch (TimeoutException e) {
+			probe.cancel(true);
+			result.put("status", TIMEOUT);
+		} catch (ExecutionException e) {
+			result.put("status", DOWN);
+			result.put("error", String.valueOf(e.getCause()));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			result.put("status", TIMEOUT);
+		}
+		result.put("millis", picSureWarInit.getHealthProbeTimeoutMillis());
+		return result;
+	}
+}
@@ -0,0 +1,51 @@
+package edu.harvard.dbmi.avillach.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import javax.ws.rs.core.MediaType;
+
+/**
+ * Writes each row of a JSON result as compact JSON on its own line, so that clients can
+ * process rows one by one instead of parsing the whole array.
+ */
+public class NdjsonResultTranscoder implements ResultTranscoder {
+
+	public static final MediaType NDJSON = MediaType.valueOf(PicsureFederatedQueryService.NDJSON_MEDIA_TYPE);
+
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	@Override
+	public MediaType getMediaType() {
+		return NDJSON;
+	}
+
+	@Override
+	public void transcode(InputStream json, OutputStream output) throws IOException {
+		JsonParser parser = mapper.getFactory().createParser(json);
+		JsonGenerator generator = mapper.getFactory().createGenerator(output);
+		generator.configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+		//Rows are separated by newlines instead of spaces
+		generator.setRootValueSeparator(null);
+		JsonToken token = parser.nextToken();
+		if (token == JsonToken.START_ARRAY) {
+			while ((token = parser.nextToken()) != JsonToken.END_ARRAY && token != null) {
+				writeRow(generator, parser);
+			}
+		} else if (token != null) {
+			writeRow(generator, parser);
+		}
+		generator.close();
+	}
+
+	private void writeRow(JsonGenerator generator, JsonParser parser) throws IOException {
+		generator.copyCurrentStructure(parser);
+		generator.writeRaw('\n');
+	}
+}
@@ -14,6 +14,11 @@ import java.util.UUID;
 
 public abstract class PicsureBaseEntityService <T extends BaseEntity> {
 
+    /**
+     * Most remaining entities listed after a delete, the listing endpoints page through the rest
+     */
+    protected static final int REMAINING_LISTING_LIMIT = 100;
+
     private Logger logger;
 
     protected final Class<T> type;
@@ -97,26 +102,18 @@ public abstract class PicsureBaseEntityService <T extends BaseEntity> {
 
     }
 
+    /**
+     * Adds or updates all entities in one transaction, using JDBC batches.
+     * Updates only apply to entities that already exist; the others are left out of the result.
+     */
     protected List<T> addOrUpdate(@NotNull List<T> entities, boolean forAdd, BaseRepository baseRepository){
-        List<T> operatedEntities = new ArrayList<>();
-        for (T t : entities){
-            boolean dbContacted = false;
-            if (forAdd) {
+        if (forAdd) {
+            for (T t : entities){
                 t.setUuid(null);
-                baseRepository.persist(t);
-                dbContacted = true;
-            }
-            else if (baseRepository.getById(t.getUuid()) != null) {
-                baseRepository.merge(t);
-                dbContacted = true;
-            }
-
-            if (!dbContacted || t.getUuid() == null || baseRepository.getById(t.getUuid()) == null){
-                continue;
             }
-            operatedEntities.add(t);
+            return baseRepository.persistAll(entities);
         }
-        return operatedEntities;
+        return baseRepository.mergeAll(entities);
     }
 
     public Response removeEntityById(String id, BaseRepository baseRepository) {
@@ -136,9 +133,10 @@ public abstract class PicsureBaseEntityService <T extends BaseEntity> {
         }
 
         return PICSUREResponse.success("Successfully deleted " + type.getSimpleName().toLowerCase() +
-                        " by id: " + id + ", listing rest of the " + type.getSimpleName().toLowerCase() +
+                        " by id: " + id + ", listing the first " + REMAINING_LISTING_LIMIT +
+                        " of the rest of the " + type.getSimpleName().toLowerCase() +
                         "(s) as below"
-                , baseRepository.list());
+                , baseRepository.list(null, REMAINING_LISTING_LIMIT));
 
     }
 }
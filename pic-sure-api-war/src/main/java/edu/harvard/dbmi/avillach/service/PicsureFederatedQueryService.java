@@ -0,0 +1,249 @@
+package edu.harvard.dbmi.avillach.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+import edu.harvard.dbmi.avillach.PicSureWarInit;
+import edu.harvard.dbmi.avillach.domain.FederatedQueryRequest;
+import edu.harvard.dbmi.avillach.domain.FederatedQueryResult;
+import edu.harvard.dbmi.avillach.domain.QueryRequest;
+import edu.harvard.dbmi.avillach.util.PicSureStatus;
+import edu.harvard.dbmi.avillach.util.exception.ApplicationException;
+import edu.harvard.dbmi.avillach.util.exception.ProtocolException;
+import edu.harvard.dbmi.avillach.util.exception.ResourceInterfaceException;
+import edu.harvard.dbmi.avillach.util.exception.TooManyRequestsException;
+import edu.harvard.dbmi.avillach.util.trace.Tracing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import javax.annotation.Resource;
+import javax.inject.Inject;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+/**
+ * Service handling business logic for running one query against several resources at once
+ */
+public class PicsureFederatedQueryService {
+
+	public static final String NDJSON_MEDIA_TYPE = "application/x-ndjson";
+
+	public static final String RESOURCE_UUID_NOT_USED = "resourceUUID is not used by federated queries, list the resources in resourceUUIDs";
+
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	private Logger logger = LoggerFactory.getLogger(PicsureFederatedQueryService.class);
+
+	@Inject
+	PicsureQueryService queryService;
+
+	@Inject
+	PicSureWarInit picSureWarInit;
+
+	@Inject
+	AdmissionController admissionController;
+
+	@Resource(lookup = "java:comp/DefaultManagedExecutorService")
+	ExecutorService executor;
+
+	/**
+	 * Dispatches the query to every requested resource in parallel through
+	 * {@link PicsureQueryService#querySync(QueryRequest, String)}, and streams back one
+	 * {@link FederatedQueryResult} per line as each resource completes. A resource that fails,
+	 * misses its deadline or returns more than the configured number of bytes is reported in its own
+	 * line instead of failing the whole request. Results are held in memory until they are written,
+	 * which is what the limit is for.
+	 *
+	 * @param federatedQueryRequest - {@link FederatedQueryRequest} containing the query, credentials
+	 *                              and the list of target resource ids
+	 * @return Response streaming newline delimited JSON
+	 */
+	public Response queryFederated(FederatedQueryRequest federatedQueryRequest) {
+		return queryFederated(federatedQueryRequest, null);
+	}
+
+	/**
+	 * Same as {@link #queryFederated(FederatedQueryRequest)}, with each resource's query going through
+	 * admission control on behalf of the given user. A resource the user may not query right now is
+	 * reported as an ERROR line.
+	 *
+	 * @param username - the user submitting the query
+	 */
+	public Response queryFederated(FederatedQueryRequest federatedQueryRequest, String username) {
+		if (federatedQueryRequest == null){
+			throw new ProtocolException(ProtocolException.MISSING_DATA);
+		}
+		List<UUID> resourceIds = federatedQueryRequest.getResourceUUIDs();
+		if (resourceIds == null || resourceIds.isEmpty()){
+			throw new ProtocolException(ProtocolException.MISSING_RESOURCE_ID);
+		}
+		if (federatedQueryRequest.getResourceUUID() != null){
+			throw new ProtocolException(RESOURCE_UUID_NOT_USED);
+		}
+		//The same resource listed twice would just run the same query twice
+		resourceIds = new ArrayList<>(new LinkedHashSet<>(resourceIds));
+
+		long timeout = resolveTimeout(federatedQueryRequest.getTimeout());
+		long deadline = System.currentTimeMillis() + timeout;
+
+		CompletionService<FederatedQueryResult> completionService = new ExecutorCompletionService<>(executor);
+		Map<UUID, Future<FederatedQueryResult>> pending = new LinkedHashMap<>();
+		for (UUID resourceId : resourceIds){
+			QueryRequest resourceRequest = new QueryRequest();
+			resourceRequest.setQuery(federatedQueryRequest.getQuery());
+			resourceRequest.setResourceUUID(resourceId);
+			//querySync adds the resource token to the credentials, so each resource gets its own map
+			if (federatedQueryRequest.getResourceCredentials() != null){
+				resourceRequest.setResourceCredentials(new HashMap<>(federatedQueryRequest.getResourceCredentials()));
+			}
+			pending.put(resourceId, completionService.submit(Tracing.propagate(() -> querySync(username, resourceId, resourceRequest))));
+		}
+		logger.debug("queryFederated() dispatched query to " + pending.size() + " resources");
+
+		StreamingOutput stream = (OutputStream output) -> {
+			String unfinished = "Resource did not respond within " + timeout + " ms";
+			try {
+				while (!pending.isEmpty()){
+					long remaining = deadline - System.currentTimeMillis();
+					Future<FederatedQueryResult> completed = remaining > 0 ? completionService.poll(remaining, TimeUnit.MILLISECONDS) : null;
+					if (completed == null){
+						break;
+					}
+					try {
+						FederatedQueryResult result = completed.get();
+						pending.remove(result.getResourceID());
+						writeLine(output, result);
+					} catch (ExecutionException e){
+						//querySync() reports its own failures, so this is a failure of the task itself
+						UUID resourceId = resourceOf(pending, completed);
+						logger.error("queryFederated() resource " + resourceId + " failed", e.getCause());
+						pending.remove(resourceId);
+						writeLine(output, new FederatedQueryResult()
+								.setResourceID(resourceId)
+								.setStatus(PicSureStatus.ERROR)
+								.setMessage(describe(null, e.getCause())));
+					}
+				}
+			} catch (InterruptedException e){
+				Thread.currentThread().interrupt();
+				unfinished = "Federated query was interrupted before the resource responded";
+			} finally {
+				for (Map.Entry<UUID, Future<FederatedQueryResult>> timedOut : pending.entrySet()){
+					timedOut.getValue().cancel(true);
+					writeLine(output, new FederatedQueryResult()
+							.setResourceID(timedOut.getKey())
+							.setStatus(PicSureStatus.ERROR)
+							.setMessage(unfinished));
+				}
+			}
+		};
+		return Response.ok(stream, NDJSON_MEDIA_TYPE).build();
+	}
+
+	/**
+	 * A client may ask for a shorter deadline than the configured one, but not a longer one
+	 */
+	private long resolveTimeout(Long requestedTimeout) {
+		long timeout = picSureWarInit.getFederatedQueryTimeoutMillis();
+		if (requestedTimeout != null && requestedTimeout > 0 && (timeout <= 0 || requestedTimeout < timeout)){
+			return requestedTimeout;
+		}
+		return timeout;
+	}
+
+	private FederatedQueryResult querySync(String username, UUID resourceId, QueryRequest resourceRequest) {
+		FederatedQueryResult result = new FederatedQueryResult().setResourceID(resourceId);
+		long startTime = System.currentTimeMillis();
+		try (AdmissionController.Permit permit = admissionController.admit(username, resourceId)) {
+			Response response = queryService.completeWhenSent(queryService.querySync(resourceRequest, username));
+			result.setPicsureResultId(response.getHeaderString("resultId"));
+			Object entity = response.getEntity();
+			if (entity instanceof StreamingOutput){
+				CappedOutputStream content = new CappedOutputStream(picSureWarInit.getFederatedResultMaxBytes());
+				((StreamingOutput) entity).write(content);
+				result.setResult(content.toString());
+			} else if (entity != null){
+				result.setResult(entity.toString());
+			}
+			result.setStatus(PicSureStatus.AVAILABLE);
+		} catch (ProtocolException e){
+			result.setStatus(PicSureStatus.ERROR).setMessage(describe(e.getContent(), e));
+		} catch (ApplicationException e){
+			result.setStatus(PicSureStatus.ERROR).setMessage(describe(e.getContent(), e));
+		} catch (ResourceInterfaceException e){
+			result.setStatus(PicSureStatus.ERROR).setMessage(describe(e.getContent(), e));
+		} catch (TooManyRequestsException e){
+			result.setStatus(PicSureStatus.ERROR).setMessage(describe(e.getContent(), e));
+		} catch (ResultTooLargeException e){
+			result.setStatus(PicSureStatus.ERROR).setMessage(e.getMessage());
+		} catch (Exception e){
+			logger.error("queryFederated() resource " + resourceId + " failed", e);
+			result.setStatus(PicSureStatus.ERROR).setMessage(describe(null, e));
+		}
+		return result.setDuration(System.currentTimeMillis() - startTime);
+	}
+
+	private static UUID resourceOf(Map<UUID, Future<FederatedQueryResult>> pending, Future<FederatedQueryResult> future) {
+		for (Map.Entry<UUID, Future<FederatedQueryResult>> entry : pending.entrySet()){
+			if (entry.getValue() == future){
+				return entry.getKey();
+			}
+		}
+		return null;
+	}
+
+	private String describe(Object content, Throwable e) {
+		if (content != null){
+			return content.toString();
+		}
+		return e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+	}
+
+	private void writeLine(OutputStream output, FederatedQueryResult result) throws IOException {
+		output.write(mapper.writeValueAsBytes(result));
+		output.write('\n');
+		output.flush();
+	}
+
+	private static class ResultTooLargeException extends IOException {
+		ResultTooLargeException(long maxBytes) {
+			super("Result is larger than the " + maxBytes + " bytes a federated query returns, query the resource on its own");
+		}
+	}
+
+	/**
+	 * Holds a result in memory, giving up on it once it grows past the limit. A limit of zero or less means no limit.
+	 */
+	private static class CappedOutputStream extends OutputStream {
+		private final ByteArrayOutputStream content = new ByteArrayOutputStream();
+		private final long maxBytes;
+
+		CappedOutputStream(long maxBytes) {
+			this.maxBytes = maxBytes;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[]{(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (maxBytes > 0 && content.size() + len > maxBytes) {
+				throw new ResultTooLargeException(maxBytes);
+			}
+			content.write(b, off, len);
+		}
+
+		@Override
+		public String toString() {
+			return new String(content.toByteArray(), StandardCharsets.UTF_8);
+		}
+	}
+}
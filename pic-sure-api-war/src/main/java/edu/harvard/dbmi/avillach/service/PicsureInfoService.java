@@ -1,7 +1,7 @@
 package edu.harvard.dbmi.avillach.service;
 
+import edu.harvard.dbmi.avillach.data.entity.BaseEntity;
 import edu.harvard.dbmi.avillach.data.entity.Resource;
-import edu.harvard.dbmi.avillach.data.repository.ResourceRepository;
 import edu.harvard.dbmi.avillach.domain.QueryRequest;
 import edu.harvard.dbmi.avillach.domain.ResourceInfo;
 import edu.harvard.dbmi.avillach.util.exception.ApplicationException;
@@ -19,7 +19,7 @@ import java.util.stream.Collectors;
 public class PicsureInfoService {
 
 	@Inject
-	ResourceRepository resourceRepo;
+	ResourceRegistry resourceRegistry;
 
 	@Inject
 	ResourceWebClient resourceWebClient;
@@ -32,7 +32,7 @@ public class PicsureInfoService {
 	 * @return a {@link edu.harvard.dbmi.avillach.domain.ResourceInfo ResourceInfo}
 	 */
 	public ResourceInfo info(UUID resourceId, QueryRequest credentialsQueryRequest) {
-		Resource resource = resourceRepo.getById(resourceId);
+		Resource resource = resourceRegistry.get(resourceId);
 		if (resource == null){
 			throw new ProtocolException(ProtocolException.RESOURCE_NOT_FOUND + resourceId.toString());
 		}
@@ -55,9 +55,25 @@ public class PicsureInfoService {
 	 * @return List containing limited metadata about all available resources and ids.
 	 */
 	public List<UUID> resources() {
+		return resources(null, null);
+	}
+
+	/**
+	 * Retrieve one page of the ids of all available resources, ordered by id as the database orders them.
+	 *
+	 * @param after - the last id of the previous page, null for the first page
+	 * @param limit - the most ids to return, null for all of them
+	 * @return List of resource ids
+	 */
+	public List<UUID> resources(UUID after, Integer limit) {
 		//TODO Need to limit the metadata returned
 		// DONE: nbenik 2019-08-23
-		return resourceRepo.list().stream().map(Resource::getUuid).collect(Collectors.toList());
+		return resourceRegistry.list().stream()
+				.map(Resource::getUuid)
+				.filter(uuid -> after == null || BaseEntity.ID_ORDER.compare(uuid, after) > 0)
+				.sorted(BaseEntity.ID_ORDER)
+				.limit(limit == null || limit <= 0 ? Long.MAX_VALUE : limit)
+				.collect(Collectors.toList());
 	}
 
 }
@@ -0,0 +1,104 @@
+package edu.harvard.dbmi.avillach.service;
+
+import edu.harvard.dbmi.avillach.PicSureWarInit;
+import edu.harvard.dbmi.avillach.data.entity.Resource;
+import edu.harvard.dbmi.avillach.util.UpstreamTiming;
+import edu.harvard.dbmi.avillach.util.metrics.Counter;
+import edu.harvard.dbmi.avillach.util.metrics.Histogram;
+import edu.harvard.dbmi.avillach.util.metrics.Labeled;
+import edu.harvard.dbmi.avillach.util.metrics.MetricsRegistry;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.ejb.DependsOn;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.inject.Inject;
+import java.util.Map;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * The metrics of PIC-SURE itself, written by /system/metrics along with those other modules register
+ * in the same {@link MetricsRegistry}.
+ *
+ * Metrics updated on the request path are static, so that filters and other code outside the
+ * container can update them directly. Gauges and the upstream listener are set up at startup.
+ */
+@Singleton
+@Startup
+@DependsOn("ResourceRegistry")
+public class PicsureMetrics {
+
+	/**
+	 * Label of calls to a url that is not the path of any resource
+	 */
+	public static final String UNKNOWN_RESOURCE = "unknown";
+
+	private static final MetricsRegistry registry = MetricsRegistry.getDefault();
+
+	public static final Labeled<Histogram> requests = registry.histogram("picsure_request_duration_seconds",
+			"Time from a request arriving to its response being written, by operation", "operation",
+			Histogram.LATENCY_BUCKETS);
+
+	public static final Labeled<Counter> requestErrors = registry.counter("picsure_request_errors_total",
+			"Requests answered with a 5xx status, by operation", "operation");
+
+	public static final Labeled<Histogram> upstream = registry.histogram("picsure_upstream_duration_seconds",
+			"Time waiting on resources for a response, by resource", "resource", Histogram.LATENCY_BUCKETS);
+
+	public static final Labeled<Counter> upstreamErrors = registry.counter("picsure_upstream_errors_total",
+			"Calls to resources that failed or got a 5xx status, by resource", "resource");
+
+	public static final Histogram introspection = registry.histogram("picsure_token_introspection_duration_seconds",
+			"Time taken by the token introspection endpoint", Histogram.LATENCY_BUCKETS);
+
+	public static final Counter introspectionErrors = registry.counter("picsure_token_introspection_errors_total",
+			"Token introspection calls that failed or did not return 200");
+
+	@Inject
+	ResourceRegistry resourceRegistry;
+
+	@Inject
+	AdmissionController admissionController;
+
+	@PostConstruct
+	public void init() {
+		registry.gauge("picsure_http_pool_leased", "Connections of the shared HTTP client pool in use",
+				() -> PicSureWarInit.HTTP_CLIENT_CONNECTION_MANAGER.getTotalStats().getLeased());
+		registry.gauge("picsure_http_pool_available", "Idle connections kept by the shared HTTP client pool",
+				() -> PicSureWarInit.HTTP_CLIENT_CONNECTION_MANAGER.getTotalStats().getAvailable());
+		registry.gauge("picsure_http_pool_pending", "Requests waiting for a connection from the shared HTTP client pool",
+				() -> PicSureWarInit.HTTP_CLIENT_CONNECTION_MANAGER.getTotalStats().getPending());
+		registry.gauge("picsure_http_pool_max", "Most connections the shared HTTP client pool opens",
+				() -> PicSureWarInit.HTTP_CLIENT_CONNECTION_MANAGER.getTotalStats().getMax());
+		registry.gauge("picsure_upstream_in_flight", "Calls to resources waiting for a response right now",
+				UpstreamTiming::getInFlight);
+
+		admissionGauge("picsure_admission_running", "Queries running on resources", "running");
+		admissionGauge("picsure_admission_waiting", "Queries waiting to be admitted", "waiting");
+		admissionGauge("picsure_admission_admitted", "Queries admitted since startup", "admitted");
+		admissionGauge("picsure_admission_rejected", "Queries rejected since startup", "rejected");
+		admissionGauge("picsure_admission_timed_out", "Queries that waited too long to be admitted since startup", "timedOut");
+
+		UpstreamTiming.setListener(this::upstreamCompleted);
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		UpstreamTiming.setListener(null);
+	}
+
+	private void admissionGauge(String name, String help, String key) {
+		ToDoubleFunction<Map<String, Object>> value = metrics -> ((Number) metrics.get(key)).doubleValue();
+		registry.gauge(name, help, () -> value.applyAsDouble(admissionController.getMetrics()));
+	}
+
+	private void upstreamCompleted(String uri, long nanos, int status) {
+		Resource resource = resourceRegistry.forUrl(uri);
+		String label = resource == null ? UNKNOWN_RESOURCE : resource.getUuid().toString();
+		upstream.labels(label).observeNanos(nanos);
+		if (status < 0 || status >= 500) {
+			upstreamErrors.labels(label).inc();
+		}
+	}
+}
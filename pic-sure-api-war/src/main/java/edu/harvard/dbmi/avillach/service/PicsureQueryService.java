@@ -1,16 +1,30 @@
 package edu.harvard.dbmi.avillach.service;
 
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.sql.Date;
+import java.sql.Timestamp;
 import java.util.*;
 
+import edu.harvard.dbmi.avillach.PicSureWarInit;
+import edu.harvard.dbmi.avillach.data.entity.BaseEntity;
 import edu.harvard.dbmi.avillach.data.entity.Query;
+import edu.harvard.dbmi.avillach.data.entity.QueryMetadata;
 import edu.harvard.dbmi.avillach.data.entity.Resource;
+import edu.harvard.dbmi.avillach.data.projection.QueryRun;
+import edu.harvard.dbmi.avillach.data.projection.QuerySummary;
+import edu.harvard.dbmi.avillach.data.repository.QueryBodyRepository;
+import edu.harvard.dbmi.avillach.data.repository.QueryMetadataRepository;
 import edu.harvard.dbmi.avillach.data.repository.QueryRepository;
-import edu.harvard.dbmi.avillach.data.repository.ResourceRepository;
+import edu.harvard.dbmi.avillach.data.repository.ReplicaRouting;
 import edu.harvard.dbmi.avillach.domain.*;
 import edu.harvard.dbmi.avillach.security.JWTFilter;
+import edu.harvard.dbmi.avillach.util.ByteRange;
+import edu.harvard.dbmi.avillach.util.PicSureStatus;
 import edu.harvard.dbmi.avillach.util.exception.ApplicationException;
 import edu.harvard.dbmi.avillach.util.exception.ProtocolException;
+import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -19,7 +33,9 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 
 import javax.inject.Inject;
 import javax.transaction.Transactional;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 
 /**
  * Service handling business logic for queries to resources
@@ -35,14 +51,32 @@ public class PicsureQueryService {
 	JWTFilter jwtFilter;
 	
 	@Inject
-	ResourceRepository resourceRepo;
+	ResourceRegistry resourceRegistry;
 
 	@Inject
 	QueryRepository queryRepo;
 
+	@Inject
+	QueryBodyRepository queryBodyRepo;
+
+	@Inject
+	QueryMetadataRepository queryMetadataRepo;
+
+	@Inject
+	PicSureWarInit picSureWarInit;
+
 	@Inject
 	ResourceWebClient resourceWebClient;
 
+	@Inject
+	ResultSpool resultSpool;
+
+	@Inject
+	QueryStatusWriter statusWriter;
+
+	@Inject
+	ReplicaRouting replicaRouting;
+
 	/**
 	 * Executes a query on a PIC-SURE resource and creates a Query entity in the
 	 * database for the query.
@@ -51,8 +85,17 @@ public class PicsureQueryService {
 	 *                       and resource specific query (could be a string or a json object)
 	 * @return {@link QueryStatus}
 	 */
-	@Transactional
 	public QueryStatus query(QueryRequest dataQueryRequest) {
+		return query(dataQueryRequest, null);
+	}
+
+	/**
+	 * Same as {@link #query(QueryRequest)}, recording who submitted the query
+	 *
+	 * @param username - the submitting user, may be null
+	 */
+	@Transactional
+	public QueryStatus query(QueryRequest dataQueryRequest, String username) {
 		if (dataQueryRequest == null){
 			throw new ProtocolException(ProtocolException.MISSING_DATA);
 		}
@@ -60,7 +103,7 @@ public class PicsureQueryService {
 		if (resourceId == null){
 			throw new ProtocolException(ProtocolException.MISSING_RESOURCE_ID);
 		}
-		Resource resource = resourceRepo.getById(resourceId);
+		Resource resource = resourceRegistry.get(resourceId);
 		if (resource == null){
 			throw new ProtocolException(ProtocolException.RESOURCE_NOT_FOUND + resourceId.toString());
 		}
@@ -80,6 +123,15 @@ public class PicsureQueryService {
 		queryEntity.setResource(resource);
 		queryEntity.setStatus(results.getStatus());
 		queryEntity.setStartTime(new Date(results.getStartTime()));
+		queryEntity.setUsername(username);
+		queryEntity.setSubmittedAt(new Timestamp(System.currentTimeMillis()));
+		if (results.getStatus() != null && results.getStatus().isTerminal()){
+			queryEntity.setCompletedAt(queryEntity.getSubmittedAt());
+			queryEntity.setResourceStatus(results.getResourceStatus());
+			queryEntity.setSizeInBytes(results.getSizeInBytes());
+			queryEntity.setDuration(results.getDuration());
+			queryEntity.setExpiration(results.getExpiration());
+		}
 		
 		
 		String queryJson = null;
@@ -92,12 +144,11 @@ public class PicsureQueryService {
 			}
 		}
 		
-		queryEntity.setQuery(queryJson);
-		
+		setBody(queryEntity, queryJson);
+		queryRepo.persist(queryEntity);
 		if (results.getResultMetadata() != null) {
-			queryEntity.setMetadata((byte[])results.getResultMetadata().get(QUERY_METADATA_FIELD));
+			storeMetadata(queryEntity.getUuid(), (byte[])results.getResultMetadata().get(QUERY_METADATA_FIELD));
 		}
-		queryRepo.persist(queryEntity);
 
 		logger.debug("PicsureQueryService() persisted queryEntity with id: " + queryEntity.getUuid());
 		results.setPicsureResultId(queryEntity.getUuid());
@@ -107,14 +158,16 @@ public class PicsureQueryService {
 			queryEntity.setResourceResultId(results.getPicsureResultId().toString());
 			queryRepo.persist(queryEntity);
 		}
+		replicaRouting.wrote(queryEntity.getUuid());
 		results.setResourceID(resourceId);
 		return results;
 	}
 
 	/**
 	 * Retrieves the {@link QueryStatus} for a given queryId by looking up the target resource
-	 * from the database and calling the target resource for an updated status. The Query entities
-	 * in the database are updated each time this is called.
+	 * from the database and calling the target resource for an updated status. A change of status is
+	 * handed to the {@link QueryStatusWriter}, which writes it to the database shortly after. Queries
+	 * that already reached a terminal status are answered from the database without calling the resource.
 	 *
 	 * @param queryId - id of targeted resource
 	 * @param credentialsQueryRequest - contains resource specific credentials object
@@ -125,14 +178,15 @@ public class PicsureQueryService {
 		if (queryId == null){
 			throw new ProtocolException(ProtocolException.MISSING_QUERY_ID);
 		}
-		Query query = queryRepo.getById(queryId);
+		QuerySummary query = replicaRouting.read(queryId, () -> queryRepo.getSummary(queryId));
 		if (query == null){
 			throw new ProtocolException(ProtocolException.QUERY_NOT_FOUND + queryId.toString());
 		}
-		Resource resource = query.getResource();
-		if (resource == null){
-			throw new ApplicationException(ApplicationException.MISSING_RESOURCE);
+		PicSureStatus currentStatus = currentStatus(query);
+		if (currentStatus != null && currentStatus.isTerminal()){
+			return storedStatus(query, currentStatus);
 		}
+		Resource resource = resourceOf(query);
 		if (resource.getResourceRSPath() == null){
 			throw new ApplicationException(ApplicationException.MISSING_RESOURCE_PATH);
 		}
@@ -149,10 +203,17 @@ public class PicsureQueryService {
 		//Update status on query object
 		QueryStatus status = resourceWebClient.queryStatus(resource.getResourceRSPath(), query.getResourceResultId(), credentialsQueryRequest);
 		status.setPicsureResultId(queryId);
-		query.setStatus(status.getStatus());
-		queryRepo.persist(query);
+		if (status.getStatus() != null && status.getStatus().isTerminal()){
+			//Written right away with the details of the result, later calls are answered from them
+			statusWriter.forget(queryId);
+			queryRepo.updateFinalStatus(queryId, status.getStatus(), status.getResourceStatus(),
+					status.getSizeInBytes(), status.getDuration(), status.getExpiration());
+			replicaRouting.wrote(queryId);
+		} else if (status.getStatus() != null && status.getStatus() != currentStatus){
+			statusWriter.record(queryId, status.getStatus());
+		}
 		status.setStartTime(query.getStartTime().getTime());
-		status.setResourceID(resource.getUuid());
+		status.setResourceID(query.getResourceId());
 		return status;
 	}
 
@@ -165,19 +226,33 @@ public class PicsureQueryService {
 	 * @param credentialsQueryRequest - contains resource specific credentials object
 	 * @return Response
 	 */
-	@Transactional
 	public Response queryResult(UUID queryId, QueryRequest credentialsQueryRequest) {
+		return queryResult(queryId, credentialsQueryRequest, null, null);
+	}
+
+	/**
+	 * Same as {@link #queryResult(UUID, QueryRequest)}, honoring a single byte range so that
+	 * interrupted downloads can be resumed. The range is served from a local copy when there is one and
+	 * the resource still answers the caller's status request for the query, otherwise it is forwarded
+	 * to the resource; if the resource sends the whole result anyway, the result is copied locally
+	 * first. Full downloads are copied locally as they stream, when spooling is enabled.
+	 *
+	 * @param queryId - id of target resource
+	 * @param credentialsQueryRequest - contains resource specific credentials object
+	 * @param range - the Range header, may be null
+	 * @param ifRange - the If-Range header; if it does not match the result's entity tag the whole result is sent
+	 * @return Response
+	 */
+	@Transactional
+	public Response queryResult(UUID queryId, QueryRequest credentialsQueryRequest, String range, String ifRange) {
 		if (queryId == null){
 			throw new ProtocolException(ProtocolException.MISSING_QUERY_ID);
 		}
-		Query query = queryRepo.getById(queryId);
+		QuerySummary query = replicaRouting.read(queryId, () -> queryRepo.getSummary(queryId));
 		if (query == null){
 			throw new ProtocolException(ProtocolException.QUERY_NOT_FOUND + queryId.toString());
 		}
-		Resource resource = query.getResource();
-		if (resource == null){
-			throw new ApplicationException(ApplicationException.MISSING_RESOURCE);
-		}
+		Resource resource = resourceOf(query);
 		if (resource.getResourceRSPath() == null){
 			throw new ApplicationException(ApplicationException.MISSING_RESOURCE_PATH);
 		}
@@ -187,21 +262,66 @@ public class PicsureQueryService {
 		if (credentialsQueryRequest.getResourceCredentials() == null){
 			credentialsQueryRequest.setResourceCredentials(new HashMap<>());
 		}
-		
-		//TODO Do we need to update any information in the query object?
 		credentialsQueryRequest.getResourceCredentials().put(ResourceWebClient.BEARER_TOKEN_KEY, resource.getToken());
-		return resourceWebClient.queryResult(resource.getResourceRSPath(), query.getResourceResultId(), credentialsQueryRequest);
+
+		String etag = resultSpool.etag(queryId);
+		if (range != null && ifRange != null && !ifRange.equals(etag)){
+			range = null;
+		}
+		File spooled = resultSpool.get(queryId);
+		if (spooled != null){
+			//The resource still decides who may read the result, the status call is the cheapest way to ask it
+			resourceWebClient.queryStatus(resource.getResourceRSPath(), query.getResourceResultId(), credentialsQueryRequest);
+			return resultSpool.serve(spooled, range, etag);
+		}
+
+		//TODO Do we need to update any information in the query object?
+		Response response = resourceWebClient.queryResult(resource.getResourceRSPath(), query.getResourceResultId(), credentialsQueryRequest, range);
+		Object entity = response.getEntity();
+		boolean whole = range == null || response.getStatus() == Response.Status.OK.getStatusCode();
+		long length = contentLength(response);
+		if (range != null && whole && entity instanceof InputStream && resultSpool.fits(length)){
+			//The resource ignored the range, the result is copied first so that the range can be served
+			return resultSpool.serve(resultSpool.spool(queryId, (InputStream) entity, length), range, etag);
+		}
+		if (whole && entity instanceof InputStream){
+			//Copied as it streams for a later resume; a result whose range was ignored ends up here when
+			//it is too large or of unknown length to copy first, and is sent whole rather than waited for
+			entity = resultSpool.spooling(queryId, (InputStream) entity, length);
+		}
+		Response.ResponseBuilder builder = Response.status(response.getStatus())
+				.entity(entity)
+				.header(ByteRange.ACCEPT_RANGES, ByteRange.BYTES)
+				.header(HttpHeaders.ETAG, etag);
+		for (String header : new String[]{HttpHeaders.CONTENT_TYPE, HttpHeaders.CONTENT_LENGTH, ByteRange.CONTENT_RANGE}){
+			if (response.getHeaderString(header) != null){
+				builder.header(header, response.getHeaderString(header));
+			}
+		}
+		return builder.build();
 	}
 
 	/**
 	 * Streams the result for a query by looking up the target resource
 	 * from the database and calling the target resource for a result.
 	 *
+	 * The Query entity is committed as PENDING before the resource is called, so that
+	 * the call can be stopped through {@link #queryCancel(UUID, QueryRequest)} while it runs.
+	 * It only becomes AVAILABLE once the result has been sent, see {@link #completeWhenSent(Response)}.
+	 *
 	 * @param queryRequest - contains resource specific credentials object
 	 * @return Response
 	 */
-	@Transactional
 	public Response querySync(QueryRequest queryRequest) {
+		return querySync(queryRequest, null);
+	}
+
+	/**
+	 * Same as {@link #querySync(QueryRequest)}, recording who submitted the query
+	 *
+	 * @param username - the submitting user, may be null
+	 */
+	public Response querySync(QueryRequest queryRequest, String username) {
 		if (queryRequest == null){
 			throw new ProtocolException(ProtocolException.MISSING_DATA);
 		}
@@ -209,7 +329,7 @@ public class PicsureQueryService {
 		if (resourceId == null){
 			throw new ProtocolException(ProtocolException.MISSING_RESOURCE_ID);
 		}
-		Resource resource = resourceRepo.getById(resourceId);
+		Resource resource = resourceRegistry.get(resourceId);
 		if (resource == null){
 			throw new ApplicationException(ApplicationException.MISSING_RESOURCE);
 		}
@@ -223,7 +343,10 @@ public class PicsureQueryService {
 		}
 		Query queryEntity = new Query();
 		queryEntity.setResource(resource);
+		queryEntity.setStatus(PicSureStatus.PENDING);
 		queryEntity.setStartTime(new Date(Calendar.getInstance().getTime().getTime()));
+		queryEntity.setUsername(username);
+		queryEntity.setSubmittedAt(new Timestamp(System.currentTimeMillis()));
 		
 
 		String queryJson = null;
@@ -236,29 +359,269 @@ public class PicsureQueryService {
 			}
 		}
 		
-		queryEntity.setQuery(queryJson);
-		
-		queryRepo.persist(queryEntity);
+		setBody(queryEntity, queryJson);
+
+		//The id is known before the row is written, so a concurrent queryCancel() never sees it without a result id
+		queryEntity.setUuid(BaseEntity.getIdStrategy().next());
 		queryEntity.setResourceResultId(queryEntity.getUuid().toString());
+		queryRepo.persist(queryEntity);
+		replicaRouting.wrote(queryEntity.getUuid());
 		queryRequest.getResourceCredentials().put(ResourceWebClient.BEARER_TOKEN_KEY, resource.getToken());
-		return Response.ok(resourceWebClient.querySync(resource.getResourceRSPath(), queryRequest).getEntity()).header("resultId", queryEntity.getResourceResultId()).build();
+
+		Response response;
+		try {
+			response = resourceWebClient.querySync(resource.getResourceRSPath(), queryRequest, queryEntity.getUuid().toString());
+		} catch (ProtocolException e){
+			//A cancelled query has already been marked as such by queryCancel()
+			if (!String.valueOf(e.getContent()).startsWith(ProtocolException.QUERY_CANCELLED)){
+				complete(queryEntity.getUuid(), PicSureStatus.ERROR);
+			}
+			throw e;
+		} catch (RuntimeException e){
+			complete(queryEntity.getUuid(), PicSureStatus.ERROR);
+			throw e;
+		}
+		return Response.ok(response.getEntity(), response.getMediaType()).header("resultId", queryEntity.getResourceResultId()).build();
+	}
+
+	/**
+	 * Wraps the response of {@link #querySync(QueryRequest, String)}, once any conversion of it is done, so
+	 * that the query is written as AVAILABLE when the whole result has been sent, or as ERROR when sending it
+	 * failed partway. A response without a result is AVAILABLE right away.
+	 *
+	 * @param response - a response of querySync, with its resultId header
+	 * @return the response, with a StreamingOutput as its entity if it had a result
+	 */
+	public Response completeWhenSent(Response response) {
+		UUID queryId = UUID.fromString(response.getHeaderString("resultId"));
+		Object entity = response.getEntity();
+		if (!(entity instanceof InputStream) && !(entity instanceof StreamingOutput)){
+			complete(queryId, PicSureStatus.AVAILABLE);
+			return response;
+		}
+		StreamingOutput completing = (OutputStream output) -> {
+			boolean sent = false;
+			try {
+				if (entity instanceof InputStream){
+					try (InputStream result = (InputStream) entity){
+						IOUtils.copyLarge(result, output);
+					}
+				} else {
+					((StreamingOutput) entity).write(output);
+				}
+				sent = true;
+			} finally {
+				complete(queryId, sent ? PicSureStatus.AVAILABLE : PicSureStatus.ERROR);
+			}
+		};
+		return Response.fromResponse(response).entity(completing).build();
+	}
+
+	/**
+	 * Cancels a query. If a querySync call for it is still waiting on or streaming from its resource
+	 * on this node, that call is aborted and its connection released. Otherwise the resource is asked
+	 * to cancel its own query; if it cannot, its error is returned and the status is left as it is.
+	 * The Query entity ends up CANCELLED, unless it had already finished, even while being cancelled.
+	 *
+	 * @param queryId - id of the query to cancel
+	 * @param credentialsQueryRequest - contains resource specific credentials object
+	 * @return {@link QueryStatus}
+	 */
+	@Transactional
+	public QueryStatus queryCancel(UUID queryId, QueryRequest credentialsQueryRequest) {
+		if (queryId == null){
+			throw new ProtocolException(ProtocolException.MISSING_QUERY_ID);
+		}
+		Query query = queryRepo.getById(queryId);
+		if (query == null){
+			throw new ProtocolException(ProtocolException.QUERY_NOT_FOUND + queryId.toString());
+		}
+		Resource resource = query.getResource();
+		if (resource == null){
+			throw new ApplicationException(ApplicationException.MISSING_RESOURCE);
+		}
+		if (credentialsQueryRequest == null){
+			throw new ProtocolException(ProtocolException.MISSING_DATA);
+		}
+
+		QuerySummary summary = new QuerySummary(queryId, query.getStatus(), query.getResourceResultId(),
+				query.getStartTime(), resource.getUuid());
+		boolean aborted = resourceWebClient.abort(queryId.toString());
+		PicSureStatus currentStatus = currentStatus(summary);
+		if (!aborted && currentStatus != null && currentStatus.isTerminal()){
+			logger.debug("queryCancel() query " + queryId + " already " + currentStatus);
+		} else {
+			if (!aborted && resource.getResourceRSPath() != null){
+				if (credentialsQueryRequest.getResourceCredentials() == null){
+					credentialsQueryRequest.setResourceCredentials(new HashMap<>());
+				}
+				if(resource.getToken()!=null) {
+					credentialsQueryRequest.getResourceCredentials().put(ResourceWebClient.BEARER_TOKEN_KEY, resource.getToken());
+				}
+				//A resource that cannot cancel the query keeps running it, so it is not recorded as cancelled
+				resourceWebClient.queryCancel(resource.getResourceRSPath(), query.getResourceResultId(), credentialsQueryRequest);
+			}
+			statusWriter.forget(queryId);
+			if (queryRepo.updateStatus(queryId, PicSureStatus.CANCELLED)){
+				currentStatus = PicSureStatus.CANCELLED;
+			} else {
+				//It finished while it was being cancelled
+				summary = queryRepo.getSummary(queryId);
+				currentStatus = summary.getStatus();
+			}
+			replicaRouting.wrote(queryId);
+		}
+		return storedStatus(summary, currentStatus);
+	}
+
+	/**
+	 * @return the Content-Length of a resource's response, -1 if it did not send one
+	 */
+	private static long contentLength(Response response){
+		try {
+			String length = response.getHeaderString(HttpHeaders.CONTENT_LENGTH);
+			return length == null ? -1 : Long.parseLong(length);
+		} catch (NumberFormatException e){
+			return -1;
+		}
+	}
+
+	/**
+	 * Writes only the final status, and only if the query has not already reached one, so that a
+	 * cancellation written while the resource was answering is kept
+	 */
+	private void complete(UUID queryId, PicSureStatus status){
+		statusWriter.forget(queryId);
+		queryRepo.updateStatuses(Collections.singletonMap(queryId, status));
+		replicaRouting.wrote(queryId);
+	}
+
+	/**
+	 * Points the query at the shared body of its request, see {@link QueryBodyRepository#setBody(Query, String)}
+	 */
+	private void setBody(Query queryEntity, String queryJson){
+		if (queryJson == null){
+			queryEntity.setQuery(null);
+			return;
+		}
+		queryBodyRepo.setBody(queryEntity, queryJson);
+	}
+
+	/**
+	 * Stores the result metadata of a query in its own table, compressed. Metadata over the configured
+	 * size is not stored at all rather than cut short.
+	 */
+	private void storeMetadata(UUID queryId, byte[] metadata){
+		if (metadata == null){
+			return;
+		}
+		int maxBytes = picSureWarInit.getQueryMetadataMaxBytes();
+		if (maxBytes > 0 && metadata.length > maxBytes){
+			logger.warn("storeMetadata() not storing " + metadata.length + " bytes of metadata for query " + queryId
+					+ ", the limit is " + maxBytes);
+			return;
+		}
+		queryMetadataRepo.persist(new QueryMetadata(queryId, metadata));
+	}
+
+	/**
+	 * @return the resource the query was sent to
+	 */
+	private Resource resourceOf(QuerySummary query){
+		Resource resource = query.getResourceId() == null ? null : resourceRegistry.get(query.getResourceId());
+		if (resource == null){
+			throw new ApplicationException(ApplicationException.MISSING_RESOURCE);
+		}
+		return resource;
+	}
+
+	/**
+	 * @return the status of the query, including a change not yet written to the database
+	 */
+	private PicSureStatus currentStatus(QuerySummary query){
+		PicSureStatus pending = statusWriter.pending(query.getUuid());
+		return pending != null ? pending : query.getStatus();
+	}
+
+	/**
+	 * The status of a finished query as stored, with what the resource reported about the result when the
+	 * query reached its final status and the result metadata stored when it was submitted
+	 */
+	private QueryStatus storedStatus(QuerySummary query, PicSureStatus currentStatus){
+		QueryStatus status = new QueryStatus();
+		status.setPicsureResultId(query.getUuid());
+		status.setResourceResultId(query.getResourceResultId());
+		status.setResourceID(query.getResourceId());
+		status.setStatus(currentStatus);
+		status.setStartTime(query.getStartTime().getTime());
+		status.setResourceStatus(query.getResourceStatus());
+		if (query.getSizeInBytes() != null){
+			status.setSizeInBytes(query.getSizeInBytes());
+		}
+		if (query.getDuration() != null){
+			status.setDuration(query.getDuration());
+		}
+		if (query.getExpiration() != null){
+			status.setExpiration(query.getExpiration());
+		}
+		QueryMetadata storedMetadata = queryMetadataRepo.getById(query.getUuid());
+		if (storedMetadata != null){
+			Map<String, Object> metadata = new HashMap<>();
+			metadata.put(QUERY_METADATA_FIELD, storedMetadata.getMetadata());
+			status.setResultMetadata(metadata);
+		}
+		return status;
 	}
 
     /**
+     * Read from the replica when it is close enough to the primary, see {@link ReplicaRouting}
      *
      * @param queryId The UUID of the query to get metadata about
      * @return a QueryStatus object containing the metadata stored about the given query
      */
+	@Transactional
 	public QueryStatus queryMetadata(UUID queryId){
+		//Null rather than not found, so that a query not yet on the replica is read from the primary
+		QueryStatus metadata = replicaRouting.read(queryId, () -> readMetadata(queryId));
+		if (metadata == null){
+			throw new ProtocolException(ProtocolException.QUERY_NOT_FOUND + queryId.toString());
+		}
+		return metadata;
+	}
+
+	/**
+	 * Read from the replica when it is close enough to the primary, see {@link ReplicaRouting}
+	 *
+	 * @param queryId The UUID of a query
+	 * @return every query submitted with the same request, oldest first
+	 */
+	@Transactional
+	public List<QueryRun> queryRuns(UUID queryId){
+		List<QueryRun> runs = replicaRouting.read(queryId, () -> queryRepo.getRunsOfSameQuery(queryId));
+		if (runs == null){
+			throw new ProtocolException(ProtocolException.QUERY_NOT_FOUND + queryId.toString());
+		}
+		return runs;
+	}
+
+	/**
+	 * @return the metadata of the query, or null if it is not found
+	 */
+	private QueryStatus readMetadata(UUID queryId){
         Query query = queryRepo.getById(queryId);
         if (query == null){
-			throw new ProtocolException(ProtocolException.QUERY_NOT_FOUND + queryId.toString());
+            //Moved out of the query table by the QueryRetentionSweeper
+            query = queryRepo.getArchived(queryId);
+        }
+        if (query == null){
+            return null;
         }
         QueryStatus response = new QueryStatus();
         response.setStartTime(query.getStartTime().getTime());
         response.setPicsureResultId(query.getUuid());
         response.setResourceID(query.getResource().getUuid());
-        response.setStatus(query.getStatus());
+        PicSureStatus pendingStatus = statusWriter.pending(queryId);
+        response.setStatus(pendingStatus != null ? pendingStatus : query.getStatus());
         response.setResourceResultId(query.getResourceResultId());
         
         Map<String, Object> metadata = new HashMap<String, Object>();
@@ -269,7 +632,8 @@ public class PicsureQueryService {
 			logger.warn("Unable to use object mapper", e);
 		}
         
-        metadata.put(QUERY_METADATA_FIELD, query.getMetadata());
+        QueryMetadata storedMetadata = queryMetadataRepo.getById(queryId);
+        metadata.put(QUERY_METADATA_FIELD, storedMetadata == null ? null : storedMetadata.getMetadata());
         response.setResultMetadata(metadata);
         
         
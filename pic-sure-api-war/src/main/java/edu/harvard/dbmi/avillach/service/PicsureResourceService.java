@@ -1,6 +1,7 @@
 package edu.harvard.dbmi.avillach.service;
 
 import edu.harvard.dbmi.avillach.data.entity.Resource;
+import edu.harvard.dbmi.avillach.data.repository.ReplicaRouting;
 import edu.harvard.dbmi.avillach.data.repository.ResourceRepository;
 import edu.harvard.dbmi.avillach.util.response.PICSUREResponse;
 import edu.harvard.dbmi.avillach.util.PicsureNaming;
@@ -14,6 +15,7 @@ import javax.ws.rs.*;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import java.util.List;
+import java.util.UUID;
 
 /**
  * Service handling business logic for CRUD on resources
@@ -26,6 +28,12 @@ public class PicsureResourceService extends PicsureBaseEntityService<Resource>{
     @Inject
     ResourceRepository resourceRepo;
 
+    @Inject
+    ResourceRegistry resourceRegistry;
+
+    @Inject
+    ReplicaRouting replicaRouting;
+
     public PicsureResourceService() {
         super(Resource.class);
     }
@@ -37,13 +45,23 @@ public class PicsureResourceService extends PicsureBaseEntityService<Resource>{
         return getEntityById(resourceId, resourceRepo);
     }
 
+    /**
+     * Lists resources ordered by id. Without a limit all resources are returned. Read from the
+     * replica unless resources were changed through this node moments ago.
+     *
+     * @param limit the most resources to return
+     * @param after the id of the last resource of the previous page
+     */
     @GET
     @Path("")
-    public Response getResourceAll() {
+    public Response getResourceAll(@QueryParam("limit") Integer limit, @QueryParam("after") UUID after) {
         logger.info("Getting all resources...");
         List<Resource> resources = null;
 
-        resources = resourceRepo.list();
+        if (limit == null && after == null)
+            resources = replicaRouting.read(Resource.class, () -> resourceRepo.list());
+        else
+            resources = replicaRouting.read(Resource.class, () -> resourceRepo.list(after, limit == null ? 0 : limit));
 
         if (resources == null)
             return PICSUREResponse.applicationError("Error occurs when listing all resources.");
@@ -55,21 +73,30 @@ public class PicsureResourceService extends PicsureBaseEntityService<Resource>{
     @Consumes(MediaType.APPLICATION_JSON)
     @Path("/")
     public Response addResource(List<Resource> resources){
-        return addEntity(resources, resourceRepo);
+        Response response = addEntity(resources, resourceRepo);
+        replicaRouting.wrote(Resource.class);
+        resourceRegistry.refresh();
+        return response;
     }
 
     @PUT
     @Consumes(MediaType.APPLICATION_JSON)
     @Path("/")
     public Response updateResource(List<Resource> resources){
-        return updateEntity(resources, resourceRepo);
+        Response response = updateEntity(resources, resourceRepo);
+        replicaRouting.wrote(Resource.class);
+        resourceRegistry.refresh();
+        return response;
     }
 
     @Transactional
     @DELETE
     @Path("/{resourceId}")
     public Response removeEntityById(@PathParam("resourceId") final String resourceId) {
-        return removeEntityById(resourceId, resourceRepo);
+        Response response = removeEntityById(resourceId, resourceRepo);
+        replicaRouting.wrote(Resource.class);
+        resourceRegistry.refresh();
+        return response;
     }
 
 }
@@ -1,25 +1,38 @@
 package edu.harvard.dbmi.avillach.service;
 
-import java.util.HashMap;
-import java.util.UUID;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
 
+import edu.harvard.dbmi.avillach.PicSureWarInit;
 import edu.harvard.dbmi.avillach.data.entity.Resource;
-import edu.harvard.dbmi.avillach.data.repository.ResourceRepository;
 import edu.harvard.dbmi.avillach.domain.QueryRequest;
 import edu.harvard.dbmi.avillach.domain.SearchResults;
 import edu.harvard.dbmi.avillach.util.exception.ApplicationException;
 import edu.harvard.dbmi.avillach.util.exception.ProtocolException;
+import edu.harvard.dbmi.avillach.util.trace.Tracing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
 
 public class PicsureSearchService {
 
+	private Logger logger = LoggerFactory.getLogger(PicsureSearchService.class);
+
 	@Inject
-	ResourceRepository resourceRepo;
+	ResourceRegistry resourceRegistry;
 
 	@Inject
 	ResourceWebClient resourceWebClient;
 
+	@Inject
+	PicSureWarInit picSureWarInit;
+
+	//Fully qualified, the Resource entity is already imported
+	@javax.annotation.Resource(lookup = "java:comp/DefaultManagedExecutorService")
+	ExecutorService executor;
+
 	/**
 	 * Executes a concept search against a target resource
 	 * 
@@ -32,7 +45,7 @@ public class PicsureSearchService {
 		if (resourceId == null){
 			throw new ProtocolException(ProtocolException.MISSING_RESOURCE_ID);
 		}
-		Resource resource = resourceRepo.getById(resourceId);
+		Resource resource = resourceRegistry.get(resourceId);
 		if (resource == null) {
 			throw new ProtocolException(ProtocolException.RESOURCE_NOT_FOUND + resourceId.toString());
 		}
@@ -49,4 +62,74 @@ public class PicsureSearchService {
 		return resourceWebClient.search(resource.getResourceRSPath(), searchQueryRequest);
 	}
 
+	/**
+	 * Executes a concept search against every registered resource, or against the given subset
+	 * of resources, in parallel. Resources that fail or do not answer within the search timeout
+	 * are left out of the results rather than failing the whole search.
+	 *
+	 * @param resourceIds - UUIDs of target resources, all resources are searched if this is null or empty
+	 * @param searchQueryRequest - {@link QueryRequest} containing resource specific credentials object
+	 *                       and resource specific query (could be a string or a json object)
+	 * @return {@link SearchResults} whose results are a map of resource UUID to that resource's {@link SearchResults}
+	 */
+	public SearchResults searchAll(List<UUID> resourceIds, QueryRequest searchQueryRequest) {
+		if (searchQueryRequest == null){
+			throw new ProtocolException(ProtocolException.MISSING_DATA);
+		}
+
+		List<Resource> resources;
+		if (resourceIds == null || resourceIds.isEmpty()){
+			resources = resourceRegistry.list();
+		} else {
+			resources = resourceIds.stream().distinct()
+					.map(resourceRegistry::get)
+					.filter(Objects::nonNull)
+					.collect(Collectors.toList());
+		}
+
+		long deadline = System.currentTimeMillis() + picSureWarInit.getSearchTimeoutMillis();
+		CompletionService<Map.Entry<UUID, SearchResults>> completionService = new ExecutorCompletionService<>(executor);
+		List<Future<Map.Entry<UUID, SearchResults>>> pending = new ArrayList<>();
+		for (Resource resource : resources){
+			if (resource.getResourceRSPath() == null){
+				logger.warn("searchAll() skipping resource " + resource.getUuid() + ": " + ApplicationException.MISSING_RESOURCE_PATH);
+				continue;
+			}
+			//Each resource gets its own request so no resource sees another's credentials being modified
+			QueryRequest resourceRequest = new QueryRequest();
+			resourceRequest.setQuery(searchQueryRequest.getQuery());
+			resourceRequest.setResourceUUID(resource.getUuid());
+			resourceRequest.setResourceCredentials(searchQueryRequest.getResourceCredentials() == null ?
+					new HashMap<>() : new HashMap<>(searchQueryRequest.getResourceCredentials()));
+			pending.add(completionService.submit(Tracing.propagate(() -> new AbstractMap.SimpleEntry<>(resource.getUuid(),
+					resourceWebClient.search(resource.getResourceRSPath(), resourceRequest)))));
+		}
+
+		Map<UUID, SearchResults> results = new LinkedHashMap<>();
+		try {
+			for (int completed = 0; completed < pending.size(); completed++){
+				long remaining = deadline - System.currentTimeMillis();
+				Future<Map.Entry<UUID, SearchResults>> future = remaining > 0 ? completionService.poll(remaining, TimeUnit.MILLISECONDS) : null;
+				if (future == null){
+					logger.warn("searchAll() timed out with " + (pending.size() - completed) + " resource(s) still searching");
+					break;
+				}
+				try {
+					Map.Entry<UUID, SearchResults> result = future.get();
+					results.put(result.getKey(), result.getValue());
+				} catch (ExecutionException e){
+					logger.warn("searchAll() a resource search failed: " + e.getCause().getMessage());
+				}
+			}
+		} catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+		} finally {
+			pending.forEach(future -> future.cancel(true));
+		}
+
+		return new SearchResults()
+				.setResults(results)
+				.setSearchQuery(searchQueryRequest.getQuery() == null ? null : searchQueryRequest.getQuery().toString());
+	}
+
 }
@@ -0,0 +1,186 @@
+package edu.harvard.dbmi.avillach.service;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.*;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import edu.harvard.dbmi.avillach.data.projection.QueryHistoryEntry;
+import edu.harvard.dbmi.avillach.data.repository.QueryHistoryCursor;
+import edu.harvard.dbmi.avillach.util.exception.ApplicationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.sql.DataSource;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.StreamingOutput;
+
+/**
+ * Streams the query history as NDJSON or CSV for usage reporting, one row at a time.
+ *
+ * Rows are read from the replica datasource, which is the primary unless a replica is configured,
+ * through a {@link QueryHistoryCursor}. The datasource takes no part in transactions, so an export
+ * may run for as long as the client keeps reading. The resource credentials a query was sent with are
+ * left out, as JWTFilter leaves them out of what it audits: queries stored before they were removed
+ * from the stored request still hold them.
+ */
+@ApplicationScoped
+public class QueryHistoryExporter {
+
+	public static final String FORMAT_NDJSON = "ndjson";
+	public static final String FORMAT_CSV = "csv";
+
+	static final int FETCH_SIZE = 500;
+
+	private static final List<String> COLUMNS = Arrays.asList("uuid", "resourceId", "username", "status", "startTime",
+			"submittedAt", "completedAt", "resourceResultId", "archived", "query");
+
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	private Logger logger = LoggerFactory.getLogger(QueryHistoryExporter.class);
+
+	@javax.annotation.Resource(lookup = "java:jboss/datasources/PicsureReplicaDS")
+	DataSource dataSource;
+
+	/**
+	 * @return the media type of a format, or null if it is not one of ours
+	 */
+	public static MediaType mediaType(String format) {
+		if (FORMAT_NDJSON.equals(format)) {
+			return NdjsonResultTranscoder.NDJSON;
+		}
+		if (FORMAT_CSV.equals(format)) {
+			return DelimitedResultTranscoder.CSV.getMediaType();
+		}
+		return null;
+	}
+
+	/**
+	 * @param format {@link #FORMAT_NDJSON} or {@link #FORMAT_CSV}
+	 * @param from first day to include, null for no lower bound
+	 * @param to first day to leave out, null for no upper bound
+	 * @param includeArchived whether to include queries moved to the archive
+	 */
+	public StreamingOutput export(String format, Date from, Date to, boolean includeArchived) {
+		return output -> {
+			Writer writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+			RowWriter rows = FORMAT_CSV.equals(format) ? new CsvRowWriter(writer) : new NdjsonRowWriter(writer);
+			try (Connection connection = dataSource.getConnection()) {
+				connection.setReadOnly(true);
+				long count = new QueryHistoryCursor(connection, FETCH_SIZE).forEach(from, to, includeArchived, entry -> {
+					try {
+						rows.write(entry);
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				});
+				logger.info("export() wrote " + count + " queries as " + format);
+			} catch (UncheckedIOException e) {
+				//The client stopped reading
+				throw e.getCause();
+			} catch (SQLException e) {
+				throw new ApplicationException("Unable to read the query history", e);
+			}
+			writer.flush();
+		};
+	}
+
+	private interface RowWriter {
+		void write(QueryHistoryEntry entry) throws IOException;
+	}
+
+	private static class NdjsonRowWriter implements RowWriter {
+		private final Writer writer;
+		private final JsonGenerator generator;
+
+		NdjsonRowWriter(Writer writer) throws IOException {
+			this.writer = writer;
+			this.generator = mapper.getFactory().createGenerator(writer);
+			generator.configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+			generator.setRootValueSeparator(null);
+		}
+
+		@Override
+		public void write(QueryHistoryEntry entry) throws IOException {
+			Map<String, Object> row = new LinkedHashMap<>();
+			for (String column : COLUMNS) {
+				row.put(column, column.equals("query") ? queryJson(entry.getQuery()) : value(entry, column));
+			}
+			generator.writeObject(row);
+			generator.flush();
+			writer.write('\n');
+		}
+
+	}
+
+	private static class CsvRowWriter implements RowWriter {
+		private final Writer writer;
+		private boolean headerWritten;
+
+		CsvRowWriter(Writer writer) {
+			this.writer = writer;
+		}
+
+		@Override
+		public void write(QueryHistoryEntry entry) throws IOException {
+			if (!headerWritten) {
+				DelimitedResultTranscoder.CSV.writeLine(writer, COLUMNS);
+				headerWritten = true;
+			}
+			List<String> values = new ArrayList<>(COLUMNS.size());
+			for (String column : COLUMNS) {
+				Object value = value(entry, column);
+				values.add(value == null ? null : value.toString());
+			}
+			DelimitedResultTranscoder.CSV.writeLine(writer, values);
+		}
+	}
+
+	private static Object value(QueryHistoryEntry entry, String column) {
+		switch (column) {
+			case "uuid": return entry.getUuid();
+			case "resourceId": return entry.getResourceId();
+			case "username": return entry.getUsername();
+			case "status": return entry.getStatus();
+			case "startTime": return entry.getStartTime() == null ? null : entry.getStartTime().toString();
+			case "submittedAt": return entry.getSubmittedAt() == null ? null : entry.getSubmittedAt().toInstant().toString();
+			case "completedAt": return entry.getCompletedAt() == null ? null : entry.getCompletedAt().toInstant().toString();
+			case "resourceResultId": return entry.getResourceResultId();
+			case "archived": return entry.isArchived();
+			case "query": {
+				Object query = queryJson(entry.getQuery());
+				return query == null ? null : query.toString();
+			}
+			default: throw new IllegalArgumentException(column);
+		}
+	}
+
+	/**
+	 * @return the query as JSON without its resource credentials, or as text if it is not JSON
+	 */
+	private static Object queryJson(String query) {
+		if (query == null) {
+			return null;
+		}
+		JsonNode json;
+		try {
+			json = mapper.readTree(query);
+		} catch (IOException e) {
+			//Not JSON, kept as text
+			return query;
+		}
+		//A federated query is a list of requests
+		for (JsonNode request : json.isArray() ? json : Collections.singletonList(json)) {
+			if (request instanceof ObjectNode) {
+				((ObjectNode) request).remove("resourceCredentials");
+			}
+		}
+		return json;
+	}
+}
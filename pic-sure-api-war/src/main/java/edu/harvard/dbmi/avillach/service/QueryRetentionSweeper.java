@@ -0,0 +1,79 @@
+package edu.harvard.dbmi.avillach.service;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import edu.harvard.dbmi.avillach.PicSureWarInit;
+import edu.harvard.dbmi.avillach.data.repository.QueryRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ejb.Schedule;
+import javax.ejb.Singleton;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.inject.Inject;
+
+/**
+ * Moves queries older than the configured retention age from the query table to the query_archive
+ * table, once an hour.
+ *
+ * Each batch is moved in its own short transaction, with a pause between batches so that request
+ * traffic is never blocked for long, and a single run stops after a few minutes and leaves the rest
+ * for the next one. Archived queries can still be read through {@link PicsureQueryService#queryMetadata(java.util.UUID)}.
+ *
+ * A retention of zero days or less keeps every query.
+ */
+@Singleton
+public class QueryRetentionSweeper {
+
+	static final long PAUSE_MILLIS = 200;
+
+	static final long MAX_RUN_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+	private Logger logger = LoggerFactory.getLogger(QueryRetentionSweeper.class);
+
+	@Inject
+	PicSureWarInit picSureWarInit;
+
+	@Inject
+	QueryRepository queryRepo;
+
+	/**
+	 * Runs outside any container transaction, so that each batch really commits on its own and the
+	 * run is not cut short by the transaction timeout
+	 *
+	 * @return how many queries were archived
+	 */
+	@Schedule(hour = "*", minute = "17", persistent = false)
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	public int sweep() {
+		int retentionDays = picSureWarInit.getQueryRetentionDays();
+		int batchSize = picSureWarInit.getQueryRetentionBatchSize();
+		if (retentionDays <= 0 || batchSize <= 0) {
+			return 0;
+		}
+		Date cutoff = new Date(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(retentionDays));
+		long deadline = System.currentTimeMillis() + MAX_RUN_MILLIS;
+		int total = 0;
+		try {
+			int moved;
+			do {
+				moved = queryRepo.archive(cutoff, batchSize);
+				total += moved;
+				if (moved >= batchSize) {
+					Thread.sleep(PAUSE_MILLIS);
+				}
+			} while (moved >= batchSize && System.currentTimeMillis() < deadline);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (RuntimeException e) {
+			//Batches already moved stay moved, the rest are tried again on the next run
+			logger.error("sweep() unable to archive queries started before " + cutoff, e);
+		}
+		if (total > 0) {
+			logger.info("sweep() archived " + total + " queries started before " + cutoff);
+		}
+		return total;
+	}
+}
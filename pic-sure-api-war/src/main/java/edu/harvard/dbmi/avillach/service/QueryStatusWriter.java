@@ -0,0 +1,97 @@
+package edu.harvard.dbmi.avillach.service;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import edu.harvard.dbmi.avillach.PicSureWarInit;
+import edu.harvard.dbmi.avillach.data.repository.QueryRepository;
+import edu.harvard.dbmi.avillach.data.repository.ReplicaRouting;
+import edu.harvard.dbmi.avillach.util.PicSureStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PreDestroy;
+import javax.ejb.Lock;
+import javax.ejb.LockType;
+import javax.ejb.Schedule;
+import javax.ejb.Singleton;
+import javax.inject.Inject;
+
+/**
+ * Write-behind buffer for query status changes seen while polling resources.
+ *
+ * Only changes are recorded, and only the latest status per query is kept. The buffer is written to
+ * the database in one JDBC batch every few seconds, or as soon as it holds the configured number of
+ * queries. Until then {@link #pending(UUID)} gives the status that is on its way, so callers on this
+ * node never see an older one.
+ */
+@Singleton
+@Lock(LockType.READ)
+public class QueryStatusWriter {
+
+	private Logger logger = LoggerFactory.getLogger(QueryStatusWriter.class);
+
+	@Inject
+	PicSureWarInit picSureWarInit;
+
+	@Inject
+	QueryRepository queryRepo;
+
+	@Inject
+	ReplicaRouting replicaRouting;
+
+	private final Map<UUID, PicSureStatus> pending = new ConcurrentHashMap<>();
+
+	/**
+	 * Queues a status change for a query
+	 */
+	public void record(UUID queryId, PicSureStatus status) {
+		pending.put(queryId, status);
+		int batchSize = picSureWarInit.getStatusFlushBatchSize();
+		if (batchSize > 0 && pending.size() >= batchSize) {
+			flush();
+		}
+	}
+
+	/**
+	 * @return the status waiting to be written for this query, or null if there is none
+	 */
+	public PicSureStatus pending(UUID queryId) {
+		return pending.get(queryId);
+	}
+
+	/**
+	 * Drops any status waiting to be written for this query, for when the caller writes it itself
+	 */
+	public void forget(UUID queryId) {
+		pending.remove(queryId);
+	}
+
+	@Schedule(hour = "*", minute = "*", second = "*/5", persistent = false)
+	public void flush() {
+		if (pending.isEmpty()) {
+			return;
+		}
+		Map<UUID, PicSureStatus> batch = new HashMap<>(pending);
+		try {
+			queryRepo.updateStatuses(batch);
+		} catch (RuntimeException e) {
+			//Entries stay in the buffer and are tried again on the next flush
+			logger.error("flush() unable to write " + batch.size() + " query statuses", e);
+			return;
+		}
+		//A newer status recorded while writing stays for the next flush
+		batch.forEach((queryId, status) -> {
+			pending.remove(queryId, status);
+			replicaRouting.wrote(queryId);
+		});
+		logger.debug("flush() wrote " + batch.size() + " query statuses");
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		flush();
+	}
+}
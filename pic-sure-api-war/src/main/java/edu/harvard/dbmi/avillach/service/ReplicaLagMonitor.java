@@ -0,0 +1,47 @@
+package edu.harvard.dbmi.avillach.service;
+
+import edu.harvard.dbmi.avillach.PicSureWarInit;
+import edu.harvard.dbmi.avillach.data.repository.ReplicaRouting;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PostConstruct;
+import javax.ejb.Schedule;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.inject.Inject;
+
+/**
+ * Configures {@link ReplicaRouting} at startup and measures the replica's lag every few seconds,
+ * so that reads move back to the primary soon after the replica falls behind.
+ */
+@Singleton
+@Startup
+public class ReplicaLagMonitor {
+
+	private Logger logger = LoggerFactory.getLogger(ReplicaLagMonitor.class);
+
+	@Inject
+	PicSureWarInit picSureWarInit;
+
+	@Inject
+	ReplicaRouting replicaRouting;
+
+	@PostConstruct
+	public void init() {
+		replicaRouting.configure(picSureWarInit.isReadReplicaEnabled(), picSureWarInit.getReadReplicaMaxLagMillis());
+		if (picSureWarInit.isReadReplicaEnabled()) {
+			logger.info("init() read replica enabled, tolerating " + picSureWarInit.getReadReplicaMaxLagMillis() + " ms of lag");
+			check();
+		}
+	}
+
+	@Schedule(hour = "*", minute = "*", second = "*/10", persistent = false)
+	public void check() {
+		if (!picSureWarInit.isReadReplicaEnabled()) {
+			return;
+		}
+		replicaRouting.measureLag();
+		replicaRouting.prune();
+	}
+}
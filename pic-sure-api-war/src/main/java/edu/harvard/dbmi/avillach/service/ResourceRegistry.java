@@ -0,0 +1,102 @@
+package edu.harvard.dbmi.avillach.service;
+
+import java.util.*;
+
+import edu.harvard.dbmi.avillach.data.entity.Resource;
+import edu.harvard.dbmi.avillach.data.repository.ResourceRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PostConstruct;
+import javax.ejb.DependsOn;
+import javax.ejb.Lock;
+import javax.ejb.LockType;
+import javax.ejb.Schedule;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.inject.Inject;
+
+/**
+ * In-memory snapshot of all resources, so that request paths do not read the resource table.
+ *
+ * Resources change rarely, so the whole table is loaded at startup and replaced as one immutable
+ * map whenever it is refreshed; readers never wait on a refresh. {@link PicsureResourceService}
+ * refreshes it after each change on this node, and it is reloaded every minute to pick up changes
+ * made through other nodes.
+ */
+@Singleton
+@Startup
+@DependsOn("SchemaMigrations")
+@Lock(LockType.READ)
+public class ResourceRegistry {
+
+	private Logger logger = LoggerFactory.getLogger(ResourceRegistry.class);
+
+	@Inject
+	ResourceRepository resourceRepo;
+
+	private volatile Map<UUID, Resource> snapshot = Collections.emptyMap();
+
+	@PostConstruct
+	public void init() {
+		try {
+			refresh();
+		} catch (RuntimeException e) {
+			//The next scheduled refresh tries again
+			logger.error("init() unable to load resources", e);
+		}
+	}
+
+	/**
+	 * @return the resource with this id, or null if there is none
+	 */
+	public Resource get(UUID resourceId) {
+		return resourceId == null ? null : snapshot.get(resourceId);
+	}
+
+	/**
+	 * @return the resource whose path the url is under, or null if there is none
+	 */
+	public Resource forUrl(String url) {
+		if (url == null) {
+			return null;
+		}
+		Resource found = null;
+		for (Resource resource : snapshot.values()) {
+			String path = resource.getResourceRSPath();
+			//The longest matching path wins, for resources served under one another
+			if (path != null && !path.isEmpty() && url.startsWith(path)
+					&& (found == null || path.length() > found.getResourceRSPath().length())) {
+				found = resource;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * @return all resources, in the order the database listed them
+	 */
+	public List<Resource> list() {
+		return new ArrayList<>(snapshot.values());
+	}
+
+	/**
+	 * Reloads all resources from the database
+	 */
+	@Schedule(hour = "*", minute = "*", persistent = false)
+	public void refresh() {
+		List<Resource> resources = resourceRepo.list();
+		if (resources == null) {
+			logger.warn("refresh() unable to list resources, keeping the previous snapshot");
+			return;
+		}
+		Map<UUID, Resource> loaded = new LinkedHashMap<>();
+		for (Resource resource : resources) {
+			loaded.put(resource.getUuid(), resource);
+		}
+		if (!loaded.keySet().equals(snapshot.keySet())) {
+			logger.info("refresh() now serving " + loaded.size() + " resources");
+		}
+		snapshot = Collections.unmodifiableMap(loaded);
+	}
+}
@@ -0,0 +1,359 @@
+package edu.harvard.dbmi.avillach.service;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import edu.harvard.dbmi.avillach.PicSureWarInit;
+import edu.harvard.dbmi.avillach.util.ByteRange;
+import edu.harvard.dbmi.avillach.util.exception.ApplicationException;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ejb.Lock;
+import javax.ejb.LockType;
+import javax.ejb.Schedule;
+import javax.ejb.Singleton;
+import javax.inject.Inject;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+/**
+ * Local copies of query results, so that a download that was cut off can be resumed with a
+ * Range request without fetching the result from the resource again, even when the resource
+ * itself does not support ranges.
+ *
+ * Results are written to a part file while they stream and only become visible once complete.
+ * Copies older than the configured time to live are removed periodically. A result larger than the
+ * configured maximum, or one that would take the spool past its configured total size or there is
+ * no room for on disk, is not copied: it streams straight through and a resumed download goes back
+ * to the resource.
+ *
+ * Spooling is off unless a directory is configured with result_spool_dir. A local copy is only served
+ * to a caller the resource still answers for the query, see PicsureQueryService.
+ */
+@Singleton
+@Lock(LockType.READ)
+public class ResultSpool {
+
+	private static final String RESULT_SUFFIX = ".result";
+	private static final String PART_SUFFIX = ".part";
+
+	private Logger logger = LoggerFactory.getLogger(ResultSpool.class);
+
+	@Inject
+	PicSureWarInit picSureWarInit;
+
+	//Bytes promised to copies still being written, which count against the total size of the spool
+	private long reserved;
+
+	private final Object reserving = new Object();
+
+	/**
+	 * The entity tag for the result of a query. A query's result does not change once it is
+	 * available, so the query id is enough to tell representations apart.
+	 */
+	public String etag(UUID queryId) {
+		return "\"" + queryId + "\"";
+	}
+
+	/**
+	 * @return whether results are copied at all
+	 */
+	public boolean isEnabled() {
+		String directory = picSureWarInit.getResultSpoolDir();
+		return directory != null && !directory.isEmpty();
+	}
+
+	/**
+	 * @return the complete local copy of the result for this query, or null if there is none
+	 */
+	public File get(UUID queryId) {
+		if (!isEnabled()) {
+			return null;
+		}
+		File file = directory().resolve(queryId + RESULT_SUFFIX).toFile();
+		return file.isFile() ? file : null;
+	}
+
+	/**
+	 * @param length the length of a result, -1 if it is not known
+	 * @return whether a result of this length can be copied before any of it is sent
+	 */
+	public boolean fits(long length) {
+		if (!isEnabled() || length < 0 || length > picSureWarInit.getResultSpoolMaxBytes()) {
+			return false;
+		}
+		synchronized (reserving) {
+			return hasRoomFor(length);
+		}
+	}
+
+	/**
+	 * Copies the whole stream into the spool and closes it
+	 *
+	 * @param length the length of the result, -1 if it is not known
+	 * @return the complete local copy
+	 */
+	public File spool(UUID queryId, InputStream source, long length) {
+		try (InputStream spooling = spooling(queryId, source, length)) {
+			IOUtils.copyLarge(spooling, NullOutputStream.NULL_OUTPUT_STREAM);
+		} catch (IOException e) {
+			throw new ApplicationException("Unable to spool result for query " + queryId, e);
+		}
+		File file = get(queryId);
+		if (file == null) {
+			throw new ApplicationException("Unable to spool result for query " + queryId);
+		}
+		return file;
+	}
+
+	/**
+	 * Wraps a result stream so that everything read from it is also written to the spool. The copy is
+	 * published when the stream is read to the end, and discarded if it is closed before that or if it
+	 * grows past the configured maximum.
+	 *
+	 * @param length the length of the result, -1 if it is not known
+	 * @return the wrapped stream, or the source itself if the result is not to be copied
+	 */
+	public InputStream spooling(UUID queryId, InputStream source, long length) {
+		long maxBytes = picSureWarInit.getResultSpoolMaxBytes();
+		if (!isEnabled() || length > maxBytes) {
+			return source;
+		}
+		//Room for the copy, or for the largest copy allowed when its length is not known
+		long reservation = length < 0 ? maxBytes : length;
+		synchronized (reserving) {
+			if (!hasRoomFor(reservation)) {
+				logger.warn("spooling() not enough space in " + directory() + " to spool result for query " + queryId);
+				return source;
+			}
+			reserved += reservation;
+		}
+		try {
+			Path directory = Files.createDirectories(directory());
+			Path part = Files.createTempFile(directory, queryId.toString(), PART_SUFFIX);
+			return new SpoolingInputStream(source, part, directory.resolve(queryId + RESULT_SUFFIX), maxBytes, reservation);
+		} catch (IOException e) {
+			release(reservation);
+			//Not being able to spool only means a resumed download goes back to the resource
+			logger.warn("spooling() unable to spool result for query " + queryId + ": " + e.getMessage());
+			return source;
+		}
+	}
+
+	/**
+	 * Serves a local copy, honoring a single byte range
+	 *
+	 * @param file a complete local copy
+	 * @param range the Range header, null for the whole file
+	 * @param etag the entity tag of the result
+	 */
+	public Response serve(File file, String range, String etag) {
+		long totalLength = file.length();
+		ByteRange byteRange = ByteRange.parse(range, totalLength);
+		if (byteRange == null) {
+			return Response.ok(copy(file, 0, totalLength))
+					.header(HttpHeaders.CONTENT_LENGTH, totalLength)
+					.header(ByteRange.ACCEPT_RANGES, ByteRange.BYTES)
+					.header(HttpHeaders.ETAG, etag)
+					.build();
+		}
+		if (!byteRange.isSatisfiable()) {
+			return Response.status(Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE)
+					.header(ByteRange.CONTENT_RANGE, byteRange.toContentRange())
+					.header(ByteRange.ACCEPT_RANGES, ByteRange.BYTES)
+					.build();
+		}
+		return Response.status(Response.Status.PARTIAL_CONTENT)
+				.entity(copy(file, byteRange.getStart(), byteRange.getLength()))
+				.header(HttpHeaders.CONTENT_LENGTH, byteRange.getLength())
+				.header(ByteRange.CONTENT_RANGE, byteRange.toContentRange())
+				.header(ByteRange.ACCEPT_RANGES, ByteRange.BYTES)
+				.header(HttpHeaders.ETAG, etag)
+				.build();
+	}
+
+	@Schedule(hour = "*", minute = "*/15", persistent = false)
+	public void evictExpired() {
+		if (!isEnabled()) {
+			return;
+		}
+		Path directory = directory();
+		if (!Files.isDirectory(directory)) {
+			return;
+		}
+		long cutoff = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(picSureWarInit.getResultSpoolTtlMinutes());
+		File[] files = directory.toFile().listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			if (file.lastModified() < cutoff && !file.delete()) {
+				logger.warn("evictExpired() unable to delete " + file);
+			}
+		}
+	}
+
+	private Path directory() {
+		return Paths.get(picSureWarInit.getResultSpoolDir());
+	}
+
+	/**
+	 * Must be called holding the reserving lock, so that two copies cannot both take the last of the room
+	 */
+	private boolean hasRoomFor(long length) {
+		if (published() + reserved + length > picSureWarInit.getResultSpoolMaxTotalBytes()) {
+			return false;
+		}
+		File directory = directory().toFile();
+		//Before the first result the directory may not exist yet, its parent is on the same disk
+		while (directory != null && !directory.exists()) {
+			directory = directory.getParentFile();
+		}
+		return directory != null && directory.getUsableSpace() >= length;
+	}
+
+	/**
+	 * @return the size of the complete copies, part files are counted by their reservation instead
+	 */
+	private long published() {
+		File[] files = directory().toFile().listFiles((dir, name) -> name.endsWith(RESULT_SUFFIX));
+		long size = 0;
+		if (files != null) {
+			for (File file : files) {
+				size += file.length();
+			}
+		}
+		return size;
+	}
+
+	private void release(long reservation) {
+		synchronized (reserving) {
+			reserved -= reservation;
+		}
+	}
+
+	private StreamingOutput copy(File file, long offset, long length) {
+		return (OutputStream output) -> {
+			try (InputStream input = new FileInputStream(file)) {
+				IOUtils.copyLarge(input, output, offset, length);
+			}
+		};
+	}
+
+	private class SpoolingInputStream extends FilterInputStream {
+
+		private final Path part;
+		private final Path target;
+		private final long maxBytes;
+		private long reservation;
+		private OutputStream copy;
+		private long copied;
+		private boolean complete;
+
+		SpoolingInputStream(InputStream source, Path part, Path target, long maxBytes, long reservation) throws IOException {
+			super(source);
+			this.part = part;
+			this.target = target;
+			this.maxBytes = maxBytes;
+			this.reservation = reservation;
+			try {
+				this.copy = new BufferedOutputStream(Files.newOutputStream(part));
+			} catch (IOException e) {
+				Files.deleteIfExists(part);
+				throw e;
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b < 0) {
+				complete = true;
+			} else {
+				keep(new byte[]{(byte) b}, 0, 1);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			int count = super.read(buffer, offset, length);
+			if (count < 0) {
+				complete = true;
+			} else {
+				keep(buffer, offset, count);
+			}
+			return count;
+		}
+
+		private void keep(byte[] buffer, int offset, int length) {
+			if (copy == null) {
+				return;
+			}
+			if (copied + length > maxBytes) {
+				//The download itself goes on without a local copy
+				logger.info("spooling() result is larger than " + maxBytes + " bytes, not spooling " + part);
+				discard();
+				return;
+			}
+			try {
+				copy.write(buffer, offset, length);
+				copied += length;
+			} catch (IOException e) {
+				//The download itself goes on without a local copy
+				logger.warn("spooling() giving up on " + part + ": " + e.getMessage());
+				discard();
+			}
+		}
+
+		private void discard() {
+			try {
+				copy.close();
+				Files.deleteIfExists(part);
+			} catch (IOException e) {
+				logger.warn("spooling() unable to delete " + part + ": " + e.getMessage());
+			}
+			copy = null;
+			releaseReservation();
+		}
+
+		private void releaseReservation() {
+			release(reservation);
+			reservation = 0;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			//Skipped bytes would be missing from the copy
+			byte[] buffer = new byte[(int) Math.min(n, 8192)];
+			int count = read(buffer, 0, buffer.length);
+			return Math.max(count, 0);
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				if (copy != null && complete) {
+					try {
+						copy.close();
+						copy = null;
+						Files.move(part, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+					} finally {
+						//Published, it now counts by its size
+						releaseReservation();
+					}
+				} else if (copy != null) {
+					discard();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,24 @@
+package edu.harvard.dbmi.avillach.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.ws.rs.core.MediaType;
+
+/**
+ * Converts a JSON query result into another representation as it streams, without
+ * holding more than one row in memory.
+ *
+ * Results are expected to be a JSON array whose elements are rows, each either an object
+ * (column name to value) or an array of values. Anything else is treated as a single row.
+ */
+public interface ResultTranscoder {
+
+	/**
+	 * @return the media type this transcoder writes
+	 */
+	MediaType getMediaType();
+
+	void transcode(InputStream json, OutputStream output) throws IOException;
+}
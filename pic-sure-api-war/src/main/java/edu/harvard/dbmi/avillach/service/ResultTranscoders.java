@@ -0,0 +1,80 @@
+package edu.harvard.dbmi.avillach.service;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import edu.harvard.dbmi.avillach.util.ByteRange;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+/**
+ * Content negotiation for query results. Results are passed through untouched unless the
+ * client prefers one of the representations a {@link ResultTranscoder} can produce.
+ */
+@ApplicationScoped
+public class ResultTranscoders {
+
+	private final List<ResultTranscoder> transcoders = Arrays.asList(
+			DelimitedResultTranscoder.CSV, DelimitedResultTranscoder.TSV, new NdjsonResultTranscoder());
+
+	/**
+	 * @param acceptable - the media types the client accepts, most preferred first
+	 * @return the transcoder for the client's preferred representation, or null if the result
+	 * should be sent as it is
+	 */
+	public ResultTranscoder negotiate(List<MediaType> acceptable) {
+		if (acceptable == null) {
+			return null;
+		}
+		for (MediaType mediaType : acceptable) {
+			if (mediaType.isWildcardType() || mediaType.isCompatible(MediaType.APPLICATION_JSON_TYPE)) {
+				return null;
+			}
+			for (ResultTranscoder transcoder : transcoders) {
+				if (mediaType.isCompatible(transcoder.getMediaType())) {
+					return transcoder;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Replaces a successful streamed result with its transcoded form. Headers that describe the
+	 * bytes of the original representation are dropped.
+	 *
+	 * Only JSON can be transcoded. A result the resource labeled as anything else is passed through
+	 * as it is, with its own type; a result without a type is taken to be JSON, as results always were.
+	 */
+	public Response transcode(ResultTranscoder transcoder, Response response) {
+		Object entity = response.getEntity();
+		if (transcoder == null || response.getStatus() != Response.Status.OK.getStatusCode() || !(entity instanceof InputStream)
+				|| !isJson(response.getMediaType())) {
+			return response;
+		}
+		StreamingOutput transcoded = (OutputStream output) -> {
+			try (InputStream json = (InputStream) entity) {
+				transcoder.transcode(json, output);
+			}
+		};
+		return Response.fromResponse(response)
+				.entity(transcoded)
+				.type(transcoder.getMediaType())
+				.header(HttpHeaders.CONTENT_LENGTH, null)
+				.header(HttpHeaders.ETAG, null)
+				.header(ByteRange.CONTENT_RANGE, null)
+				.header(ByteRange.ACCEPT_RANGES, null)
+				.build();
+	}
+
+	private boolean isJson(MediaType mediaType) {
+		return mediaType == null || mediaType.isCompatible(MediaType.APPLICATION_JSON_TYPE)
+				|| mediaType.getSubtype().endsWith("+json");
+	}
+}
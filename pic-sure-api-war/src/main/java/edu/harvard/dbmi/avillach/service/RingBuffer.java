@@ -0,0 +1,77 @@
+package edu.harvard.dbmi.avillach.service;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded, lock-free queue for many producers and a single consumer.
+ *
+ * Producers claim a slot with one compare-and-set on the tail and never wait: when the buffer is
+ * full the element is dropped and counted instead. Only one thread at a time may call {@link #poll()}.
+ */
+public class RingBuffer<E> {
+
+	private final AtomicReferenceArray<E> slots;
+
+	private final int mask;
+
+	private final AtomicLong tail = new AtomicLong();
+
+	//Written by the consumer only
+	private volatile long head;
+
+	private final LongAdder dropped = new LongAdder();
+
+	/**
+	 * @param capacity rounded up to a power of two
+	 */
+	public RingBuffer(int capacity) {
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		slots = new AtomicReferenceArray<>(size);
+		mask = size - 1;
+	}
+
+	/**
+	 * @return false if the buffer was full and the element was dropped
+	 */
+	public boolean offer(E element) {
+		while (true) {
+			long claimed = tail.get();
+			if (claimed - head >= slots.length()) {
+				dropped.increment();
+				return false;
+			}
+			if (tail.compareAndSet(claimed, claimed + 1)) {
+				slots.lazySet((int) claimed & mask, element);
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * @return the oldest element, or null if there is none yet. An element whose producer has claimed
+	 * its slot but not yet filled it counts as not there yet.
+	 */
+	public E poll() {
+		int index = (int) head & mask;
+		E element = slots.get(index);
+		if (element == null) {
+			return null;
+		}
+		slots.lazySet(index, null);
+		head = head + 1;
+		return element;
+	}
+
+	/**
+	 * @return how many elements were dropped since the last call
+	 */
+	public long takeDropped() {
+		return dropped.sumThenReset();
+	}
+
+	public int capacity() {
+		return slots.length();
+	}
+}
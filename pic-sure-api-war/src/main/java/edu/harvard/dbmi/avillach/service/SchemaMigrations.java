@@ -0,0 +1,67 @@
+package edu.harvard.dbmi.avillach.service;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+
+import edu.harvard.dbmi.avillach.PicSureWarInit;
+import edu.harvard.dbmi.avillach.data.migration.SchemaMigrator;
+import edu.harvard.dbmi.avillach.data.migration.SchemaValidator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PostConstruct;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.ejb.TransactionManagement;
+import javax.ejb.TransactionManagementType;
+import javax.inject.Inject;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceUnit;
+import javax.sql.DataSource;
+
+/**
+ * Brings the database schema up to date when the application starts, then checks it against the JPA
+ * mapping. A schema that does not match fails the deployment rather than the first request that
+ * touches a missing column.
+ *
+ * Beans that read the database at startup should depend on this one.
+ */
+@Singleton
+@Startup
+@TransactionManagement(TransactionManagementType.BEAN)
+public class SchemaMigrations {
+
+	private Logger logger = LoggerFactory.getLogger(SchemaMigrations.class);
+
+	@javax.annotation.Resource(lookup = "java:jboss/datasources/PicsureDS")
+	DataSource dataSource;
+
+	@PersistenceUnit(unitName = "picsure")
+	EntityManagerFactory entityManagerFactory;
+
+	@Inject
+	PicSureWarInit picSureWarInit;
+
+	@PostConstruct
+	public void migrate() {
+		if (!picSureWarInit.isSchemaMigrationEnabled()) {
+			logger.info("migrate() schema migrations are disabled");
+			return;
+		}
+		try {
+			List<String> applied = new SchemaMigrator(dataSource, picSureWarInit.getSchemaBaselineVersion()).migrate();
+			logger.info("migrate() applied " + applied.size() + " migrations " + applied);
+
+			List<String> missing;
+			try (Connection connection = dataSource.getConnection()) {
+				missing = new SchemaValidator().validate(connection, entityManagerFactory.getMetamodel());
+			}
+			if (!missing.isEmpty()) {
+				throw new IllegalStateException("Database schema does not match the JPA mapping, missing columns " + missing);
+			}
+		} catch (SQLException e) {
+			throw new IllegalStateException("Unable to migrate the database schema", e);
+		}
+	}
+}
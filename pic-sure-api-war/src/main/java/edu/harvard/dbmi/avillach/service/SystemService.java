@@ -1,17 +1,144 @@
 package edu.harvard.dbmi.avillach.service;
+import edu.harvard.dbmi.avillach.data.projection.QueryRun;
+import edu.harvard.dbmi.avillach.util.PicsureNaming;
+import edu.harvard.dbmi.avillach.util.exception.ProtocolException;
+import edu.harvard.dbmi.avillach.util.metrics.MetricsRegistry;
+
 import javax.annotation.security.RolesAllowed;
+import javax.inject.Inject;
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
 
 @Path("/system")
 public class SystemService {
 
+    @Inject
+    AdmissionController admissionController;
+
+    @Inject
+    QueryHistoryExporter queryHistoryExporter;
+
+    @Inject
+    PicsureQueryService queryService;
+
+    @Inject
+    HealthCheck healthCheck;
+
+    @Context
+    HttpServletRequest request;
+
     @GET
     @Path("/status")
     @Produces("text/plain")
     public String status() {
         return "RUNNING";
     }
+
+    /**
+     * Probes the database, the token introspection endpoint and every resource, see {@link HealthCheck}.
+     * Needs no token, see JWTFilter, but without one only the overall status is sent: the checks name
+     * every resource and carry the errors of the dependencies.
+     *
+     * @return the report, with status 503 if requests cannot be served
+     */
+    @GET
+    @Path("/health")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response health() {
+        Map<String, Object> report = healthCheck.check();
+        Response.Status status = HealthCheck.isDown(report) ? Response.Status.SERVICE_UNAVAILABLE : Response.Status.OK;
+        if (request == null || request.getAttribute("username") == null) {
+            return Response.status(status).entity(Collections.singletonMap("status", report.get("status"))).build();
+        }
+        return Response.status(status).entity(report).build();
+    }
+
+    /**
+     * Running and waiting query counts and admission counters, see {@link AdmissionController}
+     */
+    @GET
+    @Path("/admission")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Map<String, Object> admission() {
+        return admissionController.getMetrics();
+    }
+
+    /**
+     * Counters, latency histograms and gauges of this node in the Prometheus text format, see
+     * {@link PicsureMetrics}
+     */
+    @GET
+    @Path("/metrics")
+    @Produces(MetricsRegistry.CONTENT_TYPE)
+    public Response metrics() {
+        StreamingOutput output = stream -> MetricsRegistry.getDefault()
+                .writeTo(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+        return Response.ok(output, MetricsRegistry.CONTENT_TYPE).build();
+    }
+
+    /**
+     * Streams the query history, see {@link QueryHistoryExporter}. Only for system administrators, since
+     * it holds every user's queries.
+     *
+     * @param format ndjson or csv
+     * @param from first day to include, as yyyy-MM-dd
+     * @param to first day to leave out, as yyyy-MM-dd
+     * @param archived whether to include queries moved to the archive
+     */
+    @GET
+    @Path("/queries")
+    @RolesAllowed(PicsureNaming.RoleNaming.ROLE_SYSTEM)
+    @Produces({PicsureFederatedQueryService.NDJSON_MEDIA_TYPE, "text/csv"})
+    public Response queries(@QueryParam("format") @DefaultValue(QueryHistoryExporter.FORMAT_NDJSON) String format,
+                            @QueryParam("from") String from, @QueryParam("to") String to,
+                            @QueryParam("archived") @DefaultValue("false") boolean archived) {
+        MediaType mediaType = QueryHistoryExporter.mediaType(format);
+        if (mediaType == null) {
+            throw new ProtocolException("Unknown export format " + format + ", expected "
+                    + QueryHistoryExporter.FORMAT_NDJSON + " or " + QueryHistoryExporter.FORMAT_CSV);
+        }
+        return Response.ok(queryHistoryExporter.export(format, day(from), day(to), archived), mediaType).build();
+    }
+
+    /**
+     * Who else submitted exactly the same query request, see {@link PicsureQueryService#queryRuns(UUID)}.
+     * Only for system administrators, since it names other users.
+     */
+    @GET
+    @Path("/queries/{queryId}/runs")
+    @RolesAllowed(PicsureNaming.RoleNaming.ROLE_SYSTEM)
+    @Produces(MediaType.APPLICATION_JSON)
+    public List<QueryRun> queryRuns(@PathParam("queryId") UUID queryId) {
+        return queryService.queryRuns(queryId);
+    }
+
+    private Date day(String value) {
+        if (value == null || value.isEmpty()) {
+            return null;
+        }
+        try {
+            return java.sql.Date.valueOf(LocalDate.parse(value));
+        } catch (DateTimeParseException e) {
+            throw new ProtocolException("Invalid date " + value + ", expected yyyy-MM-dd");
+        }
+    }
 }
 
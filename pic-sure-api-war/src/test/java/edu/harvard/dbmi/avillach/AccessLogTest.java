@@ -0,0 +1,137 @@
+package edu.harvard.dbmi.avillach;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.harvard.dbmi.avillach.service.AccessLog;
+import edu.harvard.dbmi.avillach.domain.QueryRequest;
+import edu.harvard.dbmi.avillach.service.AccessLogEntry;
+import edu.harvard.dbmi.avillach.service.PicsureMetrics;
+import edu.harvard.dbmi.avillach.service.RingBuffer;
+import edu.harvard.dbmi.avillach.util.UpstreamTiming;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ResourceInfo;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.UriInfo;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class AccessLogTest extends BaseServiceTest {
+
+    @InjectMocks
+    private ContainerResponseLogger responseLogger = new ContainerResponseLogger();
+
+    @Mock
+    private AccessLog accessLog = mock(AccessLog.class);
+
+    @Mock
+    private ResourceInfo resourceInfo = mock(ResourceInfo.class);
+
+    @Test
+    public void testRingBuffer() throws Exception {
+        RingBuffer<Integer> buffer = new RingBuffer<>(1000);
+        assertEquals(1024, buffer.capacity());
+
+        //Producers never wait; what does not fit is dropped and counted
+        ExecutorService producers = Executors.newFixedThreadPool(4);
+        for (int p = 0; p < 4; p++) {
+            int producer = p;
+            producers.execute(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    buffer.offer(producer * 1000 + i);
+                }
+            });
+        }
+        producers.shutdown();
+        assertTrue(producers.awaitTermination(10, TimeUnit.SECONDS));
+
+        Set<Integer> seen = new HashSet<>();
+        int[] last = {-1, -1, -1, -1};
+        Integer element;
+        while ((element = buffer.poll()) != null) {
+            assertTrue("Each element is taken once", seen.add(element));
+            //Each producer's elements come out in the order it offered them
+            assertTrue(element % 1000 > last[element / 1000]);
+            last[element / 1000] = element % 1000;
+        }
+        assertEquals(1024, seen.size());
+        assertEquals(4000 - 1024, buffer.takeDropped());
+        assertEquals(0, buffer.takeDropped());
+
+        //Room again once the consumer has caught up
+        assertTrue(buffer.offer(1));
+        assertEquals(Integer.valueOf(1), buffer.poll());
+        assertNull(buffer.poll());
+    }
+
+    @Test
+    public void testEntry() throws Exception {
+        ContainerRequestContext request = mock(ContainerRequestContext.class);
+        ContainerResponseContext response = mock(ContainerResponseContext.class);
+        UriInfo uriInfo = mock(UriInfo.class);
+        Map<String, Object> properties = new HashMap<>();
+        doAnswer(invocation -> properties.put(invocation.getArgument(0), invocation.getArgument(1)))
+                .when(request).setProperty(anyString(), any());
+        when(request.getProperty(anyString())).then(invocation -> properties.get(invocation.getArgument(0)));
+        when(request.getMethod()).thenReturn("POST");
+        when(request.getUriInfo()).thenReturn(uriInfo);
+        when(uriInfo.getRequestUri()).thenReturn(URI.create("http://localhost/PICSURE/query/sync"));
+        when(uriInfo.getPathParameters()).thenReturn(new MultivaluedHashMap<>());
+        when(response.getStatus()).thenReturn(200);
+        when(response.hasEntity()).thenReturn(false);
+        Method querySync = PicsureRS.class.getMethod("querySync", QueryRequest.class);
+        doReturn(querySync).when(resourceInfo).getResourceMethod();
+        long before = PicsureMetrics.requests.labels("PicsureRS.querySync").getCount();
+
+        responseLogger.filter(request);
+        UpstreamTiming.add(TimeUnit.MILLISECONDS.toNanos(25));
+
+        //The body as LoggerReaderInterceptor leaves it
+        UUID resourceId = UUID.randomUUID();
+        String body = "{\"resourceUUID\":\"" + resourceId + "\",\"resourceCredentials\":{\"BEARER_TOKEN\":\"secret\"},\"query\":{}}";
+        RedactedBodyCopy copy = new RedactedBodyCopy(1000, 1000);
+        byte[] bytes = body.getBytes("UTF-8");
+        copy.feed(bytes, 0, bytes.length);
+        copy.end();
+        properties.put("requestContent", copy);
+        properties.put("username", "someone@example.com");
+
+        responseLogger.filter(request, response);
+
+        ArgumentCaptor<AccessLogEntry> recorded = ArgumentCaptor.forClass(AccessLogEntry.class);
+        verify(accessLog).record(recorded.capture());
+        JsonNode line = new ObjectMapper().readTree(new ObjectMapper().writeValueAsString(recorded.getValue()));
+        assertEquals("POST", line.get("method").asText());
+        assertEquals("/PICSURE/query/sync", line.get("path").asText());
+        assertEquals("PicsureRS.querySync", line.get("operation").asText());
+        assertEquals("someone@example.com", line.get("user").asText());
+        assertEquals(resourceId.toString(), line.get("resourceId").asText());
+        assertEquals(200, line.get("status").asInt());
+        assertEquals(bytes.length, line.get("bytesIn").asLong());
+        assertEquals(0, line.get("bytesOut").asLong());
+        assertEquals(25.0, line.get("upstreamMillis").asDouble(), 0.001);
+        assertTrue(line.get("totalMillis").asDouble() >= 0);
+        assertNotNull(line.get("time"));
+        assertFalse(line.get("request").asText().contains("secret"));
+
+        //The same timing goes to the request metrics
+        assertEquals(before + 1, PicsureMetrics.requests.labels("PicsureRS.querySync").getCount());
+    }
+}
@@ -0,0 +1,147 @@
+package edu.harvard.dbmi.avillach;
+
+import edu.harvard.dbmi.avillach.service.AdmissionController;
+import edu.harvard.dbmi.avillach.util.exception.TooManyRequestsException;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletRequestEvent;
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.core.Response;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class AdmissionControllerTest extends BaseServiceTest {
+
+    private UUID resourceId = UUID.randomUUID();
+
+    @InjectMocks
+    private AdmissionController admissionController = new AdmissionController();
+
+    @Mock
+    private PicSureWarInit picSureWarInit = mock(PicSureWarInit.class);
+
+    private ExecutorService executor = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testLimits() throws Exception {
+        when(picSureWarInit.getAdmissionMaxPerUser()).thenReturn(1);
+        when(picSureWarInit.getAdmissionMaxPerResource()).thenReturn(0);
+        when(picSureWarInit.getAdmissionMaxQueuedPerUser()).thenReturn(1);
+        when(picSureWarInit.getAdmissionMaxWaitMillis()).thenReturn(200L);
+
+        AdmissionController.Permit permit = admissionController.admit("alice", resourceId);
+
+        //Another user is not held up by alice
+        admissionController.admit("bob", resourceId).close();
+
+        //Alice's second query waits, and gives up after the maximum wait
+        try {
+            admissionController.admit("alice", resourceId);
+            fail("A query waiting too long should be turned away");
+        } catch (TooManyRequestsException e) {
+            assertEquals(TooManyRequestsException.WAIT_TIMED_OUT, e.getContent());
+            assertTrue(e.getRetryAfterSeconds() >= 1);
+        }
+
+        //With one query already waiting, alice's queue is full
+        Future<AdmissionController.Permit> waiting = executor.submit(() -> admissionController.admit("alice", resourceId));
+        awaitWaiting(1);
+        try {
+            admissionController.admit("alice", resourceId);
+            fail("A query beyond the queue limit should be turned away");
+        } catch (TooManyRequestsException e) {
+            assertEquals(TooManyRequestsException.QUEUE_FULL, e.getContent());
+        }
+
+        //The waiting query runs as soon as the first one is done
+        permit.close();
+        waiting.get(1, TimeUnit.SECONDS).close();
+
+        Map<String, Object> metrics = admissionController.getMetrics();
+        assertEquals(0, metrics.get("running"));
+        assertEquals(0, metrics.get("waiting"));
+        assertEquals(3L, metrics.get("admitted"));
+        assertEquals(1L, metrics.get("rejected"));
+        assertEquals(1L, metrics.get("timedOut"));
+    }
+
+    @Test
+    public void testFairQueuing() throws Exception {
+        when(picSureWarInit.getAdmissionMaxPerUser()).thenReturn(0);
+        when(picSureWarInit.getAdmissionMaxPerResource()).thenReturn(1);
+        when(picSureWarInit.getAdmissionMaxQueuedPerUser()).thenReturn(0);
+        when(picSureWarInit.getAdmissionMaxWaitMillis()).thenReturn(5000L);
+
+        AdmissionController.Permit permit = admissionController.admit("alice", resourceId);
+
+        //Alice queues three more queries before bob queues one
+        List<String> admissionOrder = Collections.synchronizedList(new ArrayList<>());
+        List<Future<?>> queued = new ArrayList<>();
+        String[] users = {"alice", "alice", "alice", "bob"};
+        for (int i = 0; i < users.length; i++) {
+            String user = users[i];
+            queued.add(executor.submit(() -> {
+                try (AdmissionController.Permit p = admissionController.admit(user, resourceId)) {
+                    admissionOrder.add(user);
+                }
+                return null;
+            }));
+            awaitWaiting(i + 1);
+        }
+
+        permit.close();
+        for (Future<?> future : queued) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+
+        //Bob does not wait for all of alice's queries
+        assertEquals(Arrays.asList("alice", "bob", "alice", "alice"), admissionOrder);
+    }
+
+    @Test
+    public void testReleaseWhenSent() throws Exception {
+        when(picSureWarInit.getAdmissionMaxPerUser()).thenReturn(1);
+        when(picSureWarInit.getAdmissionMaxPerResource()).thenReturn(0);
+        HttpServletRequest request = mock(HttpServletRequest.class);
+
+        //Sent in full, the permit is released when the stream is closed
+        Response response = admissionController.releaseWhenSent(admissionController.admit("alice", resourceId),
+                Response.ok(new ByteArrayInputStream(new byte[1])).build(), request);
+        assertEquals(1, admissionController.getMetrics().get("running"));
+        ((InputStream) response.getEntity()).close();
+        assertEquals(0, admissionController.getMetrics().get("running"));
+
+        //Never written, the permit is released when the request is over
+        AdmissionController.Permit permit = admissionController.admit("alice", resourceId);
+        admissionController.releaseWhenSent(permit, Response.ok(new ByteArrayInputStream(new byte[1])).build(), request);
+        verify(request).setAttribute(AdmissionController.PERMIT_ATTRIBUTE, permit);
+        when(request.getAttribute(AdmissionController.PERMIT_ATTRIBUTE)).thenReturn(permit);
+        new AdmissionReleaseListener().requestDestroyed(new ServletRequestEvent(mock(ServletContext.class), request));
+        assertEquals(0, admissionController.getMetrics().get("running"));
+    }
+
+    private void awaitWaiting(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!Integer.valueOf(count).equals(admissionController.getMetrics().get("waiting"))) {
+            assertTrue("Timed out waiting for queued queries", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package edu.harvard.dbmi.avillach;
+
+import edu.harvard.dbmi.avillach.data.entity.Resource;
+import edu.harvard.dbmi.avillach.service.HealthCheck;
+import edu.harvard.dbmi.avillach.service.ResourceRegistry;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class HealthCheckTest extends BaseServiceTest {
+
+    @InjectMocks
+    private HealthCheck healthCheck = new HealthCheck();
+
+    @Mock
+    private PicSureWarInit picSureWarInit = mock(PicSureWarInit.class);
+
+    @Mock
+    private ResourceRegistry resourceRegistry = mock(ResourceRegistry.class);
+
+    @Mock
+    private DataSource dataSource = mock(DataSource.class);
+
+    @Mock
+    private ExecutorService executor = mock(ExecutorService.class);
+
+    @Mock
+    private HttpClient httpClient = mock(HttpClient.class);
+
+    private ExecutorService realExecutor = Executors.newCachedThreadPool();
+
+    private Resource up = resource("up");
+
+    private Resource down = resource("down");
+
+    @Before
+    public void setUp() throws Exception {
+        when(executor.submit(any(Callable.class))).then(invocation -> realExecutor.submit((Callable<?>) invocation.getArgument(0)));
+        when(picSureWarInit.getHealthCacheMillis()).thenReturn(60000L);
+        when(picSureWarInit.getHealthProbeTimeoutMillis()).thenReturn(500L);
+        when(picSureWarInit.getToken_introspection_url()).thenReturn("http://introspection/token");
+        when(picSureWarInit.getToken_introspection_token()).thenReturn("secret");
+        Connection connection = mock(Connection.class);
+        when(connection.isValid(anyInt())).thenReturn(true);
+        when(dataSource.getConnection()).thenReturn(connection);
+        when(httpClient.execute(any(HttpUriRequest.class))).then(invocation -> {
+            String host = ((HttpUriRequest) invocation.getArgument(0)).getURI().getHost();
+            return new BasicHttpResponse(HttpVersion.HTTP_1_1, host.equals("down") ? 500 : 200, "OK");
+        });
+    }
+
+    @After
+    public void tearDown() {
+        realExecutor.shutdownNow();
+    }
+
+    @Test
+    public void testReport() throws Exception {
+        CountDownLatch hung = new CountDownLatch(1);
+        Resource slow = resource("slow");
+        when(resourceRegistry.list()).thenReturn(Arrays.asList(up, down, slow));
+        when(httpClient.execute(argThat(request -> request.getURI().getHost().equals("slow")))).then(invocation -> {
+            hung.await();
+            return null;
+        });
+
+        long started = System.currentTimeMillis();
+        Map<String, Object> report = healthCheck.check();
+        //A dependency that does not answer costs no more than the probe timeout
+        assertTrue(System.currentTimeMillis() - started < 5000);
+        hung.countDown();
+
+        assertEquals(HealthCheck.DEGRADED, report.get("status"));
+        assertFalse(HealthCheck.isDown(report));
+        Map<String, Object> checks = (Map<String, Object>) report.get("checks");
+        assertEquals(HealthCheck.UP, ((Map<String, Object>) checks.get("database")).get("status"));
+        assertEquals(HealthCheck.UP, ((Map<String, Object>) checks.get("introspection")).get("status"));
+        Map<String, Map<String, Object>> resources = (Map<String, Map<String, Object>>) checks.get("resources");
+        assertEquals(HealthCheck.UP, resources.get(up.getUuid().toString()).get("status"));
+        assertEquals(HealthCheck.DOWN, resources.get(down.getUuid().toString()).get("status"));
+        assertNotNull(resources.get(down.getUuid().toString()).get("error"));
+        assertEquals(HealthCheck.TIMEOUT, resources.get(slow.getUuid().toString()).get("status"));
+        assertEquals("slow", resources.get(slow.getUuid().toString()).get("name"));
+
+        //Callers within the interval get the same report without probing again
+        assertSame(report, healthCheck.check());
+        verify(dataSource, times(1)).getConnection();
+        verify(httpClient, times(1)).execute(argThat(request -> request.getURI().toString().equals("http://up/pic-sure/info")));
+    }
+
+    @Test
+    public void testProbesTimeOut() throws Exception {
+        when(resourceRegistry.list()).thenReturn(Arrays.asList(up));
+        healthCheck.check();
+
+        //Neither the introspection endpoint nor a resource can hold a probe longer than its timeout
+        ArgumentCaptor<HttpUriRequest> requests = ArgumentCaptor.forClass(HttpUriRequest.class);
+        verify(httpClient, times(2)).execute(requests.capture());
+        for (HttpUriRequest request : requests.getAllValues()) {
+            RequestConfig config = ((HttpPost) request).getConfig();
+            assertEquals(500, config.getConnectTimeout());
+            assertEquals(500, config.getSocketTimeout());
+            assertEquals(500, config.getConnectionRequestTimeout());
+        }
+    }
+
+    @Test
+    public void testDown() throws Exception {
+        when(picSureWarInit.getHealthCacheMillis()).thenReturn(0L);
+        when(resourceRegistry.list()).thenReturn(Arrays.asList(up));
+        assertEquals(HealthCheck.UP, healthCheck.check().get("status"));
+
+        //Without the database no request can be served
+        when(dataSource.getConnection()).thenThrow(new java.sql.SQLException("Connection refused"));
+        Map<String, Object> report = healthCheck.check();
+        assertTrue(HealthCheck.isDown(report));
+        Map<String, Object> database = (Map<String, Object>) ((Map<String, Object>) report.get("checks")).get("database");
+        assertEquals("Connection refused", database.get("error"));
+        verify(httpClient, times(2)).execute(argThat(request -> request.getURI().toString().equals("http://up/pic-sure/info")));
+    }
+
+    private static Resource resource(String name) {
+        Resource resource = new Resource();
+        resource.setUuid(UUID.randomUUID());
+        resource.setName(name);
+        resource.setResourceRSPath("http://" + name + "/pic-sure");
+        resource.setToken("token");
+        return resource;
+    }
+}
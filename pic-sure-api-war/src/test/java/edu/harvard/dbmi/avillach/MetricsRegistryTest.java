@@ -0,0 +1,52 @@
+package edu.harvard.dbmi.avillach;
+
+import edu.harvard.dbmi.avillach.util.metrics.Counter;
+import edu.harvard.dbmi.avillach.util.metrics.Histogram;
+import edu.harvard.dbmi.avillach.util.metrics.Labeled;
+import edu.harvard.dbmi.avillach.util.metrics.MetricsRegistry;
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class MetricsRegistryTest {
+
+    @Test
+    public void testTextFormat() throws Exception {
+        MetricsRegistry registry = new MetricsRegistry();
+        Labeled<Histogram> latency = registry.histogram("test_duration_seconds", "Test latency", "operation", 0.01, 0.1, 1);
+        Labeled<Counter> errors = registry.counter("test_errors_total", "Test errors", "operation");
+        registry.gauge("test_in_flight", "Test gauge", () -> 3);
+
+        latency.labels("PicsureRS.query").observeNanos(TimeUnit.MILLISECONDS.toNanos(5));
+        latency.labels("PicsureRS.query").observeNanos(TimeUnit.MILLISECONDS.toNanos(50));
+        latency.labels("PicsureRS.query").observeNanos(TimeUnit.SECONDS.toNanos(2));
+        errors.labels("say \"hi\"").inc(2);
+
+        //Registering again returns the same metric
+        assertSame(latency, registry.histogram("test_duration_seconds", "Test latency", "operation", 0.01, 0.1, 1));
+        assertSame(latency.labels("PicsureRS.query"), latency.labels("PicsureRS.query"));
+        try {
+            registry.counter("test_in_flight", "Not a counter");
+            fail("A name registered as another type should be refused");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("gauge"));
+        }
+
+        StringWriter output = new StringWriter();
+        registry.writeTo(output);
+        String text = output.toString();
+
+        assertTrue(text, text.contains("# TYPE test_duration_seconds histogram\n"));
+        assertTrue(text, text.contains("test_duration_seconds_bucket{operation=\"PicsureRS.query\",le=\"0.01\"} 1\n"));
+        assertTrue(text, text.contains("test_duration_seconds_bucket{operation=\"PicsureRS.query\",le=\"0.1\"} 2\n"));
+        assertTrue(text, text.contains("test_duration_seconds_bucket{operation=\"PicsureRS.query\",le=\"1\"} 2\n"));
+        assertTrue(text, text.contains("test_duration_seconds_bucket{operation=\"PicsureRS.query\",le=\"+Inf\"} 3\n"));
+        assertTrue(text, text.contains("test_duration_seconds_sum{operation=\"PicsureRS.query\"} 2.055\n"));
+        assertTrue(text, text.contains("test_duration_seconds_count{operation=\"PicsureRS.query\"} 3\n"));
+        assertTrue(text, text.contains("test_errors_total{operation=\"say \\\"hi\\\"\"} 2\n"));
+        assertTrue(text, text.contains("# TYPE test_in_flight gauge\ntest_in_flight 3\n"));
+    }
+}
@@ -0,0 +1,234 @@
+package edu.harvard.dbmi.avillach;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.harvard.dbmi.avillach.domain.FederatedQueryRequest;
+import edu.harvard.dbmi.avillach.domain.FederatedQueryResult;
+import edu.harvard.dbmi.avillach.domain.QueryRequest;
+import edu.harvard.dbmi.avillach.service.AdmissionController;
+import edu.harvard.dbmi.avillach.service.PicsureFederatedQueryService;
+import edu.harvard.dbmi.avillach.service.PicsureQueryService;
+import edu.harvard.dbmi.avillach.util.PicSureStatus;
+import edu.harvard.dbmi.avillach.util.exception.ApplicationException;
+import edu.harvard.dbmi.avillach.util.exception.ProtocolException;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class PicsureFederatedQueryServiceTest extends BaseServiceTest {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private UUID availableResourceId = UUID.randomUUID();
+    private UUID failingResourceId = UUID.randomUUID();
+    private UUID slowResourceId = UUID.randomUUID();
+
+    @InjectMocks
+    private PicsureFederatedQueryService federatedQueryService = new PicsureFederatedQueryService();
+
+    @Mock
+    private PicsureQueryService queryService = mock(PicsureQueryService.class);
+
+    @Mock
+    private PicSureWarInit picSureWarInit = mock(PicSureWarInit.class);
+
+    @Mock
+    private ExecutorService executor = mock(ExecutorService.class);
+
+    @Mock
+    private AdmissionController admissionController = mock(AdmissionController.class);
+
+    private ExecutorService realExecutor = Executors.newFixedThreadPool(3);
+
+    @After
+    public void tearDown() {
+        realExecutor.shutdownNow();
+    }
+
+    @Test
+    public void testQueryFederated() throws Exception {
+        //The managed executor is not available outside the container
+        doAnswer(invocation -> {
+            realExecutor.execute(invocation.getArgument(0));
+            return null;
+        }).when(executor).execute(any(Runnable.class));
+        when(picSureWarInit.getFederatedQueryTimeoutMillis()).thenReturn(60000L);
+        when(admissionController.admit(any(), any())).thenReturn(mock(AdmissionController.Permit.class));
+        when(queryService.completeWhenSent(any())).then(invocation -> sent(invocation.getArgument(0)));
+        when(queryService.querySync(any(), any())).then(invocation -> {
+            QueryRequest request = invocation.getArgument(0);
+            if (availableResourceId.equals(request.getResourceUUID())){
+                return Response.ok(new ByteArrayInputStream("42".getBytes())).header("resultId", "result-1").build();
+            }
+            if (failingResourceId.equals(request.getResourceUUID())){
+                throw new ApplicationException(ApplicationException.MISSING_RESOURCE_PATH);
+            }
+            Thread.sleep(5000);
+            return Response.ok().build();
+        });
+
+        //Test missing request data
+        try {
+            federatedQueryService.queryFederated(null);
+            fail("Missing query request info should throw an error");
+        } catch (ProtocolException e){
+            assertEquals(ProtocolException.MISSING_DATA, e.getContent().toString());
+        }
+
+        //Test missing resource ids
+        FederatedQueryRequest request = new FederatedQueryRequest();
+        request.setQuery("count query");
+        try {
+            federatedQueryService.queryFederated(request);
+            fail("Missing resource ids should throw an error");
+        } catch (ProtocolException e){
+            assertEquals(ProtocolException.MISSING_RESOURCE_ID, e.getContent().toString());
+        }
+
+        //One resource answers, one fails and one misses the deadline
+        request.setResourceUUIDs(Arrays.asList(availableResourceId, failingResourceId, slowResourceId));
+        request.setTimeout(500L);
+        Response response = federatedQueryService.queryFederated(request);
+        assertEquals(200, response.getStatus());
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ((StreamingOutput) response.getEntity()).write(output);
+        String[] lines = output.toString(StandardCharsets.UTF_8.name()).split("\n");
+        assertEquals("There should be one line per resource", 3, lines.length);
+
+        Map<UUID, FederatedQueryResult> results = new HashMap<>();
+        for (String line : lines){
+            FederatedQueryResult result = mapper.readValue(line, FederatedQueryResult.class);
+            results.put(result.getResourceID(), result);
+        }
+
+        assertEquals(PicSureStatus.AVAILABLE, results.get(availableResourceId).getStatus());
+        assertEquals("42", results.get(availableResourceId).getResult());
+        assertEquals("result-1", results.get(availableResourceId).getPicsureResultId());
+
+        assertEquals(PicSureStatus.ERROR, results.get(failingResourceId).getStatus());
+        assertEquals(ApplicationException.MISSING_RESOURCE_PATH, results.get(failingResourceId).getMessage());
+
+        assertEquals(PicSureStatus.ERROR, results.get(slowResourceId).getStatus());
+        assertTrue(results.get(slowResourceId).getMessage().contains("500 ms"));
+
+        //The slow resource must be reported last, since it never completed
+        assertEquals(slowResourceId, mapper.readValue(lines[2], FederatedQueryResult.class).getResourceID());
+    }
+
+    @Test
+    public void testFailedTaskReportedAsError() throws Exception {
+        UUID brokenResourceId = UUID.randomUUID();
+        doAnswer(invocation -> {
+            realExecutor.execute(invocation.getArgument(0));
+            return null;
+        }).when(executor).execute(any(Runnable.class));
+        when(picSureWarInit.getFederatedQueryTimeoutMillis()).thenReturn(60000L);
+        when(admissionController.admit(any(), any())).thenReturn(mock(AdmissionController.Permit.class));
+        when(queryService.completeWhenSent(any())).then(invocation -> sent(invocation.getArgument(0)));
+        when(queryService.querySync(any(), any())).then(invocation -> {
+            QueryRequest request = invocation.getArgument(0);
+            if (brokenResourceId.equals(request.getResourceUUID())){
+                //Not an Exception, so querySync() does not report it and the task itself fails
+                throw new NoClassDefFoundError("broken");
+            }
+            return Response.ok(new ByteArrayInputStream("42".getBytes())).build();
+        });
+
+        FederatedQueryRequest request = new FederatedQueryRequest();
+        request.setQuery("count query");
+        request.setResourceUUIDs(Arrays.asList(brokenResourceId, availableResourceId));
+        Response response = federatedQueryService.queryFederated(request);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ((StreamingOutput) response.getEntity()).write(output);
+        Map<UUID, FederatedQueryResult> results = new HashMap<>();
+        for (String line : output.toString(StandardCharsets.UTF_8.name()).split("\n")){
+            FederatedQueryResult result = mapper.readValue(line, FederatedQueryResult.class);
+            results.put(result.getResourceID(), result);
+        }
+        assertEquals(2, results.size());
+        assertEquals(PicSureStatus.ERROR, results.get(brokenResourceId).getStatus());
+        assertEquals("broken", results.get(brokenResourceId).getMessage());
+        //The other resource still answers after the failure
+        assertEquals(PicSureStatus.AVAILABLE, results.get(availableResourceId).getStatus());
+    }
+
+    @Test
+    public void testResultTooLarge() throws Exception {
+        UUID largeResourceId = UUID.randomUUID();
+        doAnswer(invocation -> {
+            realExecutor.execute(invocation.getArgument(0));
+            return null;
+        }).when(executor).execute(any(Runnable.class));
+        when(picSureWarInit.getFederatedQueryTimeoutMillis()).thenReturn(60000L);
+        when(picSureWarInit.getFederatedResultMaxBytes()).thenReturn(4L);
+        when(admissionController.admit(any(), any())).thenReturn(mock(AdmissionController.Permit.class));
+        when(queryService.completeWhenSent(any())).then(invocation -> sent(invocation.getArgument(0)));
+        when(queryService.querySync(any(), any())).then(invocation -> {
+            QueryRequest request = invocation.getArgument(0);
+            String result = largeResourceId.equals(request.getResourceUUID()) ? "12345" : "42";
+            return Response.ok(new ByteArrayInputStream(result.getBytes())).build();
+        });
+
+        //A resource set through the single resource field would be ignored
+        FederatedQueryRequest request = new FederatedQueryRequest();
+        request.setQuery("count query");
+        request.setResourceUUIDs(Arrays.asList(largeResourceId, availableResourceId));
+        request.setResourceUUID(availableResourceId);
+        try {
+            federatedQueryService.queryFederated(request);
+            fail("A resourceUUID should be rejected");
+        } catch (ProtocolException e){
+            assertEquals(PicsureFederatedQueryService.RESOURCE_UUID_NOT_USED, e.getContent().toString());
+        }
+
+        //Only the result over the limit fails
+        request.setResourceUUID(null);
+        Response response = federatedQueryService.queryFederated(request);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ((StreamingOutput) response.getEntity()).write(output);
+        Map<UUID, FederatedQueryResult> results = new HashMap<>();
+        for (String line : output.toString(StandardCharsets.UTF_8.name()).split("\n")){
+            FederatedQueryResult result = mapper.readValue(line, FederatedQueryResult.class);
+            results.put(result.getResourceID(), result);
+        }
+        assertEquals(PicSureStatus.ERROR, results.get(largeResourceId).getStatus());
+        assertNull(results.get(largeResourceId).getResult());
+        assertTrue(results.get(largeResourceId).getMessage().contains("4 bytes"));
+        assertEquals(PicSureStatus.AVAILABLE, results.get(availableResourceId).getStatus());
+        assertEquals("42", results.get(availableResourceId).getResult());
+    }
+
+    /**
+     * The result as PicsureQueryService.completeWhenSent() hands it back, without a database to write its status to
+     */
+    private static Response sent(Response response) {
+        InputStream result = (InputStream) response.getEntity();
+        if (result == null){
+            return response;
+        }
+        StreamingOutput output = stream -> IOUtils.copy(result, stream);
+        return Response.fromResponse(response).entity(output).build();
+    }
+}
@@ -1,7 +1,7 @@
 package edu.harvard.dbmi.avillach;
 
 import edu.harvard.dbmi.avillach.data.entity.Resource;
-import edu.harvard.dbmi.avillach.data.repository.ResourceRepository;
+import edu.harvard.dbmi.avillach.service.ResourceRegistry;
 import edu.harvard.dbmi.avillach.domain.QueryRequest;
 import edu.harvard.dbmi.avillach.domain.ResourceInfo;
 import edu.harvard.dbmi.avillach.service.PicsureInfoService;
@@ -37,7 +37,7 @@ public class PicsureInfoServiceTest extends BaseServiceTest {
     private Resource mockResource = mock(Resource.class);
 
     @Mock
-    private ResourceRepository resourceRepo = mock(ResourceRepository.class);
+    private ResourceRegistry resourceRegistry = mock(ResourceRegistry.class);
 
     @Mock
     private ResourceWebClient webClient = mock(ResourceWebClient.class);
@@ -45,10 +45,10 @@ public class PicsureInfoServiceTest extends BaseServiceTest {
     @Before
     public void setUp() {
         ResourceInfo results = new ResourceInfo();
-        when(resourceRepo.getById(resourceId)).thenReturn(mockResource);
-        when(resourceRepo.getById(not(ArgumentMatchers.same(resourceId)))).thenReturn(null);
+        when(resourceRegistry.get(resourceId)).thenReturn(mockResource);
+        when(resourceRegistry.get(not(ArgumentMatchers.same(resourceId)))).thenReturn(null);
         when(webClient.info(any(), any())).thenReturn(results);
-        when(resourceRepo.list()).thenReturn(Arrays.asList(mockResource));
+        when(resourceRegistry.list()).thenReturn(Arrays.asList(mockResource));
         when(mockResource.getUuid()).thenReturn(resourceId);
     }
 
@@ -102,5 +102,26 @@ public class PicsureInfoServiceTest extends BaseServiceTest {
         assertNotNull("Resource listing should not be null", resourceList);
         assertEquals("Resource listing should only have 1 entry", 1, resourceList.size());
         assertSame("Resource listing should be UUID of our mocked resource", resourceId, resourceList.get(0));
+
+        //Paging past the only resource gives an empty page
+        assertEquals(Arrays.asList(resourceId), infoService.resources(null, 1));
+        assertTrue(infoService.resources(resourceId, 1).isEmpty());
+    }
+
+    @Test
+    public void testResourcesByteOrder() {
+        //UUID.compareTo() puts the second id first, its high bit makes it negative
+        UUID low = UUID.fromString("00000000-0000-4000-8000-000000000000");
+        UUID high = UUID.fromString("f0000000-0000-4000-8000-000000000000");
+        Resource highResource = mock(Resource.class);
+        when(highResource.getUuid()).thenReturn(high);
+        Resource lowResource = mock(Resource.class);
+        when(lowResource.getUuid()).thenReturn(low);
+        when(resourceRegistry.list()).thenReturn(Arrays.asList(highResource, lowResource));
+
+        assertEquals(Arrays.asList(low, high), infoService.resources());
+        assertEquals(Arrays.asList(low), infoService.resources(null, 1));
+        assertEquals(Arrays.asList(high), infoService.resources(low, 1));
+        assertTrue(infoService.resources(high, 1).isEmpty());
     }
 }
@@ -1,20 +1,34 @@
 package edu.harvard.dbmi.avillach;
 
+import edu.harvard.dbmi.avillach.data.codec.BlobCodecs;
 import edu.harvard.dbmi.avillach.data.entity.Query;
+import edu.harvard.dbmi.avillach.data.entity.QueryBody;
+import edu.harvard.dbmi.avillach.data.entity.QueryMetadata;
 import edu.harvard.dbmi.avillach.data.entity.Resource;
+import edu.harvard.dbmi.avillach.data.projection.QuerySummary;
+import edu.harvard.dbmi.avillach.data.repository.QueryBodyRepository;
+import edu.harvard.dbmi.avillach.data.repository.QueryMetadataRepository;
 import edu.harvard.dbmi.avillach.data.repository.QueryRepository;
-import edu.harvard.dbmi.avillach.data.repository.ResourceRepository;
+import edu.harvard.dbmi.avillach.data.repository.ReplicaRouting;
+import edu.harvard.dbmi.avillach.service.ResourceRegistry;
 import edu.harvard.dbmi.avillach.domain.QueryRequest;
 import edu.harvard.dbmi.avillach.domain.QueryStatus;
 import edu.harvard.dbmi.avillach.service.PicsureQueryService;
+import edu.harvard.dbmi.avillach.service.QueryStatusWriter;
 import edu.harvard.dbmi.avillach.service.ResourceWebClient;
+import edu.harvard.dbmi.avillach.service.ResultSpool;
+import edu.harvard.dbmi.avillach.util.ByteRange;
 import edu.harvard.dbmi.avillach.util.PicSureStatus;
 import edu.harvard.dbmi.avillach.util.exception.ApplicationException;
+import edu.harvard.dbmi.avillach.util.exception.NotAuthorizedException;
 import edu.harvard.dbmi.avillach.util.exception.ProtocolException;
+import edu.harvard.dbmi.avillach.util.exception.ResourceInterfaceException;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentMatchers;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.Spy;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.junit.MockitoJUnitRunner;
 import org.mockito.stubbing.Answer;
@@ -22,7 +36,15 @@ import org.mockito.stubbing.Answer;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
@@ -31,10 +53,17 @@ import java.util.UUID;
 import static junit.framework.TestCase.assertTrue;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.fail;
+import static org.mockito.AdditionalMatchers.not;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @RunWith(MockitoJUnitRunner.class)
@@ -53,7 +82,7 @@ public class PicsureQueryServiceTest extends BaseServiceTest {
     private Resource mockResource = mock(Resource.class);
 
     @Mock
-    private ResourceRepository resourceRepo = mock(ResourceRepository.class);
+    private ResourceRegistry resourceRegistry = mock(ResourceRegistry.class);
 
     @Mock
     private QueryRepository queryRepo = mock(QueryRepository.class);
@@ -61,6 +90,22 @@ public class PicsureQueryServiceTest extends BaseServiceTest {
     @Mock
     private ResourceWebClient webClient = mock(ResourceWebClient.class);
 
+    @Mock
+    private ResultSpool resultSpool = mock(ResultSpool.class);
+
+    @Mock
+    private QueryStatusWriter statusWriter = mock(QueryStatusWriter.class);
+
+    @Mock
+    private QueryBodyRepository queryBodyRepo = mock(QueryBodyRepository.class);
+
+    @Mock
+    private QueryMetadataRepository queryMetadataRepo = mock(QueryMetadataRepository.class);
+
+    //Disabled, so every read goes to the mocked repository
+    @Spy
+    private ReplicaRouting replicaRouting = new ReplicaRouting();
+
     @Test
     public void testQuery() {
 
@@ -72,7 +117,7 @@ public class PicsureQueryServiceTest extends BaseServiceTest {
 
         //Return mocks when needed
         when(webClient.query(any(), any())).thenReturn(results);
-        when(resourceRepo.getById(resourceId)).thenReturn(mockResource);
+        when(resourceRegistry.get(resourceId)).thenReturn(mockResource);
 
         //Mock persisting the queryentity, so that it has an ID and we can test that the correct information is stored in it
         doAnswer(new Answer<Void>() {
@@ -83,6 +128,7 @@ public class PicsureQueryServiceTest extends BaseServiceTest {
                 return null;
             }
         }).when(queryRepo).persist(any(Query.class));
+        storeBodies();
 
         /* END SET UP */
 
@@ -184,9 +230,8 @@ public class PicsureQueryServiceTest extends BaseServiceTest {
         queryEntity.setStatus(PicSureStatus.PENDING);
         queryEntity.setQuery(queryString);
         queryEntity.setStartTime(new java.sql.Date(results.getStartTime()));
-        when(queryRepo.getById(queryId)).thenReturn(queryEntity);
-
-        when(mockResource.getUuid()).thenReturn(resourceId);
+        when(queryRepo.getSummary(queryId)).then(invocation -> summary(queryEntity));
+        when(resourceRegistry.get(resourceId)).thenReturn(mockResource);
 
         QueryRequest statusRequest = new QueryRequest();
         Map<String, String> clientCredentials = new HashMap<String, String>();
@@ -231,7 +276,7 @@ public class PicsureQueryServiceTest extends BaseServiceTest {
         when(mockResource.getResourceRSPath()).thenReturn("resourceRsPath");
 
         //Let's say the status has changed
-        results.setStatus(PicSureStatus.AVAILABLE);
+        results.setStatus(PicSureStatus.QUEUED);
         when(webClient.queryStatus(any(),any(), any())).thenReturn(results);
 
 
@@ -243,8 +288,38 @@ public class PicsureQueryServiceTest extends BaseServiceTest {
         assertEquals("Resource Id should match", resourceId, result.getResourceID());
         assertNotNull("Start time should not be null", result.getStartTime());
 
-        //Make sure info was saved to the query entity
-        assertEquals("Query status should have been updated", PicSureStatus.AVAILABLE, queryEntity.getStatus());
+        //Make sure the change is on its way to the database
+        verify(statusWriter).record(queryId, PicSureStatus.QUEUED);
+
+        //Polling again without a change writes nothing
+        results.setStatus(PicSureStatus.PENDING);
+        queryService.queryStatus(queryId, statusRequest);
+        verify(statusWriter, times(1)).record(any(), any());
+
+        //A final status is written right away, with the details of the result
+        results.setStatus(PicSureStatus.AVAILABLE);
+        results.setResourceStatus("COMPLETE");
+        results.setSizeInBytes(1024);
+        results.setDuration(30);
+        results.setExpiration(86400);
+        queryService.queryStatus(queryId, statusRequest);
+        verify(queryRepo).updateFinalStatus(queryId, PicSureStatus.AVAILABLE, "COMPLETE", 1024, 30, 86400);
+        verify(statusWriter, times(1)).record(any(), any());
+
+        //Once the query is done the resource is not asked anymore, the details come from the database
+        queryEntity.setStatus(PicSureStatus.AVAILABLE);
+        when(queryRepo.getSummary(queryId)).thenReturn(new QuerySummary(queryId, PicSureStatus.AVAILABLE,
+                queryId.toString(), queryEntity.getStartTime(), resourceId, "COMPLETE", 1024L, 30L, 86400L));
+        when(queryMetadataRepo.getById(queryId)).thenReturn(new QueryMetadata(queryId, "metadata".getBytes()));
+        result = queryService.queryStatus(queryId, statusRequest);
+        assertEquals(PicSureStatus.AVAILABLE, result.getStatus());
+        assertEquals("Resource Id should match", resourceId, result.getResourceID());
+        assertEquals("COMPLETE", result.getResourceStatus());
+        assertEquals(1024, result.getSizeInBytes());
+        assertEquals(30, result.getDuration());
+        assertEquals(86400, result.getExpiration());
+        assertEquals("metadata", new String((byte[]) result.getResultMetadata().get("queryResultMetadata")));
+        verify(webClient, times(3)).queryStatus(any(), any(), any());
     }
 
     @Test
@@ -257,9 +332,12 @@ public class PicsureQueryServiceTest extends BaseServiceTest {
         queryEntity.setStatus(PicSureStatus.AVAILABLE);
         queryEntity.setQuery(queryString);
         queryEntity.setStartTime(new java.sql.Date(results.getStartTime()));
-        when(queryRepo.getById(queryId)).thenReturn(queryEntity);
-        Response resp = mock(Response.class);
-        when(webClient.queryResult(any(),any(), any())).thenReturn(resp);
+        when(queryRepo.getSummary(queryId)).then(invocation -> summary(queryEntity));
+        when(resourceRegistry.get(resourceId)).thenReturn(mockResource);
+        Response resp = Response.ok(new ByteArrayInputStream("result".getBytes())).header(HttpHeaders.CONTENT_LENGTH, 6).build();
+        when(webClient.queryResult(any(),any(), any(), any())).thenReturn(resp);
+        when(resultSpool.etag(queryId)).thenReturn("\"" + queryId + "\"");
+        when(resultSpool.spooling(eq(queryId), any(), eq(6L))).then(invocation -> invocation.getArgument(1));
 
         QueryRequest resultRequest = new QueryRequest();
         Map<String, String> clientCredentials = new HashMap<String, String>();
@@ -306,10 +384,33 @@ public class PicsureQueryServiceTest extends BaseServiceTest {
         //This one should work
         Response result = queryService.queryResult(queryId, resultRequest);
         assertNotNull("Result should not be null", result);
+
+        //Clients need these to resume an interrupted download
+        assertEquals("6", result.getHeaderString(HttpHeaders.CONTENT_LENGTH));
+        assertEquals(ByteRange.BYTES, result.getHeaderString(ByteRange.ACCEPT_RANGES));
+        assertEquals("\"" + queryId + "\"", result.getHeaderString(HttpHeaders.ETAG));
+        verify(webClient, never()).queryStatus(any(), any(), any());
+
+        //A local copy is only served to a caller the resource still answers for the query
+        File spooled = new File("spooled");
+        Response served = Response.ok().build();
+        when(resultSpool.get(queryId)).thenReturn(spooled);
+        when(resultSpool.serve(spooled, null, "\"" + queryId + "\"")).thenReturn(served);
+        when(webClient.queryStatus(any(), any(), any()))
+                .thenThrow(new NotAuthorizedException("not yours"))
+                .thenReturn(new QueryStatus());
+        try {
+            queryService.queryResult(queryId, resultRequest);
+            fail("A caller the resource refuses should not get the local copy");
+        } catch (NotAuthorizedException e){
+            verify(resultSpool, never()).serve(any(), any(), any());
+        }
+        assertSame(served, queryService.queryResult(queryId, resultRequest));
+        verify(webClient, times(2)).queryStatus(eq("resourceRsPath"), eq(queryId.toString()), any());
     }
 
     @Test
-    public void testQuerySync() {
+    public void testQuerySync() throws IOException {
 
         /* SET UP MOCKS */
         //Add needed data to results that are returned
@@ -318,19 +419,22 @@ public class PicsureQueryServiceTest extends BaseServiceTest {
         results.setStartTime(new Date().getTime());
 
         //Return mocks when needed
-        when(resourceRepo.getById(resourceId)).thenReturn(mockResource);
-        Response resp = mock(Response.class);
-        when(webClient.querySync(any(),any())).thenReturn(resp);
+        when(resourceRegistry.get(resourceId)).thenReturn(mockResource);
+        Response resp = Response.ok(new ByteArrayInputStream("result".getBytes())).build();
+        when(webClient.querySync(any(),any(),any())).thenReturn(resp);
 
         //Mock persisting the queryentity, so that it has an ID and we can test that the correct information is stored in it
         doAnswer(new Answer<Void>() {
             public Void answer(InvocationOnMock invocation) {
+                //Like @PrePersist, an id set beforehand is kept
                 Query query = invocation.getArgument(0);
-                query.setUuid(queryId);
+                assertNotNull("The id should be set before the query is written", query.getUuid());
+                assertEquals("The result id should be set before the query is written", query.getUuid().toString(), query.getResourceResultId());
                 queryEntity = query;
                 return null;
             }
         }).when(queryRepo).persist(any(Query.class));
+        storeBodies();
 
         /* END SET UP */
 
@@ -415,6 +519,139 @@ public class PicsureQueryServiceTest extends BaseServiceTest {
         
         assertTrue("Query Entity should have query stored", queryEntity.getQuery().contains(queryString));
         assertEquals("Resource result id and Picsure result id should match in case of no resource result id", queryEntity.getResourceResultId(), queryEntity.getUuid().toString());
+        //The query is only available once its result has been sent
+        verify(queryRepo, never()).updateStatuses(any());
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ((StreamingOutput) queryService.completeWhenSent(result).getEntity()).write(output);
+        assertEquals("result", output.toString());
+        //Only the status is written, and only if the query was not cancelled meanwhile
+        verify(queryRepo).updateStatuses(Collections.singletonMap(queryEntity.getUuid(), PicSureStatus.AVAILABLE));
+        verify(queryRepo, never()).merge(any(Query.class));
+
+        //A result that could not be sent whole is an error
+        InputStream failing = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("Connection reset");
+            }
+        };
+        Response failed = Response.ok(failing).header("resultId", queryEntity.getResourceResultId()).build();
+        try {
+            ((StreamingOutput) queryService.completeWhenSent(failed).getEntity()).write(output);
+            fail("A failed download should not be hidden");
+        } catch (IOException e){
+            verify(queryRepo).updateStatuses(Collections.singletonMap(queryEntity.getUuid(), PicSureStatus.ERROR));
+        }
+
+    }
+
+    @Test
+    public void testQueryCancel() {
+        Query query = new Query();
+        query.setUuid(queryId);
+        query.setResource(mockResource);
+        query.setResourceResultId("resourceQueryId");
+        query.setStartTime(new java.sql.Date(new Date().getTime()));
+        query.setStatus(PicSureStatus.PENDING);
+
+        when(queryRepo.getById(queryId)).thenReturn(query);
+        when(queryRepo.getById(not(ArgumentMatchers.same(queryId)))).thenReturn(null);
+        when(mockResource.getUuid()).thenReturn(resourceId);
+        when(mockResource.getResourceRSPath()).thenReturn("resourceRsPath");
+        when(webClient.abort(queryId.toString())).thenReturn(false, true, false, false, false);
+        when(queryRepo.updateStatus(queryId, PicSureStatus.CANCELLED)).thenReturn(true, true, false);
+
+        //Missing query id should throw an error
+        try {
+            queryService.queryCancel(null, new QueryRequest());
+            fail("Missing query id should throw an error");
+        } catch (ProtocolException e){
+            assertEquals(ProtocolException.MISSING_QUERY_ID, e.getContent().toString());
+        }
+
+        //Nonexistent query should throw an error
+        try {
+            queryService.queryCancel(UUID.randomUUID(), new QueryRequest());
+            fail("Nonexistent query id should throw an error");
+        } catch (ProtocolException e){
+            assertTrue(e.getContent().toString().contains(ProtocolException.QUERY_NOT_FOUND));
+        }
+
+        //A query the resource is still running is cancelled on the resource
+        QueryStatus status = queryService.queryCancel(queryId, new QueryRequest());
+        assertEquals(PicSureStatus.CANCELLED, status.getStatus());
+        verify(webClient, times(1)).queryCancel(eq("resourceRsPath"), eq("resourceQueryId"), any());
+
+        //A querySync call still in flight is aborted, the resource is not asked again
+        query.setStatus(PicSureStatus.AVAILABLE);
+        status = queryService.queryCancel(queryId, new QueryRequest());
+        assertEquals(PicSureStatus.CANCELLED, status.getStatus());
+        verify(webClient, times(1)).queryCancel(any(), any(), any());
+
+        //A finished query stays as it is
+        query.setStatus(PicSureStatus.AVAILABLE);
+        status = queryService.queryCancel(queryId, new QueryRequest());
+        assertEquals(PicSureStatus.AVAILABLE, status.getStatus());
+        verify(webClient, times(1)).queryCancel(any(), any(), any());
+
+        //One that finished while it was being cancelled too
+        query.setStatus(PicSureStatus.PENDING);
+        when(queryRepo.getSummary(queryId)).thenReturn(new QuerySummary(queryId, PicSureStatus.AVAILABLE,
+                "resourceQueryId", query.getStartTime(), resourceId));
+        status = queryService.queryCancel(queryId, new QueryRequest());
+        assertEquals(PicSureStatus.AVAILABLE, status.getStatus());
+
+        //A resource that cannot cancel the query leaves it running, so it is not recorded as cancelled
+        doThrow(new ResourceInterfaceException("resourceRsPath")).when(webClient).queryCancel(any(), any(), any());
+        try {
+            queryService.queryCancel(queryId, new QueryRequest());
+            fail("The resource's refusal should be returned");
+        } catch (ResourceInterfaceException e){
+            verify(queryRepo, times(3)).updateStatus(queryId, PicSureStatus.CANCELLED);
+        }
+    }
+
+    @Test
+    public void testQueryMetadata() {
+        Query query = new Query();
+        query.setUuid(queryId);
+        query.setResource(mockResource);
+        query.setResourceResultId("resourceQueryId");
+        query.setStartTime(new java.sql.Date(new Date().getTime()));
+        query.setStatus(PicSureStatus.AVAILABLE);
+        query.setQuery(queryString);
+        when(mockResource.getUuid()).thenReturn(resourceId);
+        when(queryRepo.getById(queryId)).thenReturn(query);
+
+        QueryStatus status = queryService.queryMetadata(queryId);
+        assertEquals(queryId, status.getPicsureResultId());
+        assertEquals(resourceId, status.getResourceID());
+        assertEquals(PicSureStatus.AVAILABLE, status.getStatus());
+
+        //Not found anywhere, including the archive
+        UUID unknown = UUID.randomUUID();
+        try {
+            queryService.queryMetadata(unknown);
+            fail("Nonexistent query id should throw an error");
+        } catch (ProtocolException e){
+            assertTrue(e.getContent().toString().contains(ProtocolException.QUERY_NOT_FOUND));
+            verify(queryRepo).getArchived(unknown);
+        }
+    }
+
+    /**
+     * Sets the body of each query as the repository would, without a database
+     */
+    private void storeBodies() {
+        doAnswer(invocation -> {
+            Query query = invocation.getArgument(0);
+            QueryBody body = new QueryBody(QueryBody.canonical(invocation.getArgument(1)), BlobCodecs.QUERY_DICTIONARY);
+            query.setBody(body, body.getHash());
+            return null;
+        }).when(queryBodyRepo).setBody(any(Query.class), any(String.class));
+    }
 
+    private QuerySummary summary(Query query) {
+        return new QuerySummary(query.getUuid(), query.getStatus(), query.getResourceResultId(), query.getStartTime(), resourceId);
     }
 }
@@ -1,11 +1,12 @@
 package edu.harvard.dbmi.avillach;
 
-import edu.harvard.dbmi.avillach.data.repository.ResourceRepository;
+import edu.harvard.dbmi.avillach.service.ResourceRegistry;
 import edu.harvard.dbmi.avillach.domain.SearchResults;
 import edu.harvard.dbmi.avillach.service.PicsureSearchService;
 import edu.harvard.dbmi.avillach.service.ResourceWebClient;
 import edu.harvard.dbmi.avillach.util.exception.ApplicationException;
 import edu.harvard.dbmi.avillach.util.exception.ProtocolException;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -19,8 +20,11 @@ import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnitRunner;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static junit.framework.TestCase.assertTrue;
 import static org.junit.Assert.assertEquals;
@@ -28,6 +32,7 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.fail;
 import static org.mockito.AdditionalMatchers.not;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
@@ -43,16 +48,29 @@ public class PicsureSearchServiceTest extends BaseServiceTest {
     private Resource mockResource = mock(Resource.class);
 
     @Mock
-    private ResourceRepository resourceRepo = mock(ResourceRepository.class);
+    private ResourceRegistry resourceRegistry = mock(ResourceRegistry.class);
 
     @Mock
     private ResourceWebClient webClient = mock(ResourceWebClient.class);
 
+    @Mock
+    private PicSureWarInit picSureWarInit = mock(PicSureWarInit.class);
+
+    @Mock
+    private ExecutorService executor = mock(ExecutorService.class);
+
+    private ExecutorService realExecutor = Executors.newFixedThreadPool(2);
+
+    @After
+    public void tearDown() {
+        realExecutor.shutdownNow();
+    }
+
     @Before
     public void setUp() {
         SearchResults results = new SearchResults();
-        when(resourceRepo.getById(resourceId)).thenReturn(mockResource);
-        when(resourceRepo.getById(not(ArgumentMatchers.same(resourceId)))).thenReturn(null);
+        when(resourceRegistry.get(resourceId)).thenReturn(mockResource);
+        when(resourceRegistry.get(not(ArgumentMatchers.same(resourceId)))).thenReturn(null);
         when(webClient.search(any(), any())).thenReturn(results);
     }
 
@@ -123,4 +141,34 @@ public class PicsureSearchServiceTest extends BaseServiceTest {
         results = searchService.search(resourceId, searchQueryRequest);
         assertNotNull("SearchResults should not be null", results);
     }
+
+    @Test
+    public void testSearchAll() {
+        //The managed executor is not available outside the container
+        doAnswer(invocation -> {
+            realExecutor.execute(invocation.getArgument(0));
+            return null;
+        }).when(executor).execute(any(Runnable.class));
+        when(picSureWarInit.getSearchTimeoutMillis()).thenReturn(60000L);
+        when(mockResource.getResourceRSPath()).thenReturn("resourceRsPath");
+        when(mockResource.getUuid()).thenReturn(resourceId);
+
+        QueryRequest searchQueryRequest = new QueryRequest();
+        searchQueryRequest.setQuery("blood");
+
+        //Missing request data should throw an error
+        try {
+            searchService.searchAll(null, null);
+            fail("Missing request data should throw an error");
+        } catch (ProtocolException e){
+            assertEquals(ProtocolException.MISSING_DATA, e.getContent().toString());
+        }
+
+        //Nonexistent resources are skipped, existing ones are keyed by their id
+        SearchResults results = searchService.searchAll(Arrays.asList(resourceId, UUID.randomUUID()), searchQueryRequest);
+        assertEquals("blood", results.getSearchQuery());
+        Map<UUID, SearchResults> resultsByResource = (Map<UUID, SearchResults>) results.getResults();
+        assertEquals(1, resultsByResource.size());
+        assertNotNull(resultsByResource.get(resourceId));
+    }
 }
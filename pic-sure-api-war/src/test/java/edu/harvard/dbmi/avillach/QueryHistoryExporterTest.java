@@ -0,0 +1,106 @@
+package edu.harvard.dbmi.avillach;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.harvard.dbmi.avillach.data.codec.BlobCodecs;
+import edu.harvard.dbmi.avillach.service.QueryHistoryExporter;
+import edu.harvard.dbmi.avillach.util.PicSureStatus;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import javax.sql.DataSource;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class QueryHistoryExporterTest extends BaseServiceTest {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private UUID firstQueryId = UUID.randomUUID();
+    private UUID secondQueryId = UUID.randomUUID();
+    private UUID resourceId = UUID.randomUUID();
+    private String queryJson = "{\"query\":{\"fields\":[\"a,b\"]}}";
+    private String storedQueryJson = "{\"resourceCredentials\":{\"BEARER_TOKEN\":\"secret\"},\"query\":{\"fields\":[\"a,b\"]}}";
+
+    @InjectMocks
+    private QueryHistoryExporter exporter = new QueryHistoryExporter();
+
+    @Mock
+    private DataSource dataSource = mock(DataSource.class);
+
+    @Test
+    public void testExport() throws Exception {
+        String ndjson = export(QueryHistoryExporter.FORMAT_NDJSON);
+        String[] lines = ndjson.split("\n");
+        assertEquals(2, lines.length);
+
+        JsonNode first = mapper.readTree(lines[0]);
+        assertEquals(firstQueryId.toString(), first.get("uuid").asText());
+        assertEquals(resourceId.toString(), first.get("resourceId").asText());
+        assertEquals("user@example.com", first.get("username").asText());
+        assertEquals("AVAILABLE", first.get("status").asText());
+        assertEquals("2020-03-01", first.get("startTime").asText());
+        assertFalse(first.get("archived").asBoolean());
+        assertEquals("The query is embedded as JSON, without its credentials", mapper.readTree(queryJson), first.get("query"));
+
+        JsonNode second = mapper.readTree(lines[1]);
+        assertTrue(second.get("status").isNull());
+        assertTrue(second.get("query").isNull());
+
+        String csv = export(QueryHistoryExporter.FORMAT_CSV);
+        lines = csv.split("\r\n");
+        assertEquals(3, lines.length);
+        assertEquals("uuid,resourceId,username,status,startTime,submittedAt,completedAt,resourceResultId,archived,query", lines[0]);
+        assertTrue(lines[1].startsWith(firstQueryId + "," + resourceId + ",user@example.com,AVAILABLE,2020-03-01,"));
+        assertTrue("Values holding the delimiter are quoted", lines[1].endsWith(",false,\"" + queryJson.replace("\"", "\"\"") + "\""));
+        assertTrue(lines[2].startsWith(secondQueryId + ",,,,"));
+        assertFalse("Credentials are left out", csv.contains("secret"));
+    }
+
+    private String export(String format) throws Exception {
+        Connection connection = mock(Connection.class);
+        PreparedStatement statement = mock(PreparedStatement.class);
+        ResultSet rows = mock(ResultSet.class);
+        when(dataSource.getConnection()).thenReturn(connection);
+        when(connection.prepareStatement(anyString(), anyInt(), anyInt())).thenReturn(statement);
+        when(statement.executeQuery()).thenReturn(rows);
+        when(rows.next()).thenReturn(true, true, false);
+        when(rows.getBytes("uuid")).thenReturn(bytes(firstQueryId), bytes(secondQueryId));
+        when(rows.getBytes("resourceId")).thenReturn(bytes(resourceId), (byte[]) null);
+        when(rows.getString("username")).thenReturn("user@example.com", (String) null);
+        when(rows.getInt("status")).thenReturn(PicSureStatus.AVAILABLE.ordinal(), 0);
+        when(rows.getInt("queryCodec")).thenReturn(BlobCodecs.QUERY_DICTIONARY.getId(), 0);
+        //status then queryCodec, for each row
+        when(rows.wasNull()).thenReturn(false, false, true, true);
+        when(rows.getDate("startTime")).thenReturn(Date.valueOf("2020-03-01"), (Date) null);
+        when(rows.getTimestamp("submittedAt")).thenReturn(new Timestamp(1583020800000L), (Timestamp) null);
+        when(rows.getBytes("query")).thenReturn(BlobCodecs.compress(BlobCodecs.QUERY_DICTIONARY, storedQueryJson), (byte[]) null);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        exporter.export(format, null, null, false).write(output);
+
+        //Streamed through a forward-only cursor with a bounded fetch size
+        verify(statement).setFetchSize(anyInt());
+        verify(connection).close();
+        return output.toString(StandardCharsets.UTF_8.name());
+    }
+
+    private byte[] bytes(UUID uuid) {
+        return ByteBuffer.allocate(16)
+                .putLong(uuid.getMostSignificantBits())
+                .putLong(uuid.getLeastSignificantBits())
+                .array();
+    }
+}
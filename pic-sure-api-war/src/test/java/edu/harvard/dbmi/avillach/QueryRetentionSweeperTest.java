@@ -0,0 +1,55 @@
+package edu.harvard.dbmi.avillach;
+
+import edu.harvard.dbmi.avillach.data.repository.QueryRepository;
+import edu.harvard.dbmi.avillach.service.QueryRetentionSweeper;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class QueryRetentionSweeperTest extends BaseServiceTest {
+
+    @InjectMocks
+    private QueryRetentionSweeper sweeper = new QueryRetentionSweeper();
+
+    @Mock
+    private PicSureWarInit picSureWarInit = mock(PicSureWarInit.class);
+
+    @Mock
+    private QueryRepository queryRepo = mock(QueryRepository.class);
+
+    @Test
+    public void testSweep() {
+        //Retention turned off
+        when(picSureWarInit.getQueryRetentionBatchSize()).thenReturn(3);
+        when(picSureWarInit.getQueryRetentionDays()).thenReturn(0);
+        assertEquals(0, sweeper.sweep());
+        verify(queryRepo, never()).archive(any(), anyInt());
+
+        //Batches are moved until one comes back short
+        when(picSureWarInit.getQueryRetentionDays()).thenReturn(30);
+        when(queryRepo.archive(any(), eq(3))).thenReturn(3, 3, 1);
+        assertEquals(7, sweeper.sweep());
+
+        ArgumentCaptor<Date> cutoff = ArgumentCaptor.forClass(Date.class);
+        verify(queryRepo, times(3)).archive(cutoff.capture(), eq(3));
+        long expected = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(30);
+        assertTrue(Math.abs(cutoff.getValue().getTime() - expected) < TimeUnit.MINUTES.toMillis(1));
+
+        //A failed batch ends the run and keeps what was already moved
+        reset(queryRepo);
+        when(queryRepo.archive(any(), eq(3))).thenReturn(3).thenThrow(new RuntimeException("lock wait timeout"));
+        assertEquals(3, sweeper.sweep());
+    }
+}
@@ -0,0 +1,98 @@
+package edu.harvard.dbmi.avillach;
+
+import edu.harvard.dbmi.avillach.data.repository.QueryRepository;
+import edu.harvard.dbmi.avillach.data.repository.ReplicaRouting;
+import edu.harvard.dbmi.avillach.service.QueryStatusWriter;
+import edu.harvard.dbmi.avillach.util.PicSureStatus;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class QueryStatusWriterTest extends BaseServiceTest {
+
+    private UUID first = UUID.randomUUID();
+    private UUID second = UUID.randomUUID();
+
+    @InjectMocks
+    private QueryStatusWriter statusWriter = new QueryStatusWriter();
+
+    @Mock
+    private PicSureWarInit picSureWarInit = mock(PicSureWarInit.class);
+
+    @Mock
+    private QueryRepository queryRepo = mock(QueryRepository.class);
+
+    @Mock
+    private ReplicaRouting replicaRouting = mock(ReplicaRouting.class);
+
+    @Test
+    public void testFlush() {
+        when(picSureWarInit.getStatusFlushBatchSize()).thenReturn(10);
+
+        //Nothing to write
+        statusWriter.flush();
+        verify(queryRepo, never()).updateStatuses(any());
+
+        //Only the latest status of each query is kept, and is visible until written
+        statusWriter.record(first, PicSureStatus.QUEUED);
+        statusWriter.record(first, PicSureStatus.PENDING);
+        statusWriter.record(second, PicSureStatus.AVAILABLE);
+        assertEquals(PicSureStatus.PENDING, statusWriter.pending(first));
+        verify(queryRepo, never()).updateStatuses(any());
+
+        statusWriter.flush();
+        Map<UUID, PicSureStatus> expected = new HashMap<>();
+        expected.put(first, PicSureStatus.PENDING);
+        expected.put(second, PicSureStatus.AVAILABLE);
+        verify(queryRepo).updateStatuses(expected);
+        verify(replicaRouting).wrote(first);
+        verify(replicaRouting).wrote(second);
+        assertNull(statusWriter.pending(first));
+        assertNull(statusWriter.pending(second));
+
+        //A forgotten status is not written
+        statusWriter.record(first, PicSureStatus.ERROR);
+        statusWriter.forget(first);
+        assertNull(statusWriter.pending(first));
+        statusWriter.flush();
+        verify(queryRepo, times(1)).updateStatuses(any());
+    }
+
+    @Test
+    public void testFlushWhenFull() {
+        when(picSureWarInit.getStatusFlushBatchSize()).thenReturn(2);
+
+        statusWriter.record(first, PicSureStatus.PENDING);
+        verify(queryRepo, never()).updateStatuses(any());
+        statusWriter.record(second, PicSureStatus.PENDING);
+        verify(queryRepo).updateStatuses(any());
+        assertNull(statusWriter.pending(first));
+    }
+
+    @Test
+    public void testFailedFlushIsRetried() {
+        when(picSureWarInit.getStatusFlushBatchSize()).thenReturn(10);
+        doThrow(new RuntimeException("database is down")).doNothing().when(queryRepo).updateStatuses(any());
+
+        statusWriter.record(first, PicSureStatus.AVAILABLE);
+        statusWriter.flush();
+        assertEquals("A failed write stays in the buffer", PicSureStatus.AVAILABLE, statusWriter.pending(first));
+        verify(replicaRouting, never()).wrote(any());
+
+        statusWriter.flush();
+        verify(queryRepo, times(2)).updateStatuses(any());
+        assertNull(statusWriter.pending(first));
+        verify(replicaRouting).wrote(first);
+    }
+}
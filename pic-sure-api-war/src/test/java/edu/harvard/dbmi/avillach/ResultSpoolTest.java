@@ -0,0 +1,182 @@
+package edu.harvard.dbmi.avillach;
+
+import edu.harvard.dbmi.avillach.service.ResultSpool;
+import edu.harvard.dbmi.avillach.util.ByteRange;
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ResultSpoolTest extends BaseServiceTest {
+
+    private static final String RESULT = "0123456789";
+
+    @Rule
+    public TemporaryFolder spoolDir = new TemporaryFolder();
+
+    @InjectMocks
+    private ResultSpool resultSpool = new ResultSpool();
+
+    @Mock
+    private PicSureWarInit picSureWarInit = mock(PicSureWarInit.class);
+
+    @Test
+    public void testSpooling() throws IOException {
+        when(picSureWarInit.getResultSpoolDir()).thenReturn(spoolDir.getRoot().getPath());
+        when(picSureWarInit.getResultSpoolMaxBytes()).thenReturn(1024L);
+        when(picSureWarInit.getResultSpoolMaxTotalBytes()).thenReturn(1024L);
+        UUID queryId = UUID.randomUUID();
+
+        //A download cut off halfway leaves nothing behind
+        try (InputStream spooling = resultSpool.spooling(queryId, stream(), -1)) {
+            assertEquals('0', spooling.read());
+        }
+        assertNull(resultSpool.get(queryId));
+        assertEquals(0, spoolDir.getRoot().listFiles().length);
+
+        //A complete download is kept
+        try (InputStream spooling = resultSpool.spooling(queryId, stream(), -1)) {
+            assertEquals(RESULT, IOUtils.toString(spooling, StandardCharsets.UTF_8));
+        }
+        assertNotNull(resultSpool.get(queryId));
+        assertEquals(RESULT.length(), resultSpool.get(queryId).length());
+    }
+
+    @Test
+    public void testMaxBytes() throws IOException {
+        when(picSureWarInit.getResultSpoolDir()).thenReturn(spoolDir.getRoot().getPath());
+        when(picSureWarInit.getResultSpoolMaxBytes()).thenReturn(5L);
+        when(picSureWarInit.getResultSpoolMaxTotalBytes()).thenReturn(1024L);
+        UUID queryId = UUID.randomUUID();
+
+        //A result known to be too large is not copied at all
+        assertFalse(resultSpool.fits(RESULT.length()));
+        assertFalse(resultSpool.fits(-1));
+        assertTrue(resultSpool.fits(5));
+        InputStream source = stream();
+        assertSame(source, resultSpool.spooling(queryId, source, RESULT.length()));
+
+        //One that turns out to be too large still streams whole, but is not kept
+        try (InputStream spooling = resultSpool.spooling(queryId, stream(), -1)) {
+            assertEquals(RESULT, IOUtils.toString(spooling, StandardCharsets.UTF_8));
+        }
+        assertNull(resultSpool.get(queryId));
+        assertEquals(0, spoolDir.getRoot().listFiles().length);
+    }
+
+    @Test
+    public void testMaxTotalBytes() throws IOException {
+        when(picSureWarInit.getResultSpoolDir()).thenReturn(spoolDir.getRoot().getPath());
+        when(picSureWarInit.getResultSpoolMaxBytes()).thenReturn(1024L);
+        when(picSureWarInit.getResultSpoolMaxTotalBytes()).thenReturn(15L);
+        UUID first = UUID.randomUUID();
+        UUID second = UUID.randomUUID();
+
+        //A copy in progress holds its room until it is published
+        InputStream spooling = resultSpool.spooling(first, stream(), RESULT.length());
+        assertFalse(resultSpool.fits(RESULT.length()));
+        InputStream source = stream();
+        assertSame(source, resultSpool.spooling(second, source, RESULT.length()));
+        assertTrue(resultSpool.fits(5));
+        IOUtils.toString(spooling, StandardCharsets.UTF_8);
+        spooling.close();
+
+        //Then its size counts instead
+        assertNotNull(resultSpool.get(first));
+        assertFalse(resultSpool.fits(RESULT.length()));
+        assertTrue(resultSpool.fits(5));
+
+        //A copy given up on gives its room back
+        resultSpool.spooling(second, stream(), 5).close();
+        assertTrue(resultSpool.fits(5));
+    }
+
+    @Test
+    public void testDisabled() throws IOException {
+        when(picSureWarInit.getResultSpoolDir()).thenReturn("");
+        UUID queryId = UUID.randomUUID();
+
+        //Nothing is copied nor served unless a directory is configured
+        assertFalse(resultSpool.isEnabled());
+        assertFalse(resultSpool.fits(RESULT.length()));
+        InputStream source = stream();
+        assertSame(source, resultSpool.spooling(queryId, source, RESULT.length()));
+        assertNull(resultSpool.get(queryId));
+        resultSpool.evictExpired();
+    }
+
+    @Test
+    public void testServe() throws IOException {
+        when(picSureWarInit.getResultSpoolDir()).thenReturn(spoolDir.getRoot().getPath());
+        when(picSureWarInit.getResultSpoolMaxBytes()).thenReturn(1024L);
+        when(picSureWarInit.getResultSpoolMaxTotalBytes()).thenReturn(1024L);
+        UUID queryId = UUID.randomUUID();
+        File spooled = resultSpool.spool(queryId, stream(), RESULT.length());
+        String etag = resultSpool.etag(queryId);
+
+        //No range, the whole result
+        Response response = resultSpool.serve(spooled, null, etag);
+        assertEquals(200, response.getStatus());
+        assertEquals("10", response.getHeaderString(HttpHeaders.CONTENT_LENGTH));
+        assertEquals(ByteRange.BYTES, response.getHeaderString(ByteRange.ACCEPT_RANGES));
+        assertEquals(etag, response.getHeaderString(HttpHeaders.ETAG));
+        assertEquals(RESULT, body(response));
+
+        //Resuming from an offset
+        response = resultSpool.serve(spooled, "bytes=4-", etag);
+        assertEquals(206, response.getStatus());
+        assertEquals("bytes 4-9/10", response.getHeaderString(ByteRange.CONTENT_RANGE));
+        assertEquals("6", response.getHeaderString(HttpHeaders.CONTENT_LENGTH));
+        assertEquals("456789", body(response));
+
+        //A chunk in the middle
+        response = resultSpool.serve(spooled, "bytes=2-3", etag);
+        assertEquals(206, response.getStatus());
+        assertEquals("23", body(response));
+
+        //The last bytes
+        response = resultSpool.serve(spooled, "bytes=-3", etag);
+        assertEquals("bytes 7-9/10", response.getHeaderString(ByteRange.CONTENT_RANGE));
+        assertEquals("789", body(response));
+
+        //Past the end
+        response = resultSpool.serve(spooled, "bytes=10-", etag);
+        assertEquals(416, response.getStatus());
+        assertEquals("bytes */10", response.getHeaderString(ByteRange.CONTENT_RANGE));
+
+        //Several ranges are not supported, so the whole result is sent
+        response = resultSpool.serve(spooled, "bytes=0-1,4-5", etag);
+        assertEquals(200, response.getStatus());
+        assertEquals(RESULT, body(response));
+    }
+
+    private InputStream stream() {
+        return new ByteArrayInputStream(RESULT.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String body(Response response) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ((StreamingOutput) response.getEntity()).write(output);
+        return output.toString(StandardCharsets.UTF_8.name());
+    }
+}
@@ -0,0 +1,113 @@
+package edu.harvard.dbmi.avillach;
+
+import edu.harvard.dbmi.avillach.service.DelimitedResultTranscoder;
+import edu.harvard.dbmi.avillach.service.NdjsonResultTranscoder;
+import edu.harvard.dbmi.avillach.service.ResultTranscoder;
+import edu.harvard.dbmi.avillach.service.ResultTranscoders;
+import org.junit.Test;
+
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class ResultTranscodersTest extends BaseServiceTest {
+
+    private static final String RESULT = "[{\"patient\":1,\"sex\":\"F\",\"note\":\"says \\\"hi\\\", twice\"}," +
+            "{\"patient\":2,\"sex\":null,\"note\":\"line\\nbreak\",\"extra\":\"ignored\"}," +
+            "{\"patient\":3,\"sex\":\"M\",\"note\":{\"nested\":[1,2]}}]";
+
+    private ResultTranscoders resultTranscoders = new ResultTranscoders();
+
+    @Test
+    public void testNegotiate() {
+        assertNull(resultTranscoders.negotiate(null));
+        assertNull(resultTranscoders.negotiate(Collections.singletonList(MediaType.WILDCARD_TYPE)));
+        assertNull(resultTranscoders.negotiate(Collections.singletonList(MediaType.APPLICATION_JSON_TYPE)));
+        assertNull(resultTranscoders.negotiate(Collections.singletonList(MediaType.APPLICATION_OCTET_STREAM_TYPE)));
+        assertEquals(DelimitedResultTranscoder.CSV, resultTranscoders.negotiate(Collections.singletonList(MediaType.valueOf("text/csv"))));
+        assertEquals(DelimitedResultTranscoder.TSV, resultTranscoders.negotiate(
+                Arrays.asList(MediaType.valueOf("text/tab-separated-values"), MediaType.valueOf("text/csv"))));
+        assertTrue(resultTranscoders.negotiate(Collections.singletonList(MediaType.valueOf("application/x-ndjson"))) instanceof NdjsonResultTranscoder);
+
+        //The client's first choice wins
+        assertNull(resultTranscoders.negotiate(Arrays.asList(MediaType.APPLICATION_JSON_TYPE, MediaType.valueOf("text/csv"))));
+    }
+
+    @Test
+    public void testCsv() throws IOException {
+        assertEquals("patient,sex,note\r\n" +
+                "1,F,\"says \"\"hi\"\", twice\"\r\n" +
+                "2,,\"line\nbreak\"\r\n" +
+                "3,M,\"{\"\"nested\"\":[1,2]}\"\r\n", transcode(DelimitedResultTranscoder.CSV, RESULT));
+
+        //Rows may also be arrays
+        assertEquals("a,b\r\n1,2\r\n", transcode(DelimitedResultTranscoder.CSV, "[[\"a\",\"b\"],[1,2]]"));
+        assertEquals("", transcode(DelimitedResultTranscoder.CSV, "[]"));
+    }
+
+    @Test
+    public void testCsvColumnsFromFirstRow() throws IOException {
+        //A later row's missing fields are left empty and its extra fields are left out
+        assertEquals("a,b\r\n1,2\r\n,3\r\n4,\r\n", transcode(DelimitedResultTranscoder.CSV,
+                "[{\"a\":1,\"b\":2},{\"b\":3,\"c\":5},{\"a\":4}]"));
+    }
+
+    @Test
+    public void testTsv() throws IOException {
+        assertEquals("patient\tsex\tnote\r\n" +
+                "1\tF\tsays \"hi\", twice\r\n" +
+                "2\t\tline break\r\n" +
+                "3\tM\t{\"nested\":[1,2]}\r\n", transcode(DelimitedResultTranscoder.TSV, RESULT));
+    }
+
+    @Test
+    public void testNdjson() throws IOException {
+        assertEquals("{\"a\":1}\n[2,3]\n\"four\"\n", transcode(new NdjsonResultTranscoder(), "[{\"a\": 1}, [2, 3], \"four\"]"));
+    }
+
+    @Test
+    public void testTranscode() throws IOException {
+        Response response = Response.ok(stream(RESULT))
+                .header("resultId", "result-1")
+                .header(HttpHeaders.CONTENT_LENGTH, RESULT.length())
+                .build();
+        Response transcoded = resultTranscoders.transcode(DelimitedResultTranscoder.CSV, response);
+        assertEquals("text/csv", transcoded.getMediaType().toString());
+        assertEquals("result-1", transcoded.getHeaderString("resultId"));
+        assertNull("The length of the original result no longer applies", transcoded.getHeaderString(HttpHeaders.CONTENT_LENGTH));
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ((StreamingOutput) transcoded.getEntity()).write(output);
+        assertTrue(output.toString(StandardCharsets.UTF_8.name()).startsWith("patient,sex,note\r\n"));
+
+        //Errors are left alone
+        Response error = Response.status(500).entity(stream("oops")).build();
+        assertSame(error, resultTranscoders.transcode(DelimitedResultTranscoder.CSV, error));
+
+        //So are results that are not JSON
+        Response binary = Response.ok(stream("PK"), MediaType.APPLICATION_OCTET_STREAM_TYPE).build();
+        assertSame(binary, resultTranscoders.transcode(DelimitedResultTranscoder.CSV, binary));
+        Response json = Response.ok(stream(RESULT), "application/vnd.picsure+json; charset=UTF-8").build();
+        assertEquals("text/csv", resultTranscoders.transcode(DelimitedResultTranscoder.CSV, json).getMediaType().toString());
+    }
+
+    private String transcode(ResultTranscoder transcoder, String json) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        transcoder.transcode(stream(json), output);
+        return output.toString(StandardCharsets.UTF_8.name());
+    }
+
+    private InputStream stream(String content) {
+        return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+    }
+}
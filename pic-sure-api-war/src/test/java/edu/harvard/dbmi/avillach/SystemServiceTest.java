@@ -0,0 +1,50 @@
+package edu.harvard.dbmi.avillach;
+
+import edu.harvard.dbmi.avillach.service.HealthCheck;
+import edu.harvard.dbmi.avillach.service.SystemService;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.core.Response;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class SystemServiceTest extends BaseServiceTest {
+
+    @InjectMocks
+    private SystemService systemService = new SystemService();
+
+    @Mock
+    private HealthCheck healthCheck = mock(HealthCheck.class);
+
+    @Mock
+    private HttpServletRequest request = mock(HttpServletRequest.class);
+
+    @Test
+    public void testHealth() {
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("status", HealthCheck.DOWN);
+        report.put("checks", Collections.singletonMap("database", Collections.singletonMap("error", "Connection refused")));
+        when(healthCheck.check()).thenReturn(report);
+
+        //Without a token only the overall status is sent
+        Response response = systemService.health();
+        assertEquals(503, response.getStatus());
+        assertEquals(Collections.singletonMap("status", HealthCheck.DOWN), response.getEntity());
+
+        //An authenticated caller gets the checks
+        when(request.getAttribute("username")).thenReturn("user@example.com");
+        response = systemService.health();
+        assertEquals(503, response.getStatus());
+        assertSame(report, response.getEntity());
+    }
+}
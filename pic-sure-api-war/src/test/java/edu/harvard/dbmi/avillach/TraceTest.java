@@ -0,0 +1,175 @@
+package edu.harvard.dbmi.avillach;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.harvard.dbmi.avillach.util.HttpClientUtil;
+import edu.harvard.dbmi.avillach.util.trace.*;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.HttpContext;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.core.UriInfo;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.Callable;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.nullable;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class TraceTest {
+
+    private static final String TRACEPARENT = "00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-01";
+
+    @After
+    public void tearDown() {
+        Tracing.clear();
+        Tracing.setExporter(null);
+    }
+
+    @Test
+    public void testParse() {
+        TraceContext context = TraceContext.parse(TRACEPARENT, "vendor=value");
+        assertEquals("4bf92f3577b34da6a3ce929d0e0e4736", context.getTraceId());
+        assertEquals("00f067aa0ba902b7", context.getSpanId());
+        assertTrue(context.isSampled());
+        assertEquals("vendor=value", context.getTraceState());
+        assertEquals(TRACEPARENT, context.toTraceparent());
+
+        //Later versions may add fields, which are ignored
+        assertNotNull(TraceContext.parse("01-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-00-extra", null));
+
+        assertNull(TraceContext.parse(null, null));
+        assertNull(TraceContext.parse("00-00000000000000000000000000000000-00f067aa0ba902b7-01", null));
+        assertNull(TraceContext.parse("00-4bf92f3577b34da6a3ce929d0e0e4736-0000000000000000-01", null));
+        assertNull(TraceContext.parse("ff-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-01", null));
+        assertNull(TraceContext.parse("00-4BF92F3577B34DA6A3CE929D0E0E4736-00f067aa0ba902b7-01", null));
+        assertNull(TraceContext.parse("00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-01-extra", null));
+        assertNull(TraceContext.parse("00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7", null));
+    }
+
+    @Test
+    public void testTraceContinuedToResource() throws Exception {
+        List<Span> exported = new ArrayList<>();
+        Tracing.setExporter(exported::add);
+
+        ContainerRequestContext request = mock(ContainerRequestContext.class);
+        ContainerResponseContext response = mock(ContainerResponseContext.class);
+        UriInfo uriInfo = mock(UriInfo.class);
+        Map<String, Object> properties = new HashMap<>();
+        doAnswer(invocation -> properties.put(invocation.getArgument(0), invocation.getArgument(1)))
+                .when(request).setProperty(anyString(), any());
+        when(request.getProperty(anyString())).then(invocation -> properties.get(invocation.getArgument(0)));
+        when(request.getMethod()).thenReturn("POST");
+        when(request.getUriInfo()).thenReturn(uriInfo);
+        when(uriInfo.getRequestUri()).thenReturn(URI.create("http://localhost/PICSURE/query/sync"));
+        when(request.getHeaderString(Tracing.TRACEPARENT)).thenReturn(TRACEPARENT);
+        when(request.getHeaderString(Tracing.TRACESTATE)).thenReturn("vendor=value");
+        when(response.hasEntity()).thenReturn(false);
+        when(response.getStatus()).thenReturn(204);
+
+        HttpClient client = mock(HttpClient.class);
+        when(client.execute(any(HttpUriRequest.class), nullable(HttpContext.class)))
+                .thenReturn(new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK"));
+
+        TraceFilter filter = new TraceFilter();
+        filter.filter(request);
+        Span server = Tracing.current();
+        HttpClientUtil.simpleGet(client, "http://resource/pic-sure/info");
+        filter.filter(request, response);
+        assertNull(Tracing.current());
+
+        //The resource is called with a traceparent naming the client span as its parent
+        ArgumentCaptor<HttpUriRequest> sent = ArgumentCaptor.forClass(HttpUriRequest.class);
+        verify(client).execute(sent.capture(), nullable(HttpContext.class));
+        TraceContext forwarded = TraceContext.parse(sent.getValue().getFirstHeader(Tracing.TRACEPARENT).getValue(), null);
+        assertEquals("vendor=value", sent.getValue().getFirstHeader(Tracing.TRACESTATE).getValue());
+
+        assertEquals(2, exported.size());
+        Span client0 = exported.get(0);
+        assertEquals(Span.Kind.CLIENT, client0.getKind());
+        assertEquals("GET /pic-sure/info", client0.getName());
+        assertEquals(200, client0.getStatus());
+        assertEquals(forwarded.getSpanId(), client0.getSpanId());
+        assertEquals(server.getSpanId(), client0.getParentSpanId());
+
+        assertSame(server, exported.get(1));
+        assertEquals(Span.Kind.SERVER, server.getKind());
+        assertEquals("4bf92f3577b34da6a3ce929d0e0e4736", server.getTraceId());
+        assertEquals("00f067aa0ba902b7", server.getParentSpanId());
+        assertEquals(204, server.getStatus());
+        assertTrue(server.getDurationMicros() >= 0);
+
+        //Ending again does not export again
+        server.end(500);
+        assertEquals(2, exported.size());
+    }
+
+    @Test
+    public void testUntracedCallsSendNoHeaders() throws Exception {
+        HttpClient client = mock(HttpClient.class);
+        when(client.execute(any(HttpUriRequest.class), nullable(HttpContext.class)))
+                .thenReturn(new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK"));
+
+        HttpClientUtil.simpleGet(client, "http://resource/pic-sure/info");
+
+        ArgumentCaptor<HttpUriRequest> sent = ArgumentCaptor.forClass(HttpUriRequest.class);
+        verify(client).execute(sent.capture(), nullable(HttpContext.class));
+        assertNull(sent.getValue().getFirstHeader(Tracing.TRACEPARENT));
+    }
+
+    @Test
+    public void testPropagate() throws Exception {
+        Span server = Tracing.startServerSpan("GET /search", null, null);
+        assertEquals(32, server.getTraceId().length());
+        assertNull(server.getParentSpanId());
+
+        Span[] seen = new Span[1];
+        Callable<Span> task = Tracing.propagate(() -> seen[0] = Tracing.current());
+        Thread worker = new Thread(() -> {
+            try {
+                task.call();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        worker.start();
+        worker.join();
+        assertSame(server, seen[0]);
+    }
+
+    @Test
+    public void testFileExporter() throws Exception {
+        Path file = Files.createTempDirectory("spans").resolve("spans.jsonl");
+        try (FileSpanExporter exporter = new FileSpanExporter(file)) {
+            Tracing.setExporter(exporter);
+            Tracing.startServerSpan("GET /info", TRACEPARENT, null).end(200);
+            Tracing.startServerSpan("GET /info", null, null).end(404);
+        }
+
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        assertEquals(2, lines.size());
+        JsonNode span = new ObjectMapper().readTree(lines.get(0));
+        assertEquals("4bf92f3577b34da6a3ce929d0e0e4736", span.get("traceId").asText());
+        assertEquals("00f067aa0ba902b7", span.get("parentSpanId").asText());
+        assertEquals("SERVER", span.get("kind").asText());
+        assertEquals(200, span.get("status").asInt());
+        assertFalse(new ObjectMapper().readTree(lines.get(1)).has("parentSpanId"));
+    }
+}
@@ -4,12 +4,15 @@ import java.io.IOException;
 import java.io.Serializable;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Properties;
 
 import javax.enterprise.context.ApplicationScoped;
 
 import edu.harvard.dbmi.avillach.util.exception.ApplicationException;
 import edu.harvard.dbmi.avillach.util.exception.PicsureQueryException;
+import edu.harvard.dbmi.avillach.util.trace.FileSpanExporter;
+import edu.harvard.dbmi.avillach.util.trace.Tracing;
 
 @ApplicationScoped
 public class ApplicationProperties implements Serializable {
@@ -18,6 +21,7 @@ public class ApplicationProperties implements Serializable {
 	private String targetPicsureUrl;
 	private String targetResourceId;
 	private String targetPicsureToken;
+	private boolean streamingProxy;
 
 	public String getContextPath() {
 		return contextPath;
@@ -35,6 +39,13 @@ public class ApplicationProperties implements Serializable {
 		return targetResourceId;
 	}
 
+	/**
+	 * @return whether info, query and query status are streamed through, see {@link StreamingProxyFilter}
+	 */
+	public boolean isStreamingProxy() {
+		return streamingProxy;
+	}
+
 	public void init(String contextPath) {
 		this.contextPath = contextPath;
 
@@ -59,5 +70,18 @@ public class ApplicationProperties implements Serializable {
 		targetPicsureToken = properties.getProperty("target.picsure.token");
 		if (targetPicsureToken == null)
 			throw new PicsureQueryException("target.picsure.token property must be set.");
+
+		streamingProxy = Boolean.parseBoolean(properties.getProperty("proxy.streaming", "false"));
+
+		//Optional, trace context is passed on to the target either way
+		Tracing.setServiceName("passthru" + contextPath);
+		String traceFile = properties.getProperty("trace.file");
+		if (traceFile != null) {
+			try {
+				Tracing.setExporter(new FileSpanExporter(Paths.get(traceFile)));
+			} catch (IOException e) {
+				throw new ApplicationException("Error while opening trace file: " + traceFile, e);
+			}
+		}
 	}
 }
@@ -3,6 +3,7 @@ package edu.harvard.hms.dbmi.avillach.resource.passthru;
 import javax.enterprise.context.ApplicationScoped;
 
 import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 
 /**
@@ -29,6 +30,10 @@ public class HttpClient {
 		return edu.harvard.dbmi.avillach.util.HttpClientUtil.retrievePostResponse(uri, headers, body);
 	}
 
+	public HttpResponse retrievePostResponse(String uri, Header[] headers, HttpEntity body) {
+		return edu.harvard.dbmi.avillach.util.HttpClientUtil.retrievePostResponse(uri, headers, body, null);
+	}
+
 	public void throwResponseError(HttpResponse response, String baseURL) {
 		edu.harvard.dbmi.avillach.util.HttpClientUtil.throwResponseError(response, baseURL);
 	}
@@ -0,0 +1,98 @@
+package edu.harvard.hms.dbmi.avillach.resource.passthru;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Copies a JSON document token by token, replacing the value of one field of the top level object.
+ *
+ * Nothing is bound to objects or trees: each token is written out as soon as it is read, so memory
+ * use does not grow with the size of the document and a query passes through however large it is.
+ */
+public class JsonFieldRewriter {
+
+	private static final JsonFactory jsonFactory = new JsonFactory()
+			.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE)
+			.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+	private final String field;
+
+	private final String replacement;
+
+	private final boolean addIfMissing;
+
+	private String original;
+
+	/**
+	 * @param field name of the top level field to rewrite
+	 * @param replacement its new value, null to write null
+	 * @param addIfMissing whether to add the field when the document does not have it
+	 */
+	public JsonFieldRewriter(String field, String replacement, boolean addIfMissing) {
+		this.field = field;
+		this.replacement = replacement;
+		this.addIfMissing = addIfMissing;
+	}
+
+	/**
+	 * Copies the document from in to out, rewriting the field on the way. Neither stream is closed.
+	 *
+	 * @throws com.fasterxml.jackson.core.JsonProcessingException if the document is not valid JSON
+	 */
+	public void copy(InputStream in, OutputStream out) throws IOException {
+		original = null;
+		boolean seen = false;
+		try (JsonParser parser = jsonFactory.createParser(in);
+			 JsonGenerator generator = jsonFactory.createGenerator(out, JsonEncoding.UTF8)) {
+			JsonToken token = parser.nextToken();
+			if (token == null) {
+				//An empty body, which JAX-RS would have read as a null request
+				if (addIfMissing) {
+					generator.writeStartObject();
+					writeField(generator);
+					generator.writeEndObject();
+				}
+				return;
+			}
+			for (; token != null; token = parser.nextToken()) {
+				if (token == JsonToken.FIELD_NAME && field.equals(parser.getCurrentName())
+						&& parser.getParsingContext().getParent().inRoot()) {
+					token = parser.nextToken();
+					//Only a text value is worth keeping, anything else is skipped whole
+					original = token.isScalarValue() && token != JsonToken.VALUE_NULL ? parser.getText() : null;
+					parser.skipChildren();
+					writeField(generator);
+					seen = true;
+				} else if (token == JsonToken.END_OBJECT && parser.getParsingContext().inRoot() && !seen && addIfMissing) {
+					writeField(generator);
+					generator.writeEndObject();
+				} else {
+					generator.copyCurrentEvent(parser);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the value the field had in the last document copied, null if it had none
+	 */
+	public String getOriginal() {
+		return original;
+	}
+
+	private void writeField(JsonGenerator generator) throws IOException {
+		generator.writeFieldName(field);
+		if (replacement == null) {
+			generator.writeNull();
+		} else {
+			generator.writeString(replacement);
+		}
+	}
+}
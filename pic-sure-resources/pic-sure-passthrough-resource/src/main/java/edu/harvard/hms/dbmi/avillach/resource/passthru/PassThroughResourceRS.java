@@ -164,6 +164,42 @@ public class PassThroughResourceRS implements IResourceRS {
 		}
 	}
 
+	@POST
+	@Path("/query/{resourceQueryId}/cancel")
+	public QueryStatus queryCancel(@PathParam("resourceQueryId") String queryId, QueryRequest cancelRequest) {
+		if (cancelRequest == null) {
+			throw new ProtocolException(ProtocolException.MISSING_DATA);
+		}
+
+		String pathName = "/query/" + queryId + "/cancel";
+
+		try {
+			QueryRequest chainRequest = new QueryRequest();
+			chainRequest.setQuery(cancelRequest.getQuery());
+			chainRequest.setResourceCredentials(cancelRequest.getResourceCredentials());
+			chainRequest.setResourceUUID(UUID.fromString(properties.getTargetResourceId()));
+
+			String payload = objectMapper.writeValueAsString(chainRequest);
+			HttpResponse response = httpClient.retrievePostResponse(
+					httpClient.composeURL(properties.getTargetPicsureUrl(), pathName), createAuthHeader(), payload);
+			if (response.getStatusLine().getStatusCode() != 200) {
+				logger.error("{}{} calling resource with id {} did not return a 200: {} {} ",
+						properties.getTargetPicsureUrl(), pathName, chainRequest.getResourceUUID(),
+						response.getStatusLine().getStatusCode(), response.getStatusLine().getReasonPhrase());
+				httpClient.throwResponseError(response, properties.getTargetPicsureUrl());
+			}
+			QueryStatus queryStatus = httpClient.readObjectFromResponse(response, QueryStatus.class);
+			queryStatus.setResourceID(cancelRequest.getResourceUUID());
+			return queryStatus;
+		} catch (IOException e) {
+			throw new ApplicationException(
+					"Error encoding query for resource with id " + cancelRequest.getResourceUUID());
+		} catch (ClassCastException | IllegalArgumentException e) {
+			logger.error(e.getMessage());
+			throw new ProtocolException(ProtocolException.INCORRECTLY_FORMATTED_REQUEST);
+		}
+	}
+
 	@POST
 	@Path("/query/{resourceQueryId}/status")
 	public QueryStatus queryStatus(@PathParam("resourceQueryId") String queryId, QueryRequest statusRequest) {
@@ -0,0 +1,180 @@
+package edu.harvard.hms.dbmi.avillach.resource.passthru;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.regex.Pattern;
+
+import javax.annotation.Priority;
+import javax.inject.Inject;
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.Priorities;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.PreMatching;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.ext.Provider;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+
+import edu.harvard.dbmi.avillach.util.exception.ProtocolException;
+
+/**
+ * Streaming proxy mode for the info, query and query status calls of {@link PassThroughResourceRS},
+ * enabled with proxy.streaming=true in resource.properties.
+ *
+ * Instead of binding the request to a QueryRequest, building a new one and binding the response to a
+ * ResourceInfo or QueryStatus, the request body is streamed to the target PIC-SURE as it arrives and
+ * the response is streamed back as it is received. On the way only the resource id is rewritten, by
+ * {@link JsonFieldRewriter}; every other field passes through as it is. Errors from the target are
+ * handled as in {@link PassThroughResourceRS}.
+ */
+@Provider
+@PreMatching
+@Priority(Priorities.USER)
+public class StreamingProxyFilter implements ContainerRequestFilter {
+
+	private static final Logger logger = LoggerFactory.getLogger(StreamingProxyFilter.class);
+
+	private static final String BEARER_STRING = "Bearer ";
+
+	private static final Pattern QUERY_STATUS = Pattern.compile("passthru/query/[^/]+/status");
+
+	@Inject
+	private ApplicationProperties properties;
+
+	@Inject
+	private HttpClient httpClient;
+
+	public StreamingProxyFilter() {
+	}
+
+	@Inject
+	public StreamingProxyFilter(ApplicationProperties properties, HttpClient httpClient) {
+		this.properties = properties;
+		this.httpClient = httpClient;
+	}
+
+	@Override
+	public void filter(ContainerRequestContext requestContext) throws IOException {
+		if (!properties.isStreamingProxy() || !HttpMethod.POST.equals(requestContext.getMethod())) {
+			return;
+		}
+		String path = requestContext.getUriInfo().getPath();
+		path = path.startsWith("/") ? path.substring(1) : path;
+		String responseField;
+		if (path.equals("passthru/info")) {
+			responseField = "id";
+		} else if (path.equals("passthru/query") || QUERY_STATUS.matcher(path).matches()) {
+			responseField = "resourceID";
+		} else {
+			return;
+		}
+		String pathName = path.substring("passthru".length());
+
+		JsonFieldRewriter requestRewriter = new JsonFieldRewriter("resourceUUID", properties.getTargetResourceId(), true);
+		RewritingEntity body = new RewritingEntity(requestContext.getEntityStream(), requestRewriter);
+		HttpResponse response;
+		try {
+			response = httpClient.retrievePostResponse(
+					httpClient.composeURL(properties.getTargetPicsureUrl(), pathName), createAuthHeader(), body);
+		} catch (RuntimeException e) {
+			if (body.invalid != null) {
+				logger.error(body.invalid.getMessage());
+				throw new ProtocolException(ProtocolException.INCORRECTLY_FORMATTED_REQUEST);
+			}
+			throw e;
+		}
+		if (response.getStatusLine().getStatusCode() != 200) {
+			logger.error("{}{} calling resource with id {} did not return a 200: {} {} ",
+					properties.getTargetPicsureUrl(), pathName, requestRewriter.getOriginal(),
+					response.getStatusLine().getStatusCode(), response.getStatusLine().getReasonPhrase());
+			httpClient.throwResponseError(response, properties.getTargetPicsureUrl());
+		}
+
+		//The caller's id for this resource replaces the target's; info keeps the target's if there is none
+		String resourceId = requestRewriter.getOriginal();
+		JsonFieldRewriter responseRewriter = resourceId == null && responseField.equals("id") ? null
+				: new JsonFieldRewriter(responseField, resourceId, true);
+		StreamingOutput output = (OutputStream stream) -> {
+			try (InputStream upstream = response.getEntity().getContent()) {
+				if (responseRewriter == null) {
+					IOUtils.copy(upstream, stream);
+				} else {
+					responseRewriter.copy(upstream, stream);
+				}
+			} finally {
+				EntityUtils.consumeQuietly(response.getEntity());
+			}
+		};
+		requestContext.abortWith(Response.ok(output, MediaType.APPLICATION_JSON_TYPE).build());
+	}
+
+	private Header[] createAuthHeader() {
+		return new Header[] {
+				new BasicHeader(HttpHeaders.AUTHORIZATION, BEARER_STRING + properties.getTargetPicsureToken()) };
+	}
+
+	/**
+	 * The incoming request body, rewritten as it is sent on. It can only be sent once.
+	 */
+	private static class RewritingEntity extends AbstractHttpEntity {
+
+		private final InputStream in;
+
+		private final JsonFieldRewriter rewriter;
+
+		//Set if the body turned out not to be valid JSON while it was being sent
+		private JsonProcessingException invalid;
+
+		RewritingEntity(InputStream in, JsonFieldRewriter rewriter) {
+			this.in = in;
+			this.rewriter = rewriter;
+			setContentType(ContentType.APPLICATION_JSON.toString());
+			setChunked(true);
+		}
+
+		@Override
+		public void writeTo(OutputStream out) throws IOException {
+			try {
+				rewriter.copy(in, out);
+			} catch (JsonProcessingException e) {
+				invalid = e;
+				throw e;
+			}
+		}
+
+		@Override
+		public boolean isRepeatable() {
+			return false;
+		}
+
+		@Override
+		public long getContentLength() {
+			return -1;
+		}
+
+		@Override
+		public InputStream getContent() {
+			throw new UnsupportedOperationException("The body is only written, as it is sent");
+		}
+
+		@Override
+		public boolean isStreaming() {
+			return true;
+		}
+	}
+}
@@ -0,0 +1,182 @@
+package edu.harvard.hms.dbmi.avillach.resource.passthru;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.UriInfo;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.StatusLine;
+import org.apache.http.entity.StringEntity;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import edu.harvard.dbmi.avillach.util.exception.ProtocolException;
+
+@ExtendWith(MockitoExtension.class)
+class StreamingProxyFilterTest {
+
+	String targetResourceId = UUID.randomUUID().toString();
+	HttpClient httpClient;
+	ApplicationProperties appProperties;
+	StreamingProxyFilter filter;
+	ObjectMapper objectMapper = new ObjectMapper();
+
+	@BeforeEach
+	void init() {
+		appProperties = mock(ApplicationProperties.class);
+		lenient().when(appProperties.isStreamingProxy()).thenReturn(true);
+		lenient().when(appProperties.getTargetPicsureToken()).thenReturn("/tmp/unit_test");
+		lenient().when(appProperties.getTargetPicsureUrl()).thenReturn("http://test");
+		lenient().when(appProperties.getTargetResourceId()).thenReturn(targetResourceId);
+
+		httpClient = mock(HttpClient.class);
+		lenient().doCallRealMethod().when(httpClient).composeURL(anyString(), anyString());
+		lenient().doCallRealMethod().when(httpClient).throwResponseError(any(HttpResponse.class), anyString());
+
+		filter = new StreamingProxyFilter(appProperties, httpClient);
+	}
+
+	@Test
+	void testRewriter() throws Exception {
+		assertEquals("{\"resourceUUID\":\"new\",\"query\":{\"resourceUUID\":\"nested\",\"a\":[1,2.5,true,null]}}",
+				rewrite("{\"resourceUUID\":\"old\",\"query\":{\"resourceUUID\":\"nested\",\"a\":[1,2.5,true,null]}}", "old"));
+		assertEquals("{\"query\":\"q\",\"resourceUUID\":\"new\"}", rewrite("{\"query\":\"q\"}", null));
+		assertEquals("{\"resourceUUID\":\"new\",\"query\":1}", rewrite("{\"resourceUUID\":{\"x\":[1]},\"query\":1}", null));
+		assertEquals("{\"resourceUUID\":\"new\"}", rewrite("", null));
+	}
+
+	@Test
+	void testQueryStatusStreamedThrough() throws Exception {
+		UUID callerResourceId = UUID.randomUUID();
+		String request = "{\"resourceCredentials\":{\"BEARER_TOKEN\":\"t\"},\"query\":{\"fields\":[\"\\\\a\\\\\"],\"extra\":1},"
+				+ "\"resourceUUID\":\"" + callerResourceId + "\"}";
+		ByteArrayOutputStream sent = new ByteArrayOutputStream();
+		HttpResponse httpResponse = response(200, "{\"status\":\"RUNNING\",\"resourceID\":\"" + targetResourceId
+				+ "\",\"resourceStatus\":\"RUNNING\",\"resultMetadata\":{\"count\":42}}");
+		when(httpClient.retrievePostResponse(eq("http://test/query/abc/status"), any(Header[].class), any(HttpEntity.class)))
+				.then(invocation -> {
+					((HttpEntity) invocation.getArgument(2)).writeTo(sent);
+					return httpResponse;
+				});
+
+		ContainerRequestContext requestContext = request("/passthru/query/abc/status", request);
+		filter.filter(requestContext);
+
+		JsonNode forwarded = objectMapper.readTree(sent.toByteArray());
+		assertEquals(targetResourceId, forwarded.get("resourceUUID").asText());
+		assertEquals(objectMapper.readTree(request).get("query"), forwarded.get("query"));
+		assertEquals("t", forwarded.get("resourceCredentials").get("BEARER_TOKEN").asText());
+
+		ArgumentCaptor<Response> aborted = ArgumentCaptor.forClass(Response.class);
+		verify(requestContext).abortWith(aborted.capture());
+		ByteArrayOutputStream written = new ByteArrayOutputStream();
+		((StreamingOutput) aborted.getValue().getEntity()).write(written);
+		JsonNode returned = objectMapper.readTree(written.toByteArray());
+		assertEquals(callerResourceId.toString(), returned.get("resourceID").asText());
+		assertEquals(42, returned.get("resultMetadata").get("count").asInt());
+	}
+
+	@Test
+	void testInfoKeepsTargetIdWithoutCallerId() throws Exception {
+		HttpResponse httpResponse = response(200, "{\"id\":\"" + targetResourceId + "\",\"name\":\"target\"}");
+		when(httpClient.retrievePostResponse(eq("http://test/info"), any(Header[].class), any(HttpEntity.class)))
+				.then(invocation -> {
+					((HttpEntity) invocation.getArgument(2)).writeTo(new ByteArrayOutputStream());
+					return httpResponse;
+				});
+
+		ContainerRequestContext requestContext = request("passthru/info", "{}");
+		filter.filter(requestContext);
+
+		ArgumentCaptor<Response> aborted = ArgumentCaptor.forClass(Response.class);
+		verify(requestContext).abortWith(aborted.capture());
+		ByteArrayOutputStream written = new ByteArrayOutputStream();
+		((StreamingOutput) aborted.getValue().getEntity()).write(written);
+		assertEquals(targetResourceId, objectMapper.readTree(written.toByteArray()).get("id").asText());
+	}
+
+	@Test
+	void testInvalidRequest() throws Exception {
+		when(httpClient.retrievePostResponse(anyString(), any(Header[].class), any(HttpEntity.class)))
+				.then(invocation -> {
+					try {
+						((HttpEntity) invocation.getArgument(2)).writeTo(new ByteArrayOutputStream());
+					} catch (Exception e) {
+						//As HttpClientUtil reports a failed request
+						throw new RuntimeException(e);
+					}
+					return null;
+				});
+		ContainerRequestContext requestContext = request("passthru/query", "{\"query\": nope}");
+		assertThrows(ProtocolException.class, () -> filter.filter(requestContext));
+	}
+
+	@Test
+	void testOtherCallsAndDisabledModeUntouched() throws Exception {
+		ContainerRequestContext requestContext = request("passthru/query/sync", "{}");
+		filter.filter(requestContext);
+
+		when(appProperties.isStreamingProxy()).thenReturn(false);
+		filter.filter(requestContext);
+
+		verify(requestContext, never()).abortWith(any());
+		verify(httpClient, never()).retrievePostResponse(anyString(), any(Header[].class), any(HttpEntity.class));
+	}
+
+	private String rewrite(String json, String expectedOriginal) throws Exception {
+		JsonFieldRewriter rewriter = new JsonFieldRewriter("resourceUUID", "new", true);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		rewriter.copy(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)), out);
+		if (expectedOriginal == null) {
+			assertNull(rewriter.getOriginal());
+		} else {
+			assertEquals(expectedOriginal, rewriter.getOriginal());
+		}
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	private ContainerRequestContext request(String path, String body) {
+		ContainerRequestContext requestContext = mock(ContainerRequestContext.class);
+		UriInfo uriInfo = mock(UriInfo.class);
+		lenient().when(requestContext.getMethod()).thenReturn("POST");
+		lenient().when(requestContext.getUriInfo()).thenReturn(uriInfo);
+		lenient().when(uriInfo.getPath()).thenReturn(path);
+		lenient().when(requestContext.getEntityStream()).thenReturn(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)));
+		return requestContext;
+	}
+
+	private HttpResponse response(int status, String body) throws Exception {
+		HttpResponse httpResponse = mock(HttpResponse.class);
+		StatusLine statusLine = mock(StatusLine.class);
+		when(statusLine.getStatusCode()).thenReturn(status);
+		when(httpResponse.getStatusLine()).thenReturn(statusLine);
+		lenient().when(httpResponse.getEntity()).thenReturn(new StringEntity(body));
+		return httpResponse;
+	}
+}
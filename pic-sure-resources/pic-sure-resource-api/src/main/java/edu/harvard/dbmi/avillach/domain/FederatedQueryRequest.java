@@ -0,0 +1,34 @@
+package edu.harvard.dbmi.avillach.domain;
+
+import java.util.List;
+import java.util.UUID;
+
+import io.swagger.annotations.ApiModel;
+
+@ApiModel(description = "A single query to be run against each of the resources listed in resourceUUIDs. " +
+		"resourceCredentials and query are the same as for a QueryRequest; timeout is an optional " +
+		"per-resource deadline in milliseconds. resourceUUID is not used, a request that sets it is rejected")
+public class FederatedQueryRequest extends QueryRequest {
+
+	private List<UUID> resourceUUIDs;
+
+	private Long timeout;
+
+	public List<UUID> getResourceUUIDs() {
+		return resourceUUIDs;
+	}
+
+	public FederatedQueryRequest setResourceUUIDs(List<UUID> resourceUUIDs) {
+		this.resourceUUIDs = resourceUUIDs;
+		return this;
+	}
+
+	public Long getTimeout() {
+		return timeout;
+	}
+
+	public FederatedQueryRequest setTimeout(Long timeout) {
+		this.timeout = timeout;
+		return this;
+	}
+}
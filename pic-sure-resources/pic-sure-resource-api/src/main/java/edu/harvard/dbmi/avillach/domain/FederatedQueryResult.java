@@ -0,0 +1,90 @@
+package edu.harvard.dbmi.avillach.domain;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.util.UUID;
+
+import edu.harvard.dbmi.avillach.util.PicSureStatus;
+
+/**
+ * The outcome of a federated query against one resource. One of these is
+ * streamed back for every resource in the request, in order of completion.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class FederatedQueryResult {
+
+	private UUID resourceID;
+
+	/**
+	 * the id of the Query entity stored for this resource, if it got that far
+	 */
+	private String picsureResultId;
+
+	private PicSureStatus status;
+
+	/**
+	 * the body returned by the resource, as text
+	 */
+	private String result;
+
+	/**
+	 * why this resource has no result, when status is ERROR
+	 */
+	private String message;
+
+	private long duration;
+
+	public UUID getResourceID() {
+		return resourceID;
+	}
+
+	public FederatedQueryResult setResourceID(UUID resourceID) {
+		this.resourceID = resourceID;
+		return this;
+	}
+
+	public String getPicsureResultId() {
+		return picsureResultId;
+	}
+
+	public FederatedQueryResult setPicsureResultId(String picsureResultId) {
+		this.picsureResultId = picsureResultId;
+		return this;
+	}
+
+	public PicSureStatus getStatus() {
+		return status;
+	}
+
+	public FederatedQueryResult setStatus(PicSureStatus status) {
+		this.status = status;
+		return this;
+	}
+
+	public String getResult() {
+		return result;
+	}
+
+	public FederatedQueryResult setResult(String result) {
+		this.result = result;
+		return this;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	public FederatedQueryResult setMessage(String message) {
+		this.message = message;
+		return this;
+	}
+
+	public long getDuration() {
+		return duration;
+	}
+
+	public FederatedQueryResult setDuration(long duration) {
+		this.duration = duration;
+		return this;
+	}
+}
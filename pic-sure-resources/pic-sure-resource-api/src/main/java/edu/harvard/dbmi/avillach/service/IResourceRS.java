@@ -41,6 +41,16 @@ public interface IResourceRS
 		throw new NotSupportedException();
 	}
 
+	/**
+	 * Stops a running query and releases whatever the resource holds for it. Resources that
+	 * cannot cancel leave this unimplemented; PIC-SURE still marks the query cancelled.
+	 */
+	@POST
+	@Path("/query/{resourceQueryId}/cancel")
+	default QueryStatus queryCancel(String queryId, QueryRequest cancelRequest) {
+		throw new NotSupportedException("Query cancellation is not implemented in this resource.");
+	}
+
 	@POST
 	@Path("/query/sync")
 	default Response querySync(QueryRequest resultRequest) {
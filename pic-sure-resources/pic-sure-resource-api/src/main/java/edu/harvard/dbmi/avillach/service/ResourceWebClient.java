@@ -4,12 +4,14 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import edu.harvard.dbmi.avillach.domain.*;
+import edu.harvard.dbmi.avillach.util.ByteRange;
 import edu.harvard.dbmi.avillach.util.exception.ApplicationException;
 import edu.harvard.dbmi.avillach.util.exception.ProtocolException;
 import edu.harvard.dbmi.avillach.util.exception.ResourceInterfaceException;
 import edu.harvard.dbmi.avillach.util.exception.NotAuthorizedException;
 import org.apache.http.Header;
 import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpPost;
 import org.apache.http.message.BasicHeader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -17,8 +19,14 @@ import org.slf4j.LoggerFactory;
 import javax.enterprise.context.ApplicationScoped;
 import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.Response;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static edu.harvard.dbmi.avillach.util.HttpClientUtil.*;
 
@@ -38,6 +46,12 @@ public class ResourceWebClient {
     public static final String BEARER_STRING = "Bearer ";
     public static final String BEARER_TOKEN_KEY = "BEARER_TOKEN";
 
+    /**
+     * querySync calls currently waiting on or streaming from a resource, by PIC-SURE query id.
+     * Only calls made by this node are known here.
+     */
+    private final ConcurrentMap<String, HttpPost> inFlightQueries = new ConcurrentHashMap<>();
+
     public ResourceWebClient() { }
 
     public ResourceInfo info(String rsURL, QueryRequest queryRequest){
@@ -153,6 +167,17 @@ public class ResourceWebClient {
     }
 
     public Response queryResult(String rsURL, String queryId, QueryRequest queryRequest){
+        return queryResult(rsURL, queryId, queryRequest, null);
+    }
+
+    /**
+     * Same as {@link #queryResult(String, String, QueryRequest)}, but forwards a Range header. A resource
+     * that supports ranges answers 206 with a Content-Range, which is passed back along with the
+     * Content-Length; one that does not simply answers 200 with the whole result.
+     *
+     * @param range the Range header to forward, may be null
+     */
+    public Response queryResult(String rsURL, String queryId, QueryRequest queryRequest, String range){
         logger.debug("Calling ResourceWebClient query()");
         try {
             if (queryRequest == null){
@@ -169,12 +194,21 @@ public class ResourceWebClient {
             }
             String pathName = "/query/" + queryId + "/result";
             String body = json.writeValueAsString(queryRequest);
-            HttpResponse resourcesResponse = retrievePostResponse(composeURL(rsURL, pathName), createAuthorizationHeader(queryRequest.getResourceCredentials()), body);
-            if (resourcesResponse.getStatusLine().getStatusCode() != 200) {
+            Header[] headers = createAuthorizationHeader(queryRequest.getResourceCredentials());
+            if (range != null){
+                headers = Arrays.copyOf(headers, headers.length + 1);
+                headers[headers.length - 1] = new BasicHeader(ByteRange.RANGE, range);
+            }
+            HttpResponse resourcesResponse = retrievePostResponse(composeURL(rsURL, pathName), headers, body);
+            int status = resourcesResponse.getStatusLine().getStatusCode();
+            if (status == Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE.getStatusCode()) {
+                return passThroughHeaders(resourcesResponse, Response.status(status)).build();
+            }
+            if (status != 200 && status != Response.Status.PARTIAL_CONTENT.getStatusCode()) {
                 logger.error("ResourceRS did not return a 200");
                 throwResponseError(resourcesResponse, rsURL);
             }
-            return Response.ok(resourcesResponse.getEntity().getContent()).build();
+            return passThroughHeaders(resourcesResponse, Response.status(status).entity(resourcesResponse.getEntity().getContent())).build();
         } catch (JsonProcessingException e){
             logger.error("Unable to encode resource credentials");
             throw new NotAuthorizedException("Unable to encode resource credentials", e);
@@ -213,8 +247,64 @@ public class ResourceWebClient {
         }
     }
 
+    public QueryStatus queryCancel(String rsURL, String queryId, QueryRequest queryRequest){
+        logger.debug("Calling ResourceWebClient queryCancel()");
+        try {
+            if (queryRequest == null){
+                throw new ProtocolException(ProtocolException.MISSING_DATA);
+            }
+            if (queryRequest.getResourceCredentials() == null){
+                throw new NotAuthorizedException("Missing credentials");
+            }
+            if (rsURL == null){
+                throw new ApplicationException(ApplicationException.MISSING_RESOURCE_PATH);
+            }
+            if (queryId == null){
+                throw new ProtocolException(ProtocolException.MISSING_QUERY_ID);
+            }
+            String pathName = "/query/" + queryId + "/cancel";
+            String body = json.writeValueAsString(queryRequest);
+            HttpResponse resourcesResponse = retrievePostResponse(composeURL(rsURL, pathName), createAuthorizationHeader(queryRequest.getResourceCredentials()), body);
+            if (resourcesResponse.getStatusLine().getStatusCode() != 200) {
+                logger.error("ResourceRS did not return a 200");
+                throwResponseError(resourcesResponse, rsURL);
+            }
+            return readObjectFromResponse(resourcesResponse, QueryStatus.class);
+        } catch (JsonProcessingException e){
+            logger.error("Unable to encode resource credentials");
+            throw new ProtocolException("Unable to encode resource credentials", e);
+        }
+    }
+
+    /**
+     * Aborts the querySync call registered under the given id, if it is still waiting on or
+     * streaming from its resource. The underlying connection is released and the querySync
+     * call fails with {@link ProtocolException#QUERY_CANCELLED}.
+     *
+     * @param requestId the id the call was registered under
+     * @return false if no such call is in flight on this node
+     */
+    public boolean abort(String requestId){
+        HttpPost post = inFlightQueries.remove(requestId);
+        if (post == null){
+            return false;
+        }
+        logger.info("Aborting in flight querySync " + requestId);
+        post.abort();
+        return true;
+    }
+
     public Response querySync(String rsURL, QueryRequest queryRequest){
+        return querySync(rsURL, queryRequest, null);
+    }
+
+    /**
+     * Same as {@link #querySync(String, QueryRequest)}, but registers the call under requestId until
+     * its result stream is closed so that it can be stopped with {@link #abort(String)}
+     */
+    public Response querySync(String rsURL, QueryRequest queryRequest, String requestId){
         logger.debug("Calling ResourceWebClient querySync()");
+        AtomicReference<HttpPost> dispatched = new AtomicReference<>();
         try {
             if (queryRequest == null){
                 throw new ProtocolException("Missing query data");
@@ -228,19 +318,72 @@ public class ResourceWebClient {
 
             String pathName = "/query/sync";
             String body = json.writeValueAsString(queryRequest);
-            HttpResponse resourcesResponse = retrievePostResponse(composeURL(rsURL, pathName), createAuthorizationHeader(queryRequest.getResourceCredentials()), body);
+            HttpResponse resourcesResponse;
+            try {
+                resourcesResponse = retrievePostResponse(composeURL(rsURL, pathName), createAuthorizationHeader(queryRequest.getResourceCredentials()), body, post -> {
+                    dispatched.set(post);
+                    if (requestId != null){
+                        inFlightQueries.put(requestId, post);
+                    }
+                });
+            } catch (ResourceInterfaceException e){
+                HttpPost post = dispatched.get();
+                forget(requestId, post);
+                if (post != null && post.isAborted()){
+                    throw new ProtocolException(ProtocolException.QUERY_CANCELLED + requestId);
+                }
+                throw e;
+            }
             if (resourcesResponse.getStatusLine().getStatusCode() != 200) {
+                forget(requestId, dispatched.get());
                 throwError(resourcesResponse, rsURL);
             }
-            return Response.ok(resourcesResponse.getEntity().getContent()).build();
+            InputStream content = resourcesResponse.getEntity().getContent();
+            String contentType = contentType(resourcesResponse);
+            if (requestId == null){
+                return Response.ok(content, contentType).build();
+            }
+            //Stay abortable while the result streams back to the client
+            return Response.ok(new FilterInputStream(content) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        forget(requestId, dispatched.get());
+                    }
+                }
+            }, contentType).build();
         } catch (JsonProcessingException e){
             logger.error("Unable to encode resource credentials");
             throw new NotAuthorizedException("Unable to encode resource credentials", e);
         } catch (IOException e){
+            forget(requestId, dispatched.get());
             throw new ResourceInterfaceException("Error getting results", e);
         }
     }
 
+    private Response.ResponseBuilder passThroughHeaders(HttpResponse resourcesResponse, Response.ResponseBuilder builder){
+        for (String name : new String[]{HttpHeaders.CONTENT_TYPE, HttpHeaders.CONTENT_LENGTH, ByteRange.CONTENT_RANGE}){
+            Header header = resourcesResponse.getFirstHeader(name);
+            if (header != null){
+                builder.header(name, header.getValue());
+            }
+        }
+        return builder;
+    }
+
+    private String contentType(HttpResponse resourcesResponse){
+        Header header = resourcesResponse.getFirstHeader(HttpHeaders.CONTENT_TYPE);
+        return header == null ? null : header.getValue();
+    }
+
+    private void forget(String requestId, HttpPost post){
+        if (requestId != null){
+            inFlightQueries.remove(requestId, post);
+        }
+    }
+
     private void throwError(HttpResponse response, String baseURL){
         logger.error("ResourceRS did not return a 200");
         String errorMessage = baseURL + " " + response.getStatusLine().getStatusCode() + " " + response.getStatusLine().getReasonPhrase();
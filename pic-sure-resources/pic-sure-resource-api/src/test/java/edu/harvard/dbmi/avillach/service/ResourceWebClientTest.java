@@ -478,4 +478,49 @@ public class ResourceWebClientTest {
             assertTrue( e.getMessage().contains("Incorrect object type returned"));
         }
     }
+
+    @Test
+    public void testQuerySyncAbort() throws Exception {
+        String requestId = UUID.randomUUID().toString();
+
+        wireMockRule.stubFor(any(urlEqualTo("/query/sync"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withFixedDelay(5000)
+                        .withBody("too late")));
+
+        QueryRequest queryRequest = new QueryRequest();
+        Map<String, String> credentials = new HashMap<>();
+        credentials.put(ResourceWebClient.BEARER_TOKEN_KEY, token);
+        queryRequest.setResourceCredentials(credentials);
+        queryRequest.setQuery("query");
+
+        //Nothing to abort yet
+        assertFalse(cut.abort(requestId));
+
+        Thread canceller = new Thread(() -> {
+            long deadline = System.currentTimeMillis() + 4000;
+            while (!cut.abort(requestId) && System.currentTimeMillis() < deadline) {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+        canceller.start();
+
+        long startTime = System.currentTimeMillis();
+        try {
+            cut.querySync(testURL, queryRequest, requestId);
+            fail("An aborted querySync should throw an error");
+        } catch (ProtocolException e) {
+            assertEquals(ProtocolException.QUERY_CANCELLED + requestId, e.getContent());
+        }
+        assertTrue("The call should not wait for the resource", System.currentTimeMillis() - startTime < 4000);
+        canceller.join();
+
+        //Once finished, the call is no longer registered
+        assertFalse(cut.abort(requestId));
+    }
 }
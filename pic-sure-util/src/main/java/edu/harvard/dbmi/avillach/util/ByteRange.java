@@ -0,0 +1,102 @@
+package edu.harvard.dbmi.avillach.util;
+
+/**
+ * A single byte range from an HTTP <code>Range</code> header, resolved against the
+ * length of the representation it applies to. Both ends are inclusive.
+ *
+ * Only the single range form is supported (<code>bytes=0-99</code>, <code>bytes=100-</code>,
+ * <code>bytes=-100</code>); a server may ignore any other Range header and send the full body.
+ */
+public class ByteRange {
+
+	public static final String RANGE = "Range";
+	public static final String IF_RANGE = "If-Range";
+	public static final String CONTENT_RANGE = "Content-Range";
+	public static final String ACCEPT_RANGES = "Accept-Ranges";
+	public static final String BYTES = "bytes";
+
+	private static final String BYTES_PREFIX = BYTES + "=";
+
+	private final long start;
+	private final long end;
+	private final long totalLength;
+
+	private ByteRange(long start, long end, long totalLength) {
+		this.start = start;
+		this.end = end;
+		this.totalLength = totalLength;
+	}
+
+	/**
+	 * @param header the value of the Range header, may be null
+	 * @param totalLength the length of the full representation
+	 * @return null if the full representation should be sent instead, either because there is
+	 * no range or because it is malformed or asks for several ranges
+	 */
+	public static ByteRange parse(String header, long totalLength) {
+		if (header == null || !header.trim().startsWith(BYTES_PREFIX)) {
+			return null;
+		}
+		String spec = header.trim().substring(BYTES_PREFIX.length()).trim();
+		int dash = spec.indexOf('-');
+		if (dash < 0 || spec.indexOf(',') >= 0) {
+			return null;
+		}
+		try {
+			String first = spec.substring(0, dash).trim();
+			String last = spec.substring(dash + 1).trim();
+			if (first.isEmpty()) {
+				//Suffix range, the last N bytes
+				long suffixLength = Long.parseLong(last);
+				if (suffixLength <= 0) {
+					return new ByteRange(totalLength, totalLength - 1, totalLength);
+				}
+				return new ByteRange(Math.max(0, totalLength - suffixLength), totalLength - 1, totalLength);
+			}
+			long start = Long.parseLong(first);
+			if (last.isEmpty()) {
+				return new ByteRange(start, totalLength - 1, totalLength);
+			}
+			long end = Long.parseLong(last);
+			if (end < start) {
+				return null;
+			}
+			return new ByteRange(start, Math.min(end, totalLength - 1), totalLength);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return false if the range starts past the end of the representation, which calls for a 416
+	 */
+	public boolean isSatisfiable() {
+		return start < totalLength && start <= end;
+	}
+
+	public long getStart() {
+		return start;
+	}
+
+	public long getEnd() {
+		return end;
+	}
+
+	public long getLength() {
+		return end - start + 1;
+	}
+
+	/**
+	 * @return the Content-Range header value for this range
+	 */
+	public String toContentRange() {
+		if (!isSatisfiable()) {
+			return unsatisfiedContentRange(totalLength);
+		}
+		return BYTES + " " + start + "-" + end + "/" + totalLength;
+	}
+
+	public static String unsatisfiedContentRange(long totalLength) {
+		return BYTES + " */" + totalLength;
+	}
+}
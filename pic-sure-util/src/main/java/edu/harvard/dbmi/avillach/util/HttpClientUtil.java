@@ -12,6 +12,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.function.Consumer;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
@@ -21,10 +22,12 @@ import javax.ws.rs.core.MediaType;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.message.BasicHeader;
@@ -37,6 +40,8 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 
 import edu.harvard.dbmi.avillach.util.exception.ApplicationException;
 import edu.harvard.dbmi.avillach.util.exception.ResourceInterfaceException;
+import edu.harvard.dbmi.avillach.util.trace.Span;
+import edu.harvard.dbmi.avillach.util.trace.Tracing;
 
 public class HttpClientUtil {
 	private static final ObjectMapper json = new ObjectMapper();
@@ -97,6 +102,40 @@ public class HttpClientUtil {
 	 * @return
 	 */
 	public static HttpResponse retrievePostResponse(String uri, Header[] headers, String body) {
+		return retrievePostResponse(uri, headers, body, null);
+	}
+
+	/**
+	 * resource level post, which hands the request to <b>onDispatch</b> right before it is executed, so that
+	 * another thread can call {@link HttpPost#abort()} on it. Aborting releases the connection and makes this
+	 * method throw a <b>ResourceInterfaceException</b>.
+	 *
+	 * @param uri
+	 * @param headers
+	 * @param body
+	 * @param onDispatch may be null
+	 * @return
+	 */
+	public static HttpResponse retrievePostResponse(String uri, Header[] headers, String body, Consumer<HttpPost> onDispatch) {
+		try {
+			return retrievePostResponse(uri, headers, new StringEntity(body), onDispatch);
+		} catch (UnsupportedEncodingException e) {
+			throw new ResourceInterfaceException(uri, e);
+		}
+	}
+
+	/**
+	 * resource level post of a JSON body that is written as it is sent, for example one streamed from
+	 * another request, which will throw a <b>ResourceInterfaceException</b> if cannot get response back
+	 * from the url
+	 *
+	 * @param uri
+	 * @param headers
+	 * @param body
+	 * @param onDispatch may be null
+	 * @return
+	 */
+	public static HttpResponse retrievePostResponse(String uri, Header[] headers, HttpEntity body, Consumer<HttpPost> onDispatch) {
 		try {
 			logger.debug("HttpClientUtil retrievePostResponse()");
 
@@ -107,8 +146,13 @@ public class HttpClientUtil {
 			headerList.add(new BasicHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON));
 
 			HttpClient client = HttpClientBuilder.create().useSystemProperties().build();
-			return simplePost(uri, client, new StringEntity(body), headerList.toArray(new Header[headerList.size()]));
-		} catch (ApplicationException | UnsupportedEncodingException e) {
+			HttpPost post = new HttpPost(uri);
+			post.setHeaders(headerList.toArray(new Header[headerList.size()]));
+			post.setEntity(body);
+			if (onDispatch != null)
+				onDispatch.accept(post);
+			return simplePost(client, post);
+		} catch (ApplicationException e) {
 			throw new ResourceInterfaceException(uri, e);
 		}
 	}
@@ -197,11 +241,22 @@ public class HttpClientUtil {
 		post.setHeaders(headers);
 		post.setEntity(requestBody);
 
+		return simplePost(client, post);
+	}
+
+	private static HttpResponse simplePost(HttpClient client, HttpPost post) throws ApplicationException {
+		long started = UpstreamTiming.start();
+		Span span = startSpan(post);
+		HttpResponse response = null;
 		try {
-			return client.execute(post, buildHttpClientContext());
+			response = client.execute(post, buildHttpClientContext());
+			return response;
 		} catch (IOException ex) {
-			logger.error("simplePost() Exception: {}, cannot get response by POST from url: {}", ex.getMessage(), uri);
+			logger.error("simplePost() Exception: {}, cannot get response by POST from url: {}", ex.getMessage(), post.getURI());
 			throw new ApplicationException("Inner problem, please contact system admin and check the server log");
+		} finally {
+			UpstreamTiming.finish(post.getURI().toString(), started, statusOf(response));
+			endSpan(span, response);
 		}
 	}
 
@@ -263,11 +318,18 @@ public class HttpClientUtil {
 		HttpGet get = new HttpGet(uri);
 		get.setHeaders(headers);
 
+		long started = UpstreamTiming.start();
+		Span span = startSpan(get);
+		HttpResponse response = null;
 		try {
-			return client.execute(get, buildHttpClientContext());
+			response = client.execute(get, buildHttpClientContext());
+			return response;
 		} catch (IOException ex) {
 			logger.error("simpleGet() cannot get response by GET from url: {}", uri);
 			throw new ApplicationException("Inner problem, please contact system admin and check the server log");
+		} finally {
+			UpstreamTiming.finish(uri, started, statusOf(response));
+			endSpan(span, response);
 		}
 	}
 
@@ -275,13 +337,18 @@ public class HttpClientUtil {
 		HttpGet get = new HttpGet(uri);
 		get.setHeaders(headers);
 
-		HttpResponse response;
+		HttpResponse response = null;
 
+		long started = UpstreamTiming.start();
+		Span span = startSpan(get);
 		try {
 			response = client.execute(get, buildHttpClientContext());
 		} catch (IOException ex) {
 			logger.error("simpleGet() cannot get response by GET from url: {}", uri);
 			throw new ApplicationException("Inner problem, please contact system admin and check the server log");
+		} finally {
+			UpstreamTiming.finish(uri, started, statusOf(response));
+			endSpan(span, response);
 		}
 
 		try {
@@ -309,4 +376,29 @@ public class HttpClientUtil {
 			throw new ApplicationException("Inner problem, please contact system admin and check the server log");
 		}
 	}
+
+	/**
+	 * Starts a span for a call made while handling a traced request, and sends its trace context along
+	 * so the next service continues the same trace
+	 */
+	private static Span startSpan(HttpRequestBase request) {
+		Span span = Tracing.startClientSpan(request.getMethod() + " " + request.getURI().getPath());
+		if (span != null) {
+			request.setHeader(Tracing.TRACEPARENT, span.getTraceparent());
+			if (span.getContext().getTraceState() != null) {
+				request.setHeader(Tracing.TRACESTATE, span.getContext().getTraceState());
+			}
+		}
+		return span;
+	}
+
+	private static void endSpan(Span span, HttpResponse response) {
+		if (span != null) {
+			span.end(statusOf(response));
+		}
+	}
+
+	private static int statusOf(HttpResponse response) {
+		return response == null || response.getStatusLine() == null ? -1 : response.getStatusLine().getStatusCode();
+	}
 }
@@ -4,5 +4,13 @@ public enum PicSureStatus {
 	QUEUED,
 	PENDING,
 	ERROR,
-	AVAILABLE
+	AVAILABLE,
+	CANCELLED;
+
+	/**
+	 * @return true if a query in this status will not change status on its own anymore
+	 */
+	public boolean isTerminal() {
+		return this == ERROR || this == AVAILABLE || this == CANCELLED;
+	}
 }
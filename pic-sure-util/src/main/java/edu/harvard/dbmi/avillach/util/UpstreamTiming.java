@@ -0,0 +1,86 @@
+package edu.harvard.dbmi.avillach.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Time each thread has spent waiting on other services through {@link HttpClientUtil}, so that the
+ * access log can tell how much of a request went to the resources it called.
+ *
+ * The count is per thread, so it has to be reset when a thread starts on a new request. Calls made
+ * on other threads on behalf of a request, such as federated queries, are not included.
+ *
+ * Every call is also handed to the {@link Listener}, if one is set, for metrics.
+ */
+public class UpstreamTiming {
+
+	/**
+	 * Told about every call made through {@link HttpClientUtil}, on the thread that made it
+	 */
+	public interface Listener {
+
+		/**
+		 * @param status the HTTP status of the response, -1 if there was none
+		 */
+		void completed(String uri, long nanos, int status);
+	}
+
+	private static final ThreadLocal<long[]> elapsed = ThreadLocal.withInitial(() -> new long[1]);
+
+	private static final AtomicInteger inFlight = new AtomicInteger();
+
+	private static volatile Listener listener;
+
+	public static void reset() {
+		elapsed.get()[0] = 0;
+	}
+
+	public static void add(long nanos) {
+		elapsed.get()[0] += nanos;
+	}
+
+	/**
+	 * @return nanoseconds spent waiting on other services since the last reset
+	 */
+	public static long getElapsedNanos() {
+		return elapsed.get()[0];
+	}
+
+	/**
+	 * Marks the start of a call
+	 *
+	 * @return the start time, to pass to {@link #finish(String, long, int)}
+	 */
+	public static long start() {
+		inFlight.incrementAndGet();
+		return System.nanoTime();
+	}
+
+	/**
+	 * Marks the end of a call started with {@link #start()}
+	 *
+	 * @param status the HTTP status of the response, -1 if there was none
+	 */
+	public static void finish(String uri, long started, int status) {
+		long nanos = System.nanoTime() - started;
+		inFlight.decrementAndGet();
+		add(nanos);
+		Listener current = listener;
+		if (current != null) {
+			current.completed(uri, nanos, status);
+		}
+	}
+
+	/**
+	 * @return how many calls are waiting on other services right now
+	 */
+	public static int getInFlight() {
+		return inFlight.get();
+	}
+
+	/**
+	 * @param listener told about every call from now on, null for none
+	 */
+	public static void setListener(Listener listener) {
+		UpstreamTiming.listener = listener;
+	}
+}
@@ -19,6 +19,7 @@ public class ProtocolException extends WebApplicationException {
     public final static String MISSING_DATA = "Missing query request data";
     public final static String MISSING_QUERY_ID = "Missing query id";
     public final static String QUERY_NOT_FOUND = "No query with id: ";
+    public final static String QUERY_CANCELLED = "Query was cancelled: ";
     public static final String INCORRECTLY_FORMATTED_REQUEST = "Incorrectly formatted query request data";
 
     @JsonIgnore
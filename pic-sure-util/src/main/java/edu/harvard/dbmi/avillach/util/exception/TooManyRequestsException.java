@@ -0,0 +1,30 @@
+package edu.harvard.dbmi.avillach.util.exception;
+
+import javax.ws.rs.WebApplicationException;
+
+/**
+ * Will end up to return a 429 with a Retry-After header, telling the client
+ * that its request was turned away because of load rather than refused
+ */
+public class TooManyRequestsException extends WebApplicationException {
+
+    public final static String QUEUE_FULL = "Too many queries waiting, please retry later";
+    public final static String WAIT_TIMED_OUT = "Timed out waiting for a free query slot, please retry later";
+
+    private Object content;
+
+    private long retryAfterSeconds;
+
+    public TooManyRequestsException(Object content, long retryAfterSeconds) {
+        this.content = content;
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public Object getContent() {
+        return content;
+    }
+
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
@@ -0,0 +1,20 @@
+package edu.harvard.dbmi.avillach.util.exception.mapper;
+
+import edu.harvard.dbmi.avillach.util.exception.TooManyRequestsException;
+import edu.harvard.dbmi.avillach.util.response.PICSUREResponse;
+
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.ExceptionMapper;
+import javax.ws.rs.ext.Provider;
+
+@Provider
+public class TooManyRequestsExceptionMapper implements ExceptionMapper<TooManyRequestsException>{
+
+    @Override
+    public Response toResponse(TooManyRequestsException exception) {
+        return Response.fromResponse(PICSUREResponse.protocolError(Response.Status.TOO_MANY_REQUESTS, exception.getContent()))
+                .header(HttpHeaders.RETRY_AFTER, exception.getRetryAfterSeconds())
+                .build();
+    }
+}
@@ -0,0 +1,35 @@
+package edu.harvard.dbmi.avillach.util.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A count that only goes up
+ */
+public class Counter extends Metric {
+
+	private final LongAdder count = new LongAdder();
+
+	public void inc() {
+		count.increment();
+	}
+
+	public void inc(long amount) {
+		count.add(amount);
+	}
+
+	public long get() {
+		return count.sum();
+	}
+
+	@Override
+	String type() {
+		return "counter";
+	}
+
+	@Override
+	void write(Writer writer, String name, String labels) throws IOException {
+		writeSample(writer, name, labels, count.sum());
+	}
+}
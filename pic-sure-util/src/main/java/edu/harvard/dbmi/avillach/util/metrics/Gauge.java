@@ -0,0 +1,27 @@
+package edu.harvard.dbmi.avillach.util.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.function.DoubleSupplier;
+
+/**
+ * A value read when the metrics are written
+ */
+class Gauge extends Metric {
+
+	private final DoubleSupplier value;
+
+	Gauge(DoubleSupplier value) {
+		this.value = value;
+	}
+
+	@Override
+	String type() {
+		return "gauge";
+	}
+
+	@Override
+	void write(Writer writer, String name, String labels) throws IOException {
+		writeSample(writer, name, labels, value.getAsDouble());
+	}
+}
@@ -0,0 +1,90 @@
+package edu.harvard.dbmi.avillach.util.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Durations counted into fixed buckets, reported in seconds.
+ *
+ * Observing a duration finds its bucket by scanning a handful of bounds and adds to two striped
+ * counters; it allocates nothing and takes no lock.
+ */
+public class Histogram extends Metric {
+
+	/**
+	 * From 5 ms to a minute, for request and query latencies
+	 */
+	public static final double[] LATENCY_BUCKETS = {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60};
+
+	private final double[] bounds;
+
+	private final long[] boundNanos;
+
+	//One more than the bounds, for durations past the last one
+	private final LongAdder[] counts;
+
+	private final LongAdder sumNanos = new LongAdder();
+
+	/**
+	 * @param bounds upper bounds of the buckets in seconds, in increasing order
+	 */
+	public Histogram(double... bounds) {
+		this.bounds = bounds.clone();
+		this.boundNanos = new long[bounds.length];
+		for (int i = 0; i < bounds.length; i++) {
+			if (i > 0 && bounds[i] <= bounds[i - 1]) {
+				throw new IllegalArgumentException("Bucket bounds must increase: " + bounds[i - 1] + ", " + bounds[i]);
+			}
+			boundNanos[i] = (long) (bounds[i] * TimeUnit.SECONDS.toNanos(1));
+		}
+		this.counts = new LongAdder[bounds.length + 1];
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = new LongAdder();
+		}
+	}
+
+	public void observeNanos(long nanos) {
+		int bucket = 0;
+		while (bucket < boundNanos.length && nanos > boundNanos[bucket]) {
+			bucket++;
+		}
+		counts[bucket].increment();
+		sumNanos.add(nanos);
+	}
+
+	/**
+	 * Times a call from startNanos, as returned by {@link System#nanoTime()}, to now
+	 */
+	public void observeSince(long startNanos) {
+		observeNanos(System.nanoTime() - startNanos);
+	}
+
+	public long getCount() {
+		long count = 0;
+		for (LongAdder bucket : counts) {
+			count += bucket.sum();
+		}
+		return count;
+	}
+
+	@Override
+	String type() {
+		return "histogram";
+	}
+
+	@Override
+	void write(Writer writer, String name, String labels) throws IOException {
+		String prefix = labels.isEmpty() ? "" : labels + ",";
+		long cumulative = 0;
+		for (int i = 0; i < bounds.length; i++) {
+			cumulative += counts[i].sum();
+			writeSample(writer, name + "_bucket", prefix + label("le", format(bounds[i])), cumulative);
+		}
+		cumulative += counts[bounds.length].sum();
+		writeSample(writer, name + "_bucket", prefix + label("le", "+Inf"), cumulative);
+		writeSample(writer, name + "_sum", labels, sumNanos.sum() / 1e9);
+		writeSample(writer, name + "_count", labels, cumulative);
+	}
+}
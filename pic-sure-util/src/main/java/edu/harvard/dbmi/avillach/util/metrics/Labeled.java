@@ -0,0 +1,55 @@
+package edu.harvard.dbmi.avillach.util.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Supplier;
+
+/**
+ * A family of metrics told apart by the value of one label.
+ *
+ * Each label value gets its own metric the first time it is used, and keeps it; later lookups of the
+ * same value allocate nothing. Label values should come from a small, known set, such as operation
+ * names or resource ids, never from user input.
+ */
+public class Labeled<M extends Metric> extends Metric {
+
+	private final String labelName;
+
+	private final Supplier<M> factory;
+
+	private final Map<String, M> children = new ConcurrentSkipListMap<>();
+
+	private final String type;
+
+	Labeled(String labelName, Supplier<M> factory) {
+		this.labelName = labelName;
+		this.factory = factory;
+		this.type = factory.get().type();
+	}
+
+	/**
+	 * @return the metric for this label value, created if it is the first time it is used
+	 */
+	public M labels(String value) {
+		M child = children.get(value);
+		if (child == null) {
+			child = children.computeIfAbsent(value, v -> factory.get());
+		}
+		return child;
+	}
+
+	@Override
+	String type() {
+		return type;
+	}
+
+	@Override
+	void write(Writer writer, String name, String labels) throws IOException {
+		for (Map.Entry<String, M> child : children.entrySet()) {
+			String pair = label(labelName, child.getKey());
+			child.getValue().write(writer, name, labels.isEmpty() ? pair : labels + "," + pair);
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package edu.harvard.dbmi.avillach.util.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * A single series, or a family of series, in the Prometheus text format
+ */
+abstract class Metric {
+
+	abstract String type();
+
+	/**
+	 * Writes the samples of this metric
+	 *
+	 * @param labels the label pairs to add to every sample, already formatted, empty for none
+	 */
+	abstract void write(Writer writer, String name, String labels) throws IOException;
+
+	static void writeSample(Writer writer, String name, String labels, double value) throws IOException {
+		writer.write(name);
+		if (!labels.isEmpty()) {
+			writer.write('{');
+			writer.write(labels);
+			writer.write('}');
+		}
+		writer.write(' ');
+		writer.write(format(value));
+		writer.write('\n');
+	}
+
+	static String format(double value) {
+		if (value == Double.POSITIVE_INFINITY) {
+			return "+Inf";
+		}
+		if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+			return Long.toString((long) value);
+		}
+		return Double.toString(value);
+	}
+
+	static String label(String name, String value) {
+		StringBuilder pair = new StringBuilder(name).append("=\"");
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '\\' || c == '"') {
+				pair.append('\\').append(c);
+			} else if (c == '\n') {
+				pair.append("\\n");
+			} else {
+				pair.append(c);
+			}
+		}
+		return pair.append('"').toString();
+	}
+}
@@ -0,0 +1,93 @@
+package edu.harvard.dbmi.avillach.util.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Counters, histograms and gauges written in the Prometheus text exposition format.
+ *
+ * Metrics are registered once, usually into static fields, and updated without locks or allocation
+ * on the request path. Registering a name that is already registered returns the existing metric,
+ * so that code shared between modules can register the same metrics safely. Each application has its
+ * own {@link #getDefault() default registry}, since each has its own copy of this class.
+ */
+public class MetricsRegistry {
+
+	public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	private static final MetricsRegistry defaultRegistry = new MetricsRegistry();
+
+	private final Map<String, Registered> metrics = new ConcurrentSkipListMap<>();
+
+	public static MetricsRegistry getDefault() {
+		return defaultRegistry;
+	}
+
+	public Counter counter(String name, String help) {
+		return register(name, help, Counter.class, Counter::new);
+	}
+
+	public Labeled<Counter> counter(String name, String help, String labelName) {
+		return labeled(name, help, labelName, Counter::new);
+	}
+
+	/**
+	 * @param bounds upper bounds of the buckets in seconds, see {@link Histogram#LATENCY_BUCKETS}
+	 */
+	public Histogram histogram(String name, String help, double... bounds) {
+		return register(name, help, Histogram.class, () -> new Histogram(bounds));
+	}
+
+	public Labeled<Histogram> histogram(String name, String help, String labelName, double... bounds) {
+		return labeled(name, help, labelName, () -> new Histogram(bounds));
+	}
+
+	/**
+	 * Registers a value that is read each time the metrics are written. A gauge registered again
+	 * under the same name replaces the earlier one, for when an application is redeployed.
+	 */
+	public void gauge(String name, String help, DoubleSupplier value) {
+		metrics.put(name, new Registered(help, new Gauge(value)));
+	}
+
+	public void writeTo(Writer writer) throws IOException {
+		for (Map.Entry<String, Registered> entry : metrics.entrySet()) {
+			Registered registered = entry.getValue();
+			writer.write("# HELP " + entry.getKey() + " " + registered.help.replace("\\", "\\\\").replace("\n", "\\n") + "\n");
+			writer.write("# TYPE " + entry.getKey() + " " + registered.metric.type() + "\n");
+			registered.metric.write(writer, entry.getKey(), "");
+		}
+		writer.flush();
+	}
+
+	@SuppressWarnings("unchecked")
+	private <M extends Metric> Labeled<M> labeled(String name, String help, String labelName, Supplier<M> factory) {
+		return register(name, help, Labeled.class, () -> new Labeled<>(labelName, factory));
+	}
+
+	private <M extends Metric> M register(String name, String help, Class<?> type, Supplier<M> factory) {
+		Registered registered = metrics.computeIfAbsent(name, n -> new Registered(help, factory.get()));
+		if (!type.isInstance(registered.metric)) {
+			throw new IllegalArgumentException("Metric " + name + " is already registered as a " + registered.metric.type());
+		}
+		@SuppressWarnings("unchecked")
+		M metric = (M) registered.metric;
+		return metric;
+	}
+
+	private static class Registered {
+
+		private final String help;
+
+		private final Metric metric;
+
+		Registered(String help, Metric metric) {
+			this.help = help;
+			this.metric = metric;
+		}
+	}
+}
@@ -0,0 +1,52 @@
+package edu.harvard.dbmi.avillach.util.trace;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Appends each span to a local file as one line of JSON, for testing and for following a trace on a
+ * single machine. Spans of every service pointed at the same file can be joined on their traceId.
+ */
+public class FileSpanExporter implements SpanExporter, Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger(FileSpanExporter.class);
+
+	private final ObjectMapper mapper = new ObjectMapper();
+
+	private final Path file;
+
+	private final BufferedWriter writer;
+
+	public FileSpanExporter(Path file) throws IOException {
+		this.file = file;
+		if (file.getParent() != null) {
+			Files.createDirectories(file.getParent());
+		}
+		this.writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+	}
+
+	@Override
+	public synchronized void export(Span span) {
+		try {
+			writer.write(mapper.writeValueAsString(span));
+			writer.newLine();
+			writer.flush();
+		} catch (IOException e) {
+			logger.warn("export() unable to write span to " + file + ": " + e.getMessage());
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		writer.close();
+	}
+}
@@ -0,0 +1,118 @@
+package edu.harvard.dbmi.avillach.util.trace;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One timed operation of a trace: a request this service handled, or a call it made to another one
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+@JsonPropertyOrder({"traceId", "spanId", "parentSpanId", "service", "kind", "name", "startMicros", "durationMicros", "status"})
+public class Span {
+
+	public enum Kind {
+		SERVER, CLIENT
+	}
+
+	private final TraceContext context;
+
+	private final String parentSpanId;
+
+	private final String service;
+
+	private final Kind kind;
+
+	private final String name;
+
+	private final long startMicros;
+
+	private final long startNanos;
+
+	private volatile long durationNanos = -1;
+
+	private volatile int status;
+
+	Span(TraceContext context, String parentSpanId, String service, Kind kind, String name) {
+		this.context = context;
+		this.parentSpanId = parentSpanId;
+		this.service = service;
+		this.kind = kind;
+		this.name = name;
+		this.startMicros = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+		this.startNanos = System.nanoTime();
+	}
+
+	/**
+	 * Ends the span and hands it to the exporter; later calls do nothing
+	 *
+	 * @param status the HTTP status of the response, -1 if there was none
+	 */
+	public void end(int status) {
+		synchronized (this) {
+			if (durationNanos >= 0) {
+				return;
+			}
+			this.status = status;
+			durationNanos = System.nanoTime() - startNanos;
+		}
+		Tracing.export(this);
+	}
+
+	/**
+	 * @return the traceparent header that makes this span the parent of the next hop
+	 */
+	@JsonIgnore
+	public String getTraceparent() {
+		return context.toTraceparent();
+	}
+
+	@JsonIgnore
+	public TraceContext getContext() {
+		return context;
+	}
+
+	public String getTraceId() {
+		return context.getTraceId();
+	}
+
+	public String getSpanId() {
+		return context.getSpanId();
+	}
+
+	public String getParentSpanId() {
+		return parentSpanId;
+	}
+
+	public String getService() {
+		return service;
+	}
+
+	public Kind getKind() {
+		return kind;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return when the span started, in microseconds since the epoch
+	 */
+	public long getStartMicros() {
+		return startMicros;
+	}
+
+	/**
+	 * @return how long the span took, -1 while it has not ended
+	 */
+	public long getDurationMicros() {
+		return durationNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMicros(durationNanos);
+	}
+
+	public int getStatus() {
+		return status;
+	}
+}
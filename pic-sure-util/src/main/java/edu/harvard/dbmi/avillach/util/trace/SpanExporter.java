@@ -0,0 +1,15 @@
+package edu.harvard.dbmi.avillach.util.trace;
+
+/**
+ * Receives every span once it has ended. Called on the thread that ended the span, so an exporter
+ * that does I/O should hand the span off rather than wait on it.
+ */
+public interface SpanExporter {
+
+	/**
+	 * Drops every span, for when tracing is only used to pass the context on
+	 */
+	SpanExporter NONE = span -> { };
+
+	void export(Span span);
+}
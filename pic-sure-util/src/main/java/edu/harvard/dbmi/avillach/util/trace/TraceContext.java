@@ -0,0 +1,88 @@
+package edu.harvard.dbmi.avillach.util.trace;
+
+/**
+ * The parts of a W3C trace context carried between services in the traceparent and tracestate
+ * headers, see https://www.w3.org/TR/trace-context/
+ */
+public class TraceContext {
+
+	private static final String INVALID_TRACE_ID = "00000000000000000000000000000000";
+
+	private static final String INVALID_SPAN_ID = "0000000000000000";
+
+	private final String traceId;
+
+	private final String spanId;
+
+	private final boolean sampled;
+
+	private final String traceState;
+
+	public TraceContext(String traceId, String spanId, boolean sampled, String traceState) {
+		this.traceId = traceId;
+		this.spanId = spanId;
+		this.sampled = sampled;
+		this.traceState = traceState;
+	}
+
+	/**
+	 * @param traceparent the traceparent header, may be null
+	 * @param traceState the tracestate header, kept as it is; may be null
+	 * @return the context the headers describe, or null if there is no valid traceparent
+	 */
+	public static TraceContext parse(String traceparent, String traceState) {
+		if (traceparent == null) {
+			return null;
+		}
+		String value = traceparent.trim();
+		//version-traceid-parentid-flags, later versions may append more fields
+		if (value.length() < 55 || value.charAt(2) != '-' || value.charAt(35) != '-' || value.charAt(52) != '-'
+				|| (value.length() > 55 && value.charAt(55) != '-')) {
+			return null;
+		}
+		String version = value.substring(0, 2);
+		String traceId = value.substring(3, 35);
+		String spanId = value.substring(36, 52);
+		String flags = value.substring(53, 55);
+		if (!isHex(version) || version.equals("ff") || (version.equals("00") && value.length() != 55)
+				|| !isHex(traceId) || traceId.equals(INVALID_TRACE_ID)
+				|| !isHex(spanId) || spanId.equals(INVALID_SPAN_ID) || !isHex(flags)) {
+			return null;
+		}
+		boolean sampled = (Integer.parseInt(flags, 16) & 1) == 1;
+		return new TraceContext(traceId, spanId, sampled, traceState == null || traceState.trim().isEmpty() ? null : traceState.trim());
+	}
+
+	/**
+	 * @return the traceparent header naming this context as the parent
+	 */
+	public String toTraceparent() {
+		return "00-" + traceId + "-" + spanId + (sampled ? "-01" : "-00");
+	}
+
+	public String getTraceId() {
+		return traceId;
+	}
+
+	public String getSpanId() {
+		return spanId;
+	}
+
+	public boolean isSampled() {
+		return sampled;
+	}
+
+	public String getTraceState() {
+		return traceState;
+	}
+
+	private static boolean isHex(String value) {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
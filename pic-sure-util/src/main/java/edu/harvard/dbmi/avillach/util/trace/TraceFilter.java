@@ -0,0 +1,70 @@
+package edu.harvard.dbmi.avillach.util.trace;
+
+import javax.annotation.Priority;
+import javax.ws.rs.Priorities;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.container.PreMatching;
+import javax.ws.rs.ext.Provider;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+import java.io.IOException;
+
+/**
+ * Starts a server span for each request, continuing the trace of the caller when it sent a
+ * traceparent header, and ends it once the response has been written.
+ *
+ * The span is current on the request thread in between, so calls the resource makes through
+ * HttpClientUtil carry the trace on to the next service.
+ */
+@Provider
+@PreMatching
+@Priority(Priorities.AUTHENTICATION - 100)
+public class TraceFilter implements ContainerRequestFilter, ContainerResponseFilter, WriterInterceptor {
+
+	private static final String SPAN = "trace.span";
+
+	private static final String STATUS = "trace.status";
+
+	@Override
+	public void filter(ContainerRequestContext requestContext) {
+		Span span = Tracing.startServerSpan(
+				requestContext.getMethod() + " " + requestContext.getUriInfo().getRequestUri().getPath(),
+				requestContext.getHeaderString(Tracing.TRACEPARENT),
+				requestContext.getHeaderString(Tracing.TRACESTATE));
+		requestContext.setProperty(SPAN, span);
+	}
+
+	@Override
+	public void filter(ContainerRequestContext requestContext, ContainerResponseContext responseContext) {
+		Span span = (Span) requestContext.getProperty(SPAN);
+		if (span == null) {
+			return;
+		}
+		if (responseContext.hasEntity()) {
+			//Ended once the entity is written, which may take longer than the resource method did
+			requestContext.setProperty(STATUS, responseContext.getStatus());
+			return;
+		}
+		span.end(responseContext.getStatus());
+		Tracing.clear();
+	}
+
+	@Override
+	public void aroundWriteTo(WriterInterceptorContext context) throws IOException {
+		Span span = (Span) context.getProperty(SPAN);
+		Object status = context.getProperty(STATUS);
+		boolean written = false;
+		try {
+			context.proceed();
+			written = true;
+		} finally {
+			if (span != null) {
+				span.end(written && status instanceof Integer ? (Integer) status : 500);
+				Tracing.clear();
+			}
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package edu.harvard.dbmi.avillach.util.trace;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Creates spans and keeps the span of the request each thread is handling.
+ *
+ * {@link TraceFilter} starts a server span for every request, continuing the trace of the caller when
+ * it sent a traceparent header. Calls made through HttpClientUtil while it runs get a client span of
+ * their own, whose traceparent is sent on to the next service. Work handed to other threads keeps the
+ * span when wrapped with {@link #propagate(Callable)}. Ended spans go to the {@link SpanExporter}.
+ */
+public class Tracing {
+
+	public static final String TRACEPARENT = "traceparent";
+
+	public static final String TRACESTATE = "tracestate";
+
+	private static final ThreadLocal<Span> current = new ThreadLocal<>();
+
+	private static volatile SpanExporter exporter = SpanExporter.NONE;
+
+	private static volatile String serviceName = "picsure";
+
+	/**
+	 * @param exporter receives every span from now on, null for none
+	 */
+	public static void setExporter(SpanExporter exporter) {
+		Tracing.exporter = exporter == null ? SpanExporter.NONE : exporter;
+	}
+
+	/**
+	 * @param serviceName the name spans of this application are exported under
+	 */
+	public static void setServiceName(String serviceName) {
+		Tracing.serviceName = serviceName;
+	}
+
+	/**
+	 * Starts the span of a request and makes it current on this thread
+	 *
+	 * @param traceparent the traceparent header of the request, null to start a new trace
+	 * @param traceState the tracestate header of the request, passed on unchanged
+	 */
+	public static Span startServerSpan(String name, String traceparent, String traceState) {
+		TraceContext parent = TraceContext.parse(traceparent, traceState);
+		Span span = parent == null
+				? new Span(new TraceContext(randomHex(16), randomHex(8), true, null), null, serviceName, Span.Kind.SERVER, name)
+				: child(parent, Span.Kind.SERVER, name);
+		current.set(span);
+		return span;
+	}
+
+	/**
+	 * Starts the span of a call to another service, under the current span
+	 *
+	 * @return the span, or null if this thread is not handling a traced request
+	 */
+	public static Span startClientSpan(String name) {
+		Span parent = current.get();
+		return parent == null ? null : child(parent.getContext(), Span.Kind.CLIENT, name);
+	}
+
+	/**
+	 * @return the span of the request this thread is handling, or null if there is none
+	 */
+	public static Span current() {
+		return current.get();
+	}
+
+	/**
+	 * Forgets the current span of this thread, once its request is done
+	 */
+	public static void clear() {
+		current.remove();
+	}
+
+	/**
+	 * @return the task, running under the span that is current now on whichever thread runs it
+	 */
+	public static <V> Callable<V> propagate(Callable<V> task) {
+		Span span = current.get();
+		if (span == null) {
+			return task;
+		}
+		return () -> {
+			Span previous = current.get();
+			current.set(span);
+			try {
+				return task.call();
+			} finally {
+				if (previous == null) {
+					current.remove();
+				} else {
+					current.set(previous);
+				}
+			}
+		};
+	}
+
+	static void export(Span span) {
+		exporter.export(span);
+	}
+
+	private static Span child(TraceContext parent, Span.Kind kind, String name) {
+		TraceContext context = new TraceContext(parent.getTraceId(), randomHex(8), parent.isSampled(), parent.getTraceState());
+		return new Span(context, parent.getSpanId(), serviceName, kind, name);
+	}
+
+	private static String randomHex(int bytes) {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		StringBuilder hex = new StringBuilder(bytes * 2);
+		boolean zero = true;
+		for (int i = 0; i < bytes; i++) {
+			int b = random.nextInt(256);
+			zero &= b == 0;
+			hex.append(Character.forDigit(b >> 4, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		//All zeros is not a valid id
+		return zero ? randomHex(bytes) : hex.toString();
+	}
+}